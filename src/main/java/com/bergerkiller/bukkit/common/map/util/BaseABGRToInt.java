@@ -23,4 +23,17 @@ class BaseABGRToInt implements RGBColorToIntConversion {
     public int singleIntToInt(int input) {
         return input;
     }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        output[outputOffset] = (byte) (rgba >> 24);
+        output[outputOffset + 1] = (byte) (rgba >> 16);
+        output[outputOffset + 2] = (byte) (rgba >> 8);
+        output[outputOffset + 3] = (byte) rgba;
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        return rgba;
+    }
 }
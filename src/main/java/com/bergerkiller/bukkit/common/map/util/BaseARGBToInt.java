@@ -23,4 +23,17 @@ class BaseARGBToInt implements RGBColorToIntConversion {
     public int singleIntToInt(int input) {
         return ((input >> 16) & 0xFF) | (input & 0xFF00FF00) | ((input & 0xFF) << 16);
     }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        output[outputOffset] = (byte) (rgba >> 24);
+        output[outputOffset + 1] = (byte) rgba;
+        output[outputOffset + 2] = (byte) (rgba >> 8);
+        output[outputOffset + 3] = (byte) (rgba >> 16);
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        return ((rgba >> 16) & 0xFF) | (rgba & 0xFF00FF00) | ((rgba & 0xFF) << 16);
+    }
 }
@@ -0,0 +1,126 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+/**
+ * Converts pixels of a format without transparency, filling the alpha channel of the
+ * result with a constant value instead of 0. Encoding ignores the alpha channel,
+ * the same as the opaque conversion does. SIMD conversions of RGB(A) channel layouts
+ * fill in the alpha channel themselves, and only use this class as their base.
+ */
+class BaseAlphaFillToInt implements RGBColorToIntConversion {
+    private final RGBColorToIntConversion opaque;
+    private final int alpha;
+    private final int alphaBits;
+
+    private BaseAlphaFillToInt(RGBColorToIntConversion opaque, int alpha) {
+        this.opaque = opaque;
+        this.alpha = alpha;
+        this.alphaBits = alpha << 24;
+    }
+
+    /**
+     * Creates a conversion that fills the alpha channel of the pixels converted by an
+     * opaque conversion
+     *
+     * @param opaque Conversion without transparency
+     * @param alpha Alpha value, 0 - 255
+     * @return Conversion with the alpha filled in, using SIMD if the opaque conversion does.
+     *         Returns the opaque conversion itself if alpha is 0.
+     * @throws UnsupportedOperationException If the conversion has transparency
+     * @throws IllegalArgumentException If the alpha value is out of range
+     */
+    static RGBColorToIntConversion create(RGBColorToIntConversion opaque, int alpha) {
+        if (opaque.hasTransparency()) {
+            throw new UnsupportedOperationException("Alpha fill is not supported by conversions with transparency: " + opaque);
+        }
+        if (alpha < 0 || alpha > 255) {
+            throw new IllegalArgumentException("Alpha fill value out of range: " + alpha);
+        }
+        if (alpha == 0) {
+            return opaque;
+        }
+
+        BaseAlphaFillToInt base = new BaseAlphaFillToInt(opaque.noSIMD(), alpha);
+        if (opaque.isUsingSIMD()) {
+            return RGBColorToIntConversion.SIMDLoader.tryCreateSIMD(() -> base, "alphaFill", base, opaque);
+        } else {
+            return base;
+        }
+    }
+
+    @Override
+    public RGBColorToIntConversion withAlphaFill(int alpha) {
+        return create(opaque, alpha);
+    }
+
+    @Override
+    public int getAlphaFill() {
+        return alpha;
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return false;
+    }
+
+    @Override
+    public DecodeCostModel costModel() {
+        // Filling in alpha costs next to nothing, and sharing the model avoids calibrating
+        // it again for every alpha value
+        return opaque.costModel();
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return opaque.singleBytesInputLength();
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return opaque.singleBytesToInt(input, inputOffset) | alphaBits;
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        return opaque.singleIntToInt(input) | alphaBits;
+    }
+
+    @Override
+    public int singleShortToInt(short input) {
+        return opaque.singleShortToInt(input) | alphaBits;
+    }
+
+    @Override
+    public boolean byteBlockEquals32Pixels(byte[] a, int aOffset, byte[] b, int bOffset) {
+        return opaque.byteBlockEquals32Pixels(a, aOffset, b, bOffset);
+    }
+
+    @Override
+    public boolean intBlockEquals32Pixels(int[] a, int aOffset, int[] b, int bOffset) {
+        return opaque.intBlockEquals32Pixels(a, aOffset, b, bOffset);
+    }
+
+    @Override
+    public int byteBlockMismatch(byte[] a, int aOffset, byte[] b, int bOffset, int pixelCount) {
+        return opaque.byteBlockMismatch(a, aOffset, b, bOffset, pixelCount);
+    }
+
+    @Override
+    public int intBlockMismatch(int[] a, int aOffset, int[] b, int bOffset, int pixelCount) {
+        return opaque.intBlockMismatch(a, aOffset, b, bOffset, pixelCount);
+    }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        opaque.singleEncodeToBytes(rgba, output, outputOffset);
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        return opaque.singleEncodeToInt(rgba);
+    }
+
+    @Override
+    public String toString() {
+        return "BaseAlphaFillToInt{" + opaque + ", alpha=" + alpha + "}";
+    }
+}
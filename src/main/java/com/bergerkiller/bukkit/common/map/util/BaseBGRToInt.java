@@ -20,4 +20,16 @@ class BaseBGRToInt implements RGBColorToIntConversion {
     public int singleIntToInt(int input) {
         return input & 0xFFFFFF;
     }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        output[outputOffset] = (byte) (rgba >> 16);
+        output[outputOffset + 1] = (byte) (rgba >> 8);
+        output[outputOffset + 2] = (byte) rgba;
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        return rgba & 0xFFFFFF;
+    }
 }
@@ -0,0 +1,59 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+/**
+ * Converts grayscale pixels, optionally with alpha. The gray value is used
+ * for the red, green and blue channels.<br>
+ * <br>
+ * Byte-encoded pixels store the gray byte, followed by the alpha byte if stored.
+ * Int-encoded pixels store the gray value in the least significant byte of the
+ * int, and the alpha value in the byte above it if stored. The remaining bits
+ * are ignored.
+ */
+class BaseGrayToInt implements RGBColorToIntConversion {
+    private final boolean hasAlpha;
+
+    private BaseGrayToInt(boolean hasAlpha) {
+        this.hasAlpha = hasAlpha;
+    }
+
+    static BaseGrayToInt gray8() {
+        return new BaseGrayToInt(false);
+    }
+
+    static BaseGrayToInt grayAlpha() {
+        return new BaseGrayToInt(true);
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return hasAlpha;
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return hasAlpha ? 2 : 1;
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        int rgba = (input[inputOffset] & 0xFF) * 0x010101;
+        if (hasAlpha) {
+            rgba |= input[inputOffset + 1] << 24;
+        }
+        return rgba;
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        int rgba = (input & 0xFF) * 0x010101;
+        if (hasAlpha) {
+            rgba |= (input & 0xFF00) << 16;
+        }
+        return rgba;
+    }
+
+    @Override
+    public String toString() {
+        return "BaseGrayToInt{" + (hasAlpha ? "GRAY_ALPHA" : "GRAY8") + "}";
+    }
+}
@@ -0,0 +1,120 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+/**
+ * Converts indexed-color pixels, where every pixel is an index into a palette
+ * of at most 256 colors. Byte-encoded pixels store the index as a single byte.
+ * Int-encoded pixels store the index in the least significant byte of the int,
+ * the remaining bits are ignored. Indices past the end of the palette convert
+ * to 0.
+ */
+class BaseIndexedToInt implements RGBColorToIntConversion {
+    // All indexed conversions cost the same, so they share the cost model of this one
+    private static final BaseIndexedToInt COST_REFERENCE = new BaseIndexedToInt(new int[256], 256, false);
+    private final int[] palette;
+    private final int colorCount;
+    private final boolean hasTransparency;
+
+    private BaseIndexedToInt(int[] palette, int colorCount, boolean hasTransparency) {
+        this.palette = palette;
+        this.colorCount = colorCount;
+        this.hasTransparency = hasTransparency;
+    }
+
+    /**
+     * Creates an indexed conversion for a palette of byte-encoded colors
+     *
+     * @param palette Palette colors, encoded in the palette format
+     * @param paletteFormat Format of the palette colors
+     * @param transparentIndex Index of the palette color that is fully transparent, -1 for none
+     * @return Indexed conversion
+     */
+    static BaseIndexedToInt create(byte[] palette, RGBColorToIntConversion paletteFormat, int transparentIndex) {
+        int colorCount = palette.length / paletteFormat.singleBytesInputLength();
+        int[] rgba = createPalette(colorCount, transparentIndex);
+        DecodeTasks.convertBytes(paletteFormat, palette, 0, palette.length, rgba, 0, colorCount);
+        return create(rgba, colorCount, paletteFormat.hasTransparency(), transparentIndex);
+    }
+
+    /**
+     * Creates an indexed conversion for a palette of int-encoded colors
+     *
+     * @param palette Palette colors, encoded in the palette format
+     * @param paletteFormat Format of the palette colors
+     * @param transparentIndex Index of the palette color that is fully transparent, -1 for none
+     * @return Indexed conversion
+     */
+    static BaseIndexedToInt create(int[] palette, RGBColorToIntConversion paletteFormat, int transparentIndex) {
+        int colorCount = palette.length;
+        int[] rgba = createPalette(colorCount, transparentIndex);
+        DecodeTasks.convertInts(paletteFormat, palette, 0, rgba, 0, colorCount);
+        return create(rgba, colorCount, paletteFormat.hasTransparency(), transparentIndex);
+    }
+
+    private static int[] createPalette(int colorCount, int transparentIndex) {
+        if (colorCount > 256) {
+            throw new IllegalArgumentException("Palette can have at most 256 colors, but has " + colorCount);
+        }
+        if (transparentIndex >= 256) {
+            throw new IllegalArgumentException("Transparent index must be below 256: " + transparentIndex);
+        }
+        return new int[256];
+    }
+
+    private static BaseIndexedToInt create(int[] rgba, int colorCount, boolean paletteTransparency, int transparentIndex) {
+        // Opaque palette colors are made fully opaque when a transparent index is used
+        boolean hasTransparency = paletteTransparency || transparentIndex >= 0;
+        if (!paletteTransparency && hasTransparency) {
+            for (int i = 0; i < colorCount; i++) {
+                rgba[i] |= 0xFF000000;
+            }
+        }
+        if (transparentIndex >= 0) {
+            rgba[transparentIndex] = 0;
+        }
+        return new BaseIndexedToInt(rgba, colorCount, hasTransparency);
+    }
+
+    /**
+     * Gets the RGBA colors of all 256 palette indices
+     *
+     * @return Palette RGBA colors. Should not be modified.
+     */
+    int[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * Gets the number of colors in the palette. Palette indices at or past this
+     * count convert to 0.
+     *
+     * @return Palette color count
+     */
+    int getColorCount() {
+        return colorCount;
+    }
+
+    @Override
+    public DecodeCostModel costModel() {
+        return DecodeCostModel.of(COST_REFERENCE);
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return hasTransparency;
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return 1;
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return palette[input[inputOffset] & 0xFF];
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        return palette[input & 0xFF];
+    }
+}
@@ -0,0 +1,185 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts pixel data with a channel layout defined at runtime, such as "BGRA" or "XRGB".
+ * The layout names the channels stored in every pixel. For byte data the channels are listed
+ * in the order they are stored in memory. For int data the channels are listed from the most
+ * significant byte to the least significant byte, where 3-channel layouts leave the most
+ * significant byte unused. This matches the naming of the {@link RGBColorToIntConversion#RGB},
+ * {@link RGBColorToIntConversion#BGR}, {@link RGBColorToIntConversion#ARGB} and
+ * {@link RGBColorToIntConversion#ABGR} conversions.
+ */
+class BaseLayoutToInt implements RGBColorToIntConversion {
+    private static final Map<String, RGBColorToIntConversion> cache = new ConcurrentHashMap<>();
+    static {
+        cache.put("RGB", RGBColorToIntConversion.RGB);
+        cache.put("BGR", RGBColorToIntConversion.BGR);
+        cache.put("ARGB", RGBColorToIntConversion.ARGB);
+        cache.put("ABGR", RGBColorToIntConversion.ABGR);
+    }
+
+    private final String layout;
+    private final boolean hasTransparency;
+    private final int length;
+    private final int byteR, byteG, byteB, byteExtra;
+    private final int shiftR, shiftG, shiftB, shiftA;
+    private final int intMask;
+
+    BaseLayoutToInt(String layout) {
+        this.layout = layout;
+        this.length = layout.length();
+        this.hasTransparency = (layout.indexOf('A') != -1);
+        this.byteR = layout.indexOf('R');
+        this.byteG = layout.indexOf('G');
+        this.byteB = layout.indexOf('B');
+        this.byteExtra = (length == 4) ? layout.indexOf(hasTransparency ? 'A' : 'X') : -1;
+
+        // Int channels are named from the most significant byte
+        String intLayout = (length == 3) ? ("X" + layout) : layout;
+        this.shiftR = (3 - intLayout.indexOf('R')) * 8;
+        this.shiftG = (3 - intLayout.indexOf('G')) * 8;
+        this.shiftB = (3 - intLayout.indexOf('B')) * 8;
+        this.shiftA = hasTransparency ? ((3 - intLayout.indexOf('A')) * 8) : -1;
+        this.intMask = (0xFF << shiftR) | (0xFF << shiftG) | (0xFF << shiftB) | (hasTransparency ? (0xFF << shiftA) : 0);
+    }
+
+    /**
+     * Gets the cached conversion for a channel layout, creating it the first time
+     *
+     * @param layout Channel layout, such as "BGRA"
+     * @return Conversion for the layout, using SIMD if available
+     * @throws IllegalArgumentException If the layout is not valid
+     */
+    static RGBColorToIntConversion forLayout(String layout) {
+        String key = layout.toUpperCase(Locale.ENGLISH);
+        RGBColorToIntConversion conversion = cache.get(key);
+        if (conversion == null) {
+            validate(key);
+            conversion = cache.computeIfAbsent(key, l -> {
+                BaseLayoutToInt base = new BaseLayoutToInt(l);
+                return RGBColorToIntConversion.SIMDLoader.tryCreateSIMD(() -> base,
+                        "layout", base, base.getByteChannelOffsets(), base.getIntChannelOffsets());
+            });
+        }
+        return conversion;
+    }
+
+    private static void validate(String layout) {
+        if (layout.length() != 3 && layout.length() != 4) {
+            throw new IllegalArgumentException("Layout must have 3 or 4 channels: " + layout);
+        }
+        for (char channel : new char[] { 'R', 'G', 'B' }) {
+            if (layout.indexOf(channel) == -1 || layout.indexOf(channel) != layout.lastIndexOf(channel)) {
+                throw new IllegalArgumentException("Layout must store channel " + channel + " exactly once: " + layout);
+            }
+        }
+        if (layout.length() == 4) {
+            int a = layout.indexOf('A'), x = layout.indexOf('X');
+            if ((a == -1) == (x == -1)) {
+                throw new IllegalArgumentException("4-channel layout must store exactly one A or X channel: " + layout);
+            }
+        }
+        for (int i = 0; i < layout.length(); i++) {
+            if ("RGBAX".indexOf(layout.charAt(i)) == -1) {
+                throw new IllegalArgumentException("Layout has unknown channel '" + layout.charAt(i) + "': " + layout);
+            }
+        }
+    }
+
+    /**
+     * Gets the offsets of the R, G and B channels, and the A or X channel if stored,
+     * into the bytes of a single pixel
+     *
+     * @return Byte channel offsets
+     */
+    int[] getByteChannelOffsets() {
+        if (length == 3) {
+            return new int[] { byteR, byteG, byteB };
+        } else {
+            return new int[] { byteR, byteG, byteB, byteExtra };
+        }
+    }
+
+    /**
+     * Gets the offsets of the R, G, B and A (or unused) channels into the little-endian
+     * bytes of a single int pixel
+     *
+     * @return Int channel offsets
+     */
+    int[] getIntChannelOffsets() {
+        int unused = 6 - (shiftR + shiftG + shiftB) / 8;
+        return new int[] { shiftR / 8, shiftG / 8, shiftB / 8, hasTransparency ? (shiftA / 8) : unused };
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return hasTransparency;
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return length;
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        int rgba = (input[inputOffset + byteR] & 0xFF) |
+                   ((input[inputOffset + byteG] & 0xFF) << 8) |
+                   ((input[inputOffset + byteB] & 0xFF) << 16);
+        if (hasTransparency) {
+            rgba |= (input[inputOffset + byteExtra] & 0xFF) << 24;
+        }
+        return rgba;
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        int rgba = ((input >>> shiftR) & 0xFF) |
+                   (((input >>> shiftG) & 0xFF) << 8) |
+                   (((input >>> shiftB) & 0xFF) << 16);
+        if (hasTransparency) {
+            rgba |= ((input >>> shiftA) & 0xFF) << 24;
+        }
+        return rgba;
+    }
+
+    @Override
+    public boolean intBlockEquals32Pixels(int[] a, int aOffset, int[] b, int bOffset) {
+        for (int i = 0; i < 32; i++) {
+            if (((a[aOffset + i] ^ b[bOffset + i]) & intMask) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        if (length == 4) {
+            output[outputOffset + byteExtra] = hasTransparency ? (byte) (rgba >> 24) : 0;
+        }
+        output[outputOffset + byteR] = (byte) rgba;
+        output[outputOffset + byteG] = (byte) (rgba >> 8);
+        output[outputOffset + byteB] = (byte) (rgba >> 16);
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        int output = ((rgba & 0xFF) << shiftR) |
+                     (((rgba >> 8) & 0xFF) << shiftG) |
+                     (((rgba >> 16) & 0xFF) << shiftB);
+        if (hasTransparency) {
+            output |= ((rgba >>> 24) & 0xFF) << shiftA;
+        }
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return "BaseLayoutToInt{" + layout + "}";
+    }
+}
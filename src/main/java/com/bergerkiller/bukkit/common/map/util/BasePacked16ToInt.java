@@ -0,0 +1,133 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+/**
+ * Converts 16-bit packed pixels, where every channel is stored with fewer than
+ * 8 bits. Channels are expanded to 8 bits by replicating the most significant bits
+ * into the least significant bits, so that the maximum channel value becomes 255.<br>
+ * <br>
+ * Byte-encoded pixels are stored as 2 bytes in little-endian order. Int-encoded
+ * pixels store the 16-bit value in the least significant bits of the int, the
+ * remaining bits are ignored.
+ */
+class BasePacked16ToInt implements RGBColorToIntConversion {
+    private final String name;
+    private final int shiftR, shiftG, shiftB, shiftA;
+    private final int bitsR, bitsG, bitsB, bitsA;
+
+    BasePacked16ToInt(String name, int bitsA, int bitsR, int bitsG, int bitsB) {
+        this.name = name;
+        this.bitsR = bitsR;
+        this.bitsG = bitsG;
+        this.bitsB = bitsB;
+        this.bitsA = bitsA;
+        this.shiftB = 0;
+        this.shiftG = bitsB;
+        this.shiftR = bitsB + bitsG;
+        this.shiftA = bitsB + bitsG + bitsR;
+    }
+
+    static BasePacked16ToInt rgb565() {
+        return new BasePacked16ToInt("RGB565", 0, 5, 6, 5);
+    }
+
+    static BasePacked16ToInt rgb555() {
+        return new BasePacked16ToInt("RGB555", 0, 5, 5, 5);
+    }
+
+    static BasePacked16ToInt argb1555() {
+        return new BasePacked16ToInt("ARGB1555", 1, 5, 5, 5);
+    }
+
+    static BasePacked16ToInt argb4444() {
+        return new BasePacked16ToInt("ARGB4444", 4, 4, 4, 4);
+    }
+
+    /**
+     * Gets the number of bits stored of the R, G, B and A channels, 0 if not stored
+     *
+     * @return Channel bit counts
+     */
+    int[] getChannelBits() {
+        return new int[] { bitsR, bitsG, bitsB, bitsA };
+    }
+
+    /**
+     * Gets the bit offsets into the 16-bit value of the R, G, B and A channels
+     *
+     * @return Channel bit offsets
+     */
+    int[] getChannelShifts() {
+        return new int[] { shiftR, shiftG, shiftB, shiftA };
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return bitsA != 0;
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return 2;
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return singleIntToInt((input[inputOffset] & 0xFF) | ((input[inputOffset + 1] & 0xFF) << 8));
+    }
+
+    @Override
+    public int singleShortToInt(short input) {
+        return singleIntToInt(input);
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        int rgba = expand(input >> shiftR, bitsR) |
+                  (expand(input >> shiftG, bitsG) << 8) |
+                  (expand(input >> shiftB, bitsB) << 16);
+        if (bitsA != 0) {
+            rgba |= expand(input >> shiftA, bitsA) << 24;
+        }
+        return rgba;
+    }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        int value = singleEncodeToInt(rgba);
+        output[outputOffset] = (byte) value;
+        output[outputOffset + 1] = (byte) (value >> 8);
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        int value = (((rgba & 0xFF) >> (8 - bitsR)) << shiftR) |
+                    ((((rgba >> 8) & 0xFF) >> (8 - bitsG)) << shiftG) |
+                    ((((rgba >> 16) & 0xFF) >> (8 - bitsB)) << shiftB);
+        if (bitsA != 0) {
+            value |= ((rgba >>> 24) >> (8 - bitsA)) << shiftA;
+        }
+        return value;
+    }
+
+    /**
+     * Expands the lower bits of a value to 8 bits, by repeating the bits
+     * until all 8 bits are filled
+     *
+     * @param value Value, only the lower bits are used
+     * @param bits Number of bits of the value, 1 or 4 to 8
+     * @return 8-bit value
+     */
+    static int expand(int value, int bits) {
+        value &= (1 << bits) - 1;
+        if (bits == 1) {
+            return -value & 0xFF;
+        } else {
+            return (value << (8 - bits)) | (value >> (2 * bits - 8));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BasePacked16ToInt{" + name + "}";
+    }
+}
@@ -0,0 +1,114 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts pixels with premultiplied alpha, where the red, green and blue channels are
+ * already multiplied by alpha. The pixels are first converted by a straight-alpha conversion
+ * of the same channel layout, after which the color channels are divided by alpha again.
+ * Fully transparent pixels convert to 0.<br>
+ * <br>
+ * Division is done by multiplying with the float reciprocal of alpha, rounding to the nearest
+ * integer. Color channels larger than alpha are not valid premultiplied values, and convert to 255.
+ */
+class BasePremultipliedToInt implements RGBColorToIntConversion {
+    private static final float[] RECIPROCALS = new float[256];
+    static {
+        for (int alpha = 0; alpha < 256; alpha++) {
+            RECIPROCALS[alpha] = reciprocal(alpha);
+        }
+    }
+
+    private final RGBColorToIntConversion straight;
+
+    private BasePremultipliedToInt(RGBColorToIntConversion straight) {
+        this.straight = straight;
+    }
+
+    /**
+     * Gets the cached premultiplied conversion of a straight-alpha conversion, creating it
+     * the first time
+     *
+     * @param straight Straight-alpha conversion
+     * @return Premultiplied conversion, using SIMD if the straight-alpha conversion does
+     * @throws IllegalArgumentException If the conversion has no transparency
+     */
+    static RGBColorToIntConversion forConversion(RGBColorToIntConversion straight) {
+        if (!straight.hasTransparency()) {
+            throw new IllegalArgumentException("Conversion has no alpha channel to premultiply with: " + straight);
+        }
+        return Cache.conversions.computeIfAbsent(straight, s -> {
+            BasePremultipliedToInt base = new BasePremultipliedToInt(s.noSIMD());
+            if (s.isUsingSIMD()) {
+                return RGBColorToIntConversion.SIMDLoader.tryCreateSIMD(() -> base, "premultiplied", base, s);
+            } else {
+                return base;
+            }
+        });
+    }
+
+    /**
+     * Computes the reciprocal of an alpha value, which un-premultiplies a color channel value
+     * <i>c</i> using <i>rint(c * reciprocal)</i>. Vectorized conversions compute the exact same
+     * float value. An alpha of 0 is treated as 1, as all color channels are then 0.
+     *
+     * @param alpha Alpha value, 0 - 255
+     * @return Reciprocal
+     */
+    static float reciprocal(int alpha) {
+        return 255.0f / (float) Math.max(alpha, 1);
+    }
+
+    /**
+     * Un-premultiplies the color channels of an RGBA value
+     *
+     * @param rgba Premultiplied RGBA value
+     * @return Straight RGBA value
+     */
+    static int unpremultiply(int rgba) {
+        int alpha = rgba >>> 24;
+        if (alpha == 255) {
+            return rgba;
+        }
+
+        // Limiting the channels to alpha keeps the result from going above 255
+        float reciprocal = RECIPROCALS[alpha];
+        int r = (int) Math.rint(Math.min(rgba & 0xFF, alpha) * reciprocal);
+        int g = (int) Math.rint(Math.min((rgba >> 8) & 0xFF, alpha) * reciprocal);
+        int b = (int) Math.rint(Math.min((rgba >> 16) & 0xFF, alpha) * reciprocal);
+        return r | (g << 8) | (b << 16) | (alpha << 24);
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return true;
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return straight.singleBytesInputLength();
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return unpremultiply(straight.singleBytesToInt(input, inputOffset));
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        return unpremultiply(straight.singleIntToInt(input));
+    }
+
+    @Override
+    public String toString() {
+        return "BasePremultipliedToInt{" + straight + "}";
+    }
+
+    // Initializing this class first initializes RGBColorToIntConversion, which creates the
+    // premultiplied constants before the static fields of this class are initialized.
+    // The cache is kept in its own class so that it is initialized when first used instead.
+    private static final class Cache {
+        static final Map<RGBColorToIntConversion, RGBColorToIntConversion> conversions = new ConcurrentHashMap<>();
+    }
+}
@@ -20,4 +20,16 @@ class BaseRGBToInt implements RGBColorToIntConversion {
     public int singleIntToInt(int input) {
         return ((input >> 16) & 0xFF) | (input & 0xFF00) | ((input & 0xFF) << 16);
     }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        output[outputOffset] = (byte) rgba;
+        output[outputOffset + 1] = (byte) (rgba >> 8);
+        output[outputOffset + 2] = (byte) (rgba >> 16);
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        return ((rgba >> 16) & 0xFF) | (rgba & 0xFF00) | ((rgba & 0xFF) << 16);
+    }
 }
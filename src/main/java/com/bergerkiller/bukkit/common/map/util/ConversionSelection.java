@@ -0,0 +1,370 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Opt-in self-tuning of the {@link RGBColorToIntConversion#BGR BGR}, {@link RGBColorToIntConversion#RGB RGB},
+ * {@link RGBColorToIntConversion#ABGR ABGR} and {@link RGBColorToIntConversion#ARGB ARGB} conversions.
+ * On some CPUs and JDKs the SIMD conversions are slower than the base conversions, for example when
+ * vectors are small or the vector operations are not compiled to vector instructions.<br>
+ * <br>
+ * When the {@value #SELF_TUNE_PROPERTY} system property is set to true, every candidate conversion of
+ * these formats is timed when the conversions are first used. The fastest candidate is picked separately
+ * for byte-encoded and int-encoded input. The measurements and the selected candidates can be inspected
+ * with {@link #getSelections()}. When the property is not set, SIMD is used whenever it is available.
+ */
+public final class ConversionSelection {
+    /**
+     * System property that, when set to true, times every candidate conversion of a format
+     * when first used and selects the fastest one
+     */
+    public static final String SELF_TUNE_PROPERTY = "colorconversion.selftune";
+    private static final List<ConversionSelection> selections = Collections.synchronizedList(new ArrayList<>());
+
+    private final String format;
+    private final List<Candidate> candidates;
+    private final Candidate byteSelection;
+    private final Candidate intSelection;
+    private final RGBColorToIntConversion conversion;
+
+    private ConversionSelection(String format, List<Candidate> candidates) {
+        Candidate byteSelection = candidates.get(0);
+        Candidate intSelection = candidates.get(0);
+        for (Candidate candidate : candidates) {
+            if (candidate.byteNanosPerPixel < byteSelection.byteNanosPerPixel) {
+                byteSelection = candidate;
+            }
+            if (candidate.intNanosPerPixel < intSelection.intNanosPerPixel) {
+                intSelection = candidate;
+            }
+        }
+
+        this.format = format;
+        this.candidates = Collections.unmodifiableList(candidates);
+        this.byteSelection = byteSelection;
+        this.intSelection = intSelection;
+        this.conversion = (byteSelection == intSelection) ? byteSelection.conversion
+                : new MixedConversion(byteSelection.conversion, intSelection.conversion);
+    }
+
+    /**
+     * Gets whether self-tuning is enabled with the {@value #SELF_TUNE_PROPERTY} system property
+     *
+     * @return True if self-tuning is enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(SELF_TUNE_PROPERTY);
+    }
+
+    /**
+     * Gets the selections made for all formats that were self-tuned. Is empty if
+     * self-tuning is not {@link #isEnabled() enabled}, or if SIMD is not available,
+     * in which case there is nothing to choose from.
+     *
+     * @return List of selections, in the order the formats were tuned
+     */
+    public static List<ConversionSelection> getSelections() {
+        // Ensure the formats are initialized so the selections exist
+        RGBColorToIntConversion.ARGB.hasTransparency();
+
+        synchronized (selections) {
+            return new ArrayList<>(selections);
+        }
+    }
+
+    /**
+     * Times every candidate conversion of a format and selects the fastest one
+     *
+     * @param format Name of the format, such as "RGB"
+     * @param candidates Candidate conversions of the format, the first is used when timing is equal
+     * @return Selected conversion
+     */
+    static RGBColorToIntConversion select(String format, RGBColorToIntConversion... candidates) {
+        List<Candidate> timed = new ArrayList<>(candidates.length);
+        for (RGBColorToIntConversion conversion : candidates) {
+            double[] nanosPerPixel = DecodeCostModel.measureNanosPerPixel(conversion);
+            timed.add(new Candidate(conversion, nanosPerPixel[0], nanosPerPixel[1]));
+        }
+
+        ConversionSelection selection = new ConversionSelection(format, timed);
+        selections.add(selection);
+        return selection.conversion;
+    }
+
+    /**
+     * Gets the name of the format that was tuned, such as "RGB"
+     *
+     * @return Format name
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Gets all candidate conversions that were timed, with their measured times
+     *
+     * @return List of candidates
+     */
+    public List<Candidate> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Gets the candidate that was fastest converting byte-encoded pixels
+     *
+     * @return Selected candidate for byte input
+     */
+    public Candidate getByteSelection() {
+        return byteSelection;
+    }
+
+    /**
+     * Gets the candidate that was fastest converting int-encoded pixels
+     *
+     * @return Selected candidate for int input
+     */
+    public Candidate getIntSelection() {
+        return intSelection;
+    }
+
+    /**
+     * Gets the conversion that is used for this format. If different candidates were selected
+     * for byte and int input, this conversion uses each candidate for its own input type.
+     *
+     * @return Selected conversion
+     */
+    public RGBColorToIntConversion getConversion() {
+        return conversion;
+    }
+
+    @Override
+    public String toString() {
+        return "ConversionSelection{" + format +
+                ", byte=" + byteSelection.getName() +
+                ", int=" + intSelection.getName() +
+                ", candidates=" + candidates + "}";
+    }
+
+    /**
+     * A candidate conversion of a format, with the measured time it takes to convert a pixel
+     */
+    public static final class Candidate {
+        private final RGBColorToIntConversion conversion;
+        private final double byteNanosPerPixel;
+        private final double intNanosPerPixel;
+
+        private Candidate(RGBColorToIntConversion conversion, double byteNanosPerPixel, double intNanosPerPixel) {
+            this.conversion = conversion;
+            this.byteNanosPerPixel = byteNanosPerPixel;
+            this.intNanosPerPixel = intNanosPerPixel;
+        }
+
+        /**
+         * Gets the name of this candidate, which is "SIMD" followed by the vector size,
+         * or "base" if SIMD is not used
+         *
+         * @return Candidate name
+         */
+        public String getName() {
+            return conversion.isUsingSIMD() ? ("SIMD" + conversion.getVectorBitSize()) : "base";
+        }
+
+        /**
+         * Gets the candidate conversion
+         *
+         * @return Conversion
+         */
+        public RGBColorToIntConversion getConversion() {
+            return conversion;
+        }
+
+        /**
+         * Gets the measured time it takes to convert a single byte-encoded pixel
+         *
+         * @return Nanoseconds per pixel
+         */
+        public double getByteNanosPerPixel() {
+            return byteNanosPerPixel;
+        }
+
+        /**
+         * Gets the measured time it takes to convert a single int-encoded pixel
+         *
+         * @return Nanoseconds per pixel
+         */
+        public double getIntNanosPerPixel() {
+            return intNanosPerPixel;
+        }
+
+        @Override
+        public String toString() {
+            return getName() + "[byte=" + String.format("%.3f", byteNanosPerPixel) + "ns/px" +
+                    ", int=" + String.format("%.3f", intNanosPerPixel) + "ns/px]";
+        }
+    }
+
+    /**
+     * Uses one conversion for byte-encoded input and output, and another for everything else
+     */
+    static final class MixedConversion implements RGBColorToIntConversion {
+        private final RGBColorToIntConversion byteConversion;
+        private final RGBColorToIntConversion intConversion;
+        private final RGBColorToIntConversion simdConversion;
+
+        MixedConversion(RGBColorToIntConversion byteConversion, RGBColorToIntConversion intConversion) {
+            if (byteConversion.noSIMD() != intConversion.noSIMD()) {
+                throw new IllegalArgumentException("Conversions are not of the same format");
+            }
+            this.byteConversion = byteConversion;
+            this.intConversion = intConversion;
+            this.simdConversion = byteConversion.isUsingSIMD() ? byteConversion : intConversion;
+        }
+
+        @Override
+        public boolean hasTransparency() {
+            return intConversion.hasTransparency();
+        }
+
+        @Override
+        public boolean isUsingSIMD() {
+            return simdConversion.isUsingSIMD();
+        }
+
+        @Override
+        public RGBColorToIntConversion noSIMD() {
+            return intConversion.noSIMD();
+        }
+
+        @Override
+        public int getVectorBitSize() {
+            return simdConversion.getVectorBitSize();
+        }
+
+        @Override
+        public RGBColorToIntConversion withVectorBitSize(int bitSize) {
+            return simdConversion.withVectorBitSize(bitSize);
+        }
+
+        @Override
+        public int preferredBlockSize() {
+            return Math.max(byteConversion.preferredBlockSize(), intConversion.preferredBlockSize());
+        }
+
+        @Override
+        public int singleBytesInputLength() {
+            return byteConversion.singleBytesInputLength();
+        }
+
+        @Override
+        public int singleBytesToInt(byte[] input, int inputOffset) {
+            return byteConversion.singleBytesToInt(input, inputOffset);
+        }
+
+        @Override
+        public int singleIntToInt(int input) {
+            return intConversion.singleIntToInt(input);
+        }
+
+        @Override
+        public int byteBlockInputLength() {
+            return byteConversion.byteBlockInputLength();
+        }
+
+        @Override
+        public int byteBlockInputMinimumLength() {
+            return byteConversion.byteBlockInputMinimumLength();
+        }
+
+        @Override
+        public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+            return byteConversion.byteBlockConvert32Pixels(input, inputOffset, output, outputOffset);
+        }
+
+        @Override
+        public int byteBlockConvert(byte[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+            return byteConversion.byteBlockConvert(input, inputOffset, output, outputOffset, pixelCount);
+        }
+
+        @Override
+        public int byteBlockConvertPartial(byte[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+            return byteConversion.byteBlockConvertPartial(input, inputOffset, output, outputOffset, pixelCount);
+        }
+
+        @Override
+        public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+            return intConversion.intBlockConvert32Pixels(input, inputOffset, output, outputOffset);
+        }
+
+        @Override
+        public int intBlockConvert(int[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+            return intConversion.intBlockConvert(input, inputOffset, output, outputOffset, pixelCount);
+        }
+
+        @Override
+        public int intBlockConvertPartial(int[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+            return intConversion.intBlockConvertPartial(input, inputOffset, output, outputOffset, pixelCount);
+        }
+
+        @Override
+        public boolean byteBlockEquals32Pixels(byte[] a, int aOffset, byte[] b, int bOffset) {
+            return byteConversion.byteBlockEquals32Pixels(a, aOffset, b, bOffset);
+        }
+
+        @Override
+        public boolean intBlockEquals32Pixels(int[] a, int aOffset, int[] b, int bOffset) {
+            return intConversion.intBlockEquals32Pixels(a, aOffset, b, bOffset);
+        }
+
+        @Override
+        public int byteBlockMismatch(byte[] a, int aOffset, byte[] b, int bOffset, int pixelCount) {
+            return byteConversion.byteBlockMismatch(a, aOffset, b, bOffset, pixelCount);
+        }
+
+        @Override
+        public int intBlockMismatch(int[] a, int aOffset, int[] b, int bOffset, int pixelCount) {
+            return intConversion.intBlockMismatch(a, aOffset, b, bOffset, pixelCount);
+        }
+
+        @Override
+        public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+            byteConversion.singleEncodeToBytes(rgba, output, outputOffset);
+        }
+
+        @Override
+        public int singleEncodeToInt(int rgba) {
+            return intConversion.singleEncodeToInt(rgba);
+        }
+
+        @Override
+        public int byteBlockOutputMinimumLength() {
+            return byteConversion.byteBlockOutputMinimumLength();
+        }
+
+        @Override
+        public int byteBlockEncode32Pixels(int[] input, int inputOffset, byte[] output, int outputOffset) {
+            return byteConversion.byteBlockEncode32Pixels(input, inputOffset, output, outputOffset);
+        }
+
+        @Override
+        public int intBlockEncode32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+            return intConversion.intBlockEncode32Pixels(input, inputOffset, output, outputOffset);
+        }
+
+        @Override
+        public void paletteBlockConvert32Pixels(int[] buffer, int bufferOffset, byte[] mapping, byte[] output, int outputOffset) {
+            simdConversion.paletteBlockConvert32Pixels(buffer, bufferOffset, mapping, output, outputOffset);
+        }
+
+        @Override
+        public int alphaMaskBlock32Pixels(int[] buffer, int bufferOffset, int alphaThreshold) {
+            return simdConversion.alphaMaskBlock32Pixels(buffer, bufferOffset, alphaThreshold);
+        }
+
+        @Override
+        public String toString() {
+            return "MixedConversion{byte=" + byteConversion + ", int=" + intConversion + "}";
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Decides over how many threads pixel decoding is split, based on the measured cost of
+ * converting a pixel and the measured overhead of distributing work over the fork-join pool.
+ * Splitting a small image over many threads is slower than decoding it on a single thread,
+ * so small images like 128x128 map tiles are decoded single-threaded unless the work
+ * per pixel is expensive.<br>
+ * <br>
+ * The conversion cost is measured per conversion format and implementation, and per input
+ * type (byte[] or int[]). The fork-join overhead is measured once. Decoding never waits for
+ * these measurements: the first time a model is used to decide the number of threads, it is
+ * calibrated on a background thread, and a conservative default is used until that is done.
+ * Images too small to ever be split are decoded single-threaded without using the model at all.
+ * The measurement can be skipped by setting the {@value #MIN_PIXELS_PER_THREAD_PROPERTY} system
+ * property to the minimum number of pixels each thread should decode.
+ */
+public final class DecodeCostModel {
+    /**
+     * System property that, when set, overrides the calibrated model with a fixed
+     * minimum number of pixels decoded per thread
+     */
+    public static final String MIN_PIXELS_PER_THREAD_PROPERTY = "colorconversion.parallel.minPixelsPerThread";
+    /**
+     * Every thread must decode at least this many times the fork-join overhead of work
+     * before decoding is split over another thread
+     */
+    private static final int MIN_WORK_OVERHEAD_FACTOR = 8;
+    /**
+     * Every thread decodes at least this many pixels, no matter how expensive they are.
+     * Fewer than twice this number of pixels are always decoded on a single thread.
+     */
+    private static final int MIN_PIXELS_PER_THREAD = 32 * 4;
+    private static final int CALIBRATION_PIXELS = 16384;
+    private static final int CALIBRATION_ROUNDS = 32;
+    private static final int CALIBRATION_MAX_ROUNDS = 1000;
+    private static final long CALIBRATION_MIN_NANOS = 20000000L;
+    private static final int WARM_UP_CALLS = 20000;
+    private static final int WARM_UP_PIXELS = 32;
+    /**
+     * Used while a model is not yet calibrated. Assumes a slow conversion with a high
+     * fork-join overhead, so that only large images or expensive consumers are split.
+     */
+    private static final Calibration DEFAULT_CALIBRATION = new Calibration(0, 1.0, 1.0, 50000L);
+    private static final Map<Object, DecodeCostModel> models = new ConcurrentHashMap<>();
+    private static final Map<RGBColorToIntConversion, DecodeCostModel> modelsByConverter =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private static ExecutorService calibrationExecutor = null;
+    private static long forkOverheadNanos = -1;
+
+    private final String name;
+    private Supplier<Calibration> calibrationTask;
+    private boolean calibrationScheduled;
+    private volatile Calibration calibration;
+
+    private DecodeCostModel(String name, Supplier<Calibration> calibrationTask) {
+        this.name = name;
+        this.calibrationTask = calibrationTask;
+        this.calibrationScheduled = false;
+        this.calibration = fixedCalibration();
+    }
+
+    /**
+     * Gets the cost model of a color conversion. All conversions of the same format and
+     * implementation share the same model. The model is not calibrated until it is first used.
+     *
+     * @param converter Color conversion
+     * @return Cost model of the color conversion
+     */
+    public static DecodeCostModel of(RGBColorToIntConversion converter) {
+        // Conversions are looked up by instance first, so that the format key is only built once
+        DecodeCostModel model = modelsByConverter.get(converter);
+        if (model == null) {
+            Object key = Arrays.asList(converter.getClass(), converter.noSIMD().getClass(),
+                    converter.singleBytesInputLength(), converter.getVectorBitSize());
+            model = models.computeIfAbsent(key, unused -> {
+                String name = converter.noSIMD().getClass().getSimpleName() + (converter.isUsingSIMD() ? "[SIMD]" : "");
+                return new DecodeCostModel(name, () -> {
+                    double[] nanosPerPixel = measureNanosPerPixel(converter);
+                    return new Calibration(0, nanosPerPixel[0], nanosPerPixel[1], measureForkOverhead());
+                });
+            });
+            modelsByConverter.put(converter, model);
+        }
+        return model;
+    }
+
+    /**
+     * Computes over how many threads the decoding of a number of pixels with a color conversion
+     * should be split. Pixel counts too small to ever be split return 1 without looking up
+     * the {@link RGBColorToIntConversion#costModel() cost model} of the conversion.
+     *
+     * @param converter Color conversion
+     * @param parallelism Maximum number of threads
+     * @param pixelCount Number of pixels to decode
+     * @param byteInput True for byte[] input, False for int[] input
+     * @param consumerNanosPerPixel Time spent consuming every decoded pixel
+     * @return Number of threads to use. 1 or less means single-threaded.
+     * @see #computeParallelism(int, int, boolean, double)
+     */
+    static int computeParallelism(RGBColorToIntConversion converter, int parallelism, int pixelCount,
+                                  boolean byteInput, double consumerNanosPerPixel
+    ) {
+        if (isSingleThreaded(parallelism, pixelCount)) {
+            return 1;
+        }
+        return converter.costModel().computeParallelism(parallelism, pixelCount, byteInput, consumerNanosPerPixel);
+    }
+
+    /**
+     * Gets the cost model of a conversion that is not a {@link RGBColorToIntConversion}.
+     * The conversion has a single input type, of which the cost is used for both byte[] and
+     * int[] input. The model is not calibrated until it is first used.
+     *
+     * @param key Key the cost model is stored by, identifying the format and implementation
+     * @param name Name of the conversion, shown in {@link #toString()}
+     * @param calibrationTask Task that converts the number of pixels passed to it
+     * @return Cost model of the conversion
+     */
+    static DecodeCostModel of(Object key, String name, IntConsumer calibrationTask) {
+        DecodeCostModel model = models.get(key);
+        if (model == null) {
+            model = models.computeIfAbsent(key, unused -> new DecodeCostModel(name, () -> {
+                for (int i = 0; i < WARM_UP_CALLS; i++) {
+                    calibrationTask.accept(WARM_UP_PIXELS);
+                }
+                long nanos = measure(() -> calibrationTask.accept(CALIBRATION_PIXELS), null)[0];
+                double nanosPerPixel = (double) nanos / CALIBRATION_PIXELS;
+                return new Calibration(0, nanosPerPixel, nanosPerPixel, measureForkOverhead());
+            }));
+        }
+        return model;
+    }
+
+    /**
+     * Gets whether decoding a number of pixels is always done on a single thread,
+     * without needing a cost model to decide that
+     *
+     * @param parallelism Maximum number of threads
+     * @param pixelCount Number of pixels to decode
+     * @return True if decoding is single-threaded
+     */
+    static boolean isSingleThreaded(int parallelism, int pixelCount) {
+        return parallelism <= 1 || pixelCount < 2 * MIN_PIXELS_PER_THREAD;
+    }
+
+    /**
+     * Gets whether this model was calibrated by measuring the conversion cost,
+     * or whether a fixed minimum number of pixels per thread was configured with
+     * the {@value #MIN_PIXELS_PER_THREAD_PROPERTY} system property.
+     * Calibrates this model if this was not done before.
+     *
+     * @return True if calibrated by measurement
+     */
+    public boolean isCalibrated() {
+        return calibrated().fixedMinPixelsPerThread == 0;
+    }
+
+    /**
+     * Gets the measured time it takes to convert a single byte-encoded pixel.
+     * Calibrates this model if this was not done before.
+     *
+     * @return Nanoseconds per pixel, 0 if not {@link #isCalibrated() calibrated}
+     */
+    public double getByteNanosPerPixel() {
+        return calibrated().byteNanosPerPixel;
+    }
+
+    /**
+     * Gets the measured time it takes to convert a single int-encoded pixel.
+     * Calibrates this model if this was not done before.
+     *
+     * @return Nanoseconds per pixel, 0 if not {@link #isCalibrated() calibrated}
+     */
+    public double getIntNanosPerPixel() {
+        return calibrated().intNanosPerPixel;
+    }
+
+    /**
+     * Gets the measured time it takes to distribute work over the worker threads
+     * and wait for them to complete. Calibrates this model if this was not done before.
+     *
+     * @return Fork-join overhead in nanoseconds, 0 if not {@link #isCalibrated() calibrated}
+     */
+    public long getForkOverheadNanos() {
+        return calibrated().overheadNanos;
+    }
+
+    /**
+     * Gets the minimum number of pixels every thread decodes.
+     * Calibrates this model if this was not done before.
+     *
+     * @param byteInput True for byte[] input, False for int[] input
+     * @param consumerNanosPerPixel Time spent consuming every decoded pixel
+     * @return Minimum number of pixels per thread
+     */
+    public int getMinimumPixelsPerThread(boolean byteInput, double consumerNanosPerPixel) {
+        return calibrated().getMinimumPixelsPerThread(byteInput, consumerNanosPerPixel);
+    }
+
+    /**
+     * Computes over how many threads the decoding of a number of pixels should be split.
+     * This never waits for this model to be calibrated. If it was not calibrated yet,
+     * calibration is started in the background and a conservative default is used instead.
+     *
+     * @param parallelism Maximum number of threads
+     * @param pixelCount Number of pixels to decode
+     * @param byteInput True for byte[] input, False for int[] input
+     * @param consumerNanosPerPixel Time spent consuming every decoded pixel
+     * @return Number of threads to use. 1 or less means single-threaded.
+     */
+    public int computeParallelism(int parallelism, int pixelCount, boolean byteInput, double consumerNanosPerPixel) {
+        if (isSingleThreaded(parallelism, pixelCount)) {
+            return 1;
+        }
+
+        Calibration c = calibration;
+        if (c == null) {
+            scheduleCalibration();
+            c = DEFAULT_CALIBRATION;
+        }
+        return Math.min(parallelism, pixelCount / c.getMinimumPixelsPerThread(byteInput, consumerNanosPerPixel));
+    }
+
+    /**
+     * Gets the time it takes to convert a single pixel, without waiting for this model
+     * to be calibrated. If it was not calibrated yet, a default estimate is returned.
+     *
+     * @param byteInput True for byte[] input, False for int[] input
+     * @return Nanoseconds per pixel
+     */
+    double estimateNanosPerPixel(boolean byteInput) {
+        Calibration c = calibration;
+        if (c == null) {
+            c = DEFAULT_CALIBRATION;
+        }
+        return byteInput ? c.byteNanosPerPixel : c.intNanosPerPixel;
+    }
+
+    @Override
+    public String toString() {
+        Calibration c = calibrated();
+        if (c.fixedMinPixelsPerThread == 0) {
+            return "DecodeCostModel{" + name +
+                    ", byte=" + String.format("%.3f", c.byteNanosPerPixel) + "ns/px" +
+                    ", int=" + String.format("%.3f", c.intNanosPerPixel) + "ns/px" +
+                    ", forkOverhead=" + c.overheadNanos + "ns" +
+                    ", minPixelsPerThread[byte=" + c.getMinimumPixelsPerThread(true, 0.0) +
+                    ", int=" + c.getMinimumPixelsPerThread(false, 0.0) + "]}";
+        } else {
+            return "DecodeCostModel{" + name + ", minPixelsPerThread=" + c.fixedMinPixelsPerThread + " (configured)}";
+        }
+    }
+
+    /**
+     * Calibrates this model if this was not done before. Only one thread calibrates,
+     * other threads wait for it to complete.
+     *
+     * @return Calibration
+     */
+    private Calibration calibrated() {
+        Calibration c = calibration;
+        if (c == null) {
+            synchronized (this) {
+                c = calibration;
+                if (c == null) {
+                    c = calibrationTask.get();
+                    calibrationTask = null; // Release the conversion measured
+                    calibration = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    private void scheduleCalibration() {
+        synchronized (this) {
+            if (calibrationScheduled) {
+                return;
+            }
+            calibrationScheduled = true;
+        }
+        calibrationExecutor().execute(this::calibrated);
+    }
+
+    private static synchronized ExecutorService calibrationExecutor() {
+        // A single thread, so that calibrations do not run at the same time and skew each other.
+        // The thread stops when there is nothing left to calibrate.
+        if (calibrationExecutor == null) {
+            calibrationExecutor = new ThreadPoolExecutor(0, 1, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "DecodeCostModel calibration");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return calibrationExecutor;
+    }
+
+    /**
+     * Measures the time it takes the color conversion to convert a single byte-encoded
+     * and int-encoded pixel. The conversion is {@link #warmUp(RGBColorToIntConversion) warmed up}
+     * first, then the fastest of many rounds of converting random pixels is used.
+     *
+     * @param converter Color conversion
+     * @return Nanoseconds per pixel of byte-encoded (index 0) and int-encoded (index 1) pixels
+     */
+    static double[] measureNanosPerPixel(RGBColorToIntConversion converter) {
+        warmUp(converter);
+
+        Random random = new Random(0x5EED);
+        byte[] byteInput = new byte[CALIBRATION_PIXELS * converter.singleBytesInputLength()];
+        int[] intInput = new int[CALIBRATION_PIXELS];
+        int[] output = new int[CALIBRATION_PIXELS];
+        random.nextBytes(byteInput);
+        for (int i = 0; i < intInput.length; i++) {
+            intInput[i] = random.nextInt();
+        }
+
+        long[] nanos = measure(
+                () -> DecodeTasks.convertBytes(converter, byteInput, 0, byteInput.length, output, 0, CALIBRATION_PIXELS),
+                () -> DecodeTasks.convertInts(converter, intInput, 0, output, 0, CALIBRATION_PIXELS));
+        return new double[] {
+                (double) nanos[0] / CALIBRATION_PIXELS,
+                (double) nanos[1] / CALIBRATION_PIXELS
+        };
+    }
+
+    /**
+     * Converts many small blocks of pixels, so that the JIT compiles the conversion before it is timed.
+     * Timing large conversions is not enough, as the vector operations of the SIMD conversions are only
+     * compiled to vector instructions once the conversion was called often enough. Without this, the
+     * interpreted conversion is measured, which is hundreds of times slower.
+     *
+     * @param converter Conversion to warm up
+     */
+    private static void warmUp(RGBColorToIntConversion converter) {
+        int pixelCount = converter.preferredBlockSize();
+        byte[] byteInput = new byte[pixelCount * converter.singleBytesInputLength()];
+        int[] intInput = new int[pixelCount];
+        int[] output = new int[pixelCount];
+        for (int i = 0; i < WARM_UP_CALLS; i++) {
+            DecodeTasks.convertBytes(converter, byteInput, 0, byteInput.length, output, 0, pixelCount);
+            DecodeTasks.convertInts(converter, intInput, 0, output, 0, pixelCount);
+        }
+    }
+
+    private static Calibration fixedCalibration() {
+        // Allow overriding with a fixed number of pixels per thread
+        String fixedMinPixelsStr = System.getProperty(MIN_PIXELS_PER_THREAD_PROPERTY);
+        if (fixedMinPixelsStr != null) {
+            try {
+                int fixedMinPixels = Integer.parseInt(fixedMinPixelsStr.trim());
+                if (fixedMinPixels > 0) {
+                    return new Calibration(fixedMinPixels, 0.0, 0.0, 0L);
+                }
+            } catch (NumberFormatException ex) {
+                // Ignore, calibrate instead
+            }
+        }
+        return null;
+    }
+
+    private static long[] measure(Runnable byteTask, Runnable intTask) {
+        // Take the fastest of many rounds, so that code compiled by the JIT is measured
+        // Keep going for a minimum amount of time to give the JIT time to compile it
+        long byteNanos = Long.MAX_VALUE;
+        long intNanos = Long.MAX_VALUE;
+        long calibrationEnd = System.nanoTime() + CALIBRATION_MIN_NANOS;
+        for (int round = 0; round < CALIBRATION_MAX_ROUNDS && (round < CALIBRATION_ROUNDS || System.nanoTime() < calibrationEnd); round++) {
+            long start = System.nanoTime();
+            byteTask.run();
+            long mid = System.nanoTime();
+            if (intTask != null) {
+                intTask.run();
+            }
+            long end = System.nanoTime();
+            byteNanos = Math.min(byteNanos, mid - start);
+            intNanos = Math.min(intNanos, end - mid);
+        }
+        return new long[] { byteNanos, intNanos };
+    }
+
+    private static synchronized long measureForkOverhead() {
+        if (forkOverheadNanos == -1) {
+            int parallelism = Math.max(2, Runtime.getRuntime().availableProcessors());
+            long overhead = Long.MAX_VALUE;
+            for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+                long start = System.nanoTime();
+                DecodeTasks.forEachRange(parallelism * 32, parallelism, 32, null, (s, e) -> {});
+                overhead = Math.min(overhead, System.nanoTime() - start);
+            }
+            forkOverheadNanos = overhead;
+        }
+        return forkOverheadNanos;
+    }
+
+    /**
+     * Measured (or configured) cost of decoding pixels
+     */
+    private static final class Calibration {
+        public final int fixedMinPixelsPerThread;
+        public final double byteNanosPerPixel;
+        public final double intNanosPerPixel;
+        public final long overheadNanos;
+
+        public Calibration(int fixedMinPixelsPerThread, double byteNanosPerPixel, double intNanosPerPixel, long overheadNanos) {
+            this.fixedMinPixelsPerThread = fixedMinPixelsPerThread;
+            this.byteNanosPerPixel = byteNanosPerPixel;
+            this.intNanosPerPixel = intNanosPerPixel;
+            this.overheadNanos = overheadNanos;
+        }
+
+        public int getMinimumPixelsPerThread(boolean byteInput, double consumerNanosPerPixel) {
+            if (fixedMinPixelsPerThread != 0) {
+                return fixedMinPixelsPerThread;
+            }
+
+            double nanosPerPixel = (byteInput ? byteNanosPerPixel : intNanosPerPixel) + consumerNanosPerPixel;
+            double minPixels = (double) (MIN_WORK_OVERHEAD_FACTOR * overheadNanos) / Math.max(nanosPerPixel, 0.01);
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_PIXELS_PER_THREAD, minPixels));
+        }
+    }
+}
@@ -0,0 +1,647 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Internal helper logic shared by the decoders for splitting the pixels
+ * to decode over multiple threads, and for converting runs of pixels
+ * into an output int[] array using the 32-pixel block conversion.
+ */
+final class DecodeTasks {
+
+    /**
+     * Default number of pixels processed by a single worker at a time
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 32 * 128;
+    /**
+     * Number of pixels copied from a buffer that isn't backed by an array at a time
+     */
+    public static final int BUFFER_STAGING_PIXELS = 32 * 32;
+
+    private DecodeTasks() {
+    }
+
+    /**
+     * Splits a number of pixels into chunks of {@link #DEFAULT_CHUNK_SIZE} pixels and runs
+     * the task for each chunk on the common fork-join pool.
+     *
+     * @param pixelCount Total number of pixels
+     * @param parallelism Maximum number of threads to split the work over
+     * @param task Task to run for every range of pixels
+     * @see #forEachRange(int, int, int, Executor, RangeTask)
+     */
+    public static void forEachRange(int pixelCount, int parallelism, RangeTask task) {
+        forEachRange(pixelCount, parallelism, DEFAULT_CHUNK_SIZE, null, task);
+    }
+
+    /**
+     * Splits a number of pixels into chunks of whole 32-pixel blocks and runs the task for
+     * each chunk. Up to parallelism workers, one of which is the calling thread, take
+     * the next chunk that has not been processed yet until all chunks are done. This way
+     * workers that finish early take over the remaining work of slower workers.
+     * The last chunk includes the remaining pixels that do not fit in a whole block.<br>
+     * <br>
+     * This method returns once all chunks are done. It does not wait for workers
+     * that were not started by the executor by then, as no work is left for them.
+     *
+     * @param pixelCount Total number of pixels, or rows of pixels
+     * @param parallelism Maximum number of threads to split the work over
+     * @param chunkSize Number of pixels per chunk, a multiple of 32, or rows of pixels per chunk
+     * @param executor Executor to run the workers on. If null, the common fork-join pool is used.
+     * @param task Task to run for every range of pixels
+     */
+    public static void forEachRange(int pixelCount, int parallelism, int chunkSize, Executor executor, RangeTask task) {
+        final int chunkCount = (pixelCount + chunkSize - 1) / chunkSize;
+        final int workerCount = Math.min(parallelism, chunkCount);
+        if (workerCount <= 1) {
+            task.run(0, pixelCount);
+            return;
+        }
+
+        ChunkQueue queue = new ChunkQueue(pixelCount, chunkSize, chunkCount, task);
+        if (executor == null) {
+            executor = ForkJoinPool.commonPool();
+        }
+
+        // Submit the other workers to the executor and also perform work on this thread
+        // If the executor rejects them, this thread does their work instead
+        for (int i = 1; i < workerCount; i++) {
+            try {
+                executor.execute(queue);
+            } catch (RejectedExecutionException ex) {
+                break;
+            }
+        }
+        queue.run();
+
+        // Wait until the chunks still being worked on by other workers are done
+        queue.awaitCompletion();
+        queue.rethrowError();
+    }
+
+    /**
+     * Computes the number of rows of pixels to process per chunk when splitting up the
+     * work by rows
+     *
+     * @param chunkSize Preferred number of pixels per chunk
+     * @param width Number of pixels in a single row
+     * @return Number of rows per chunk, at least 1
+     */
+    public static int rowsPerChunk(int chunkSize, int width) {
+        return Math.max(1, chunkSize / Math.max(1, width));
+    }
+
+    /**
+     * Converts a run of byte-encoded pixels, writing the results into the output array
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param srcLimit Limit of the input pixel data that can be read. Block conversion is
+     *                 only used while {@link RGBColorToIntConversion#byteBlockInputMinimumLength()}
+     *                 bytes remain until this limit.
+     * @param dst Output int array
+     * @param dstOffset Offset into the output array of the first pixel
+     * @param pixelCount Number of pixels to convert
+     */
+    public static void convertBytes(RGBColorToIntConversion converter,
+                                    byte[] src, int srcOffset, int srcLimit,
+                                    int[] dst, int dstOffset, int pixelCount
+    ) {
+        final int blockLimit = srcLimit - converter.byteBlockInputMinimumLength();
+        final int dstEnd = dstOffset + pixelCount;
+
+        // All whole blocks that can be read are converted in one go
+        if ((dstEnd - dstOffset) >= 32 && srcOffset <= blockLimit) {
+            int count = Math.min((dstEnd - dstOffset) & ~31,
+                                 32 * (1 + (blockLimit - srcOffset) / converter.byteBlockInputLength()));
+            srcOffset = converter.byteBlockConvert(src, srcOffset, dst, dstOffset, count);
+            dstOffset += count;
+        }
+        while (dstOffset < dstEnd) {
+            int count = Math.min(32, dstEnd - dstOffset);
+            srcOffset = converter.byteBlockConvertPartial(src, srcOffset, dst, dstOffset, count);
+            dstOffset += count;
+        }
+    }
+
+    /**
+     * Converts a run of int-encoded pixels, writing the results into the output array
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param dst Output int array
+     * @param dstOffset Offset into the output array of the first pixel
+     * @param pixelCount Number of pixels to convert
+     */
+    public static void convertInts(RGBColorToIntConversion converter,
+                                   int[] src, int srcOffset,
+                                   int[] dst, int dstOffset, int pixelCount
+    ) {
+        final int dstEnd = dstOffset + pixelCount;
+
+        if ((dstEnd - dstOffset) >= 32) {
+            int count = (dstEnd - dstOffset) & ~31;
+            srcOffset = converter.intBlockConvert(src, srcOffset, dst, dstOffset, count);
+            dstOffset += count;
+        }
+        if (dstOffset < dstEnd) {
+            converter.intBlockConvertPartial(src, srcOffset, dst, dstOffset, dstEnd - dstOffset);
+        }
+    }
+
+    /**
+     * Converts a run of byte-encoded pixels, writing the results into the output array
+     * and the alpha bitmask. The mask of every 32-pixel block is computed right after it is
+     * converted, while the pixels are still in cache.
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param srcLimit Limit of the input pixel data that can be read
+     * @param dst Output int array
+     * @param dstOffset Offset into the output array of the first pixel
+     * @param pixelCount Number of pixels to convert
+     * @param alphaMask Output alpha bitmask
+     * @param maskOffset Index into the alpha bitmask of the long storing the bit of the first pixel.
+     *                   The first pixel is stored in the lowest bit of this long.
+     * @param alphaThreshold Minimum alpha value of a pixel for its bit to be set
+     */
+    public static void convertBytes(RGBColorToIntConversion converter,
+                                    byte[] src, int srcOffset, int srcLimit,
+                                    int[] dst, int dstOffset, int pixelCount,
+                                    long[] alphaMask, int maskOffset, int alphaThreshold
+    ) {
+        final int blockLimit = srcLimit - converter.byteBlockInputMinimumLength();
+        final boolean hasTransparency = converter.hasTransparency();
+
+        long bits = 0L;
+        int index = 0;
+        while ((pixelCount - index) >= 32 && srcOffset <= blockLimit) {
+            srcOffset = converter.byteBlockConvert32Pixels(src, srcOffset, dst, dstOffset + index);
+            bits |= (converter.alphaMaskBlock32Pixels(dst, dstOffset + index, alphaThreshold) & 0xFFFFFFFFL) << (index & 32);
+            index += 32;
+            if ((index & 63) == 0) {
+                alphaMask[maskOffset + (index >> 6) - 1] = bits;
+                bits = 0L;
+            }
+        }
+        while (index < pixelCount) {
+            int count = Math.min(32, pixelCount - index);
+            srcOffset = converter.byteBlockConvertPartial(src, srcOffset, dst, dstOffset + index, count);
+            for (int i = 0; i < count; i++) {
+                if (isAtAlphaThreshold(hasTransparency, dst[dstOffset + index], alphaThreshold)) {
+                    bits |= 1L << index; // Shift only uses the lowest 6 bits of the index
+                }
+                if ((++index & 63) == 0) {
+                    alphaMask[maskOffset + (index >> 6) - 1] = bits;
+                    bits = 0L;
+                }
+            }
+        }
+        if ((index & 63) != 0) {
+            alphaMask[maskOffset + (index >> 6)] = bits;
+        }
+    }
+
+    /**
+     * Converts a run of int-encoded pixels, writing the results into the output array
+     * and the alpha bitmask
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param dst Output int array
+     * @param dstOffset Offset into the output array of the first pixel
+     * @param pixelCount Number of pixels to convert
+     * @param alphaMask Output alpha bitmask
+     * @param maskOffset Index into the alpha bitmask of the long storing the bit of the first pixel.
+     *                   The first pixel is stored in the lowest bit of this long.
+     * @param alphaThreshold Minimum alpha value of a pixel for its bit to be set
+     * @see #convertBytes(RGBColorToIntConversion, byte[], int, int, int[], int, int, long[], int, int)
+     */
+    public static void convertInts(RGBColorToIntConversion converter,
+                                   int[] src, int srcOffset,
+                                   int[] dst, int dstOffset, int pixelCount,
+                                   long[] alphaMask, int maskOffset, int alphaThreshold
+    ) {
+        final boolean hasTransparency = converter.hasTransparency();
+
+        long bits = 0L;
+        int index = 0;
+        while ((pixelCount - index) >= 32) {
+            srcOffset = converter.intBlockConvert32Pixels(src, srcOffset, dst, dstOffset + index);
+            bits |= (converter.alphaMaskBlock32Pixels(dst, dstOffset + index, alphaThreshold) & 0xFFFFFFFFL) << (index & 32);
+            index += 32;
+            if ((index & 63) == 0) {
+                alphaMask[maskOffset + (index >> 6) - 1] = bits;
+                bits = 0L;
+            }
+        }
+        if (index < pixelCount) {
+            converter.intBlockConvertPartial(src, srcOffset, dst, dstOffset + index, pixelCount - index);
+            for (; index < pixelCount; index++) {
+                if (isAtAlphaThreshold(hasTransparency, dst[dstOffset + index], alphaThreshold)) {
+                    bits |= 1L << index; // Shift only uses the lowest 6 bits of the index
+                }
+            }
+        }
+        if ((index & 63) != 0) {
+            alphaMask[maskOffset + (index >> 6)] = bits;
+        }
+    }
+
+    /**
+     * Checks the alpha bitmask and alpha threshold arguments of a decode operation
+     *
+     * @param pixelCount Number of pixels decoded
+     * @param alphaMask Output alpha bitmask
+     * @param alphaThreshold Alpha threshold
+     * @throws IllegalArgumentException If the alpha threshold is out of range, or the alpha mask is too small
+     */
+    public static void checkAlphaMask(int pixelCount, long[] alphaMask, int alphaThreshold) {
+        if (alphaThreshold < 0 || alphaThreshold > 255) {
+            throw new IllegalArgumentException("Alpha threshold out of range: " + alphaThreshold);
+        }
+        if (alphaMask.length < ((pixelCount + 63) >> 6)) {
+            throw new IllegalArgumentException("Alpha mask of " + alphaMask.length + " longs is too small for " + pixelCount + " pixels");
+        }
+    }
+
+    /**
+     * Checks that a range of elements of a buffer lies between index 0 and the limit of the buffer.
+     * Checked before any element is read or written, so that array-backed and direct buffers
+     * fail the same way.
+     *
+     * @param buffer Buffer to read from or write to
+     * @param offset Index into the buffer of the first element
+     * @param length Number of elements read or written
+     * @throws IndexOutOfBoundsException If the range is not within the limit of the buffer
+     */
+    public static void checkBufferRange(Buffer buffer, int offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + offset + " + " + length
+                    + ") out of bounds for buffer limit " + buffer.limit());
+        }
+    }
+
+    /**
+     * Encodes a run of RGBA pixels into byte-encoded pixels
+     *
+     * @param converter Color conversion to use
+     * @param src Input RGBA pixel values
+     * @param srcOffset Offset into the input array of the first pixel
+     * @param dst Output byte array
+     * @param dstOffset Offset into the output array of the first byte
+     * @param dstLimit Limit of the output array that can be written. Block encoding is
+     *                 only used while {@link RGBColorToIntConversion#byteBlockOutputMinimumLength()}
+     *                 bytes remain until this limit.
+     * @param pixelCount Number of pixels to encode
+     */
+    public static void encodeBytes(RGBColorToIntConversion converter,
+                                   int[] src, int srcOffset,
+                                   byte[] dst, int dstOffset, int dstLimit, int pixelCount
+    ) {
+        final int step = converter.singleBytesInputLength();
+        final int blockLimit = dstLimit - converter.byteBlockOutputMinimumLength();
+        final int srcEnd = srcOffset + pixelCount;
+
+        while ((srcEnd - srcOffset) >= 32 && dstOffset <= blockLimit) {
+            dstOffset = converter.byteBlockEncode32Pixels(src, srcOffset, dst, dstOffset);
+            srcOffset += 32;
+        }
+        while (srcOffset < srcEnd) {
+            converter.singleEncodeToBytes(src[srcOffset++], dst, dstOffset);
+            dstOffset += step;
+        }
+    }
+
+    /**
+     * Encodes a run of RGBA pixels into int-encoded pixels
+     *
+     * @param converter Color conversion to use
+     * @param src Input RGBA pixel values
+     * @param srcOffset Offset into the input array of the first pixel
+     * @param dst Output int array
+     * @param dstOffset Offset into the output array of the first pixel
+     * @param pixelCount Number of pixels to encode
+     */
+    public static void encodeInts(RGBColorToIntConversion converter,
+                                  int[] src, int srcOffset,
+                                  int[] dst, int dstOffset, int pixelCount
+    ) {
+        final int srcEnd = srcOffset + pixelCount;
+
+        while ((srcEnd - srcOffset) >= 32) {
+            dstOffset = converter.intBlockEncode32Pixels(src, srcOffset, dst, dstOffset);
+            srcOffset += 32;
+        }
+        while (srcOffset < srcEnd) {
+            dst[dstOffset++] = converter.singleEncodeToInt(src[srcOffset++]);
+        }
+    }
+
+    /**
+     * Converts a run of byte-encoded pixels stored in a byte buffer, writing the results into
+     * an int buffer. If both buffers are backed by an array, the arrays are used directly.
+     * Otherwise, small parts of the buffers are copied to and from arrays at a time.
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data buffer
+     * @param srcOffset Index into the input buffer of the first pixel
+     * @param dst Output int buffer
+     * @param dstOffset Index into the output buffer of the first pixel
+     * @param pixelCount Number of pixels to convert
+     * @throws IndexOutOfBoundsException If the pixels do not fit within the limit of either buffer
+     */
+    public static void convertBytes(RGBColorToIntConversion converter,
+                                    ByteBuffer src, int srcOffset,
+                                    IntBuffer dst, int dstOffset, int pixelCount
+    ) {
+        checkBufferRange(src, srcOffset, (long) pixelCount * converter.singleBytesInputLength());
+        checkBufferRange(dst, dstOffset, pixelCount);
+        if (src.hasArray() && dst.hasArray()) {
+            convertBytes(converter, src.array(), src.arrayOffset() + srcOffset, src.arrayOffset() + src.limit(),
+                    dst.array(), dst.arrayOffset() + dstOffset, pixelCount);
+            return;
+        }
+
+        final int step = converter.singleBytesInputLength();
+        final int overRead = Math.max(0, converter.byteBlockInputMinimumLength() - converter.byteBlockInputLength());
+        final ByteBuffer srcView = src.duplicate();
+        final IntBuffer dstView = dst.duplicate();
+        final byte[] srcStaging = new byte[BUFFER_STAGING_PIXELS * step + overRead];
+        final int[] dstStaging = new int[BUFFER_STAGING_PIXELS];
+        while (pixelCount > 0) {
+            int count = Math.min(pixelCount, BUFFER_STAGING_PIXELS);
+            int length = Math.min(count * step + overRead, src.limit() - srcOffset);
+            ((Buffer) srcView).position(srcOffset);
+            srcView.get(srcStaging, 0, length);
+            convertBytes(converter, srcStaging, 0, length, dstStaging, 0, count);
+            ((Buffer) dstView).position(dstOffset);
+            dstView.put(dstStaging, 0, count);
+
+            srcOffset += count * step;
+            dstOffset += count;
+            pixelCount -= count;
+        }
+    }
+
+    /**
+     * Converts a run of short-encoded pixels, writing the results into the output array
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param dst Output int array
+     * @param dstOffset Offset into the output array of the first pixel
+     * @param pixelCount Number of pixels to convert
+     */
+    public static void convertShorts(RGBColorToIntConversion converter,
+                                     short[] src, int srcOffset,
+                                     int[] dst, int dstOffset, int pixelCount
+    ) {
+        final int dstEnd = dstOffset + pixelCount;
+
+        while ((dstEnd - dstOffset) >= 32) {
+            srcOffset = converter.shortBlockConvert32Pixels(src, srcOffset, dst, dstOffset);
+            dstOffset += 32;
+        }
+        while (dstOffset < dstEnd) {
+            dst[dstOffset++] = converter.singleShortToInt(src[srcOffset++]);
+        }
+    }
+
+    /**
+     * Converts a run of int-encoded pixels stored in an int buffer, writing the results into
+     * an int buffer. If both buffers are backed by an array, the arrays are used directly.
+     * Otherwise, small parts of the buffers are copied to and from arrays at a time.
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data buffer
+     * @param srcOffset Index into the input buffer of the first pixel
+     * @param dst Output int buffer
+     * @param dstOffset Index into the output buffer of the first pixel
+     * @param pixelCount Number of pixels to convert
+     * @throws IndexOutOfBoundsException If the pixels do not fit within the limit of either buffer
+     */
+    public static void convertInts(RGBColorToIntConversion converter,
+                                   IntBuffer src, int srcOffset,
+                                   IntBuffer dst, int dstOffset, int pixelCount
+    ) {
+        checkBufferRange(src, srcOffset, pixelCount);
+        checkBufferRange(dst, dstOffset, pixelCount);
+        if (src.hasArray() && dst.hasArray()) {
+            convertInts(converter, src.array(), src.arrayOffset() + srcOffset,
+                    dst.array(), dst.arrayOffset() + dstOffset, pixelCount);
+            return;
+        }
+
+        final IntBuffer srcView = src.duplicate();
+        final IntBuffer dstView = dst.duplicate();
+        final int[] staging = new int[BUFFER_STAGING_PIXELS];
+        while (pixelCount > 0) {
+            int count = Math.min(pixelCount, BUFFER_STAGING_PIXELS);
+            ((Buffer) srcView).position(srcOffset);
+            srcView.get(staging, 0, count);
+            convertInts(converter, staging, 0, staging, 0, count);
+            ((Buffer) dstView).position(dstOffset);
+            dstView.put(staging, 0, count);
+
+            srcOffset += count;
+            dstOffset += count;
+            pixelCount -= count;
+        }
+    }
+
+    /**
+     * Converts a run of byte-encoded pixels into map color palette bytes
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param srcLimit Limit of the input pixel data that can be read
+     * @param mapping Mapping table of 16777217 bytes
+     * @param dst Output byte array
+     * @param dstOffset Offset into the output array of the first pixel
+     * @param pixelCount Number of pixels to convert
+     */
+    public static void convertBytesToPalette(RGBColorToIntConversion converter,
+                                             byte[] src, int srcOffset, int srcLimit,
+                                             byte[] mapping, byte[] dst, int dstOffset, int pixelCount
+    ) {
+        final int blockLimit = srcLimit - converter.byteBlockInputMinimumLength();
+        final int dstEnd = dstOffset + pixelCount;
+        final boolean hasTransparency = converter.hasTransparency();
+
+        int[] buff = new int[32];
+        while ((dstEnd - dstOffset) >= 32 && srcOffset <= blockLimit) {
+            srcOffset = converter.byteBlockConvert32Pixels(src, srcOffset, buff, 0);
+            converter.paletteBlockConvert32Pixels(buff, 0, mapping, dst, dstOffset);
+            dstOffset += 32;
+        }
+        while (dstOffset < dstEnd) {
+            int count = Math.min(32, dstEnd - dstOffset);
+            srcOffset = converter.byteBlockConvertPartial(src, srcOffset, buff, 0, count);
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset++] = mapping[paletteIndex(hasTransparency, buff[i])];
+            }
+        }
+    }
+
+    /**
+     * Converts a run of int-encoded pixels into map color palette bytes
+     *
+     * @param converter Color conversion to use
+     * @param src Input pixel data
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param mapping Mapping table of 16777217 bytes
+     * @param dst Output byte array
+     * @param dstOffset Offset into the output array of the first pixel
+     * @param pixelCount Number of pixels to convert
+     */
+    public static void convertIntsToPalette(RGBColorToIntConversion converter,
+                                            int[] src, int srcOffset,
+                                            byte[] mapping, byte[] dst, int dstOffset, int pixelCount
+    ) {
+        final int dstEnd = dstOffset + pixelCount;
+        final boolean hasTransparency = converter.hasTransparency();
+
+        int[] buff = new int[32];
+        while ((dstEnd - dstOffset) >= 32) {
+            srcOffset = converter.intBlockConvert32Pixels(src, srcOffset, buff, 0);
+            converter.paletteBlockConvert32Pixels(buff, 0, mapping, dst, dstOffset);
+            dstOffset += 32;
+        }
+        if (dstOffset < dstEnd) {
+            int count = dstEnd - dstOffset;
+            converter.intBlockConvertPartial(src, srcOffset, buff, 0, count);
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset++] = mapping[paletteIndex(hasTransparency, buff[i])];
+            }
+        }
+    }
+
+    /**
+     * Computes the index into the 16777217-length map color mapping table for
+     * an RGBA color value. Transparent colors map to the last entry.
+     *
+     * @param hasTransparency Whether the alpha channel of the color is used
+     * @param rgba RGBA color value
+     * @return Index into the mapping table
+     */
+    public static int paletteIndex(boolean hasTransparency, int rgba) {
+        if (!hasTransparency || (rgba & 0x80000000) != 0) {
+            return rgba & 0xFFFFFF;
+        } else {
+            return 0x1000000;
+        }
+    }
+
+    /**
+     * Checks whether an RGBA color value is at or above an alpha threshold
+     *
+     * @param hasTransparency Whether the alpha channel of the color is used
+     * @param rgba RGBA color value
+     * @param alphaThreshold Minimum alpha value
+     * @return True if the color is at or above the threshold, or if transparency is not used
+     */
+    public static boolean isAtAlphaThreshold(boolean hasTransparency, int rgba, int alphaThreshold) {
+        return !hasTransparency || (rgba >>> 24) >= alphaThreshold;
+    }
+
+    /**
+     * Task run for a range of pixels
+     */
+    @FunctionalInterface
+    public interface RangeTask {
+        /**
+         * Runs this task for a range of pixels
+         *
+         * @param start Index of the first pixel (inclusive)
+         * @param end Index of the last pixel (exclusive)
+         */
+        void run(int start, int end);
+    }
+
+    /**
+     * Hands out chunks of pixels to workers until all chunks are processed.
+     * If a worker fails, the remaining chunks are skipped. The error is
+     * rethrown by the thread that waits for completion.
+     */
+    private static final class ChunkQueue implements Runnable {
+        private final int pixelCount;
+        private final int chunkSize;
+        private final int chunkCount;
+        private final RangeTask task;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        private final AtomicInteger activeWorkers = new AtomicInteger();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        public ChunkQueue(int pixelCount, int chunkSize, int chunkCount, RangeTask task) {
+            this.pixelCount = pixelCount;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            // Counted as active before taking a chunk, so that awaitCompletion() can not
+            // miss a chunk that was taken but not yet started
+            activeWorkers.incrementAndGet();
+            try {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+                    int start = chunk * chunkSize;
+                    task.run(start, Math.min(start + chunkSize, pixelCount));
+                }
+            } catch (Throwable t) {
+                nextChunk.set(chunkCount);
+                error.compareAndSet(null, t);
+            } finally {
+                if (activeWorkers.decrementAndGet() == 0) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits until all chunks are taken and no worker is processing one anymore
+         */
+        public synchronized void awaitCompletion() {
+            boolean interrupted = false;
+            while (nextChunk.get() < chunkCount || activeWorkers.get() != 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void rethrowError() {
+            Throwable t = error.get();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t != null) {
+                throw new RuntimeException("Failed to decode pixels", t);
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decodes a sequence of frames of the same size, such as the frames of a video, only
+ * converting the parts of every frame that changed since the previous frame. The input
+ * data of the previous frame is kept, and every row of the frame is compared with it in
+ * blocks of 32 pixels. Only blocks that differ are converted, copied into the kept input
+ * data and passed to the consumer.<br>
+ * <br>
+ * The decoded RGBA pixels of the full frame are kept up to date in {@link #getPixels()}.
+ * Every decode returns a {@link DirtyRegion} with the bounds of all changed blocks.
+ * The first frame, and the first frame after {@link #reset()}, is decoded entirely.<br>
+ * <br>
+ * Blocks passed to the consumer start at index <i>row * width + column</i> and never
+ * span more than one row. The consumer is called on multiple threads by default.
+ */
+public final class DeltaDecoder {
+    private final RGBColorToIntConversion converter;
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private byte[] previousBytes;
+    private int[] previousInts;
+    private int parallelism;
+    private Executor executor;
+
+    public DeltaDecoder(RGBColorToIntConversion converter, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Frame size must be positive: " + width + "x" + height);
+        }
+        this.converter = converter;
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+        this.previousBytes = null;
+        this.previousInts = null;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.executor = null;
+    }
+
+    /**
+     * Gets the width of every frame
+     *
+     * @return Frame width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of every frame
+     *
+     * @return Frame height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the decoded RGBA pixel values of the last decoded frame, row by row.
+     * The returned array is updated by every decode.
+     *
+     * @return Decoded pixels
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Sets over how many parallel threads the rows of a frame are compared and decoded at most.
+     * If set to 1 or less, this decoder runs single-threaded.
+     * Is by default set to the number of cpu threads.
+     *
+     * @param parallelism Maximum number of parallel tasks to decode on
+     * @return this delta decoder
+     */
+    public DeltaDecoder parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the executor on which frames are decoded in parallel.
+     * Is by default set to null, which uses the {@link ForkJoinPool#commonPool() common pool}.
+     *
+     * @param executor Executor to perform the parallel decoding work on, null for the common pool
+     * @return this delta decoder
+     */
+    public DeltaDecoder executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Forgets the previous frame, so that the next frame is decoded entirely
+     */
+    public void reset() {
+        previousBytes = null;
+        previousInts = null;
+    }
+
+    /**
+     * Decodes a frame of byte-encoded pixel data, with the rows stored without padding
+     *
+     * @param data Pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param consumer Consumer for the blocks of pixels that changed, null to only update {@link #getPixels()}
+     * @return Region of the frame that changed
+     */
+    public DirtyRegion decode(byte[] data, RGBColorToIntConversion.RGBBlockConsumer consumer) {
+        return decode(data, 0, width * converter.singleBytesInputLength(), consumer);
+    }
+
+    /**
+     * Decodes a frame of byte-encoded pixel data
+     *
+     * @param data Pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param offset Offset into the pixel data of the first byte of the top-left pixel of the frame
+     * @param scanlineStride Number of bytes from the start of one row to the start of the next row
+     * @param consumer Consumer for the blocks of pixels that changed, null to only update {@link #getPixels()}
+     * @return Region of the frame that changed
+     */
+    public DirtyRegion decode(byte[] data, int offset, int scanlineStride, RGBColorToIntConversion.RGBBlockConsumer consumer) {
+        final int step = converter.singleBytesInputLength();
+        final int blockLength = 32 * step;
+        final int blockLimit = data.length - converter.byteBlockInputMinimumLength();
+        final int wholeBlocks = width & ~31;
+        final boolean full = (previousBytes == null);
+        if (full) {
+            previousBytes = new byte[width * height * step];
+            previousInts = null;
+        }
+        final byte[] previous = previousBytes;
+
+        return forEachRow(true, (row, tracker, buff) -> {
+            int src = offset + row * scanlineStride;
+            int prev = row * width * step;
+            int col = 0;
+
+            // Compare and convert whole 32 pixel blocks
+            // Runs of unchanged blocks are skipped at once, only changed blocks are copied
+            for (; col < wholeBlocks; col += 32, src += blockLength, prev += blockLength) {
+                if (!full) {
+                    int equal = converter.byteBlockMismatch(data, src, previous, prev, wholeBlocks - col);
+                    col += equal;
+                    src += (equal / 32) * blockLength;
+                    prev += (equal / 32) * blockLength;
+                    if (col == wholeBlocks) {
+                        break;
+                    }
+                }
+                System.arraycopy(data, src, previous, prev, blockLength);
+                if (src <= blockLimit) {
+                    converter.byteBlockConvert32Pixels(data, src, buff);
+                } else {
+                    converter.byteBlockConvertPartial(data, src, buff, 0, 32);
+                }
+                tracker.changed(row, col, 32, buff, consumer);
+            }
+
+            // Compare and convert the few remaining pixels at the end of the row
+            int count = width - col;
+            if (count > 0 && (full || !bytesEqual(data, src, previous, prev, count * step))) {
+                System.arraycopy(data, src, previous, prev, count * step);
+                converter.byteBlockConvertPartial(data, src, buff, 0, count);
+                tracker.changed(row, col, count, buff, consumer);
+            }
+        });
+    }
+
+    /**
+     * Decodes a frame of int-encoded pixel data, with the rows stored without padding
+     *
+     * @param data Pixel data, with an int per pixel storing the RGB(A) values
+     * @param consumer Consumer for the blocks of pixels that changed, null to only update {@link #getPixels()}
+     * @return Region of the frame that changed
+     */
+    public DirtyRegion decode(int[] data, RGBColorToIntConversion.RGBBlockConsumer consumer) {
+        return decode(data, 0, width, consumer);
+    }
+
+    /**
+     * Decodes a frame of int-encoded pixel data
+     *
+     * @param data Pixel data, with an int per pixel storing the RGB(A) values
+     * @param offset Offset into the pixel data of the top-left pixel of the frame
+     * @param scanlineStride Number of ints from the start of one row to the start of the next row
+     * @param consumer Consumer for the blocks of pixels that changed, null to only update {@link #getPixels()}
+     * @return Region of the frame that changed
+     */
+    public DirtyRegion decode(int[] data, int offset, int scanlineStride, RGBColorToIntConversion.RGBBlockConsumer consumer) {
+        final int wholeBlocks = width & ~31;
+        final boolean full = (previousInts == null);
+        if (full) {
+            previousInts = new int[width * height];
+            previousBytes = null;
+        }
+        final int[] previous = previousInts;
+
+        return forEachRow(false, (row, tracker, buff) -> {
+            int src = offset + row * scanlineStride;
+            int prev = row * width;
+            int col = 0;
+
+            // Compare and convert whole 32 pixel blocks
+            // Runs of unchanged blocks are skipped at once, only changed blocks are copied
+            for (; col < wholeBlocks; col += 32, src += 32, prev += 32) {
+                if (!full) {
+                    int equal = converter.intBlockMismatch(data, src, previous, prev, wholeBlocks - col);
+                    col += equal;
+                    src += equal;
+                    prev += equal;
+                    if (col == wholeBlocks) {
+                        break;
+                    }
+                }
+                System.arraycopy(data, src, previous, prev, 32);
+                converter.intBlockConvert32Pixels(data, src, buff);
+                tracker.changed(row, col, 32, buff, consumer);
+            }
+
+            // Compare and convert the few remaining pixels at the end of the row
+            int count = width - col;
+            if (count > 0 && (full || !intsEqual(converter, data, src, previous, prev, count))) {
+                System.arraycopy(data, src, previous, prev, count);
+                converter.intBlockConvertPartial(data, src, buff, 0, count);
+                tracker.changed(row, col, count, buff, consumer);
+            }
+        });
+    }
+
+    private DirtyRegion forEachRow(boolean byteInput, RowTask task) {
+        final DirtyTracker result = new DirtyTracker();
+        final int threads = DecodeCostModel.computeParallelism(converter, parallelism, width * height, byteInput, 0.0);
+        final int rowsPerChunk = DecodeTasks.rowsPerChunk(DecodeTasks.DEFAULT_CHUNK_SIZE, width);
+        DecodeTasks.forEachRange(height, threads, rowsPerChunk, executor, (startRow, endRow) -> {
+            DirtyTracker tracker = new DirtyTracker();
+            int[] buff = new int[32];
+            for (int row = startRow; row < endRow; row++) {
+                task.run(row, tracker, buff);
+            }
+            result.merge(tracker);
+        });
+        return new DirtyRegion(result, height * ((width + 31) / 32));
+    }
+
+    private static boolean bytesEqual(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean intsEqual(RGBColorToIntConversion converter, int[] a, int aOffset, int[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (converter.singleIntToInt(a[aOffset + i]) != converter.singleIntToInt(b[bOffset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @FunctionalInterface
+    private interface RowTask {
+        void run(int row, DirtyTracker tracker, int[] buff);
+    }
+
+    /**
+     * Tracks the bounds of the changed blocks decoded by a single worker
+     */
+    private final class DirtyTracker {
+        private int minX = Integer.MAX_VALUE;
+        private int minY = Integer.MAX_VALUE;
+        private int maxX = -1;
+        private int maxY = -1;
+        private int changedBlocks = 0;
+
+        public void changed(int row, int col, int count, int[] buff, RGBColorToIntConversion.RGBBlockConsumer consumer) {
+            int index = row * width + col;
+            System.arraycopy(buff, 0, pixels, index, count);
+            if (consumer != null) {
+                consumer.onBlock(index, buff, count);
+            }
+            minX = Math.min(minX, col);
+            maxX = Math.max(maxX, col + count - 1);
+            minY = Math.min(minY, row);
+            maxY = Math.max(maxY, row);
+            changedBlocks++;
+        }
+
+        public synchronized void merge(DirtyTracker tracker) {
+            minX = Math.min(minX, tracker.minX);
+            maxX = Math.max(maxX, tracker.maxX);
+            minY = Math.min(minY, tracker.minY);
+            maxY = Math.max(maxY, tracker.maxY);
+            changedBlocks += tracker.changedBlocks;
+        }
+    }
+
+    /**
+     * The bounding rectangle of all blocks of pixels that changed in a frame
+     */
+    public static final class DirtyRegion {
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final int changedBlocks;
+        private final int totalBlocks;
+
+        private DirtyRegion(DirtyTracker tracker, int totalBlocks) {
+            if (tracker.changedBlocks == 0) {
+                this.x = 0;
+                this.y = 0;
+                this.width = 0;
+                this.height = 0;
+            } else {
+                this.x = tracker.minX;
+                this.y = tracker.minY;
+                this.width = tracker.maxX - tracker.minX + 1;
+                this.height = tracker.maxY - tracker.minY + 1;
+            }
+            this.changedBlocks = tracker.changedBlocks;
+            this.totalBlocks = totalBlocks;
+        }
+
+        /**
+         * Gets whether nothing changed in the frame
+         *
+         * @return True if no blocks changed
+         */
+        public boolean isEmpty() {
+            return changedBlocks == 0;
+        }
+
+        /**
+         * Gets the x-coordinate of the left-most changed pixel
+         *
+         * @return Dirty region x-coordinate
+         */
+        public int getX() {
+            return x;
+        }
+
+        /**
+         * Gets the y-coordinate of the top-most changed pixel
+         *
+         * @return Dirty region y-coordinate
+         */
+        public int getY() {
+            return y;
+        }
+
+        /**
+         * Gets the width of the dirty region, 0 if nothing changed
+         *
+         * @return Dirty region width
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Gets the height of the dirty region, 0 if nothing changed
+         *
+         * @return Dirty region height
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Gets the number of blocks of pixels that changed and were decoded
+         *
+         * @return Changed block count
+         */
+        public int getChangedBlocks() {
+            return changedBlocks;
+        }
+
+        /**
+         * Gets the total number of blocks of pixels in a frame
+         *
+         * @return Total block count
+         */
+        public int getTotalBlocks() {
+            return totalBlocks;
+        }
+
+        @Override
+        public String toString() {
+            return "DirtyRegion{x=" + x + ", y=" + y + ", width=" + width + ", height=" + height +
+                    ", blocks=" + changedBlocks + "/" + totalBlocks + "}";
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Dithers RGBA pixel values to the colors of a palette, such as the map colors. Pixels are
+ * processed row by row in blocks of 32 pixels, and can be decoded from pixel data right before
+ * they are dithered, without first decoding the full image into one large buffer.<br>
+ * <br>
+ * With {@link Mode#ORDERED} every pixel is dithered independently, so rows are split over
+ * multiple threads the same way decoding is. With {@link Mode#ERROR_DIFFUSION} the error of every
+ * pixel is spread to the pixels right of and below it. Rows are then processed in order on
+ * multiple threads as a wavefront: a row only continues with its next block once the row above it
+ * has completed the pixels that spread error into that block. This makes the output exactly the
+ * same as when dithering on a single thread.<br>
+ * <br>
+ * Pixels with an alpha below 128 are output as the transparent color of the palette when the
+ * converter has transparency, and spread no error to the pixels around them.
+ */
+public final class Ditherer {
+    /**
+     * Estimated time spent dithering a single pixel, used to decide over how many threads to split the work
+     */
+    private static final double ORDERED_NANOS_PER_PIXEL = 5.0;
+    private static final double ERROR_DIFFUSION_NANOS_PER_PIXEL = 15.0;
+    /**
+     * 8x8 ordered dithering (Bayer) threshold matrix, with values 0 - 63
+     */
+    private static final int[] BAYER_8X8 = {
+             0, 32,  8, 40,  2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44,  4, 36, 14, 46,  6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+             3, 35, 11, 43,  1, 33,  9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47,  7, 39, 13, 45,  5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21
+    };
+
+    private final RGBColorToIntConversion converter;
+    private final Palette palette;
+    private final Mode mode;
+    private int[] orderedOffsets;
+    private int parallelism;
+    private Executor executor;
+
+    public Ditherer(RGBColorToIntConversion converter, Palette palette, Mode mode) {
+        this.converter = converter;
+        this.palette = palette;
+        this.mode = mode;
+        this.orderedOffsets = computeOrderedOffsets(32);
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.executor = null;
+    }
+
+    /**
+     * Gets the dithering mode
+     *
+     * @return Mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the range of the offsets added to the color channels of every pixel by
+     * {@link Mode#ORDERED} dithering. Should be about the distance between two neighbouring
+     * colors of the palette. Has no effect with {@link Mode#ERROR_DIFFUSION}.
+     * Is by default 32.
+     *
+     * @param spread Range of the offsets, 0 - 255
+     * @return this ditherer
+     */
+    public Ditherer spread(int spread) {
+        if (spread < 0 || spread > 255) {
+            throw new IllegalArgumentException("Spread out of range: " + spread);
+        }
+        this.orderedOffsets = computeOrderedOffsets(spread);
+        return this;
+    }
+
+    /**
+     * Sets over how many parallel threads the dithering is performed at most. If set to 1 or less,
+     * this ditherer runs single-threaded.
+     * Is by default set to the number of cpu threads.
+     *
+     * @param parallelism Maximum number of parallel tasks to dither on
+     * @return this ditherer
+     */
+    public Ditherer parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the executor on which the parallel dithering work is performed.
+     * Is by default set to null, which uses the {@link ForkJoinPool#commonPool() common pool}.
+     *
+     * @param executor Executor to perform the parallel dithering work on, null for the common pool
+     * @return this ditherer
+     */
+    public Ditherer executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Dithers RGBA pixel values, such as those decoded by a {@link RGBColorToIntConversion.Decoder},
+     * to palette colors. The pixel values are not modified.
+     *
+     * @param rgba RGBA pixel values
+     * @param offset Offset into the pixel values of the top-left pixel of the image
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param output Output palette colors, width * height colors are written
+     * @param outputOffset Offset into the output of the top-left pixel of the image
+     */
+    public void dither(int[] rgba, int offset, int width, int height, byte[] output, int outputOffset) {
+        run(width, height, false, output, outputOffset, (x, y, count, buffer) -> {
+            System.arraycopy(rgba, offset + y * width + x, buffer, 0, count);
+        });
+    }
+
+    /**
+     * Decodes byte-encoded pixel data of an image and dithers it to palette colors
+     *
+     * @param data Pixel data
+     * @param offset Offset into the pixel data of the first byte of the top-left pixel of the image
+     * @param scanlineStride Number of bytes from the start of one row to the start of the next row
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param output Output palette colors, width * height colors are written
+     * @param outputOffset Offset into the output of the top-left pixel of the image
+     */
+    public void decode(byte[] data, int offset, int scanlineStride, int width, int height, byte[] output, int outputOffset) {
+        final int step = converter.singleBytesInputLength();
+        run(width, height, true, output, outputOffset, (x, y, count, buffer) -> {
+            DecodeTasks.convertBytes(converter, data, offset + y * scanlineStride + x * step, data.length,
+                    buffer, 0, count);
+        });
+    }
+
+    /**
+     * Decodes int-encoded pixel data of an image and dithers it to palette colors
+     *
+     * @param data Pixel data
+     * @param offset Offset into the pixel data of the top-left pixel of the image
+     * @param scanlineStride Number of ints from the start of one row to the start of the next row
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param output Output palette colors, width * height colors are written
+     * @param outputOffset Offset into the output of the top-left pixel of the image
+     */
+    public void decode(int[] data, int offset, int scanlineStride, int width, int height, byte[] output, int outputOffset) {
+        run(width, height, false, output, outputOffset, (x, y, count, buffer) -> {
+            DecodeTasks.convertInts(converter, data, offset + y * scanlineStride + x, buffer, 0, count);
+        });
+    }
+
+    private void run(int width, int height, boolean byteInput, byte[] output, int outputOffset, BlockSource source) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        final int threads = DecodeCostModel.computeParallelism(converter, parallelism, width * height,
+                byteInput, (mode == Mode.ORDERED) ? ORDERED_NANOS_PER_PIXEL : ERROR_DIFFUSION_NANOS_PER_PIXEL);
+        if (mode == Mode.ORDERED) {
+            final int[] offsets = this.orderedOffsets;
+            DecodeTasks.forEachRange(height, threads, DecodeTasks.rowsPerChunk(DecodeTasks.DEFAULT_CHUNK_SIZE, width),
+                    executor, (startRow, endRow) -> {
+                int[] buffer = new int[32];
+                for (int y = startRow; y < endRow; y++) {
+                    int outputRowOffset = outputOffset + y * width;
+                    for (int x = 0; x < width; x += 32) {
+                        int count = Math.min(32, width - x);
+                        source.load(x, y, count, buffer);
+                        ditherOrderedBlock(buffer, count, offsets, x, y, output, outputRowOffset + x);
+                    }
+                }
+            });
+        } else {
+            // Rows are handed out one at a time, in order, so a row only ever waits for rows that are
+            // already being processed. Error rows are re-used by rows that are this many rows apart.
+            final ErrorDiffusion state = new ErrorDiffusion(width, height, Math.max(1, threads) + 2);
+            DecodeTasks.forEachRange(height, threads, 1, executor, (startRow, endRow) -> {
+                int[] buffer = new int[32];
+                for (int y = startRow; y < endRow; y++) {
+                    state.ditherRow(y, buffer, source, output, outputOffset + y * width);
+                }
+            });
+        }
+    }
+
+    private void ditherOrderedBlock(int[] buffer, int count, int[] offsets, int x, int y, byte[] output, int outputOffset) {
+        final boolean hasTransparency = converter.hasTransparency();
+        final int offsetsRow = (y & 7) << 3;
+        for (int i = 0; i < count; i++) {
+            int rgba = buffer[i];
+            if (hasTransparency && (rgba & 0x80000000) == 0) {
+                output[outputOffset + i] = palette.getTransparentColor();
+                continue;
+            }
+
+            int offset = offsets[offsetsRow + ((x + i) & 7)];
+            int r = clamp((rgba & 0xFF) + offset);
+            int g = clamp(((rgba >> 8) & 0xFF) + offset);
+            int b = clamp(((rgba >> 16) & 0xFF) + offset);
+            output[outputOffset + i] = palette.getNearestColor(r | (g << 8) | (b << 16));
+        }
+    }
+
+    private static int[] computeOrderedOffsets(int spread) {
+        int[] offsets = new int[64];
+        for (int i = 0; i < 64; i++) {
+            offsets[i] = ((2 * BAYER_8X8[i] + 1) * spread) / 128 - (spread / 2);
+        }
+        return offsets;
+    }
+
+    private static int clamp(int value) {
+        return (value < 0) ? 0 : ((value > 255) ? 255 : value);
+    }
+
+    /**
+     * State shared by all threads performing Floyd-Steinberg error diffusion on a single image.
+     * Errors are stored multiplied by 16 for every pixel of a row, with one extra pixel at either
+     * end so that the pixels at the edges need no special handling.
+     */
+    private final class ErrorDiffusion {
+        private final int width;
+        private final int[][] errorRows;
+        private final AtomicIntegerArray progress;
+
+        public ErrorDiffusion(int width, int height, int errorRowCount) {
+            this.width = width;
+            this.errorRows = new int[errorRowCount][3 * (width + 2)];
+            this.progress = new AtomicIntegerArray(height);
+        }
+
+        public void ditherRow(int y, int[] buffer, BlockSource source, byte[] output, int outputOffset) {
+            // Rows start in order and a row only finishes after the row above it finished,
+            // so all rows that read the errors written below this row before are done
+            final int[] errors = errorRows[y % errorRows.length];
+            final int[] errorsBelow = errorRows[(y + 1) % errorRows.length];
+            Arrays.fill(errorsBelow, 0);
+
+            final boolean hasTransparency = converter.hasTransparency();
+            int errorR = 0, errorG = 0, errorB = 0;
+            int x = 0;
+            try {
+                for (; x < width; x += 32) {
+                    int count = Math.min(32, width - x);
+                    if (y > 0) {
+                        awaitProgress(y - 1, Math.min(width, x + count + 1));
+                    }
+                    source.load(x, y, count, buffer);
+
+                    int e = 3 * (x + 1);
+                    for (int i = 0; i < count; i++, e += 3) {
+                        int rgba = buffer[i];
+                        if (hasTransparency && (rgba & 0x80000000) == 0) {
+                            output[outputOffset + x + i] = palette.getTransparentColor();
+                            errorR = errorG = errorB = 0;
+                            continue;
+                        }
+
+                        int r = clamp((rgba & 0xFF) + ((errors[e] + errorR + 8) >> 4));
+                        int g = clamp(((rgba >> 8) & 0xFF) + ((errors[e + 1] + errorG + 8) >> 4));
+                        int b = clamp(((rgba >> 16) & 0xFF) + ((errors[e + 2] + errorB + 8) >> 4));
+                        byte color = palette.getNearestColor(r | (g << 8) | (b << 16));
+                        output[outputOffset + x + i] = color;
+
+                        int rgb = palette.getColorRGB(color);
+                        int dr = r - (rgb & 0xFF);
+                        int dg = g - ((rgb >> 8) & 0xFF);
+                        int db = b - ((rgb >> 16) & 0xFF);
+
+                        // 7/16 right, 3/16 below-left, 5/16 below, 1/16 below-right
+                        errorR = 7 * dr;
+                        errorG = 7 * dg;
+                        errorB = 7 * db;
+                        errorsBelow[e - 3] += 3 * dr;
+                        errorsBelow[e - 2] += 3 * dg;
+                        errorsBelow[e - 1] += 3 * db;
+                        errorsBelow[e] += 5 * dr;
+                        errorsBelow[e + 1] += 5 * dg;
+                        errorsBelow[e + 2] += 5 * db;
+                        errorsBelow[e + 3] += dr;
+                        errorsBelow[e + 4] += dg;
+                        errorsBelow[e + 5] += db;
+                    }
+
+                    progress.lazySet(y, x + count);
+                }
+            } finally {
+                // Also when failing, so that rows below do not wait forever
+                progress.set(y, width);
+            }
+        }
+
+        private void awaitProgress(int y, int pixels) {
+            while (progress.get(y) < pixels) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface BlockSource {
+        /**
+         * Loads the RGBA pixel values of a run of up to 32 pixels of a row
+         *
+         * @param x X-coordinate of the first pixel
+         * @param y Y-coordinate of the row
+         * @param count Number of pixels
+         * @param buffer Buffer to write the pixel values to
+         */
+        void load(int x, int y, int count, int[] buffer);
+    }
+
+    /**
+     * How the pixels are dithered
+     */
+    public enum Mode {
+        /** Ordered dithering with an 8x8 Bayer matrix, every pixel is dithered independently */
+        ORDERED,
+        /** Floyd-Steinberg error diffusion, rows are processed as a wavefront when multi-threaded */
+        ERROR_DIFFUSION
+    }
+
+    /**
+     * The palette of colors pixels are dithered to
+     */
+    public interface Palette {
+        /**
+         * Gets the palette color nearest to an RGB color value
+         *
+         * @param rgb RGB color value, in the same channel order as RGBA pixel values, without alpha
+         * @return Nearest palette color
+         */
+        byte getNearestColor(int rgb);
+
+        /**
+         * Gets the RGB color value of a palette color
+         *
+         * @param color Palette color
+         * @return RGB color value, in the same channel order as RGBA pixel values
+         */
+        int getColorRGB(byte color);
+
+        /**
+         * Gets the palette color that transparent pixels are output as
+         *
+         * @return Transparent palette color
+         */
+        byte getTransparentColor();
+
+        /**
+         * Creates a palette that looks up the nearest color in a mapping table
+         *
+         * @param mapping Mapping table of 16777217 bytes, mapping RGB to a palette color.
+         *                The last entry stores the transparent color.
+         * @param colors RGB color values of all 256 palette colors, indexed by unsigned palette color
+         * @return Palette
+         */
+        static Palette of(byte[] mapping, int[] colors) {
+            if (mapping.length < 0x1000001) {
+                throw new IllegalArgumentException("Mapping table must have 16777217 entries");
+            }
+            if (colors.length < 256) {
+                throw new IllegalArgumentException("Palette must have 256 colors");
+            }
+            return new Palette() {
+                @Override
+                public byte getNearestColor(int rgb) {
+                    return mapping[rgb];
+                }
+
+                @Override
+                public int getColorRGB(byte color) {
+                    return colors[color & 0xFF];
+                }
+
+                @Override
+                public byte getTransparentColor() {
+                    return mapping[0x1000000];
+                }
+            };
+        }
+
+        /**
+         * Creates a palette that looks up the nearest color in a palette lookup table
+         *
+         * @param table Palette lookup table
+         * @param colors RGB color values of all 256 palette colors, indexed by unsigned palette color
+         * @return Palette
+         */
+        static Palette of(PaletteLookupTable table, int[] colors) {
+            if (colors.length < 256) {
+                throw new IllegalArgumentException("Palette must have 256 colors");
+            }
+            return new Palette() {
+                @Override
+                public byte getNearestColor(int rgb) {
+                    return table.getNearestColor(rgb);
+                }
+
+                @Override
+                public int getColorRGB(byte color) {
+                    return colors[color & 0xFF];
+                }
+
+                @Override
+                public byte getTransparentColor() {
+                    return table.getTransparentColor();
+                }
+            };
+        }
+    }
+}
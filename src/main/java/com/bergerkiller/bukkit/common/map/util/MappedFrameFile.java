@@ -0,0 +1,312 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A file storing a sequence of fixed-size raw frames of pixel data, such as a pre-rendered
+ * animation. The file is memory-mapped, so any frame can be decoded straight from the mapped
+ * region without reading it into a byte[] first. Seeking to a frame does not depend on
+ * the size of the file.<br>
+ * <br>
+ * Files larger than 2 GB are mapped as multiple regions, each storing whole frames.
+ * Regions are mapped the first time a frame inside them is accessed.<br>
+ * <br>
+ * Optionally, the next frames after a decoded frame can be read ahead in the background,
+ * so that they are loaded in memory by the time they are decoded.
+ */
+public final class MappedFrameFile implements Closeable {
+    private static final int PAGE_SIZE = 4096;
+    private final FileChannel channel;
+    private final RGBColorToIntConversion converter;
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final long headerSize;
+    private final int frameCount;
+    private final int framesPerRegion;
+    private final AtomicReferenceArray<MappedByteBuffer> regions;
+    private int readAhead;
+    private ExecutorService readAheadExecutor;
+    private int readAheadEnd;
+    private boolean closed;
+
+    MappedFrameFile(FileChannel channel, RGBColorToIntConversion converter, int width, int height, long headerSize, long maxRegionSize) throws IOException {
+        this.channel = channel;
+        this.converter = converter;
+        this.width = width;
+        this.height = height;
+        this.headerSize = headerSize;
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Frame size must be positive: " + width + "x" + height);
+        }
+        if (headerSize < 0) {
+            throw new IllegalArgumentException("Header size can not be negative: " + headerSize);
+        }
+        if (maxRegionSize <= 0 || maxRegionSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Region size out of range: " + maxRegionSize);
+        }
+
+        // Computed as long, a frame larger than 2 GB can not be mapped as a single region
+        long frameSize = (long) width * height * converter.singleBytesInputLength();
+        if (frameSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Frame of " + width + "x" + height + " pixels is too large: " + frameSize + " bytes");
+        }
+        this.frameSize = (int) frameSize;
+        long frameCount = Math.max(0L, channel.size() - headerSize) / frameSize;
+        if (frameCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File stores too many frames");
+        }
+        this.frameCount = (int) frameCount;
+        this.framesPerRegion = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, maxRegionSize / frameSize));
+        this.regions = new AtomicReferenceArray<>((this.frameCount + framesPerRegion - 1) / framesPerRegion);
+        this.readAhead = 0;
+        this.readAheadExecutor = null;
+        this.readAheadEnd = 0;
+        this.closed = false;
+    }
+
+    /**
+     * Opens a file storing frames of raw pixel data for reading
+     *
+     * @param file File to open
+     * @param converter Color conversion of the pixel data stored in the file
+     * @param width Width of every frame
+     * @param height Height of every frame
+     * @return Opened frame file
+     * @throws IOException If the file could not be opened
+     * @throws IllegalArgumentException If the frame size is not positive, or a frame is larger than 2 GB
+     */
+    public static MappedFrameFile open(File file, RGBColorToIntConversion converter, int width, int height) throws IOException {
+        return open(file, converter, width, height, 0L);
+    }
+
+    /**
+     * Opens a file storing frames of raw pixel data for reading
+     *
+     * @param file File to open
+     * @param converter Color conversion of the pixel data stored in the file
+     * @param width Width of every frame
+     * @param height Height of every frame
+     * @param headerSize Number of bytes at the start of the file to skip before the first frame
+     * @return Opened frame file
+     * @throws IOException If the file could not be opened
+     * @throws IllegalArgumentException If the frame size is not positive, or a frame is larger than 2 GB
+     */
+    public static MappedFrameFile open(File file, RGBColorToIntConversion converter, int width, int height, long headerSize) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new MappedFrameFile(channel, converter, width, height, headerSize, Integer.MAX_VALUE);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the color conversion of the pixel data stored in this file
+     *
+     * @return Color conversion
+     */
+    public RGBColorToIntConversion getConverter() {
+        return converter;
+    }
+
+    /**
+     * Gets the width of every frame
+     *
+     * @return Frame width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of every frame
+     *
+     * @return Frame height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the number of pixels of every frame
+     *
+     * @return Frame pixel count
+     */
+    public int getPixelCount() {
+        return width * height;
+    }
+
+    /**
+     * Gets the number of frames stored in this file. If the file size is not a multiple
+     * of the frame size, the incomplete frame at the end is not included.
+     *
+     * @return Frame count
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Sets the number of frames after a decoded frame that are read ahead in the background.
+     * If set to 0, no frames are read ahead.
+     * Is by default 0.
+     *
+     * @param frames Number of frames to read ahead
+     * @return this frame file
+     */
+    public synchronized MappedFrameFile readAhead(int frames) {
+        this.readAhead = Math.max(0, frames);
+        return this;
+    }
+
+    /**
+     * Gets the raw pixel data of a frame. The returned buffer is a view of the memory-mapped
+     * file, with position 0 at the first byte of the frame and the limit at the end of the frame.
+     *
+     * @param frameIndex Index of the frame
+     * @return Pixel data of the frame
+     * @throws IOException If mapping the file failed
+     */
+    public ByteBuffer getFrame(int frameIndex) throws IOException {
+        if (frameIndex < 0 || frameIndex >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame index out of range: " + frameIndex);
+        }
+
+        ByteBuffer frame = getRegion(frameIndex / framesPerRegion).duplicate();
+        int offset = (frameIndex % framesPerRegion) * frameSize;
+        ((Buffer) frame).limit(offset + frameSize);
+        ((Buffer) frame).position(offset);
+        return frame.slice();
+    }
+
+    /**
+     * Decodes a frame, writing the RGBA pixel values into an output int array
+     *
+     * @param frameIndex Index of the frame
+     * @param dst Output int array to write {@link #getPixelCount()} RGBA pixel values to
+     * @param dstOffset Offset into the output int array to write the first pixel to
+     * @throws IOException If mapping the file failed
+     */
+    public void decodeFrame(int frameIndex, int[] dst, int dstOffset) throws IOException {
+        ByteBuffer frame = getFrame(frameIndex);
+        scheduleReadAhead(frameIndex);
+        converter.decodeInto(frame, 0, IntBuffer.wrap(dst), dstOffset, getPixelCount());
+    }
+
+    /**
+     * Decodes a frame using a decoder, which is called with the pixels of the frame.
+     * The decoder should use the same {@link #getConverter() color conversion} as this file.
+     *
+     * @param frameIndex Index of the frame
+     * @param decoder Decoder to decode the frame with
+     * @throws IOException If mapping the file failed
+     */
+    public void decodeFrame(int frameIndex, RGBColorToIntConversion.Decoder decoder) throws IOException {
+        ByteBuffer frame = getFrame(frameIndex);
+        scheduleReadAhead(frameIndex);
+        decoder.decode(frame, getPixelCount());
+    }
+
+    /**
+     * Loads a range of frames into memory, so that decoding them later does not have to wait
+     * for them to be read from disk. This method blocks until the frames are loaded.
+     *
+     * @param frameIndex Index of the first frame to load
+     * @param count Number of frames to load
+     * @throws IOException If mapping the file failed
+     */
+    public void prefetch(int frameIndex, int count) throws IOException {
+        int end = Math.min(frameCount, frameIndex + count);
+        for (int i = Math.max(0, frameIndex); i < end; i++) {
+            // Read one byte from every page to make the operating system load it
+            ByteBuffer frame = getFrame(i);
+            for (int pos = 0; pos < frameSize; pos += PAGE_SIZE) {
+                frame.get(pos);
+            }
+        }
+    }
+
+    /**
+     * Stops the background read-ahead and closes the file. Frame buffers previously returned
+     * by {@link #getFrame(int)} stay valid until they are garbage collected.
+     *
+     * @throws IOException If closing the file failed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        // Under the same lock as scheduleReadAhead, so that no read-ahead is started after this
+        closed = true;
+        if (readAheadExecutor != null) {
+            readAheadExecutor.shutdownNow();
+            readAheadExecutor = null;
+        }
+        channel.close();
+    }
+
+    private MappedByteBuffer getRegion(int regionIndex) throws IOException {
+        MappedByteBuffer region = regions.get(regionIndex);
+        if (region == null) {
+            long firstFrame = (long) regionIndex * framesPerRegion;
+            long regionFrames = Math.min(framesPerRegion, frameCount - firstFrame);
+            long position = headerSize + firstFrame * frameSize;
+            long size = regionFrames * frameSize;
+            if (size > Integer.MAX_VALUE || position + size > channel.size()) {
+                throw new IllegalArgumentException("Region " + regionIndex + " of " + size + " bytes at " +
+                        position + " does not fit in the file of " + channel.size() + " bytes");
+            }
+            region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            if (!regions.compareAndSet(regionIndex, null, region)) {
+                region = regions.get(regionIndex);
+            }
+        }
+        return region;
+    }
+
+    private synchronized void scheduleReadAhead(int frameIndex) {
+        if (readAhead <= 0 || closed) {
+            return;
+        }
+
+        // Only read ahead the frames that weren't already, unless seeking backwards
+        int start = frameIndex + 1;
+        int end = Math.min(frameCount, start + readAhead);
+        if (start < readAheadEnd && readAheadEnd <= end) {
+            start = readAheadEnd;
+        }
+        if (start >= end) {
+            return;
+        }
+        readAheadEnd = end;
+
+        if (readAheadExecutor == null) {
+            readAheadExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "MappedFrameFile read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        final int prefetchStart = start;
+        final int prefetchCount = end - start;
+        readAheadExecutor.execute(() -> {
+            try {
+                prefetch(prefetchStart, prefetchCount);
+            } catch (IOException ex) {
+                // Ignore, reported when the frame is decoded
+            }
+        });
+    }
+}
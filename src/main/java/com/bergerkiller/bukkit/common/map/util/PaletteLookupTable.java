@@ -0,0 +1,477 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Looks up the palette color, such as the map color, nearest to an RGB color value. This replaces
+ * a flat mapping table of 16777217 bytes with a compact two-level table stored off-heap.<br>
+ * <br>
+ * The RGB color space is split into cells of 4x4x4 colors. Cells that map to a single palette
+ * color, which are most of them, all share one block of 64 colors filled with that color. Only
+ * cells that map to multiple palette colors store their own 64 colors. For the map colors this
+ * takes a few MB instead of 16 MB. Every lookup reads the offset of the block of the cell, and
+ * then the color in that block, without branching on whether the cell has a single color.<br>
+ * <br>
+ * The table is built the first time a color is looked up, evaluating the nearest color function
+ * for all colors on multiple threads. Optionally the table is stored in a cache file, which later
+ * tables with the same key memory-map instead of building the table again. A memory-mapped file is
+ * shared with all other processes and class loaders that map it. Within a class loader tables
+ * can be shared using {@link #shared(Object, Supplier)}.
+ */
+public final class PaletteLookupTable {
+    /**
+     * Number of 4x4x4 cells the RGB color space is split into
+     */
+    private static final int CELL_COUNT = 64 * 64 * 64;
+    /**
+     * Number of bytes at the start of the colors used by the blocks of cells with a single color
+     */
+    private static final int UNIFORM_COLORS_LENGTH = 256 * 64;
+    private static final int CACHE_MAGIC = 0x424B504C; // BKPL
+    private static final int CACHE_VERSION = 1;
+    private static final int CACHE_HEADER_SIZE = 24;
+    private static final Map<Object, PaletteLookupTable> sharedTables = new ConcurrentHashMap<>();
+
+    private final NearestColorFunction nearest;
+    private final byte transparentColor;
+    private File cacheFile;
+    private long cacheKey;
+    private int parallelism;
+    private Executor executor;
+    private volatile Tables tables;
+
+    private PaletteLookupTable(NearestColorFunction nearest, byte transparentColor) {
+        this.nearest = nearest;
+        this.transparentColor = transparentColor;
+        this.cacheFile = null;
+        this.cacheKey = 0L;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.executor = null;
+        this.tables = null;
+    }
+
+    /**
+     * Creates a new lookup table. The table is built the first time a color is looked up.
+     *
+     * @param nearest Function computing the palette color nearest to an RGB color value.
+     *                Is called on multiple threads while the table is built.
+     * @param transparentColor Palette color of transparent pixels
+     * @return New lookup table
+     */
+    public static PaletteLookupTable create(NearestColorFunction nearest, byte transparentColor) {
+        return new PaletteLookupTable(nearest, transparentColor);
+    }
+
+    /**
+     * Creates a new lookup table storing the same colors as a flat mapping table
+     *
+     * @param mapping Mapping table of 16777217 bytes, mapping RGB to a palette color.
+     *                The last entry stores the transparent color.
+     * @return New lookup table
+     */
+    public static PaletteLookupTable fromMapping(byte[] mapping) {
+        if (mapping.length < 0x1000001) {
+            throw new IllegalArgumentException("Mapping table must have 16777217 entries");
+        }
+        return new PaletteLookupTable(rgb -> mapping[rgb], mapping[0x1000000]);
+    }
+
+    /**
+     * Gets a lookup table shared by everyone using the same key, creating it the first time
+     *
+     * @param key Key identifying the palette
+     * @param factory Creates the lookup table if no table with this key exists yet
+     * @return Shared lookup table
+     */
+    public static PaletteLookupTable shared(Object key, Supplier<PaletteLookupTable> factory) {
+        return sharedTables.computeIfAbsent(key, k -> factory.get());
+    }
+
+    /**
+     * Sets the file the table is cached in. When the table is built, it is memory-mapped from this
+     * file if the file stores a table with the same key. Otherwise the table is built and written to
+     * this file. If the file can not be read or written, the table is kept in memory instead.
+     * Has no effect once the table is built.
+     *
+     * @param cacheFile Cache file, null to not cache the table
+     * @param key Key identifying the palette and nearest color function, such as a hash of
+     *            the palette colors. Cached tables with a different key are built again.
+     * @return this lookup table
+     */
+    public PaletteLookupTable cacheFile(File cacheFile, long key) {
+        this.cacheFile = cacheFile;
+        this.cacheKey = key;
+        return this;
+    }
+
+    /**
+     * Sets over how many parallel threads the table is built at most. If set to 1 or less,
+     * the table is built single-threaded. Has no effect once the table is built.
+     * Is by default set to the number of cpu threads.
+     *
+     * @param parallelism Maximum number of parallel tasks to build the table on
+     * @return this lookup table
+     */
+    public PaletteLookupTable parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the executor on which the table is built in parallel. Has no effect once the table is built.
+     * Is by default set to null, which uses the {@link ForkJoinPool#commonPool() common pool}.
+     *
+     * @param executor Executor to perform the parallel building work on, null for the common pool
+     * @return this lookup table
+     */
+    public PaletteLookupTable executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Gets the palette color of transparent pixels
+     *
+     * @return Transparent palette color
+     */
+    public byte getTransparentColor() {
+        return transparentColor;
+    }
+
+    /**
+     * Gets whether the table has been built, or mapped from the cache file
+     *
+     * @return True if built
+     */
+    public boolean isBuilt() {
+        return tables != null;
+    }
+
+    /**
+     * Gets whether the table was memory-mapped from the cache file. Builds the table if
+     * this was not done yet.
+     *
+     * @return True if the table is stored in the cache file
+     */
+    public boolean isMapped() {
+        return getTables().mapped;
+    }
+
+    /**
+     * Gets the number of bytes the table takes up off-heap. Builds the table if
+     * this was not done yet.
+     *
+     * @return Size of the table in bytes
+     */
+    public int getSize() {
+        Tables tables = getTables();
+        return 4 * tables.cells.capacity() + tables.colors.capacity();
+    }
+
+    /**
+     * Gets the palette color of an RGBA color value. Colors with an alpha below 128
+     * are transparent.
+     *
+     * @param rgba RGBA color value
+     * @return Palette color
+     */
+    public byte getColor(int rgba) {
+        if ((rgba & 0x80000000) != 0) {
+            return getNearestColor(rgba);
+        } else {
+            return transparentColor;
+        }
+    }
+
+    /**
+     * Gets the palette color nearest to an RGB color value. The alpha channel is ignored.
+     *
+     * @param rgb RGB color value
+     * @return Nearest palette color
+     */
+    public byte getNearestColor(int rgb) {
+        return getTables().get(rgb);
+    }
+
+    /**
+     * Looks up the palette colors of a block of 32 RGBA pixels, such as those converted
+     * by {@link RGBColorToIntConversion#byteBlockConvert32Pixels(byte[], int, int[], int)}
+     *
+     * @param buffer RGBA pixel values
+     * @param bufferOffset Offset into the pixel values of the first pixel
+     * @param hasTransparency Whether pixels with an alpha below 128 are transparent.
+     *                        If false, the alpha channel is ignored.
+     * @param output Output palette colors
+     * @param outputOffset Offset into the output of the first pixel
+     */
+    public void getColors32Pixels(int[] buffer, int bufferOffset, boolean hasTransparency, byte[] output, int outputOffset) {
+        getColors(buffer, bufferOffset, hasTransparency, output, outputOffset, 32);
+    }
+
+    /**
+     * Looks up the palette colors of a run of RGBA pixels
+     *
+     * @param buffer RGBA pixel values
+     * @param bufferOffset Offset into the pixel values of the first pixel
+     * @param hasTransparency Whether pixels with an alpha below 128 are transparent.
+     *                        If false, the alpha channel is ignored.
+     * @param output Output palette colors
+     * @param outputOffset Offset into the output of the first pixel
+     * @param pixelCount Number of pixels
+     */
+    public void getColors(int[] buffer, int bufferOffset, boolean hasTransparency, byte[] output, int outputOffset, int pixelCount) {
+        final Tables tables = getTables();
+        if (hasTransparency) {
+            for (int i = 0; i < pixelCount; i++) {
+                int rgba = buffer[bufferOffset + i];
+                output[outputOffset + i] = ((rgba & 0x80000000) != 0) ? tables.get(rgba) : transparentColor;
+            }
+        } else {
+            for (int i = 0; i < pixelCount; i++) {
+                output[outputOffset + i] = tables.get(buffer[bufferOffset + i]);
+            }
+        }
+    }
+
+    private Tables getTables() {
+        Tables tables = this.tables;
+        if (tables == null) {
+            synchronized (this) {
+                tables = this.tables;
+                if (tables == null) {
+                    this.tables = tables = loadTables();
+                }
+            }
+        }
+        return tables;
+    }
+
+    private Tables loadTables() {
+        final File cacheFile = this.cacheFile;
+        if (cacheFile != null) {
+            try {
+                Tables mapped = mapCacheFile(cacheFile);
+                if (mapped != null) {
+                    return mapped;
+                }
+            } catch (IOException | RuntimeException ex) {
+                // Corrupt cache file, build the table again
+            }
+        }
+
+        Tables tables = buildTables();
+        if (cacheFile != null) {
+            try {
+                writeCacheFile(cacheFile, tables);
+                Tables mapped = mapCacheFile(cacheFile);
+                if (mapped != null) {
+                    return mapped;
+                }
+            } catch (IOException | RuntimeException ex) {
+                // Keep the table in memory
+            }
+        }
+        return tables;
+    }
+
+    private Tables buildTables() {
+        // Every slab of 64x64 cells with the same blue cell coordinate is built on its own,
+        // storing the cells with multiple colors in its own array. These are combined after.
+        final int[] cells = new int[CELL_COUNT];
+        final byte[][] slabColors = new byte[64][];
+        final int[] slabColorsLength = new int[64];
+        DecodeTasks.forEachRange(64, parallelism, 1, executor, (startSlab, endSlab) -> {
+            byte[] cellColors = new byte[64];
+            for (int slab = startSlab; slab < endSlab; slab++) {
+                byte[] colors = new byte[64 * 64];
+                int colorsLength = 0;
+                for (int cell = slab << 12; cell < ((slab + 1) << 12); cell++) {
+                    int cellRGB = ((cell & 0x3F) << 2) | ((cell & 0xFC0) << 4) | ((cell & 0x3F000) << 6);
+                    boolean uniform = true;
+                    for (int i = 0; i < 64; i++) {
+                        int rgb = cellRGB | (i & 0x3) | ((i & 0xC) << 6) | ((i & 0x30) << 12);
+                        byte color = nearest.getNearestColor(rgb);
+                        cellColors[i] = color;
+                        uniform &= (color == cellColors[0]);
+                    }
+                    if (uniform) {
+                        cells[cell] = -1 - (cellColors[0] & 0xFF);
+                    } else {
+                        if (colorsLength == colors.length) {
+                            colors = Arrays.copyOf(colors, colors.length * 2);
+                        }
+                        System.arraycopy(cellColors, 0, colors, colorsLength, 64);
+                        cells[cell] = colorsLength;
+                        colorsLength += 64;
+                    }
+                }
+                slabColors[slab] = colors;
+                slabColorsLength[slab] = colorsLength;
+            }
+        });
+
+        int totalColorsLength = UNIFORM_COLORS_LENGTH;
+        for (int length : slabColorsLength) {
+            totalColorsLength += length;
+        }
+        ByteBuffer colorsBuffer = ByteBuffer.allocateDirect(totalColorsLength);
+        IntBuffer cellsBuffer = ByteBuffer.allocateDirect(4 * CELL_COUNT).order(ByteOrder.nativeOrder()).asIntBuffer();
+        byte[] uniformColors = new byte[64];
+        for (int color = 0; color < 256; color++) {
+            Arrays.fill(uniformColors, (byte) color);
+            colorsBuffer.put(uniformColors);
+        }
+        int slabColorsOffset = UNIFORM_COLORS_LENGTH;
+        for (int slab = 0; slab < 64; slab++) {
+            colorsBuffer.put(slabColors[slab], 0, slabColorsLength[slab]);
+            for (int cell = slab << 12; cell < ((slab + 1) << 12); cell++) {
+                int entry = cells[cell];
+                cellsBuffer.put(cell, (entry < 0) ? ((-1 - entry) << 6) : (entry + slabColorsOffset));
+            }
+            slabColorsOffset += slabColorsLength[slab];
+        }
+        ((Buffer) colorsBuffer).clear();
+        return new Tables(cellsBuffer, colorsBuffer, false);
+    }
+
+    private Tables mapCacheFile(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < CACHE_HEADER_SIZE + 4L * CELL_COUNT) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int colorsLength = buffer.getInt(20);
+            if (buffer.getInt(0) != CACHE_MAGIC
+                    || buffer.getInt(4) != CACHE_VERSION
+                    || buffer.getLong(8) != cacheKey
+                    || buffer.get(16) != transparentColor
+                    || colorsLength < UNIFORM_COLORS_LENGTH
+                    || size != CACHE_HEADER_SIZE + 4L * CELL_COUNT + colorsLength
+            ) {
+                return null;
+            }
+
+            ((Buffer) buffer).position(CACHE_HEADER_SIZE).limit(CACHE_HEADER_SIZE + 4 * CELL_COUNT);
+            IntBuffer cells = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            ((Buffer) buffer).limit((int) size).position(CACHE_HEADER_SIZE + 4 * CELL_COUNT);
+            ByteBuffer colors = buffer.slice();
+
+            // Verify that cells do not refer past the end of the file, so that lookups can not fail
+            for (int cell = 0; cell < CELL_COUNT; cell++) {
+                int entry = cells.get(cell);
+                if (entry < 0 || entry > (colorsLength - 64)) {
+                    return null;
+                }
+            }
+            return new Tables(cells, colors, true);
+        }
+    }
+
+    private void writeCacheFile(File file, Tables tables) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(CACHE_MAGIC);
+        header.putInt(CACHE_VERSION);
+        header.putLong(cacheKey);
+        header.put(transparentColor);
+        header.put(new byte[3]);
+        header.putInt(tables.colors.capacity());
+        ((Buffer) header).flip();
+
+        ByteBuffer cells = ByteBuffer.allocate(4 * CELL_COUNT).order(ByteOrder.LITTLE_ENDIAN);
+        for (int cell = 0; cell < CELL_COUNT; cell++) {
+            cells.putInt(tables.cells.get(cell));
+        }
+        ((Buffer) cells).flip();
+        ByteBuffer colors = tables.colors.duplicate();
+        ((Buffer) colors).clear();
+
+        // Write to a temporary file first, so that other processes never map a partially written file
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                while (header.hasRemaining() || cells.hasRemaining() || colors.hasRemaining()) {
+                    channel.write(new ByteBuffer[] { header, cells, colors });
+                }
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    @Override
+    public String toString() {
+        Tables tables = this.tables;
+        if (tables == null) {
+            return "PaletteLookupTable{not built}";
+        } else {
+            return "PaletteLookupTable{size=" + getSize() + " bytes, mapped=" + tables.mapped + "}";
+        }
+    }
+
+    /**
+     * The off-heap tables. Every cell entry is the offset into the colors of the 64 palette
+     * colors of that cell. The colors start with a block filled with a single color for every
+     * palette color, which are used by all cells with a single color.
+     */
+    private static final class Tables {
+        final IntBuffer cells;
+        final ByteBuffer colors;
+        final boolean mapped;
+
+        Tables(IntBuffer cells, ByteBuffer colors, boolean mapped) {
+            this.cells = cells;
+            this.colors = colors;
+            this.mapped = mapped;
+        }
+
+        byte get(int rgb) {
+            int cell = ((rgb >> 2) & 0x3F) | ((rgb >> 4) & 0xFC0) | ((rgb >> 6) & 0x3F000);
+            return colors.get(cells.get(cell) + ((rgb & 0x3) | ((rgb >> 6) & 0xC) | ((rgb >> 12) & 0x30)));
+        }
+    }
+
+    /**
+     * Computes the palette color nearest to an RGB color value
+     */
+    @FunctionalInterface
+    public interface NearestColorFunction {
+        /**
+         * Gets the palette color nearest to an RGB color value
+         *
+         * @param rgb RGB color value, in the same channel order as RGBA pixel values, without alpha
+         * @return Nearest palette color
+         */
+        byte getNearestColor(int rgb);
+    }
+}
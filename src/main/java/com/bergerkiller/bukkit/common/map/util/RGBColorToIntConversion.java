@@ -1,28 +1,185 @@
 package com.bergerkiller.bukkit.common.map.util;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
-import java.util.stream.IntStream;
 
 /**
  * Helper math routines for converting byte[] and int[] RGB(A) pixel data into
  * int RGBA color values that are compatible with the MapColorPalette
- * color mapping data for input.
+ * color mapping data for input, and for encoding these values back again.
  */
 public interface RGBColorToIntConversion {
-    RGBColorToIntConversion BGR = SIMDLoader.tryCreateSIMD(BaseBGRToInt::new, "bgr");
-    RGBColorToIntConversion RGB = SIMDLoader.tryCreateSIMD(BaseRGBToInt::new, "rgb");
-    RGBColorToIntConversion ABGR = SIMDLoader.tryCreateSIMD(BaseABGRToInt::new, "abgr");
-    RGBColorToIntConversion ARGB = SIMDLoader.tryCreateSIMD(BaseARGBToInt::new, "argb");
+    RGBColorToIntConversion BGR = SIMDLoader.tryCreateSelected(BaseBGRToInt::new, "bgr");
+    RGBColorToIntConversion RGB = SIMDLoader.tryCreateSelected(BaseRGBToInt::new, "rgb");
+    RGBColorToIntConversion ABGR = SIMDLoader.tryCreateSelected(BaseABGRToInt::new, "abgr");
+    RGBColorToIntConversion ARGB = SIMDLoader.tryCreateSelected(BaseARGBToInt::new, "argb");
+
+    /** 16-bit pixels with 5 bits red, 6 bits green and 5 bits blue, red in the most significant bits */
+    RGBColorToIntConversion RGB565 = SIMDLoader.tryCreateSIMD(BasePacked16ToInt::rgb565, "rgb565");
+    /** 16-bit pixels with 5 bits red, green and blue, red in the most significant bits. The top bit is unused. */
+    RGBColorToIntConversion RGB555 = SIMDLoader.tryCreateSIMD(BasePacked16ToInt::rgb555, "rgb555");
+    /** 16-bit pixels with 1 bit alpha and 5 bits red, green and blue, alpha in the most significant bit */
+    RGBColorToIntConversion ARGB1555 = SIMDLoader.tryCreateSIMD(BasePacked16ToInt::argb1555, "argb1555");
+    /** 16-bit pixels with 4 bits alpha, red, green and blue, alpha in the most significant bits */
+    RGBColorToIntConversion ARGB4444 = SIMDLoader.tryCreateSIMD(BasePacked16ToInt::argb4444, "argb4444");
+    /** 8-bit grayscale pixels, the gray value is used for red, green and blue */
+    RGBColorToIntConversion GRAY8 = SIMDLoader.tryCreateSIMD(BaseGrayToInt::gray8, "gray8");
+    /** 8-bit grayscale pixels followed by 8-bit alpha, the gray value is used for red, green and blue */
+    RGBColorToIntConversion GRAY_ALPHA = SIMDLoader.tryCreateSIMD(BaseGrayToInt::grayAlpha, "grayAlpha");
+    /** Same layout as {@link #ARGB}, with the red, green and blue channels premultiplied by alpha */
+    RGBColorToIntConversion ARGB_PRE = premultiplied(ARGB);
+    /** Same layout as {@link #ABGR}, with the red, green and blue channels premultiplied by alpha */
+    RGBColorToIntConversion ABGR_PRE = premultiplied(ABGR);
+
+    /**
+     * Gets the conversion for a channel layout defined at runtime. The layout names
+     * the channels stored in every pixel using the letters R, G, B, A and X, where X is a byte
+     * that is not used. For byte-encoded data the channels are listed in the order they are
+     * stored in memory. For int-encoded data the channels are listed from the most significant
+     * byte to the least significant byte, where for 3-channel layouts the most significant
+     * byte is not used. For example, "BGRA" reads the bytes B, G, R, A in that order,
+     * and "RGB" is the same as {@link #RGB}.<br>
+     * <br>
+     * Conversions are created once and cached, so calling this method again with the
+     * same layout returns the same instance.
+     *
+     * @param layout Channel layout, 3 or 4 channels. Case is ignored.
+     * @return Conversion for the layout, using SIMD if available
+     * @throws IllegalArgumentException If the layout does not store R, G and B exactly once,
+     *         or has channels that are not known
+     */
+    static RGBColorToIntConversion ofLayout(String layout) {
+        return BaseLayoutToInt.forLayout(layout);
+    }
+
+    /**
+     * Gets the conversion for pixels with premultiplied alpha, where the red, green and blue
+     * channels are already multiplied by alpha, as produced by many compositing renderers.
+     * The channel layout is the same as that of the straight-alpha conversion specified.
+     * The color channels are divided by alpha again during conversion, and fully transparent
+     * pixels convert to 0.<br>
+     * <br>
+     * Conversions are created once and cached, so calling this method again with the
+     * same conversion returns the same instance.
+     *
+     * @param straight Straight-alpha conversion of the channel layout, such as {@link #ARGB}
+     *                 or a layout returned by {@link #ofLayout(String)}
+     * @return Premultiplied-alpha conversion, using SIMD if the straight-alpha conversion does
+     * @throws IllegalArgumentException If the straight-alpha conversion has no
+     *         {@link #hasTransparency() transparency}
+     * @see #ARGB_PRE
+     * @see #ABGR_PRE
+     */
+    static RGBColorToIntConversion premultiplied(RGBColorToIntConversion straight) {
+        return BasePremultipliedToInt.forConversion(straight);
+    }
+
+    /**
+     * Creates a conversion for indexed-color pixels, where every pixel is the index of
+     * a color in a palette of at most 256 colors, like in GIF and paletted PNG images.
+     * Byte-encoded pixels store the index as a single byte. Int-encoded pixels store the
+     * index in the least significant byte of the int. Indices past the end of the palette
+     * convert to 0.
+     *
+     * @param palette Palette colors, encoded in the palette format
+     * @param paletteFormat Format of the palette colors, for example {@link #RGB} for GIF color tables
+     * @return Conversion for the indexed pixels, using SIMD if available
+     * @throws IllegalArgumentException If the palette has more than 256 colors
+     */
+    static RGBColorToIntConversion indexed(byte[] palette, RGBColorToIntConversion paletteFormat) {
+        return indexed(palette, paletteFormat, -1);
+    }
+
+    /**
+     * Creates a conversion for indexed-color pixels, where every pixel is the index of
+     * a color in a palette of at most 256 colors, like in GIF and paletted PNG images.
+     * Pixels with the transparent index convert to 0, which is fully transparent.
+     * If the palette format has no {@link #hasTransparency() transparency}, all other
+     * palette colors are made fully opaque.
+     *
+     * @param palette Palette colors, encoded in the palette format
+     * @param paletteFormat Format of the palette colors, for example {@link #RGB} for GIF color tables
+     * @param transparentIndex Index of the palette color that is fully transparent, -1 for none
+     * @return Conversion for the indexed pixels, using SIMD if available
+     * @throws IllegalArgumentException If the palette has more than 256 colors
+     * @see #indexed(byte[], RGBColorToIntConversion)
+     */
+    static RGBColorToIntConversion indexed(byte[] palette, RGBColorToIntConversion paletteFormat, int transparentIndex) {
+        BaseIndexedToInt base = BaseIndexedToInt.create(palette, paletteFormat, transparentIndex);
+        return SIMDLoader.tryCreateSIMD(() -> base, "indexed", base);
+    }
+
+    /**
+     * Creates a conversion for indexed-color pixels, where every pixel is the index of
+     * a color in a palette of at most 256 colors.
+     *
+     * @param palette Palette colors, encoded in the palette format
+     * @param paletteFormat Format of the palette colors, for example {@link #ARGB}
+     * @return Conversion for the indexed pixels, using SIMD if available
+     * @throws IllegalArgumentException If the palette has more than 256 colors
+     * @see #indexed(byte[], RGBColorToIntConversion)
+     */
+    static RGBColorToIntConversion indexed(int[] palette, RGBColorToIntConversion paletteFormat) {
+        return indexed(palette, paletteFormat, -1);
+    }
+
+    /**
+     * Creates a conversion for indexed-color pixels, where every pixel is the index of
+     * a color in a palette of at most 256 colors.
+     *
+     * @param palette Palette colors, encoded in the palette format
+     * @param paletteFormat Format of the palette colors, for example {@link #ARGB}
+     * @param transparentIndex Index of the palette color that is fully transparent, -1 for none
+     * @return Conversion for the indexed pixels, using SIMD if available
+     * @throws IllegalArgumentException If the palette has more than 256 colors
+     * @see #indexed(byte[], RGBColorToIntConversion, int)
+     */
+    static RGBColorToIntConversion indexed(int[] palette, RGBColorToIntConversion paletteFormat, int transparentIndex) {
+        BaseIndexedToInt base = BaseIndexedToInt.create(palette, paletteFormat, transparentIndex);
+        return SIMDLoader.tryCreateSIMD(() -> base, "indexed", base);
+    }
 
     /**
      * Gets whether this format supports transparency at all. If false, then
-     * the alpha component of the output RGB int value is kept at 0.
+     * the alpha component of the output RGB int value is kept at 0, or at the
+     * value set using {@link #withAlphaFill(int)}.
      *
      * @return True if the RGB int output includes transparency, False if
      *         this value is kept 0.
      */
     boolean hasTransparency();
 
+    /**
+     * Gets a conversion of the same format that fills the alpha channel of the output RGB int
+     * values with a constant value, instead of keeping it 0. For example, a fill value of 255
+     * makes all converted pixels fully opaque, so that no second pass over the pixels is
+     * needed to set the alpha channel. Only formats without {@link #hasTransparency() transparency}
+     * support this.
+     *
+     * @param alpha Alpha value to fill in, 0 - 255. With 0 the alpha channel is kept 0.
+     * @return Conversion that fills the alpha channel, using SIMD if this conversion does
+     * @throws UnsupportedOperationException If this format has transparency
+     * @throws IllegalArgumentException If the alpha value is out of range
+     */
+    default RGBColorToIntConversion withAlphaFill(int alpha) {
+        return BaseAlphaFillToInt.create(this, alpha);
+    }
+
+    /**
+     * Gets the alpha value filled into the alpha channel of the output RGB int values
+     * of formats without {@link #hasTransparency() transparency}
+     *
+     * @return Alpha fill value, 0 - 255. Is 0 unless set using {@link #withAlphaFill(int)}.
+     */
+    default int getAlphaFill() {
+        return 0;
+    }
+
     /**
      * Gets whether the JDK17+ experimental vector SIMD API is used to perform color conversions
      *
@@ -41,6 +198,49 @@ public interface RGBColorToIntConversion {
         return this;
     }
 
+    /**
+     * If this is {@link #isUsingSIMD()}, gets the size of the vectors used to perform the
+     * color conversions. The size is picked for the current CPU, unless forced with the
+     * {@value SIMDLoader#SPECIES_PROPERTY} system property.
+     *
+     * @return Vector size in bits, 0 if not known or SIMD is not used
+     */
+    default int getVectorBitSize() {
+        return 0;
+    }
+
+    /**
+     * If this is {@link #isUsingSIMD()}, returns this conversion using SIMD vectors of the
+     * size specified, instead of the size picked for the current CPU. This is meant for testing
+     * every vector size on a single machine. Vector sizes larger than the CPU supports are
+     * emulated, and are much slower than not using SIMD at all. Using more than one vector size
+     * in the same JVM keeps the JIT compiler from compiling any of them well, so to benchmark a
+     * vector size, set the {@value SIMDLoader#SPECIES_PROPERTY} system property instead.<br>
+     * <br>
+     * Only the RGB, BGR, ARGB and ABGR conversions and conversions of a
+     * {@link #ofLayout(String) channel layout} have code for every vector size. Other conversions
+     * return themselves.
+     *
+     * @param bitSize Vector size in bits, 64, 128, 256 or 512
+     * @return This conversion mode, but using vectors of the size specified
+     * @throws IllegalArgumentException If the vector size is not supported
+     */
+    default RGBColorToIntConversion withVectorBitSize(int bitSize) {
+        return this;
+    }
+
+    /**
+     * Gets the cost model used to decide over how many threads decoding pixels with this
+     * conversion is split. Conversions of the same format and implementation share the same
+     * model. The model is calibrated in the background the first time it is used to decide
+     * the number of threads, or right away when its measurements are queried.
+     *
+     * @return Decode cost model of this color conversion
+     */
+    default DecodeCostModel costModel() {
+        return DecodeCostModel.of(this);
+    }
+
     /**
      * The number of input bytes of a single color value.
      * {@link #byteBlockInputLength()} is a multiple of this value.
@@ -67,6 +267,18 @@ public interface RGBColorToIntConversion {
      */
     int singleIntToInt(int input);
 
+    /**
+     * Converts a single short-encoded RGB(A) value to an RGB int value.
+     * Only 16-bit packed formats, like {@link #RGB565}, support short input.
+     *
+     * @param input Input RGB color value
+     * @return Output RGB int value
+     * @throws UnsupportedOperationException If this format can not be stored in a short
+     */
+    default int singleShortToInt(short input) {
+        throw new UnsupportedOperationException("Short input is not supported by " + getClass().getSimpleName());
+    }
+
     /**
      * The number of input bytes of a single block of data being converted.
      * Returns {@link #singleBytesInputLength()} x 32.
@@ -99,9 +311,79 @@ public interface RGBColorToIntConversion {
      * @return Input offset advanced by how many bytes were read
      */
     default int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
+        return byteBlockConvert32Pixels(input, inputOffset, buffer, 0);
+    }
+
+    /**
+     * Converts 32 RGB pixels exactly, storing the result in the output int array
+     * starting at the output offset. The byte buffer input must store at least
+     * {@link #byteBlockInputMinimumLength()} byte values.
+     *
+     * @param input Input byte data
+     * @param inputOffset Offset into the input data array
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array where 32 pixels are written
+     * @return Input offset advanced by how many bytes were read
+     */
+    default int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
         int len = singleBytesInputLength();
         for (int i = 0; i < 32; i++) {
-            buffer[i] = singleBytesToInt(input, inputOffset);
+            output[outputOffset + i] = singleBytesToInt(input, inputOffset);
+            inputOffset += len;
+        }
+        return inputOffset;
+    }
+
+    /**
+     * Number of pixels that are best converted at a time with
+     * {@link #byteBlockConvert(byte[], int, int[], int, int)} and
+     * {@link #intBlockConvert(int[], int, int[], int, int)}. Wide SIMD vectors convert
+     * 32 pixels in only a few operations, so they prefer larger blocks.
+     * Is always a multiple of 32.
+     *
+     * @return Preferred block size in pixels
+     */
+    default int preferredBlockSize() {
+        return 32;
+    }
+
+    /**
+     * Converts several blocks of 32 RGB pixels, storing the result in the output int array
+     * starting at the output offset. The byte buffer input must store at least
+     * <i>pixelCount * {@link #singleBytesInputLength()}</i> byte values, plus the
+     * bytes {@link #byteBlockInputMinimumLength()} reads past a single block.
+     *
+     * @param input Input byte data
+     * @param inputOffset Offset into the input data array
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array of the first pixel
+     * @param pixelCount Number of pixels to convert, a multiple of 32
+     * @return Input offset advanced by how many bytes were read
+     */
+    default int byteBlockConvert(byte[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        for (int i = 0; i < pixelCount; i += 32) {
+            inputOffset = byteBlockConvert32Pixels(input, inputOffset, output, outputOffset + i);
+        }
+        return inputOffset;
+    }
+
+    /**
+     * Converts the last pixels of a run of pixel data that do not fill a whole block of 32
+     * pixels, storing the result in the output int array starting at the output offset.
+     * Unlike {@link #byteBlockConvert32Pixels(byte[], int, int[], int)}, no bytes past the
+     * last pixel are read, and no values past the last pixel are written to the output.
+     *
+     * @param input Input byte data
+     * @param inputOffset Offset into the input data array
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array of the first pixel
+     * @param pixelCount Number of pixels to convert, 0 - 32
+     * @return Input offset advanced by how many bytes were read
+     */
+    default int byteBlockConvertPartial(byte[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        int len = singleBytesInputLength();
+        for (int i = 0; i < pixelCount; i++) {
+            output[outputOffset + i] = singleBytesToInt(input, inputOffset);
             inputOffset += len;
         }
         return inputOffset;
@@ -116,12 +398,595 @@ public interface RGBColorToIntConversion {
      * @return Input offset advanced by how many integers were read
      */
     default int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+        return intBlockConvert32Pixels(input, inputOffset, buffer, 0);
+    }
+
+    /**
+     * Converts 32 RGB pixels exactly, storing the result in the output int array
+     * starting at the output offset.
+     *
+     * @param input Input int data
+     * @param inputOffset Offset into the input data array
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array where 32 pixels are written
+     * @return Input offset advanced by how many integers were read
+     */
+    default int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
         for (int i = 0; i < 32; i++) {
-            buffer[i] = singleIntToInt(input[inputOffset++]);
+            output[outputOffset + i] = singleIntToInt(input[inputOffset++]);
         }
         return inputOffset;
     }
 
+    /**
+     * Converts several blocks of 32 RGB pixels, storing the result in the output int array
+     * starting at the output offset.
+     *
+     * @param input Input int data
+     * @param inputOffset Offset into the input data array
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array of the first pixel
+     * @param pixelCount Number of pixels to convert, a multiple of 32
+     * @return Input offset advanced by how many integers were read
+     */
+    default int intBlockConvert(int[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        for (int i = 0; i < pixelCount; i += 32) {
+            inputOffset = intBlockConvert32Pixels(input, inputOffset, output, outputOffset + i);
+        }
+        return inputOffset;
+    }
+
+    /**
+     * Converts the last pixels of a run of pixel data that do not fill a whole block of 32
+     * pixels, storing the result in the output int array starting at the output offset.
+     * No values past the last pixel are read or written.
+     *
+     * @param input Input int data
+     * @param inputOffset Offset into the input data array
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array of the first pixel
+     * @param pixelCount Number of pixels to convert, 0 - 32
+     * @return Input offset advanced by how many integers were read
+     */
+    default int intBlockConvertPartial(int[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        for (int i = 0; i < pixelCount; i++) {
+            output[outputOffset + i] = singleIntToInt(input[inputOffset++]);
+        }
+        return inputOffset;
+    }
+
+    /**
+     * Converts 32 RGB pixels exactly, storing the result in the output int array
+     * starting at the output offset. Only 16-bit packed formats, like {@link #RGB565},
+     * support short input.
+     *
+     * @param input Input short data
+     * @param inputOffset Offset into the input data array
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array where 32 pixels are written
+     * @return Input offset advanced by how many shorts were read
+     * @throws UnsupportedOperationException If this format can not be stored in a short
+     */
+    default int shortBlockConvert32Pixels(short[] input, int inputOffset, int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i++) {
+            output[outputOffset + i] = singleShortToInt(input[inputOffset++]);
+        }
+        return inputOffset;
+    }
+
+    /**
+     * Checks whether the byte-encoded input data of 32 pixels is equal in two arrays.
+     * Exactly {@link #byteBlockInputLength()} bytes are compared, no extra bytes are read.
+     *
+     * @param a First input byte data
+     * @param aOffset Offset into the first input data array
+     * @param b Second input byte data
+     * @param bOffset Offset into the second input data array
+     * @return True if the input data of all 32 pixels is equal
+     */
+    default boolean byteBlockEquals32Pixels(byte[] a, int aOffset, byte[] b, int bOffset) {
+        int length = byteBlockInputLength();
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the int-encoded input data of 32 pixels is equal in two arrays.
+     * If this format has no {@link #hasTransparency() transparency}, the unused byte
+     * is not compared.
+     *
+     * @param a First input int data
+     * @param aOffset Offset into the first input data array
+     * @param b Second input int data
+     * @param bOffset Offset into the second input data array
+     * @return True if the input data of all 32 pixels converts to the same RGBA values
+     */
+    default boolean intBlockEquals32Pixels(int[] a, int aOffset, int[] b, int bOffset) {
+        for (int i = 0; i < 32; i++) {
+            if (singleIntToInt(a[aOffset + i]) != singleIntToInt(b[bOffset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the first block of 32 pixels of which the byte-encoded input data differs in two
+     * arrays, comparing the blocks the same way as {@link #byteBlockEquals32Pixels(byte[], int, byte[], int)}.
+     * Long runs of equal blocks are skipped in a single call.
+     *
+     * @param a First input byte data
+     * @param aOffset Offset into the first input data array
+     * @param b Second input byte data
+     * @param bOffset Offset into the second input data array
+     * @param pixelCount Number of pixels to compare, a multiple of 32
+     * @return Index of the first pixel of the first block that differs, or pixelCount if all are equal
+     */
+    default int byteBlockMismatch(byte[] a, int aOffset, byte[] b, int bOffset, int pixelCount) {
+        int blockLength = byteBlockInputLength();
+        for (int i = 0; i < pixelCount; i += 32, aOffset += blockLength, bOffset += blockLength) {
+            if (!byteBlockEquals32Pixels(a, aOffset, b, bOffset)) {
+                return i;
+            }
+        }
+        return pixelCount;
+    }
+
+    /**
+     * Finds the first block of 32 pixels of which the int-encoded input data differs in two
+     * arrays, comparing the blocks the same way as {@link #intBlockEquals32Pixels(int[], int, int[], int)}.
+     * Long runs of equal blocks are skipped in a single call.
+     *
+     * @param a First input int data
+     * @param aOffset Offset into the first input data array
+     * @param b Second input int data
+     * @param bOffset Offset into the second input data array
+     * @param pixelCount Number of pixels to compare, a multiple of 32
+     * @return Index of the first pixel of the first block that differs, or pixelCount if all are equal
+     */
+    default int intBlockMismatch(int[] a, int aOffset, int[] b, int bOffset, int pixelCount) {
+        for (int i = 0; i < pixelCount; i += 32) {
+            if (!intBlockEquals32Pixels(a, aOffset + i, b, bOffset + i)) {
+                return i;
+            }
+        }
+        return pixelCount;
+    }
+
+    /**
+     * Encodes a single RGBA color value back into the byte-encoded format of this
+     * conversion, writing {@link #singleBytesInputLength()} bytes. If this format has
+     * no {@link #hasTransparency() transparency}, the alpha channel is dropped.
+     *
+     * @param rgba Red green blue alpha color value
+     * @param output Output byte array
+     * @param outputOffset Offset into the output byte array to write the first byte to
+     * @throws UnsupportedOperationException If this format can not be encoded
+     */
+    default void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        throw new UnsupportedOperationException("Encoding is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Encodes a single RGBA color value back into the int-encoded format of this
+     * conversion. If this format has no {@link #hasTransparency() transparency},
+     * the unused alpha channel is set to 0.
+     *
+     * @param rgba Red green blue alpha color value
+     * @return Encoded int value
+     * @throws UnsupportedOperationException If this format can not be encoded
+     */
+    default int singleEncodeToInt(int rgba) {
+        throw new UnsupportedOperationException("Encoding is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Minimum number of bytes the output of {@link #byteBlockEncode32Pixels(int[], int, byte[], int)}
+     * requires.
+     *
+     * @return Minimum output byte count. Can be more than {@link #byteBlockInputLength()}, in which
+     *         case extra bytes past the block are overwritten with unspecified values.
+     */
+    default int byteBlockOutputMinimumLength() {
+        return 32 * singleBytesInputLength();
+    }
+
+    /**
+     * Encodes 32 RGBA pixels exactly into the byte-encoded format of this conversion.
+     * The byte array output must have room for at least {@link #byteBlockOutputMinimumLength()}
+     * byte values.
+     *
+     * @param input Input RGBA int data
+     * @param inputOffset Offset into the input int array of the first of 32 pixels
+     * @param output Output byte array
+     * @param outputOffset Offset into the output byte array to write the first byte to
+     * @return Output offset advanced by how many bytes were written
+     */
+    default int byteBlockEncode32Pixels(int[] input, int inputOffset, byte[] output, int outputOffset) {
+        int len = singleBytesInputLength();
+        for (int i = 0; i < 32; i++) {
+            singleEncodeToBytes(input[inputOffset + i], output, outputOffset);
+            outputOffset += len;
+        }
+        return outputOffset;
+    }
+
+    /**
+     * Encodes 32 RGBA pixels exactly into the int-encoded format of this conversion.
+     *
+     * @param input Input RGBA int data
+     * @param inputOffset Offset into the input int array of the first of 32 pixels
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array to write the first pixel to
+     * @return Output offset advanced by how many integers were written
+     */
+    default int intBlockEncode32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i++) {
+            output[outputOffset++] = singleEncodeToInt(input[inputOffset + i]);
+        }
+        return outputOffset;
+    }
+
+    /**
+     * Encodes RGBA pixel values into the byte-encoded format of this conversion, such as the
+     * pixel data of a <i>TYPE_3BYTE_BGR</i> image. This is the reverse of
+     * {@link #decodeInto(byte[], int, int[], int, int)}. The work is split over multiple
+     * threads when the pixel count is large enough.
+     *
+     * @param src Input RGBA pixel values
+     * @param srcOffset Offset into the input int array of the first pixel
+     * @param dst Output byte array to write 3 or 4 bytes per pixel to
+     * @param dstOffset Offset into the output byte array to write the first byte to
+     * @param pixelCount Total number of pixels to encode
+     */
+    default void encodeInto(int[] src, int srcOffset, byte[] dst, int dstOffset, int pixelCount) {
+        final int step = singleBytesInputLength();
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, true, 0.0), (start, end) -> {
+            DecodeTasks.encodeBytes(this, src, srcOffset + start, dst, dstOffset + start * step,
+                    dstOffset + end * step, end - start);
+        });
+    }
+
+    /**
+     * Encodes RGBA pixel values into the int-encoded format of this conversion, such as the
+     * pixel data of a <i>TYPE_INT_ARGB</i> image. This is the reverse of
+     * {@link #decodeInto(int[], int, int[], int, int)}. The work is split over multiple
+     * threads when the pixel count is large enough.
+     *
+     * @param src Input RGBA pixel values
+     * @param srcOffset Offset into the input int array of the first pixel
+     * @param dst Output int array to write the encoded pixels to
+     * @param dstOffset Offset into the output int array to write the first pixel to
+     * @param pixelCount Total number of pixels to encode
+     */
+    default void encodeInto(int[] src, int srcOffset, int[] dst, int dstOffset, int pixelCount) {
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, false, 0.0), (start, end) -> {
+            DecodeTasks.encodeInts(this, src, srcOffset + start, dst, dstOffset + start, end - start);
+        });
+    }
+
+    /**
+     * Decodes int-encoded pixel data stored in an int buffer and writes the RGBA results into
+     * an output int buffer. The buffers can be direct (off-heap) buffers, in which case small
+     * parts are copied at a time rather than the full buffer. The positions of the buffers
+     * are not used or changed. The work is split over multiple threads when the pixel count
+     * is large enough.
+     *
+     * @param src Input pixel data buffer, with an int per pixel storing the RGB(A) values
+     * @param srcOffset Index into the input pixel data buffer of the first pixel
+     * @param dst Output int buffer to write the RGBA pixel values to
+     * @param dstOffset Index into the output int buffer to write the first pixel to
+     * @param pixelCount Total number of pixels to decode
+     * @throws IndexOutOfBoundsException If the pixels do not fit within the limit of either buffer
+     */
+    default void decodeInto(IntBuffer src, int srcOffset, IntBuffer dst, int dstOffset, int pixelCount) {
+        DecodeTasks.checkBufferRange(src, srcOffset, pixelCount);
+        DecodeTasks.checkBufferRange(dst, dstOffset, pixelCount);
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, false, 0.0), (start, end) -> {
+            DecodeTasks.convertInts(this, src, srcOffset + start, dst, dstOffset + start, end - start);
+        });
+    }
+
+    /**
+     * Decodes byte-encoded pixel data stored in a byte buffer and writes the RGBA results into
+     * an output int buffer. The buffers can be direct (off-heap) buffers, in which case small
+     * parts are copied at a time rather than the full buffer. The positions of the buffers
+     * are not used or changed. The work is split over multiple threads when the pixel count
+     * is large enough.
+     *
+     * @param src Input pixel data buffer, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param srcOffset Index into the input pixel data buffer of the first byte of the first pixel
+     * @param dst Output int buffer to write the RGBA pixel values to
+     * @param dstOffset Index into the output int buffer to write the first pixel to
+     * @param pixelCount Total number of pixels to decode
+     * @throws IndexOutOfBoundsException If the pixels do not fit within the limit of either buffer
+     */
+    default void decodeInto(ByteBuffer src, int srcOffset, IntBuffer dst, int dstOffset, int pixelCount) {
+        final int step = singleBytesInputLength();
+        DecodeTasks.checkBufferRange(src, srcOffset, (long) pixelCount * step);
+        DecodeTasks.checkBufferRange(dst, dstOffset, pixelCount);
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, true, 0.0), (start, end) -> {
+            DecodeTasks.convertBytes(this, src, srcOffset + start * step, dst, dstOffset + start, end - start);
+        });
+    }
+
+    /**
+     * Decodes a rectangular region of int-encoded pixel data and writes the RGBA results
+     * directly into an output int array, row by row without gaps between the rows.
+     * The input pixel data is stored row by row, with a fixed number of ints between the
+     * start of every row. The work is split over multiple threads by rows of pixels.
+     *
+     * @param src Input pixel data, with an int per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the top-left pixel of the image
+     * @param scanlineStride Number of ints from the start of one row to the start of the next row
+     * @param x X-coordinate of the top-left pixel of the region to decode
+     * @param y Y-coordinate of the top-left pixel of the region to decode
+     * @param width Width of the region to decode
+     * @param height Height of the region to decode
+     * @param dst Output int array to write the width x height RGBA pixel values to
+     * @param dstOffset Offset into the output int array to write the top-left pixel to
+     */
+    default void decodeRegionInto(int[] src, int srcOffset, int scanlineStride, int x, int y, int width, int height, int[] dst, int dstOffset) {
+        final int regionOffset = srcOffset + y * scanlineStride + x;
+        final int parallelism = DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), width * height, false, 0.0);
+        DecodeTasks.forEachRange(height, parallelism, DecodeTasks.rowsPerChunk(DecodeTasks.DEFAULT_CHUNK_SIZE, width),
+                null, (startRow, endRow) -> {
+            for (int row = startRow; row < endRow; row++) {
+                DecodeTasks.convertInts(this, src, regionOffset + row * scanlineStride,
+                        dst, dstOffset + row * width, width);
+            }
+        });
+    }
+
+    /**
+     * Decodes a rectangular region of byte-encoded pixel data and writes the RGBA results
+     * directly into an output int array, row by row without gaps between the rows.
+     * The input pixel data is stored row by row, with a fixed number of bytes between the
+     * start of every row. The work is split over multiple threads by rows of pixels.
+     *
+     * @param src Input pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the first byte of the top-left pixel of the image
+     * @param scanlineStride Number of bytes from the start of one row to the start of the next row
+     * @param x X-coordinate of the top-left pixel of the region to decode
+     * @param y Y-coordinate of the top-left pixel of the region to decode
+     * @param width Width of the region to decode
+     * @param height Height of the region to decode
+     * @param dst Output int array to write the width x height RGBA pixel values to
+     * @param dstOffset Offset into the output int array to write the top-left pixel to
+     */
+    default void decodeRegionInto(byte[] src, int srcOffset, int scanlineStride, int x, int y, int width, int height, int[] dst, int dstOffset) {
+        final int regionOffset = srcOffset + y * scanlineStride + x * singleBytesInputLength();
+        final int parallelism = DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), width * height, true, 0.0);
+        DecodeTasks.forEachRange(height, parallelism, DecodeTasks.rowsPerChunk(DecodeTasks.DEFAULT_CHUNK_SIZE, width),
+                null, (startRow, endRow) -> {
+            for (int row = startRow; row < endRow; row++) {
+                DecodeTasks.convertBytes(this, src, regionOffset + row * scanlineStride, src.length,
+                        dst, dstOffset + row * width, width);
+            }
+        });
+    }
+
+    /**
+     * Looks up the map color palette bytes of 32 RGBA pixels previously converted into
+     * the buffer. Transparent pixels, with the alpha channel below 128, are looked up at
+     * index 0x1000000 of the mapping table. If this format has no
+     * {@link #hasTransparency() transparency}, all pixels are treated as opaque.
+     *
+     * @param buffer Buffer of converted RGBA pixel values. These values are overwritten
+     *               with the indices into the mapping table.
+     * @param bufferOffset Offset into the buffer of the first of 32 pixels
+     * @param mapping Mapping table of 16777217 bytes, mapping RGB to a map color
+     * @param output Output byte array to write the mapped colors to
+     * @param outputOffset Offset into the output byte array where 32 map colors are written
+     */
+    default void paletteBlockConvert32Pixels(int[] buffer, int bufferOffset, byte[] mapping, byte[] output, int outputOffset) {
+        boolean hasTransparency = hasTransparency();
+        for (int i = 0; i < 32; i++) {
+            output[outputOffset + i] = mapping[DecodeTasks.paletteIndex(hasTransparency, buffer[bufferOffset + i])];
+        }
+    }
+
+    /**
+     * Computes which of 32 RGBA pixels previously converted into the buffer have an
+     * alpha channel of at least the alpha threshold. If this format has no
+     * {@link #hasTransparency() transparency}, all pixels are treated as opaque.
+     *
+     * @param buffer Buffer of converted RGBA pixel values
+     * @param bufferOffset Offset into the buffer of the first of 32 pixels
+     * @param alphaThreshold Minimum alpha value of a pixel for its bit to be set, 0 - 255
+     * @return Mask with bit <i>i</i> set if pixel <i>i</i> is at or above the alpha threshold
+     */
+    default int alphaMaskBlock32Pixels(int[] buffer, int bufferOffset, int alphaThreshold) {
+        if (!hasTransparency()) {
+            return -1;
+        }
+        int mask = 0;
+        for (int i = 0; i < 32; i++) {
+            if ((buffer[bufferOffset + i] >>> 24) >= alphaThreshold) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Decodes int-encoded pixel data and writes the RGBA results directly into an
+     * output int array. Unlike {@link #decode(int[], int, RGBColorConsumer)} no
+     * callback is called for every pixel. The work is split over multiple threads
+     * when the pixel count is large enough.
+     *
+     * @param src Input pixel data, with an int per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param dst Output int array to write the RGBA pixel values to
+     * @param dstOffset Offset into the output int array to write the first pixel to
+     * @param pixelCount Total number of pixels to decode
+     */
+    default void decodeInto(int[] src, int srcOffset, int[] dst, int dstOffset, int pixelCount) {
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, false, 0.0), (start, end) -> {
+            DecodeTasks.convertInts(this, src, srcOffset + start, dst, dstOffset + start, end - start);
+        });
+    }
+
+    /**
+     * Decodes short-encoded pixel data and writes the RGBA results directly into an
+     * output int array. The work is split over multiple threads when the pixel count
+     * is large enough. Only 16-bit packed formats, like {@link #RGB565}, support short input.
+     *
+     * @param src Input pixel data, with a short per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param dst Output int array to write the RGBA pixel values to
+     * @param dstOffset Offset into the output int array to write the first pixel to
+     * @param pixelCount Total number of pixels to decode
+     * @throws UnsupportedOperationException If this format can not be stored in a short
+     */
+    default void decodeInto(short[] src, int srcOffset, int[] dst, int dstOffset, int pixelCount) {
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, false, 0.0), (start, end) -> {
+            DecodeTasks.convertShorts(this, src, srcOffset + start, dst, dstOffset + start, end - start);
+        });
+    }
+
+    /**
+     * Decodes byte-encoded pixel data and writes the RGBA results directly into an
+     * output int array. Unlike {@link #decode(byte[], int, RGBColorConsumer)} no
+     * callback is called for every pixel. The work is split over multiple threads
+     * when the pixel count is large enough.
+     *
+     * @param src Input pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the first byte of the first pixel
+     * @param dst Output int array to write the RGBA pixel values to
+     * @param dstOffset Offset into the output int array to write the first pixel to
+     * @param pixelCount Total number of pixels to decode
+     */
+    default void decodeInto(byte[] src, int srcOffset, int[] dst, int dstOffset, int pixelCount) {
+        final int step = singleBytesInputLength();
+        final int srcLimit = srcOffset + pixelCount * step;
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, true, 0.0), (start, end) -> {
+            DecodeTasks.convertBytes(this, src, srcOffset + start * step, srcLimit,
+                    dst, dstOffset + start, end - start);
+        });
+    }
+
+    /**
+     * Decodes int-encoded pixel data and writes the RGBA results directly into an
+     * output int array, while also computing a bitmask of which pixels are at or above
+     * an alpha threshold. Both are produced in a single pass over the pixels. The work
+     * is split over multiple threads when the pixel count is large enough.<br>
+     * <br>
+     * Bit <i>i % 64</i> of {@code alphaMask[i / 64]} is set if decoded pixel <i>i</i>
+     * has an alpha channel of at least the alpha threshold. Bits past the last pixel
+     * are cleared. If this format has no {@link #hasTransparency() transparency}, the bits
+     * of all pixels are set.
+     *
+     * @param src Input pixel data, with an int per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param dst Output int array to write the RGBA pixel values to
+     * @param dstOffset Offset into the output int array to write the first pixel to
+     * @param pixelCount Total number of pixels to decode
+     * @param alphaMask Output alpha bitmask, of at least <i>(pixelCount + 63) / 64</i> longs
+     * @param alphaThreshold Minimum alpha value of a pixel for its bit to be set, 0 - 255
+     * @throws IllegalArgumentException If the alpha threshold is out of range, or the alpha mask is too small
+     */
+    default void decodeInto(int[] src, int srcOffset, int[] dst, int dstOffset, int pixelCount, long[] alphaMask, int alphaThreshold) {
+        DecodeTasks.checkAlphaMask(pixelCount, alphaMask, alphaThreshold);
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, false, 0.0), (start, end) -> {
+            DecodeTasks.convertInts(this, src, srcOffset + start, dst, dstOffset + start, end - start,
+                    alphaMask, start >> 6, alphaThreshold);
+        });
+    }
+
+    /**
+     * Decodes byte-encoded pixel data and writes the RGBA results directly into an
+     * output int array, while also computing a bitmask of which pixels are at or above
+     * an alpha threshold. Both are produced in a single pass over the pixels. The work
+     * is split over multiple threads when the pixel count is large enough.
+     *
+     * @param src Input pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the first byte of the first pixel
+     * @param dst Output int array to write the RGBA pixel values to
+     * @param dstOffset Offset into the output int array to write the first pixel to
+     * @param pixelCount Total number of pixels to decode
+     * @param alphaMask Output alpha bitmask, of at least <i>(pixelCount + 63) / 64</i> longs
+     * @param alphaThreshold Minimum alpha value of a pixel for its bit to be set, 0 - 255
+     * @throws IllegalArgumentException If the alpha threshold is out of range, or the alpha mask is too small
+     * @see #decodeInto(int[], int, int[], int, int, long[], int)
+     */
+    default void decodeInto(byte[] src, int srcOffset, int[] dst, int dstOffset, int pixelCount, long[] alphaMask, int alphaThreshold) {
+        DecodeTasks.checkAlphaMask(pixelCount, alphaMask, alphaThreshold);
+        final int step = singleBytesInputLength();
+        final int srcLimit = srcOffset + pixelCount * step;
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, true, 0.0), (start, end) -> {
+            DecodeTasks.convertBytes(this, src, srcOffset + start * step, srcLimit,
+                    dst, dstOffset + start, end - start, alphaMask, start >> 6, alphaThreshold);
+        });
+    }
+
+    /**
+     * Decodes int-encoded pixel data and maps every pixel to a map color palette byte
+     * using a mapping table, in a single pass. No intermediate int[] array of RGBA
+     * values is created. The work is split over multiple threads when the pixel count
+     * is large enough.<br>
+     * <br>
+     * Transparent pixels, with the alpha channel below 128, are mapped to the last
+     * entry of the mapping table. If this format has no {@link #hasTransparency() transparency},
+     * all pixels are treated as opaque.
+     *
+     * @param src Input pixel data, with an int per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the first pixel
+     * @param mapping Mapping table of 16777217 bytes, mapping RGB to a map color
+     * @param out Output byte array to write the map colors to
+     * @param outOffset Offset into the output byte array to write the first map color to
+     * @param pixelCount Total number of pixels to decode
+     */
+    default void decodeToPalette(int[] src, int srcOffset, byte[] mapping, byte[] out, int outOffset, int pixelCount) {
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, false, 0.0), (start, end) -> {
+            DecodeTasks.convertIntsToPalette(this, src, srcOffset + start, mapping,
+                    out, outOffset + start, end - start);
+        });
+    }
+
+    /**
+     * Decodes byte-encoded pixel data and maps every pixel to a map color palette byte
+     * using a mapping table, in a single pass. No intermediate int[] array of RGBA
+     * values is created. The work is split over multiple threads when the pixel count
+     * is large enough.<br>
+     * <br>
+     * Transparent pixels, with the alpha channel below 128, are mapped to the last
+     * entry of the mapping table. If this format has no {@link #hasTransparency() transparency},
+     * all pixels are treated as opaque.
+     *
+     * @param src Input pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param srcOffset Offset into the input pixel data of the first byte of the first pixel
+     * @param mapping Mapping table of 16777217 bytes, mapping RGB to a map color
+     * @param out Output byte array to write the map colors to
+     * @param outOffset Offset into the output byte array to write the first map color to
+     * @param pixelCount Total number of pixels to decode
+     */
+    default void decodeToPalette(byte[] src, int srcOffset, byte[] mapping, byte[] out, int outOffset, int pixelCount) {
+        final int step = singleBytesInputLength();
+        final int srcLimit = srcOffset + pixelCount * step;
+        DecodeTasks.forEachRange(pixelCount, DecodeCostModel.computeParallelism(this,
+                Runtime.getRuntime().availableProcessors(), pixelCount, true, 0.0), (start, end) -> {
+            DecodeTasks.convertBytesToPalette(this, src, srcOffset + start * step, srcLimit,
+                    mapping, out, outOffset + start, end - start);
+        });
+    }
+
     /**
      * Decodes int-encoded pixel data
      *
@@ -136,7 +1001,7 @@ public interface RGBColorToIntConversion {
             public void onPixel(int index, int rgba) {
                 consumer.onPixel(index, rgba);
             }
-        }.decode(data, pixelCount);
+        }.blockSize(preferredBlockSize()).decode(data, pixelCount);
     }
 
     /**
@@ -153,6 +1018,79 @@ public interface RGBColorToIntConversion {
             public void onPixel(int index, int rgba) {
                 consumer.onPixel(index, rgba);
             }
+        }.blockSize(preferredBlockSize()).decode(data, pixelCount);
+    }
+
+    /**
+     * Decodes short-encoded pixel data. Only 16-bit packed formats, like
+     * {@link #RGB565}, support short input.
+     *
+     * @param data Pixel data
+     * @param pixelCount Pixel count
+     * @param consumer Consumer callback to call for every pixel
+     * @see Decoder
+     */
+    default void decode(short[] data, int pixelCount, RGBColorConsumer consumer) {
+        new Decoder(this) {
+            @Override
+            public void onPixel(int index, int rgba) {
+                consumer.onPixel(index, rgba);
+            }
+        }.blockSize(preferredBlockSize()).decode(data, pixelCount);
+    }
+
+    /**
+     * Decodes int-encoded pixel data, calling the consumer with blocks of
+     * up to 32 pixels at a time
+     *
+     * @param data Pixel data
+     * @param pixelCount Pixel count
+     * @param consumer Consumer callback to call for every block of pixels
+     * @see BlockDecoder
+     */
+    default void decodeBlocks(int[] data, int pixelCount, RGBBlockConsumer consumer) {
+        new BlockDecoder(this) {
+            @Override
+            public void onBlock(int startIndex, int[] rgba, int count) {
+                consumer.onBlock(startIndex, rgba, count);
+            }
+        }.decode(data, pixelCount);
+    }
+
+    /**
+     * Decodes short-encoded pixel data, calling the consumer with blocks of
+     * up to 32 pixels at a time. Only 16-bit packed formats, like {@link #RGB565},
+     * support short input.
+     *
+     * @param data Pixel data
+     * @param pixelCount Pixel count
+     * @param consumer Consumer callback to call for every block of pixels
+     * @see BlockDecoder
+     */
+    default void decodeBlocks(short[] data, int pixelCount, RGBBlockConsumer consumer) {
+        new BlockDecoder(this) {
+            @Override
+            public void onBlock(int startIndex, int[] rgba, int count) {
+                consumer.onBlock(startIndex, rgba, count);
+            }
+        }.decode(data, pixelCount);
+    }
+
+    /**
+     * Decodes byte-encoded pixel data, calling the consumer with blocks of
+     * up to 32 pixels at a time
+     *
+     * @param data Pixel data
+     * @param pixelCount Pixel count
+     * @param consumer Consumer callback to call for every block of pixels
+     * @see BlockDecoder
+     */
+    default void decodeBlocks(byte[] data, int pixelCount, RGBBlockConsumer consumer) {
+        new BlockDecoder(this) {
+            @Override
+            public void onBlock(int startIndex, int[] rgba, int count) {
+                consumer.onBlock(startIndex, rgba, count);
+            }
         }.decode(data, pixelCount);
     }
 
@@ -160,6 +1098,11 @@ public interface RGBColorToIntConversion {
      * Hidden logic for initializing the SIMD optimizations
      */
     class SIMDLoader {
+        /**
+         * System property that, when set to a vector size in bits, forces the SIMD conversions
+         * to use vectors of that size. See {@link #withVectorBitSize(int)}.
+         */
+        public static final String SPECIES_PROPERTY = "colorconversion.simd.species";
         private static Throwable simdError = null;
 
         /**
@@ -176,8 +1119,44 @@ public interface RGBColorToIntConversion {
             return simdError;
         }
 
-        @SuppressWarnings("Since15")
         private static RGBColorToIntConversion tryCreateSIMD(Supplier<RGBColorToIntConversion> base, String simdFactoryName) {
+            return tryCreateSIMD(base, simdFactoryName, new Object[0]);
+        }
+
+        /**
+         * Tries to create the SIMD version of a conversion. If {@link ConversionSelection#isEnabled() self-tuning}
+         * is enabled, the base and SIMD versions are timed and the fastest one is used instead.
+         *
+         * @param base Supplier of the base version of the conversion
+         * @param simdFactoryName Name of the static factory method, and of the format
+         * @return Selected conversion
+         */
+        private static RGBColorToIntConversion tryCreateSelected(Supplier<RGBColorToIntConversion> base, String simdFactoryName) {
+            RGBColorToIntConversion conversion = tryCreateSIMD(base, simdFactoryName);
+            if (!conversion.isUsingSIMD() || !ConversionSelection.isEnabled()) {
+                return conversion;
+            }
+            return ConversionSelection.select(simdFactoryName.toUpperCase(Locale.ENGLISH), conversion, conversion.noSIMD());
+        }
+
+        static RGBColorToIntConversion tryCreateSIMD(Supplier<RGBColorToIntConversion> base, String simdFactoryName, Object... args) {
+            return tryCreateSIMD(RGBColorToIntConversion.class, base, simdFactoryName, args);
+        }
+
+        /**
+         * Tries to create the SIMD version of a conversion by calling a static factory method
+         * of the SIMD conversion class. If SIMD is not available, or the factory fails, the
+         * base version is created instead.
+         *
+         * @param type Type of conversion the factory method returns
+         * @param base Supplier of the base version of the conversion
+         * @param simdFactoryName Name of the static factory method
+         * @param args Arguments to pass to the factory method
+         * @return SIMD conversion, or the base conversion if SIMD is not available
+         * @param <T> Type of conversion
+         */
+        @SuppressWarnings("Since15")
+        static <T> T tryCreateSIMD(Class<T> type, Supplier<? extends T> base, String simdFactoryName, Object... args) {
             String simdName = RGBColorToIntConversion.class.getName();
             simdName = simdName.substring(0, simdName.lastIndexOf('.')) + ".SIMDColorConversion";
             try {
@@ -186,9 +1165,13 @@ public interface RGBColorToIntConversion {
                 }
 
                 Class<?> simdColorConversionType = Class.forName(simdName);
-                java.lang.reflect.Method factoryMethod = simdColorConversionType.getMethod(simdFactoryName);
-                factoryMethod.setAccessible(true);
-                return (RGBColorToIntConversion) factoryMethod.invoke(null);
+                for (java.lang.reflect.Method factoryMethod : simdColorConversionType.getMethods()) {
+                    if (factoryMethod.getName().equals(simdFactoryName) && factoryMethod.getParameterCount() == args.length) {
+                        factoryMethod.setAccessible(true);
+                        return type.cast(factoryMethod.invoke(null, args));
+                    }
+                }
+                throw new NoSuchMethodException(simdName + "." + simdFactoryName);
             } catch (Throwable t) {
                 simdError = t;
                 return base.get();
@@ -223,25 +1206,60 @@ public interface RGBColorToIntConversion {
     }
 
     /**
-     * Decodes int[] or byte[] data, calling the callback with every pixel encountered.
-     * Callback is called on multiple threads by default.
+     * Consumes blocks of pixel RGB(A) values
+     */
+    @FunctionalInterface
+    interface RGBBlockConsumer {
+        /**
+         * Callback called for every block of pixels encountered. Blocks are
+         * 32 pixels long, except for the last few pixels decoded, which
+         * are passed as a shorter block. A {@link Decoder} passes longer blocks
+         * only if a larger {@link Decoder#blockSize(int) block size} was set.
+         *
+         * @param startIndex Index of the first pixel of the block
+         * @param rgba Red green blue alpha components of the pixels, starting at
+         *             index 0 of this array. For RGB data, the alpha channel is
+         *             kept 0. The array is re-used after this callback returns.
+         * @param count Number of pixels in the block, at most 32, or at most the
+         *              block size set on a {@link Decoder}
+         */
+        void onBlock(int startIndex, int[] rgba, int count);
+    }
+
+    /**
+     * Decodes int[], short[] or byte[] data, calling the callback with every pixel encountered.
+     * Callback is called on multiple threads by default.<br>
+     * <br>
+     * Pixels are passed to {@link #onBlock(int, int[], int)} in blocks of 32 pixels, or of the
+     * {@link #blockSize(int) block size} if set, which by default calls {@link #onPixel(int, int)} for every pixel. Override it to
+     * process whole blocks at once, or use a {@link BlockDecoder}.
      */
-    abstract class Decoder implements RGBColorConsumer {
+    abstract class Decoder implements RGBColorConsumer, RGBBlockConsumer {
         private final RGBColorToIntConversion converter;
         private int parallelism;
+        private int chunkSize;
+        private int blockSize;
+        private Executor executor;
+        private volatile double consumerNanosPerPixel;
 
         public Decoder(RGBColorToIntConversion converter) {
             this.converter = converter;
             this.parallelism = Runtime.getRuntime().availableProcessors();
+            this.chunkSize = DecodeTasks.DEFAULT_CHUNK_SIZE;
+            this.blockSize = 32;
+            this.executor = null;
+            this.consumerNanosPerPixel = 0.0;
         }
 
         /**
-         * Sets over how many parallel threads the decoding is performed. If set to 1 or less,
+         * Sets over how many parallel threads the decoding is performed at most. If set to 1 or less,
          * this decoder runs single-threaded. If more than 1, {@link #onPixel(int, int)} will be
-         * called on multiple (worker) threads.
+         * called on multiple (worker) threads. How many threads are actually used is decided by
+         * the {@link RGBColorToIntConversion#costModel() cost model} of the converter, so that
+         * small images are decoded on a single thread.
          * Is by default set to the number of cpu threads.
          *
-         * @param parallelism Number of parallel tasks to decode on
+         * @param parallelism Maximum number of parallel tasks to decode on
          * @return this decoder
          */
         public Decoder parallelism(int parallelism) {
@@ -249,9 +1267,94 @@ public interface RGBColorToIntConversion {
             return this;
         }
 
-        private int computeParallelism(int pixelCount) {
-            // Try to have at least 4 blocks processed per thread
-            return Math.min(this.parallelism, pixelCount / (32 * 4));
+        /**
+         * Sets the expected time spent in {@link #onPixel(int, int)} or {@link #onBlock(int, int[], int)}
+         * for every pixel. This is used to decide whether to split decoding over multiple threads.
+         * After every decode the time is updated with the time actually measured.
+         * Is by default 0.
+         *
+         * @param nanosPerPixel Expected time spent consuming a single pixel, in nanoseconds
+         * @return this decoder
+         */
+        public Decoder consumerCost(double nanosPerPixel) {
+            this.consumerNanosPerPixel = nanosPerPixel;
+            return this;
+        }
+
+        /**
+         * Sets the executor on which the parallel decoding work is performed. Workers are
+         * submitted to the executor, and the calling thread always performs part of the work
+         * as well, so decoding continues on the calling thread while the executor is busy.
+         * Is by default set to null, which uses the {@link ForkJoinPool#commonPool() common pool}.
+         *
+         * @param executor Executor to perform the parallel decoding work on, null for the common pool
+         * @return this decoder
+         */
+        public Decoder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the number of pixels that are decoded by a single worker at a time. The pixels are
+         * split into many chunks of this size, and workers that are done decoding a chunk take
+         * the next chunk that has not been started yet. Smaller chunks balance the work better when
+         * the cost of {@link #onPixel(int, int)} differs between parts of the image.
+         * The size is rounded up to a multiple of 32 pixels.
+         * Is by default set to 4096 pixels.
+         *
+         * @param chunkSize Number of pixels per chunk
+         * @return this decoder
+         */
+        public Decoder chunkSize(int chunkSize) {
+            this.chunkSize = Math.max(32, (chunkSize + 31) & ~31);
+            return this;
+        }
+
+        /**
+         * Sets the number of pixels that are converted at a time, and passed to
+         * {@link #onBlock(int, int[], int)} as a single block. Larger blocks convert faster
+         * with wide SIMD vectors, smaller blocks keep the pixels in cache for longer.
+         * Set it to the {@link RGBColorToIntConversion#preferredBlockSize() preferred block size}
+         * of the converter for the fastest conversion, if {@link #onBlock(int, int[], int)}
+         * can handle blocks of that size.
+         * The size is rounded up to a multiple of 32 pixels.
+         * Is by default set to 32 pixels.
+         *
+         * @param blockSize Number of pixels per block
+         * @return this decoder
+         */
+        public Decoder blockSize(int blockSize) {
+            this.blockSize = Math.max(32, (blockSize + 31) & ~31);
+            return this;
+        }
+
+        private int computeParallelism(int pixelCount, boolean byteInput) {
+            return DecodeCostModel.computeParallelism(converter, this.parallelism, pixelCount, byteInput, consumerNanosPerPixel);
+        }
+
+        /**
+         * Updates the measured time spent in the consumer callbacks of this decoder, based on
+         * how long decoding took in total. This is used to decide whether decoding should be split
+         * over multiple threads the next time this decoder is used.
+         */
+        private void updateConsumerCost(long startNanos, int pixelCount, int parallelism, boolean byteInput) {
+            // Not needed when decoding is always single-threaded, avoids using the cost model at all
+            if (DecodeCostModel.isSingleThreaded(this.parallelism, pixelCount)) {
+                return;
+            }
+
+            double totalNanosPerPixel = (double) (System.nanoTime() - startNanos) * Math.max(1, parallelism) / pixelCount;
+            double conversionNanosPerPixel = converter.costModel().estimateNanosPerPixel(byteInput);
+            double measured = Math.max(0.0, totalNanosPerPixel - conversionNanosPerPixel);
+            consumerNanosPerPixel = (consumerNanosPerPixel + measured) * 0.5;
+        }
+
+        @Override
+        public void onBlock(int startIndex, int[] rgba, int count) {
+            for (int i = 0; i < count; i++) {
+                onPixel(startIndex + i, rgba[i]);
+            }
         }
 
         /**
@@ -261,55 +1364,20 @@ public interface RGBColorToIntConversion {
          * @param pixelCount Total number of pixels to decode
          */
         public void decode(byte[] data, int pixelCount) {
-            int bytePosition = 0;
-            int pixelPosition = 0;
+            decode(data, 0, pixelCount);
+        }
 
-            // Process 32 pixel blocks of data by performing the byte[] conversion in bulk
-            // This is a little more performant, especially with SIMD enabled
-            {
-                final int totalBytes = pixelCount * converter.singleBytesInputLength() - converter.byteBlockInputMinimumLength();
-                final int parallelism = computeParallelism(pixelCount);
-
-                if (parallelism > 1) {
-                    final int blocksPerThread = (totalBytes / (parallelism * converter.byteBlockInputLength()));
-                    final int bytesPerThread = converter.byteBlockInputLength() * blocksPerThread;
-                    final int pixelsPerThread = 32 * blocksPerThread;
-
-                    IntStream.range(0, parallelism)
-                            .parallel()
-                            .forEach(threadId -> {
-                                int threadBytePosition = threadId * bytesPerThread;
-                                int threadEndPosition = threadBytePosition + bytesPerThread;
-                                int threadPixelPosition = threadId * pixelsPerThread;
-                                int[] buff = new int[32];
-                                while (threadBytePosition < threadEndPosition) {
-                                    threadBytePosition = converter.byteBlockConvert32Pixels(data, threadBytePosition, buff);
-                                    for (int i = 0; i < 32; i++) {
-                                        onPixel(threadPixelPosition++, buff[i]);
-                                    }
-                                }
-                            });
-
-                    bytePosition += parallelism * bytesPerThread;
-                    pixelPosition += parallelism * pixelsPerThread;
-                } else {
-                    int[] buff = new int[32];
-                    while (bytePosition < totalBytes) {
-                        bytePosition = converter.byteBlockConvert32Pixels(data, bytePosition, buff);
-                        for (int i = 0; i < 32; i++) {
-                            onPixel(pixelPosition++, buff[i]);
-                        }
-                    }
-                }
-            }
+        private void decode(byte[] data, int offset, int pixelCount) {
+            final int step = converter.singleBytesInputLength();
+            final int blockLimit = offset + pixelCount * step - converter.byteBlockInputMinimumLength();
+            final int parallelism = computeParallelism(pixelCount, true);
+            final long startNanos = System.nanoTime();
 
-            // Perform a simple for loop for the few remaining pixels
-            int step = converter.singleBytesInputLength();
-            int limit = pixelCount * step;
-            while (bytePosition < limit) {
-                onPixel(pixelPosition++, converter.singleBytesToInt(data, bytePosition));
-                bytePosition += step;
-            }
+            DecodeTasks.forEachRange(pixelCount, parallelism, chunkSize, executor, (start, end) -> {
+                decodeRun(data, offset + start * step, blockLimit, start, end - start, new int[blockSize]);
+            });
+
+            updateConsumerCost(startNanos, pixelCount, parallelism, true);
         }
 
         /**
@@ -319,52 +1387,253 @@ public interface RGBColorToIntConversion {
          * @param pixelCount Total number of pixels to decode
          */
         public void decode(int[] data, int pixelCount) {
-            int intPosition = 0;
-            int pixelPosition = 0;
+            decode(data, 0, pixelCount);
+        }
 
-            // Process 32 pixel blocks of data by performing the byte[] conversion in bulk
-            // This is a little more performant, especially with SIMD enabled
-            {
-                final int totalIntegers = pixelCount - 32;
-                final int parallelism = computeParallelism(pixelCount);
-
-                if (parallelism > 1) {
-                    final int blocksPerThread = (totalIntegers / (parallelism * 32));
-                    final int pixelsPerThread = 32 * blocksPerThread;
-
-                    IntStream.range(0, parallelism)
-                            .parallel()
-                            .forEach(threadId -> {
-                                int threadIntPosition = threadId * pixelsPerThread;
-                                int threadEndPosition = threadIntPosition + pixelsPerThread;
-                                int threadPixelPosition = threadId * pixelsPerThread;
-                                int[] buff = new int[32];
-                                while (threadIntPosition < threadEndPosition) {
-                                    threadIntPosition = converter.intBlockConvert32Pixels(data, threadIntPosition, buff);
-                                    for (int i = 0; i < 32; i++) {
-                                        onPixel(threadPixelPosition++, buff[i]);
-                                    }
-                                }
-                            });
-
-                    intPosition += parallelism * pixelsPerThread;
-                    pixelPosition += parallelism * pixelsPerThread;
-                } else {
-                    int[] buff = new int[32];
-                    while (intPosition < totalIntegers) {
-                        intPosition = converter.intBlockConvert32Pixels(data, intPosition, buff);
-                        for (int i = 0; i < 32; i++) {
-                            onPixel(pixelPosition++, buff[i]);
-                        }
-                    }
+        private void decode(int[] data, int offset, int pixelCount) {
+            final int parallelism = computeParallelism(pixelCount, false);
+            final long startNanos = System.nanoTime();
+
+            DecodeTasks.forEachRange(pixelCount, parallelism, chunkSize, executor, (start, end) -> {
+                decodeRun(data, offset + start, start, end - start, new int[blockSize]);
+            });
+
+            updateConsumerCost(startNanos, pixelCount, parallelism, false);
+        }
+
+        /**
+         * Decodes short-encoded pixel data. Only 16-bit packed formats, like
+         * {@link RGBColorToIntConversion#RGB565}, support short input.
+         *
+         * @param data Pixel data, with a short per pixel storing the RGB(A) values
+         * @param pixelCount Total number of pixels to decode
+         */
+        public void decode(short[] data, int pixelCount) {
+            final int parallelism = computeParallelism(pixelCount, false);
+            final long startNanos = System.nanoTime();
+
+            DecodeTasks.forEachRange(pixelCount, parallelism, chunkSize, executor, (start, end) -> {
+                decodeRun(data, start, start, end - start, new int[blockSize]);
+            });
+
+            updateConsumerCost(startNanos, pixelCount, parallelism, false);
+        }
+
+        /**
+         * Decodes byte-encoded pixel data stored in a byte buffer. The buffer can be a direct
+         * (off-heap) buffer, in which case small parts are copied at a time rather than the
+         * full buffer. The position of the buffer is not used or changed.
+         *
+         * @param data Pixel data buffer, with 3 or 4 bytes per pixel storing the RGB(A) values,
+         *             starting at index 0
+         * @param pixelCount Total number of pixels to decode
+         * @throws IndexOutOfBoundsException If the pixels do not fit within the limit of the buffer
+         */
+        public void decode(ByteBuffer data, int pixelCount) {
+            DecodeTasks.checkBufferRange(data, 0, (long) pixelCount * converter.singleBytesInputLength());
+            if (data.hasArray()) {
+                decode(data.array(), data.arrayOffset(), pixelCount);
+                return;
+            }
+
+            final int step = converter.singleBytesInputLength();
+            final int overRead = Math.max(0, converter.byteBlockInputMinimumLength() - converter.byteBlockInputLength());
+            final int parallelism = computeParallelism(pixelCount, true);
+            final long startNanos = System.nanoTime();
+
+            DecodeTasks.forEachRange(pixelCount, parallelism, chunkSize, executor, (start, end) -> {
+                ByteBuffer view = data.duplicate();
+                byte[] staging = new byte[DecodeTasks.BUFFER_STAGING_PIXELS * step + overRead];
+                int[] buff = new int[blockSize];
+                while (start < end) {
+                    int count = Math.min(end - start, DecodeTasks.BUFFER_STAGING_PIXELS);
+                    int length = Math.min(count * step + overRead, data.limit() - start * step);
+                    ((Buffer) view).position(start * step);
+                    view.get(staging, 0, length);
+                    decodeRun(staging, 0, length - converter.byteBlockInputMinimumLength(), start, count, buff);
+                    start += count;
                 }
+            });
+
+            updateConsumerCost(startNanos, pixelCount, parallelism, true);
+        }
+
+        /**
+         * Decodes int-encoded pixel data stored in an int buffer. The buffer can be a direct
+         * (off-heap) buffer, in which case small parts are copied at a time rather than the
+         * full buffer. The position of the buffer is not used or changed.
+         *
+         * @param data Pixel data buffer, with an int per pixel storing the RGB(A) values,
+         *             starting at index 0
+         * @param pixelCount Total number of pixels to decode
+         * @throws IndexOutOfBoundsException If the pixels do not fit within the limit of the buffer
+         */
+        public void decode(IntBuffer data, int pixelCount) {
+            DecodeTasks.checkBufferRange(data, 0, pixelCount);
+            if (data.hasArray()) {
+                decode(data.array(), data.arrayOffset(), pixelCount);
+                return;
             }
 
-            // Perform a simple for loop for the few remaining pixels
-            while (intPosition < pixelCount) {
-                onPixel(pixelPosition++, converter.singleIntToInt(data[intPosition]));
-                intPosition++;
+            final int parallelism = computeParallelism(pixelCount, false);
+            final long startNanos = System.nanoTime();
+
+            DecodeTasks.forEachRange(pixelCount, parallelism, chunkSize, executor, (start, end) -> {
+                IntBuffer view = data.duplicate();
+                int[] staging = new int[DecodeTasks.BUFFER_STAGING_PIXELS];
+                int[] buff = new int[blockSize];
+                while (start < end) {
+                    int count = Math.min(end - start, DecodeTasks.BUFFER_STAGING_PIXELS);
+                    ((Buffer) view).position(start);
+                    view.get(staging, 0, count);
+                    decodeRun(staging, 0, start, count, buff);
+                    start += count;
+                }
+            });
+
+            updateConsumerCost(startNanos, pixelCount, parallelism, false);
+        }
+
+        /**
+         * Decodes a rectangular region of byte-encoded pixel data. The pixel data is
+         * stored row by row, with a fixed number of bytes between the start of every row.
+         * The pixels of the region are passed to the callbacks with the index
+         * <i>row * width + column</i> relative to the top-left pixel of the region.
+         * Work is split over multiple threads by rows of pixels.
+         *
+         * @param data Pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+         * @param offset Offset into the pixel data of the first byte of the top-left pixel of the image
+         * @param scanlineStride Number of bytes from the start of one row to the start of the next row
+         * @param x X-coordinate of the top-left pixel of the region to decode
+         * @param y Y-coordinate of the top-left pixel of the region to decode
+         * @param width Width of the region to decode
+         * @param height Height of the region to decode
+         */
+        public void decodeRegion(byte[] data, int offset, int scanlineStride, int x, int y, int width, int height) {
+            final int step = converter.singleBytesInputLength();
+            final int regionOffset = offset + y * scanlineStride + x * step;
+            final int blockLimit = data.length - converter.byteBlockInputMinimumLength();
+            final int parallelism = computeParallelism(width * height, true);
+            final long startNanos = System.nanoTime();
+
+            DecodeTasks.forEachRange(height, parallelism, DecodeTasks.rowsPerChunk(chunkSize, width), executor, (startRow, endRow) -> {
+                int[] buff = new int[blockSize];
+                for (int row = startRow; row < endRow; row++) {
+                    decodeRun(data, regionOffset + row * scanlineStride, blockLimit, row * width, width, buff);
+                }
+            });
+
+            updateConsumerCost(startNanos, width * height, parallelism, true);
+        }
+
+        /**
+         * Decodes a rectangular region of int-encoded pixel data. The pixel data is
+         * stored row by row, with a fixed number of ints between the start of every row.
+         * The pixels of the region are passed to the callbacks with the index
+         * <i>row * width + column</i> relative to the top-left pixel of the region.
+         * Work is split over multiple threads by rows of pixels.
+         *
+         * @param data Pixel data, with an int per pixel storing the RGB(A) values
+         * @param offset Offset into the pixel data of the top-left pixel of the image
+         * @param scanlineStride Number of ints from the start of one row to the start of the next row
+         * @param x X-coordinate of the top-left pixel of the region to decode
+         * @param y Y-coordinate of the top-left pixel of the region to decode
+         * @param width Width of the region to decode
+         * @param height Height of the region to decode
+         */
+        public void decodeRegion(int[] data, int offset, int scanlineStride, int x, int y, int width, int height) {
+            final int regionOffset = offset + y * scanlineStride + x;
+            final int parallelism = computeParallelism(width * height, false);
+            final long startNanos = System.nanoTime();
+
+            DecodeTasks.forEachRange(height, parallelism, DecodeTasks.rowsPerChunk(chunkSize, width), executor, (startRow, endRow) -> {
+                int[] buff = new int[blockSize];
+                for (int row = startRow; row < endRow; row++) {
+                    decodeRun(data, regionOffset + row * scanlineStride, row * width, width, buff);
+                }
+            });
+
+            updateConsumerCost(startNanos, width * height, parallelism, false);
+        }
+
+        private void decodeRun(byte[] data, int bytePosition, int blockLimit, int pixelPosition, int pixelCount, int[] buff) {
+            final int end = pixelPosition + pixelCount;
+
+            // Process blocks of data by performing the byte[] conversion in bulk
+            // This is a little more performant, especially with SIMD enabled
+            final int blockInputLength = converter.byteBlockInputLength();
+            while ((end - pixelPosition) >= 32 && bytePosition <= blockLimit) {
+                int count = Math.min(Math.min(buff.length, end - pixelPosition) & ~31,
+                                     32 * (1 + (blockLimit - bytePosition) / blockInputLength));
+                bytePosition = converter.byteBlockConvert(data, bytePosition, buff, 0, count);
+                onBlock(pixelPosition, buff, count);
+                pixelPosition += count;
             }
+
+            // Convert the few remaining pixels without reading past them, passed on as short blocks
+            while (pixelPosition < end) {
+                int count = Math.min(32, end - pixelPosition);
+                bytePosition = converter.byteBlockConvertPartial(data, bytePosition, buff, 0, count);
+                onBlock(pixelPosition, buff, count);
+                pixelPosition += count;
+            }
+        }
+
+        private void decodeRun(int[] data, int intPosition, int pixelPosition, int pixelCount, int[] buff) {
+            final int end = pixelPosition + pixelCount;
+
+            // Process blocks of data by performing the int[] conversion in bulk
+            // This is a little more performant, especially with SIMD enabled
+            while ((end - pixelPosition) >= 32) {
+                int count = Math.min(buff.length, end - pixelPosition) & ~31;
+                intPosition = converter.intBlockConvert(data, intPosition, buff, 0, count);
+                onBlock(pixelPosition, buff, count);
+                pixelPosition += count;
+            }
+
+            // Convert the few remaining pixels without reading past them, passed on as a short block
+            if (pixelPosition < end) {
+                int count = end - pixelPosition;
+                converter.intBlockConvertPartial(data, intPosition, buff, 0, count);
+                onBlock(pixelPosition, buff, count);
+            }
+        }
+
+        private void decodeRun(short[] data, int shortPosition, int pixelPosition, int pixelCount, int[] buff) {
+            final int end = pixelPosition + pixelCount;
+
+            while ((end - pixelPosition) >= 32) {
+                shortPosition = converter.shortBlockConvert32Pixels(data, shortPosition, buff, 0);
+                onBlock(pixelPosition, buff, 32);
+                pixelPosition += 32;
+            }
+
+            if (pixelPosition < end) {
+                int count = end - pixelPosition;
+                for (int i = 0; i < count; i++) {
+                    buff[i] = converter.singleShortToInt(data[shortPosition + i]);
+                }
+                onBlock(pixelPosition, buff, count);
+            }
+        }
+    }
+
+    /**
+     * Decodes int[], short[] or byte[] data, calling the callback with every block of pixels
+     * encountered. Callback is called on multiple threads by default.
+     */
+    abstract class BlockDecoder extends Decoder {
+
+        public BlockDecoder(RGBColorToIntConversion converter) {
+            super(converter);
+        }
+
+        @Override
+        public abstract void onBlock(int startIndex, int[] rgba, int count);
+
+        @Override
+        public void onPixel(int index, int rgba) {
+            onBlock(index, new int[] { rgba }, 1);
         }
     }
 }
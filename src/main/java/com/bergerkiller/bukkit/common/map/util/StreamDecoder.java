@@ -0,0 +1,222 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes byte-encoded pixel data that arrives in chunks of arbitrary size, such as
+ * the output of a subprocess read from a pipe. Chunks are pushed into this decoder with
+ * {@link #write(byte[], int, int)}, and the decoded pixels are passed to a
+ * {@link RGBColorToIntConversion.RGBBlockConsumer consumer} with a running pixel index.<br>
+ * <br>
+ * A chunk does not have to end at a pixel boundary. The bytes of an incomplete pixel at
+ * the end of a chunk are kept until the next chunk completes it. Pixels are passed on
+ * in blocks of 32 pixels, which are converted in bulk as soon as enough bytes have arrived.
+ * Up to 31 decoded pixels are kept until the block is complete, or until {@link #flush()}
+ * is called. No more than one chunk of the input is ever stored in memory.<br>
+ * <br>
+ * Decoding happens on the thread pushing the chunks. This decoder is not thread-safe.
+ */
+public final class StreamDecoder {
+    private static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+    private final RGBColorToIntConversion converter;
+    private final RGBColorToIntConversion.RGBBlockConsumer consumer;
+    private final int step;
+    private final byte[] partial;
+    private final int[] buff;
+    private int partialLength;
+    private int buffCount;
+    private int pixelIndex;
+
+    public StreamDecoder(RGBColorToIntConversion converter, RGBColorToIntConversion.RGBBlockConsumer consumer) {
+        this.converter = converter;
+        this.consumer = consumer;
+        this.step = converter.singleBytesInputLength();
+        this.partial = new byte[step];
+        this.buff = new int[32];
+        this.partialLength = 0;
+        this.buffCount = 0;
+        this.pixelIndex = 0;
+    }
+
+    /**
+     * Gets the index of the next pixel that will be passed to the consumer
+     *
+     * @return Next pixel index
+     */
+    public int getPixelIndex() {
+        return pixelIndex;
+    }
+
+    /**
+     * Gets the number of decoded pixels that have not been passed to the consumer yet,
+     * because the block they are part of is incomplete
+     *
+     * @return Number of buffered pixels
+     */
+    public int getBufferedPixelCount() {
+        return buffCount;
+    }
+
+    /**
+     * Gets the number of bytes of an incomplete pixel at the end of the data written so far
+     *
+     * @return Number of bytes of an incomplete pixel
+     */
+    public int getPartialPixelBytes() {
+        return partialLength;
+    }
+
+    /**
+     * Decodes a chunk of byte-encoded pixel data
+     *
+     * @param data Chunk data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param offset Offset into the chunk data of the first byte
+     * @param length Number of bytes in the chunk
+     */
+    public void write(byte[] data, int offset, int length) {
+        int end = offset + length;
+
+        // Complete the pixel of which the first bytes were in the previous chunk
+        if (partialLength > 0) {
+            int count = Math.min(step - partialLength, length);
+            System.arraycopy(data, offset, partial, partialLength, count);
+            partialLength += count;
+            offset += count;
+            if (partialLength < step) {
+                return;
+            }
+            partialLength = 0;
+            buff[buffCount++] = converter.singleBytesToInt(partial, 0);
+        }
+
+        // Complete the block of pixels that was kept from the previous chunk
+        if (buffCount > 0 && buffCount < 32) {
+            int count = Math.min((end - offset) / step, 32 - buffCount);
+            offset = converter.byteBlockConvertPartial(data, offset, buff, buffCount, count);
+            buffCount += count;
+        }
+        if (buffCount == 32) {
+            emitBlock(32);
+        }
+
+        // Process 32 pixel blocks of data by performing the byte[] conversion in bulk
+        if (buffCount == 0) {
+            final int blockLength = 32 * step;
+            final int blockLimit = end - converter.byteBlockInputMinimumLength();
+            while ((end - offset) >= blockLength && offset <= blockLimit) {
+                offset = converter.byteBlockConvert32Pixels(data, offset, buff);
+                emitBlock(32);
+            }
+        }
+
+        // Keep the few remaining whole pixels, and the bytes of an incomplete pixel at the end
+        while ((end - offset) >= step) {
+            int count = Math.min((end - offset) / step, 32 - buffCount);
+            offset = converter.byteBlockConvertPartial(data, offset, buff, buffCount, count);
+            buffCount += count;
+            if (buffCount == 32) {
+                emitBlock(32);
+            }
+        }
+        partialLength = end - offset;
+        System.arraycopy(data, offset, partial, 0, partialLength);
+    }
+
+    /**
+     * Decodes a chunk of byte-encoded pixel data stored in a byte buffer. All remaining
+     * bytes of the buffer are decoded, and the position of the buffer is moved to the limit.
+     *
+     * @param data Chunk data buffer, with 3 or 4 bytes per pixel storing the RGB(A) values
+     */
+    public void write(ByteBuffer data) {
+        if (data.hasArray()) {
+            write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            ((Buffer) data).position(data.limit());
+            return;
+        }
+
+        byte[] staging = new byte[Math.min(data.remaining(), DecodeTasks.BUFFER_STAGING_PIXELS * step)];
+        while (data.hasRemaining()) {
+            int length = Math.min(data.remaining(), staging.length);
+            data.get(staging, 0, length);
+            write(staging, 0, length);
+        }
+    }
+
+    /**
+     * Reads all data from an input stream until the end of the stream is reached,
+     * decoding it chunk by chunk as it arrives. The stream is not closed.
+     *
+     * @param in Input stream to read from
+     * @return Number of bytes read
+     * @throws IOException If reading from the stream failed
+     */
+    public long transferFrom(InputStream in) throws IOException {
+        byte[] chunk = new byte[DEFAULT_READ_BUFFER_SIZE];
+        long total = 0;
+        int length;
+        while ((length = in.read(chunk)) != -1) {
+            write(chunk, 0, length);
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Reads all data from a channel until the end of the channel is reached,
+     * decoding it chunk by chunk as it arrives. The channel is not closed.
+     *
+     * @param channel Channel to read from
+     * @return Number of bytes read
+     * @throws IOException If reading from the channel failed
+     */
+    public long transferFrom(ReadableByteChannel channel) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(DEFAULT_READ_BUFFER_SIZE);
+        long total = 0;
+        int length;
+        while ((length = channel.read(chunk)) != -1) {
+            ((Buffer) chunk).flip();
+            write(chunk);
+            ((Buffer) chunk).clear();
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Passes the decoded pixels of an incomplete block to the consumer as a short block.
+     * The bytes of an incomplete pixel are kept.
+     */
+    public void flush() {
+        if (buffCount > 0) {
+            emitBlock(buffCount);
+        }
+    }
+
+    /**
+     * Flushes the remaining decoded pixels and resets the running pixel index to 0,
+     * so that a new image can be decoded. Is typically called at the end of every frame.
+     * The bytes of an incomplete pixel are discarded.
+     *
+     * @throws IllegalStateException If the data written so far ends with an incomplete pixel
+     */
+    public void finish() {
+        flush();
+        pixelIndex = 0;
+        if (partialLength > 0) {
+            int length = partialLength;
+            partialLength = 0;
+            throw new IllegalStateException("Data ends with an incomplete pixel of " + length + " bytes");
+        }
+    }
+
+    private void emitBlock(int count) {
+        consumer.onBlock(pixelIndex, buff, count);
+        pixelIndex += count;
+        buffCount = 0;
+    }
+}
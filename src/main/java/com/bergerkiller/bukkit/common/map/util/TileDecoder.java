@@ -0,0 +1,254 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decodes a large image directly into square tiles, such as the 128x128 pixel tiles
+ * of a wall of item frame maps. Every tile is decoded into its own array in a single
+ * pass, without first decoding the full image into one large buffer. Tiles are the
+ * unit of work that is split over multiple threads.<br>
+ * <br>
+ * Tiles are ordered row by row, so the tile at tile coordinates (tx, ty) is stored at
+ * index <i>ty * {@link #getTileCountX(int) tileCountX} + tx</i>. Tiles at the right and
+ * bottom edges of the image can be partially covered by the image. With
+ * {@link EdgeMode#PAD} these tiles are full-size and the uncovered pixels are
+ * transparent, with {@link EdgeMode#CLIP} these tiles are made smaller instead.
+ */
+public final class TileDecoder {
+    private final RGBColorToIntConversion converter;
+    private final int tileSize;
+    private EdgeMode edgeMode;
+    private int parallelism;
+    private Executor executor;
+
+    public TileDecoder(RGBColorToIntConversion converter, int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        }
+        this.converter = converter;
+        this.tileSize = tileSize;
+        this.edgeMode = EdgeMode.PAD;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.executor = null;
+    }
+
+    /**
+     * Gets the width and height of a single tile
+     *
+     * @return Tile size
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Gets the number of tiles along the x-axis of an image
+     *
+     * @param width Width of the image
+     * @return Number of tile columns
+     */
+    public int getTileCountX(int width) {
+        return (width + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * Gets the number of tiles along the y-axis of an image
+     *
+     * @param height Height of the image
+     * @return Number of tile rows
+     */
+    public int getTileCountY(int height) {
+        return (height + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * Sets how tiles at the edges of the image that are only partially covered are output.
+     * Is by default {@link EdgeMode#PAD}.
+     *
+     * @param edgeMode Edge mode
+     * @return this tile decoder
+     */
+    public TileDecoder edgeMode(EdgeMode edgeMode) {
+        this.edgeMode = edgeMode;
+        return this;
+    }
+
+    /**
+     * Sets over how many parallel threads the tiles are decoded at most. If set to 1 or less,
+     * this decoder runs single-threaded.
+     * Is by default set to the number of cpu threads.
+     *
+     * @param parallelism Maximum number of parallel tasks to decode on
+     * @return this tile decoder
+     */
+    public TileDecoder parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the executor on which the tiles are decoded in parallel.
+     * Is by default set to null, which uses the {@link ForkJoinPool#commonPool() common pool}.
+     *
+     * @param executor Executor to perform the parallel decoding work on, null for the common pool
+     * @return this tile decoder
+     */
+    public TileDecoder executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Decodes byte-encoded pixel data of an image into tiles of RGBA pixel values
+     *
+     * @param data Pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param offset Offset into the pixel data of the first byte of the top-left pixel of the image
+     * @param scanlineStride Number of bytes from the start of one row to the start of the next row
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Decoded tiles, row by row
+     */
+    public int[][] decode(byte[] data, int offset, int scanlineStride, int width, int height) {
+        final int step = converter.singleBytesInputLength();
+        final int[][] tiles = new int[getTileCountX(width) * getTileCountY(height)][];
+        forEachTile(width, height, true, (tileIndex, x, y, tileWidth, tileHeight, outputStride) -> {
+            int[] tile = new int[outputStride * ((edgeMode == EdgeMode.PAD) ? tileSize : tileHeight)];
+            int rowOffset = offset + y * scanlineStride + x * step;
+            for (int row = 0; row < tileHeight; row++) {
+                DecodeTasks.convertBytes(converter, data, rowOffset, data.length, tile, row * outputStride, tileWidth);
+                rowOffset += scanlineStride;
+            }
+            tiles[tileIndex] = tile;
+        });
+        return tiles;
+    }
+
+    /**
+     * Decodes int-encoded pixel data of an image into tiles of RGBA pixel values
+     *
+     * @param data Pixel data, with an int per pixel storing the RGB(A) values
+     * @param offset Offset into the pixel data of the top-left pixel of the image
+     * @param scanlineStride Number of ints from the start of one row to the start of the next row
+     * @param width Width of the image
+     * @param height Height of the image
+     * @return Decoded tiles, row by row
+     */
+    public int[][] decode(int[] data, int offset, int scanlineStride, int width, int height) {
+        final int[][] tiles = new int[getTileCountX(width) * getTileCountY(height)][];
+        forEachTile(width, height, false, (tileIndex, x, y, tileWidth, tileHeight, outputStride) -> {
+            int[] tile = new int[outputStride * ((edgeMode == EdgeMode.PAD) ? tileSize : tileHeight)];
+            int rowOffset = offset + y * scanlineStride + x;
+            for (int row = 0; row < tileHeight; row++) {
+                DecodeTasks.convertInts(converter, data, rowOffset, tile, row * outputStride, tileWidth);
+                rowOffset += scanlineStride;
+            }
+            tiles[tileIndex] = tile;
+        });
+        return tiles;
+    }
+
+    /**
+     * Decodes byte-encoded pixel data of an image into tiles of map colors, looking up
+     * every pixel in a mapping table. Padded pixels of edge tiles are set to the transparent
+     * color stored in the last entry of the mapping table.
+     *
+     * @param data Pixel data, with 3 or 4 bytes per pixel storing the RGB(A) values
+     * @param offset Offset into the pixel data of the first byte of the top-left pixel of the image
+     * @param scanlineStride Number of bytes from the start of one row to the start of the next row
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param mapping Mapping table of 16777217 bytes, mapping RGB to a map color
+     * @return Decoded tiles of map colors, row by row
+     * @see RGBColorToIntConversion#decodeToPalette(byte[], int, byte[], byte[], int, int)
+     */
+    public byte[][] decodeToPalette(byte[] data, int offset, int scanlineStride, int width, int height, byte[] mapping) {
+        final int step = converter.singleBytesInputLength();
+        final byte[][] tiles = new byte[getTileCountX(width) * getTileCountY(height)][];
+        forEachTile(width, height, true, (tileIndex, x, y, tileWidth, tileHeight, outputStride) -> {
+            byte[] tile = createPaletteTile(mapping, tileWidth, tileHeight, outputStride);
+            int rowOffset = offset + y * scanlineStride + x * step;
+            for (int row = 0; row < tileHeight; row++) {
+                DecodeTasks.convertBytesToPalette(converter, data, rowOffset, data.length,
+                        mapping, tile, row * outputStride, tileWidth);
+                rowOffset += scanlineStride;
+            }
+            tiles[tileIndex] = tile;
+        });
+        return tiles;
+    }
+
+    /**
+     * Decodes int-encoded pixel data of an image into tiles of map colors, looking up
+     * every pixel in a mapping table. Padded pixels of edge tiles are set to the transparent
+     * color stored in the last entry of the mapping table.
+     *
+     * @param data Pixel data, with an int per pixel storing the RGB(A) values
+     * @param offset Offset into the pixel data of the top-left pixel of the image
+     * @param scanlineStride Number of ints from the start of one row to the start of the next row
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param mapping Mapping table of 16777217 bytes, mapping RGB to a map color
+     * @return Decoded tiles of map colors, row by row
+     * @see RGBColorToIntConversion#decodeToPalette(int[], int, byte[], byte[], int, int)
+     */
+    public byte[][] decodeToPalette(int[] data, int offset, int scanlineStride, int width, int height, byte[] mapping) {
+        final byte[][] tiles = new byte[getTileCountX(width) * getTileCountY(height)][];
+        forEachTile(width, height, false, (tileIndex, x, y, tileWidth, tileHeight, outputStride) -> {
+            byte[] tile = createPaletteTile(mapping, tileWidth, tileHeight, outputStride);
+            int rowOffset = offset + y * scanlineStride + x;
+            for (int row = 0; row < tileHeight; row++) {
+                DecodeTasks.convertIntsToPalette(converter, data, rowOffset,
+                        mapping, tile, row * outputStride, tileWidth);
+                rowOffset += scanlineStride;
+            }
+            tiles[tileIndex] = tile;
+        });
+        return tiles;
+    }
+
+    private byte[] createPaletteTile(byte[] mapping, int tileWidth, int tileHeight, int outputStride) {
+        if (edgeMode == EdgeMode.PAD) {
+            byte[] tile = new byte[tileSize * tileSize];
+            byte transparent = mapping[0x1000000];
+            if (transparent != 0 && (tileWidth != tileSize || tileHeight != tileSize)) {
+                Arrays.fill(tile, transparent);
+            }
+            return tile;
+        } else {
+            return new byte[outputStride * tileHeight];
+        }
+    }
+
+    private void forEachTile(int width, int height, boolean byteInput, TileTask task) {
+        final int tileCountX = getTileCountX(width);
+        final int tileCount = tileCountX * getTileCountY(height);
+        final int threads = DecodeCostModel.computeParallelism(converter, parallelism, width * height, byteInput, 0.0);
+        DecodeTasks.forEachRange(tileCount, threads, 1, executor, (startTile, endTile) -> {
+            for (int tileIndex = startTile; tileIndex < endTile; tileIndex++) {
+                int x = (tileIndex % tileCountX) * tileSize;
+                int y = (tileIndex / tileCountX) * tileSize;
+                int tileWidth = Math.min(tileSize, width - x);
+                int tileHeight = Math.min(tileSize, height - y);
+                int outputStride = (edgeMode == EdgeMode.PAD) ? tileSize : tileWidth;
+                task.run(tileIndex, x, y, tileWidth, tileHeight, outputStride);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface TileTask {
+        void run(int tileIndex, int x, int y, int tileWidth, int tileHeight, int outputStride);
+    }
+
+    /**
+     * How tiles at the edges of the image that are only partially covered are output
+     */
+    public enum EdgeMode {
+        /** Edge tiles are full-size, with the pixels outside the image set to transparent */
+        PAD,
+        /** Edge tiles are clipped to the part covered by the image */
+        CLIP
+    }
+}
@@ -0,0 +1,254 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decodes YUV video frames into RGBA pixel values, in the same layout as the
+ * {@link RGBColorToIntConversion} conversions produce. The alpha channel is kept 0.
+ * Rows of the frame are the unit of work that is split over multiple threads.<br>
+ * <br>
+ * Frames are stored as a single byte array. The luma (Y) plane rows are
+ * {@code scanlineStride} bytes apart. For the planar formats the chroma planes follow
+ * directly after the luma plane, with every chroma row covering two luma rows:
+ * <ul>
+ * <li>{@link Format#I420}: the U plane and then the V plane, with rows of
+ *     <i>(scanlineStride + 1) / 2</i> bytes</li>
+ * <li>{@link Format#NV12}: a single plane of interleaved U and V bytes, with rows of
+ *     <i>scanlineStride</i> bytes rounded up to an even number</li>
+ * </ul>
+ * The chroma values are shared by every two pixels of a row. With an odd width the last
+ * pixel of every row has its own chroma values.
+ */
+public final class YUVDecoder {
+    private final Format format;
+    private Matrix matrix;
+    private boolean fullRange;
+    private boolean useSIMD;
+    private int parallelism;
+    private Executor executor;
+
+    public YUVDecoder(Format format) {
+        this.format = format;
+        this.matrix = Matrix.BT601;
+        this.fullRange = false;
+        this.useSIMD = true;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.executor = null;
+    }
+
+    /**
+     * Gets the format of the YUV frames decoded
+     *
+     * @return YUV format
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the color matrix used to convert YUV to RGB.
+     * Is by default {@link Matrix#BT601}.
+     *
+     * @param matrix Color matrix
+     * @return this YUV decoder
+     */
+    public YUVDecoder matrix(Matrix matrix) {
+        this.matrix = matrix;
+        return this;
+    }
+
+    /**
+     * Sets whether the YUV values use the full 0 - 255 range, as is the case for JPEG
+     * frames. Is by default false, which uses the limited (video) range, where luma
+     * goes from 16 to 235 and chroma from 16 to 240.
+     *
+     * @param fullRange Whether the YUV values use the full range
+     * @return this YUV decoder
+     */
+    public YUVDecoder fullRange(boolean fullRange) {
+        this.fullRange = fullRange;
+        return this;
+    }
+
+    /**
+     * Sets whether the vectorized conversion is used when SIMD is available.
+     * Is by default true.
+     *
+     * @param useSIMD Whether to use SIMD when available
+     * @return this YUV decoder
+     */
+    public YUVDecoder useSIMD(boolean useSIMD) {
+        this.useSIMD = useSIMD;
+        return this;
+    }
+
+    /**
+     * Gets whether the frames are converted using SIMD
+     *
+     * @return True if SIMD is used
+     */
+    public boolean isUsingSIMD() {
+        return conversion().isUsingSIMD();
+    }
+
+    /**
+     * Sets over how many parallel threads the rows are decoded at most. If set to 1 or less,
+     * this decoder runs single-threaded.
+     * Is by default set to the number of cpu threads.
+     *
+     * @param parallelism Maximum number of parallel tasks to decode on
+     * @return this YUV decoder
+     */
+    public YUVDecoder parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the executor on which the rows are decoded in parallel.
+     * Is by default set to null, which uses the {@link ForkJoinPool#commonPool() common pool}.
+     *
+     * @param executor Executor to perform the parallel decoding work on, null for the common pool
+     * @return this YUV decoder
+     */
+    public YUVDecoder executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Gets the number of bytes a frame without row padding uses
+     *
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @return Frame length in bytes
+     */
+    public int getFrameLength(int width, int height) {
+        return format.getFrameLength(format.getScanlineLength(width), height);
+    }
+
+    /**
+     * Decodes a frame without row padding into RGBA pixel values
+     *
+     * @param data Frame data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @return Decoded pixels, row by row
+     */
+    public int[] decode(byte[] data, int width, int height) {
+        int[] output = new int[width * height];
+        decodeInto(data, 0, format.getScanlineLength(width), width, height, output, 0);
+        return output;
+    }
+
+    /**
+     * Decodes a frame into RGBA pixel values, writing them into an output array
+     *
+     * @param data Frame data
+     * @param offset Offset into the frame data of the first byte of the luma plane
+     * @param scanlineStride Number of bytes from the start of one luma row to the start of the next row
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param output Output array to write the decoded pixels to, row by row
+     * @param outputOffset Offset into the output array of the top-left pixel
+     */
+    public void decodeInto(byte[] data, int offset, int scanlineStride, int width, int height, int[] output, int outputOffset) {
+        if (scanlineStride < format.getScanlineLength(width)) {
+            throw new IllegalArgumentException("Scanline stride " + scanlineStride + " is too small for a width of " + width);
+        }
+        if (offset < 0 || offset + format.getFrameLength(scanlineStride, height) > data.length) {
+            throw new IllegalArgumentException("Frame data is too small for a " + width + "x" + height + " " + format + " frame");
+        }
+
+        final YUVRowConversion conversion = conversion();
+        final int chromaStride = format.getChromaStride(scanlineStride);
+        final int chromaPlaneU = offset + scanlineStride * height;
+        final int chromaPlaneV = chromaPlaneU + chromaStride * ((height + 1) / 2);
+        final int threads = DecodeCostModel.isSingleThreaded(parallelism, width * height)
+                ? 1 : conversion.costModel().computeParallelism(parallelism, width * height, true, 0.0);
+        DecodeTasks.forEachRange(height, threads, DecodeTasks.rowsPerChunk(DecodeTasks.DEFAULT_CHUNK_SIZE, width), executor, (startRow, endRow) -> {
+            for (int row = startRow; row < endRow; row++) {
+                int lumaOffset = offset + row * scanlineStride;
+                int chromaOffset = (row >> 1) * chromaStride;
+                switch (format) {
+                case I420:
+                    conversion.convertRow(data, lumaOffset, chromaPlaneU + chromaOffset, chromaPlaneV + chromaOffset,
+                            output, outputOffset + row * width, width);
+                    break;
+                case NV12:
+                    conversion.convertRow(data, lumaOffset, chromaPlaneU + chromaOffset, chromaPlaneU + chromaOffset + 1,
+                            output, outputOffset + row * width, width);
+                    break;
+                default:
+                    conversion.convertRow(data, lumaOffset, lumaOffset + 1, lumaOffset + 3,
+                            output, outputOffset + row * width, width);
+                    break;
+                }
+            }
+        });
+    }
+
+    private YUVRowConversion conversion() {
+        YUVRowConversion conversion = YUVRowConversion.of(format, matrix, fullRange);
+        return useSIMD ? conversion : conversion.noSIMD();
+    }
+
+    /**
+     * Layout of the Y, U and V values of a frame
+     */
+    public enum Format {
+        /** Planar 4:2:0, a Y plane followed by half-size U and V planes */
+        I420(1, 1),
+        /** Semi-planar 4:2:0, a Y plane followed by a half-size plane of interleaved U and V */
+        NV12(1, 2),
+        /** Packed 4:2:2, every two pixels are stored as 4 bytes Y0 U Y1 V */
+        YUYV(2, 4);
+
+        final int lumaStep;
+        final int chromaStep;
+
+        Format(int lumaStep, int chromaStep) {
+            this.lumaStep = lumaStep;
+            this.chromaStep = chromaStep;
+        }
+
+        int getScanlineLength(int width) {
+            return (this == YUYV) ? (((width + 1) / 2) * 4) : width;
+        }
+
+        int getChromaStride(int scanlineStride) {
+            switch (this) {
+            case I420:
+                return (scanlineStride + 1) / 2;
+            case NV12:
+                return ((scanlineStride + 1) / 2) * 2;
+            default:
+                return 0;
+            }
+        }
+
+        int getFrameLength(int scanlineStride, int height) {
+            int chromaPlanes = (this == I420) ? 2 : 1;
+            return scanlineStride * height + chromaPlanes * getChromaStride(scanlineStride) * ((height + 1) / 2);
+        }
+    }
+
+    /**
+     * Color matrix that defines how YUV is converted to RGB
+     */
+    public enum Matrix {
+        /** ITU-R BT.601, used by standard-definition video and JPEG */
+        BT601(0.299, 0.114),
+        /** ITU-R BT.709, used by high-definition video */
+        BT709(0.2126, 0.0722);
+
+        final double redWeight;
+        final double blueWeight;
+
+        Matrix(double redWeight, double blueWeight) {
+            this.redWeight = redWeight;
+            this.blueWeight = blueWeight;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts single rows of YUV pixels of a {@link YUVDecoder.Format} to RGBA using
+ * fixed-point math, with 16 fractional bits. Every two pixels of a row share the
+ * same U and V values.
+ */
+class YUVRowConversion {
+    private static final Map<Integer, YUVRowConversion> conversions = new ConcurrentHashMap<>();
+    static final int FRACTION_BITS = 16;
+    static final int ROUNDING = 1 << (FRACTION_BITS - 1);
+    final YUVDecoder.Format format;
+    final YUVDecoder.Matrix matrix;
+    final boolean fullRange;
+    final int lumaBias;
+    final int lumaScale;
+    final int redV;
+    final int greenU;
+    final int greenV;
+    final int blueU;
+    private DecodeCostModel costModel;
+
+    private YUVRowConversion(YUVDecoder.Format format, YUVDecoder.Matrix matrix, boolean fullRange) {
+        double kr = matrix.redWeight;
+        double kb = matrix.blueWeight;
+        double kg = 1.0 - kr - kb;
+        double lumaRange = fullRange ? 1.0 : (255.0 / 219.0);
+        double chromaRange = fullRange ? 1.0 : (255.0 / 224.0);
+
+        this.format = format;
+        this.matrix = matrix;
+        this.fullRange = fullRange;
+        this.lumaBias = fullRange ? 0 : 16;
+        this.lumaScale = fixed(lumaRange);
+        this.redV = fixed(2.0 * (1.0 - kr) * chromaRange);
+        this.greenU = fixed(2.0 * kb * (1.0 - kb) / kg * chromaRange);
+        this.greenV = fixed(2.0 * kr * (1.0 - kr) / kg * chromaRange);
+        this.blueU = fixed(2.0 * (1.0 - kb) * chromaRange);
+    }
+
+    protected YUVRowConversion(YUVRowConversion base) {
+        this.format = base.format;
+        this.matrix = base.matrix;
+        this.fullRange = base.fullRange;
+        this.lumaBias = base.lumaBias;
+        this.lumaScale = base.lumaScale;
+        this.redV = base.redV;
+        this.greenU = base.greenU;
+        this.greenV = base.greenV;
+        this.blueU = base.blueU;
+    }
+
+    private static int fixed(double value) {
+        return (int) Math.round(value * (1 << FRACTION_BITS));
+    }
+
+    /**
+     * Gets the row conversion of a YUV format, using SIMD if available
+     *
+     * @param format YUV format
+     * @param matrix Color matrix
+     * @param fullRange Whether the YUV values use the full range
+     * @return Row conversion
+     */
+    static YUVRowConversion of(YUVDecoder.Format format, YUVDecoder.Matrix matrix, boolean fullRange) {
+        int key = (format.ordinal() * YUVDecoder.Matrix.values().length + matrix.ordinal()) * 2 + (fullRange ? 1 : 0);
+        return conversions.computeIfAbsent(key, k -> {
+            YUVRowConversion base = new YUVRowConversion(format, matrix, fullRange);
+            return RGBColorToIntConversion.SIMDLoader.tryCreateSIMD(YUVRowConversion.class, () -> base, "yuv", base);
+        });
+    }
+
+    /**
+     * Gets whether this conversion makes use of SIMD
+     *
+     * @return True if SIMD is used
+     */
+    public boolean isUsingSIMD() {
+        return false;
+    }
+
+    /**
+     * Gets the conversion that does not use SIMD
+     *
+     * @return Conversion without SIMD
+     */
+    public YUVRowConversion noSIMD() {
+        return this;
+    }
+
+    /**
+     * Gets the cost model of this conversion, used to decide over how many threads
+     * the rows of a frame are split
+     *
+     * @return Cost model
+     */
+    public DecodeCostModel costModel() {
+        DecodeCostModel model = this.costModel;
+        if (model == null) {
+            this.costModel = model = createCostModel();
+        }
+        return model;
+    }
+
+    private DecodeCostModel createCostModel() {
+        String name = "YUVRowConversion{" + format + "}" + (isUsingSIMD() ? "[SIMD]" : "");
+        return DecodeCostModel.of(Arrays.asList(getClass(), format), name, pixelCount -> {
+            // Converts a single long row, with the chroma values stored after the luma values
+            byte[] data = new byte[pixelCount * 3];
+            int[] output = new int[pixelCount];
+            if (format == YUVDecoder.Format.YUYV) {
+                convertRow(data, 0, 1, 3, output, 0, pixelCount);
+            } else {
+                convertRow(data, 0, pixelCount, pixelCount * 2, output, 0, pixelCount);
+            }
+        });
+    }
+
+    /**
+     * Converts a single row of pixels
+     *
+     * @param data YUV frame data
+     * @param lumaOffset Offset into the data of the Y value of the first pixel
+     * @param chromaUOffset Offset into the data of the U value of the first pixel
+     * @param chromaVOffset Offset into the data of the V value of the first pixel
+     * @param output Output array to write the RGBA pixel values to
+     * @param outputOffset Offset into the output array of the first pixel
+     * @param width Number of pixels in the row
+     */
+    public void convertRow(byte[] data, int lumaOffset, int chromaUOffset, int chromaVOffset, int[] output, int outputOffset, int width) {
+        final int lumaStep = format.lumaStep;
+        final int chromaStep = format.chromaStep;
+        for (int i = 0; i < width; i++) {
+            int chroma = (i >> 1) * chromaStep;
+            output[outputOffset + i] = convert(data[lumaOffset + i * lumaStep] & 0xFF,
+                                               data[chromaUOffset + chroma] & 0xFF,
+                                               data[chromaVOffset + chroma] & 0xFF);
+        }
+    }
+
+    /**
+     * Converts a single YUV value to RGBA
+     *
+     * @param y Y value, 0 - 255
+     * @param u U value, 0 - 255
+     * @param v V value, 0 - 255
+     * @return RGBA value, with the alpha channel kept 0
+     */
+    public int convert(int y, int u, int v) {
+        int luma = (y - lumaBias) * lumaScale + ROUNDING;
+        int cb = u - 128;
+        int cr = v - 128;
+        int r = clamp((luma + redV * cr) >> FRACTION_BITS);
+        int g = clamp((luma - greenU * cb - greenV * cr) >> FRACTION_BITS);
+        int b = clamp((luma + blueU * cb) >> FRACTION_BITS);
+        return r | (g << 8) | (b << 16);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    @Override
+    public String toString() {
+        return "YUVRowConversion{" + format + ", " + matrix + (fullRange ? ", full range" : "") + "}";
+    }
+}
@@ -0,0 +1,218 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Uses the experimental JDK incubator vector API to fill the alpha channel of the
+ * pixels converted by an opaque SIMD conversion that can not fill it in itself.
+ * The alpha value is set for every block of 32 pixels right after it is converted,
+ * while it is still in cache.
+ */
+final class SIMDAlphaFillConversion implements RGBColorToIntConversion {
+    // Vector operations are only fast with a constant species, so these must be static final
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private final BaseAlphaFillToInt base;
+    private final RGBColorToIntConversion opaque;
+    private final int alphaBits;
+
+    SIMDAlphaFillConversion(BaseAlphaFillToInt base, RGBColorToIntConversion opaque) {
+        this.base = base;
+        this.opaque = opaque;
+        this.alphaBits = base.getAlphaFill() << 24;
+    }
+
+    @Override
+    public boolean isUsingSIMD() {
+        return true;
+    }
+
+    @Override
+    public RGBColorToIntConversion noSIMD() {
+        return base;
+    }
+
+    @Override
+    public RGBColorToIntConversion withAlphaFill(int alpha) {
+        return BaseAlphaFillToInt.create(opaque, alpha);
+    }
+
+    @Override
+    public int getAlphaFill() {
+        return base.getAlphaFill();
+    }
+
+    @Override
+    public int getVectorBitSize() {
+        return opaque.getVectorBitSize();
+    }
+
+    @Override
+    public RGBColorToIntConversion withVectorBitSize(int bitSize) {
+        return opaque.withVectorBitSize(bitSize).withAlphaFill(getAlphaFill());
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return false;
+    }
+
+    @Override
+    public DecodeCostModel costModel() {
+        // Filling in alpha costs next to nothing, and sharing the model avoids calibrating
+        // it again for every alpha value
+        return opaque.costModel();
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return opaque.singleBytesInputLength();
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return base.singleBytesToInt(input, inputOffset);
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        return base.singleIntToInt(input);
+    }
+
+    @Override
+    public int singleShortToInt(short input) {
+        return base.singleShortToInt(input);
+    }
+
+    @Override
+    public int byteBlockInputLength() {
+        return opaque.byteBlockInputLength();
+    }
+
+    @Override
+    public int byteBlockInputMinimumLength() {
+        return opaque.byteBlockInputMinimumLength();
+    }
+
+    @Override
+    public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+        inputOffset = opaque.byteBlockConvert32Pixels(input, inputOffset, output, outputOffset);
+        fillAlpha(output, outputOffset);
+        return inputOffset;
+    }
+
+    @Override
+    public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+        inputOffset = opaque.intBlockConvert32Pixels(input, inputOffset, output, outputOffset);
+        fillAlpha(output, outputOffset);
+        return inputOffset;
+    }
+
+    @Override
+    public int shortBlockConvert32Pixels(short[] input, int inputOffset, int[] output, int outputOffset) {
+        inputOffset = opaque.shortBlockConvert32Pixels(input, inputOffset, output, outputOffset);
+        fillAlpha(output, outputOffset);
+        return inputOffset;
+    }
+
+    @Override
+    public int preferredBlockSize() {
+        return opaque.preferredBlockSize();
+    }
+
+    @Override
+    public int byteBlockConvert(byte[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        inputOffset = opaque.byteBlockConvert(input, inputOffset, output, outputOffset, pixelCount);
+        for (int i = 0; i < pixelCount; i += 32) {
+            fillAlpha(output, outputOffset + i);
+        }
+        return inputOffset;
+    }
+
+    @Override
+    public int intBlockConvert(int[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        inputOffset = opaque.intBlockConvert(input, inputOffset, output, outputOffset, pixelCount);
+        for (int i = 0; i < pixelCount; i += 32) {
+            fillAlpha(output, outputOffset + i);
+        }
+        return inputOffset;
+    }
+
+    @Override
+    public int byteBlockConvertPartial(byte[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        inputOffset = opaque.byteBlockConvertPartial(input, inputOffset, output, outputOffset, pixelCount);
+        fillAlpha(output, outputOffset, pixelCount);
+        return inputOffset;
+    }
+
+    @Override
+    public int intBlockConvertPartial(int[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        inputOffset = opaque.intBlockConvertPartial(input, inputOffset, output, outputOffset, pixelCount);
+        fillAlpha(output, outputOffset, pixelCount);
+        return inputOffset;
+    }
+
+    private void fillAlpha(int[] pixels, int offset, int pixelCount) {
+        for (int i = 0; i < pixelCount; i++) {
+            pixels[offset + i] |= alphaBits;
+        }
+    }
+
+    private void fillAlpha(int[] pixels, int offset) {
+        for (int i = 0; i < 32; i += INT_SPECIES.length()) {
+            IntVector.fromArray(INT_SPECIES, pixels, offset + i)
+                    .or(alphaBits)
+                    .intoArray(pixels, offset + i);
+        }
+    }
+
+    @Override
+    public boolean byteBlockEquals32Pixels(byte[] a, int aOffset, byte[] b, int bOffset) {
+        return opaque.byteBlockEquals32Pixels(a, aOffset, b, bOffset);
+    }
+
+    @Override
+    public boolean intBlockEquals32Pixels(int[] a, int aOffset, int[] b, int bOffset) {
+        return opaque.intBlockEquals32Pixels(a, aOffset, b, bOffset);
+    }
+
+    @Override
+    public int byteBlockMismatch(byte[] a, int aOffset, byte[] b, int bOffset, int pixelCount) {
+        return opaque.byteBlockMismatch(a, aOffset, b, bOffset, pixelCount);
+    }
+
+    @Override
+    public int intBlockMismatch(int[] a, int aOffset, int[] b, int bOffset, int pixelCount) {
+        return opaque.intBlockMismatch(a, aOffset, b, bOffset, pixelCount);
+    }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        opaque.singleEncodeToBytes(rgba, output, outputOffset);
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        return opaque.singleEncodeToInt(rgba);
+    }
+
+    @Override
+    public int byteBlockOutputMinimumLength() {
+        return opaque.byteBlockOutputMinimumLength();
+    }
+
+    @Override
+    public int byteBlockEncode32Pixels(int[] input, int inputOffset, byte[] output, int outputOffset) {
+        return opaque.byteBlockEncode32Pixels(input, inputOffset, output, outputOffset);
+    }
+
+    @Override
+    public int intBlockEncode32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+        return opaque.intBlockEncode32Pixels(input, inputOffset, output, outputOffset);
+    }
+
+    @Override
+    public void paletteBlockConvert32Pixels(int[] buffer, int bufferOffset, byte[] mapping, byte[] output, int outputOffset) {
+        opaque.paletteBlockConvert32Pixels(buffer, bufferOffset, mapping, output, outputOffset);
+    }
+}
@@ -1,7 +1,12 @@
 package com.bergerkiller.bukkit.common.map.util;
 
+import java.util.Arrays;
+
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorShuffle;
 import jdk.incubator.vector.VectorSpecies;
 
@@ -10,55 +15,160 @@ import jdk.incubator.vector.VectorSpecies;
  * conversion of the input data to RGBA.
  */
 abstract class SIMDColorConversion implements RGBColorToIntConversion {
+    // Vector operations are only fast with a constant species, so these must be static final
+    // Comparing bytes uses at most 32-byte vectors so that 3 and 4 byte block input fits exactly
+    // Species of the bgr/rgb/abgr/argb and layout conversions, can be forced with a system property
+    private static final VectorSpecies<Byte> DEFAULT_SPECIES = defaultSpecies();
+    private static final VectorSpecies<Byte> BYTE_EQUALS_SPECIES = (ByteVector.SPECIES_PREFERRED.length() > 32)
+            ? ByteVector.SPECIES_256 : ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_EQUALS_SPECIES = IntVector.SPECIES_PREFERRED;
+    // Bit of every lane, selected by a compare mask and combined to turn the mask into an int
+    private static final VectorSpecies<Integer> INT_MASK_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final IntVector LANE_BITS = IntVector.broadcast(INT_MASK_SPECIES, 1)
+            .lanewise(VectorOperators.LSHL, IntVector.zero(INT_MASK_SPECIES).addIndex(1));
     private final boolean hasTransparency;
+    private final int[] byteLayout;
+    private final int[] intLayout;
+    private final int intMask;
+    private final int byteEncodeMask;
     protected final RGBColorToIntConversion base;
+    protected final int byteStride;
+    protected final int alphaBits;
     protected final VectorSpecies<Byte> byteSpecies;
     protected final VectorSpecies<Integer> intSpecies;
     protected final VectorShuffle<Byte> shuffle;
+    protected final VectorShuffle<Byte> lastShuffle;
+    protected final VectorMask<Byte> blockLoadMask;
+    private final int lastLoadShift;
+    private final int convertMask;
+    private final int preferredBlockSize;
     protected final VectorShuffle<Byte> intShuffle;
+    protected final VectorShuffle<Byte> encodeShuffle;
+    protected final VectorShuffle<Byte> intEncodeShuffle;
 
     public static RGBColorToIntConversion bgr() {
-        return opaque(new BaseBGRToInt(), new int[] {2, 1, 0}, new int[] {0, 1, 2, 3});
+        return opaque(new BaseBGRToInt(), new int[] {2, 1, 0}, new int[] {0, 1, 2, 3}, DEFAULT_SPECIES);
     }
 
     public static RGBColorToIntConversion rgb() {
-        return opaque(new BaseRGBToInt(), new int[] {0, 1, 2}, new int[] {2, 1, 0, 3});
+        return opaque(new BaseRGBToInt(), new int[] {0, 1, 2}, new int[] {2, 1, 0, 3}, DEFAULT_SPECIES);
     }
 
     public static RGBColorToIntConversion abgr() {
-        return transparent(new BaseABGRToInt(), new int[] {3, 2, 1, 0}, new int[] {0, 1, 2, 3});
+        return transparent(new BaseABGRToInt(), new int[] {3, 2, 1, 0}, new int[] {0, 1, 2, 3}, DEFAULT_SPECIES);
     }
 
     public static RGBColorToIntConversion argb() {
-        return transparent(new BaseARGBToInt(), new int[] {1, 2, 3, 0}, new int[] {2, 1, 0, 3});
+        return transparent(new BaseARGBToInt(), new int[] {1, 2, 3, 0}, new int[] {2, 1, 0, 3}, DEFAULT_SPECIES);
+    }
+
+    public static RGBColorToIntConversion rgb565() {
+        return new SIMDPacked16Conversion(BasePacked16ToInt.rgb565());
+    }
+
+    public static RGBColorToIntConversion rgb555() {
+        return new SIMDPacked16Conversion(BasePacked16ToInt.rgb555());
+    }
+
+    public static RGBColorToIntConversion argb1555() {
+        return new SIMDPacked16Conversion(BasePacked16ToInt.argb1555());
+    }
+
+    public static RGBColorToIntConversion argb4444() {
+        return new SIMDPacked16Conversion(BasePacked16ToInt.argb4444());
+    }
+
+    public static RGBColorToIntConversion gray8() {
+        return new SIMDGrayConversion(BaseGrayToInt.gray8());
+    }
+
+    public static RGBColorToIntConversion grayAlpha() {
+        return new SIMDGrayConversion(BaseGrayToInt.grayAlpha());
+    }
+
+    public static RGBColorToIntConversion indexed(BaseIndexedToInt base) {
+        return new SIMDIndexedConversion(base);
+    }
+
+    public static RGBColorToIntConversion premultiplied(BasePremultipliedToInt base, RGBColorToIntConversion straight) {
+        return new SIMDPremultipliedConversion(base, straight);
+    }
+
+    public static RGBColorToIntConversion alphaFill(BaseAlphaFillToInt base, RGBColorToIntConversion opaque) {
+        return new SIMDAlphaFillConversion(base, opaque);
+    }
+
+    public static YUVRowConversion yuv(YUVRowConversion base) {
+        return new SIMDYUVRowConversion(base);
     }
 
-    private static RGBColorToIntConversion transparent(RGBColorToIntConversion base, int[] byte_rgb, int[] int_rgb) {
-        int byteVectorLength = ByteVector.SPECIES_PREFERRED.length();
+    /**
+     * Creates a conversion for a channel layout defined at runtime
+     *
+     * @param base Base conversion of the layout
+     * @param byte_rgb Offsets of the R, G and B channels, and the A or unused channel if stored,
+     *                 into the bytes of a single pixel
+     * @param int_rgb Offsets of the R, G, B and A (or unused) channels into the bytes of a single int
+     * @return SIMD conversion
+     */
+    public static RGBColorToIntConversion layout(RGBColorToIntConversion base, int[] byte_rgb, int[] int_rgb) {
+        return layout(base, byte_rgb, int_rgb, DEFAULT_SPECIES);
+    }
+
+    private static RGBColorToIntConversion layout(RGBColorToIntConversion base, int[] byte_rgb, int[] int_rgb, VectorSpecies<Byte> species) {
+        return base.hasTransparency() ? transparent(base, byte_rgb, int_rgb, species) : opaque(base, byte_rgb, int_rgb, species);
+    }
+
+    /**
+     * Gets the byte vector species of a vector bit size
+     *
+     * @param bitSize Vector size in bits
+     * @return Byte vector species
+     * @throws IllegalArgumentException If the bit size is not a supported vector size
+     */
+    static VectorSpecies<Byte> species(int bitSize) {
+        return VectorSpecies.of(byte.class, VectorShape.forBitSize(bitSize));
+    }
+
+    private static VectorSpecies<Byte> defaultSpecies() {
+        // Allow forcing a vector size other than the preferred one, for testing and benchmarking
+        String bitSizeStr = System.getProperty(RGBColorToIntConversion.SIMDLoader.SPECIES_PROPERTY);
+        if (bitSizeStr != null) {
+            try {
+                return species(Integer.parseInt(bitSizeStr.trim()));
+            } catch (IllegalArgumentException ex) {
+                // Ignore, use the preferred species instead
+            }
+        }
+        return ByteVector.SPECIES_PREFERRED;
+    }
+
+    private static RGBColorToIntConversion transparent(RGBColorToIntConversion base, int[] byte_rgb, int[] int_rgb, VectorSpecies<Byte> species) {
+        int byteVectorLength = species.length();
 
         if (byteVectorLength == 8) {
             // 2 pixels per operation, so 16 operations for all 32 pixels
-            return new SIMDColorConversion(ByteVector.SPECIES_PREFERRED, base, byte_rgb, int_rgb) {
+            return new SIMDColorConversion(species, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 16; i++) {
                         ByteVector.fromArray(byteSpecies, input, inputOffset)
                                 .rearrange(shuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 2);
+                                .intoArray(output, outputOffset + i * 2);
                         inputOffset += 2 * 4;
                     }
                     return inputOffset;
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 16; i++) {
                         IntVector.fromArray(intSpecies, input, inputOffset)
                                 .reinterpretAsBytes()
                                 .rearrange(intShuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 2);
+                                .intoArray(output, outputOffset + i * 2);
                         inputOffset += 2;
                     }
                     return inputOffset;
@@ -66,27 +176,27 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
             };
         } else if (byteVectorLength == 16) {
             // 4 pixels per operation, so 8 operations for all 32 pixels
-            return new SIMDColorConversion(ByteVector.SPECIES_PREFERRED, base, byte_rgb, int_rgb) {
+            return new SIMDColorConversion(species, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 8; i++) {
                         ByteVector.fromArray(byteSpecies, input, inputOffset)
                                 .rearrange(shuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 4);
+                                .intoArray(output, outputOffset + i * 4);
                         inputOffset += 4 * 4;
                     }
                     return inputOffset;
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 8; i++) {
                         IntVector.fromArray(intSpecies, input, inputOffset)
                                 .reinterpretAsBytes()
                                 .rearrange(intShuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 4);
+                                .intoArray(output, outputOffset + i * 4);
                         inputOffset += 4;
                     }
                     return inputOffset;
@@ -94,27 +204,27 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
             };
         } else if (byteVectorLength == 64) {
             // 16 pixels per operation, so 2 operations for all 32 pixels
-            return new SIMDColorConversion(ByteVector.SPECIES_PREFERRED, base, byte_rgb, int_rgb) {
+            return new SIMDColorConversion(species, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 2; i++) {
                         ByteVector.fromArray(byteSpecies, input, inputOffset)
                                 .rearrange(shuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 16);
+                                .intoArray(output, outputOffset + i * 16);
                         inputOffset += 16 * 4;
                     }
                     return inputOffset;
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 2; i++) {
                         IntVector.fromArray(intSpecies, input, inputOffset)
                                 .reinterpretAsBytes()
                                 .rearrange(intShuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 16);
+                                .intoArray(output, outputOffset + i * 16);
                         inputOffset += 16;
                     }
                     return inputOffset;
@@ -122,23 +232,23 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
             };
         } else if (byteVectorLength == 128) {
             // 32 pixels per operation, so 1 operation for all 32 pixels
-            return new SIMDColorConversion(ByteVector.SPECIES_PREFERRED, base, byte_rgb, int_rgb) {
+            return new SIMDColorConversion(species, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
                     ByteVector.fromArray(byteSpecies, input, inputOffset)
                             .rearrange(shuffle)
                             .reinterpretAsInts()
-                            .intoArray(buffer, 0);
+                            .intoArray(output, outputOffset);
                     return inputOffset + (32 * 4);
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     IntVector.fromArray(intSpecies, input, inputOffset)
                             .reinterpretAsBytes()
                             .rearrange(intShuffle)
                             .reinterpretAsInts()
-                            .intoArray(buffer, 0);
+                            .intoArray(output, outputOffset);
                     return inputOffset + 32;
                 }
             };
@@ -146,25 +256,25 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
             // 8 pixels per operation, so 4 operations for all 32 pixels
             return new SIMDColorConversion(ByteVector.SPECIES_256, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 4; i++) {
                         ByteVector.fromArray(byteSpecies, input, inputOffset)
                                 .rearrange(shuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 8);
+                                .intoArray(output, outputOffset + i * 8);
                         inputOffset += 8 * 4;
                     }
                     return inputOffset;
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 4; i++) {
                         IntVector.fromArray(intSpecies, input, inputOffset)
                                 .reinterpretAsBytes()
                                 .rearrange(intShuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 8);
+                                .intoArray(output, outputOffset + i * 8);
                         inputOffset += 8;
                     }
                     return inputOffset;
@@ -173,34 +283,37 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
         }
     }
 
-    private static RGBColorToIntConversion opaque(RGBColorToIntConversion base, int[] byte_rgb, int[] int_rgb) {
-        int byteVectorLength = ByteVector.SPECIES_PREFERRED.length();
+    private static RGBColorToIntConversion opaque(RGBColorToIntConversion base, int[] byte_rgb, int[] int_rgb, VectorSpecies<Byte> species) {
+        int byteVectorLength = species.length();
 
         if (byteVectorLength == 8) {
             // 2 pixels per operation, so 16 operations for all 32 pixels
-            return new SIMDColorConversion(ByteVector.SPECIES_PREFERRED, base, byte_rgb, int_rgb) {
+            return new SIMDColorConversion(species, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
-                    for (int i = 0; i < 16; i++) {
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+                    for (int i = 0; i < 15; i++) {
                         ByteVector.fromArray(byteSpecies, input, inputOffset)
-                                .withLane(7, (byte) 0)
                                 .rearrange(shuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 2);
-                        inputOffset += 2 * 3;
+                                .and(0xFFFFFF)
+                                .or(alphaBits)
+                                .intoArray(output, outputOffset + i * 2);
+                        inputOffset += 2 * byteStride;
                     }
-                    return inputOffset;
+                    convertLastVector(input, inputOffset, output, outputOffset + 30);
+                    return inputOffset + (2 * byteStride);
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 16; i++) {
                         IntVector.fromArray(intSpecies, input, inputOffset)
                                 .reinterpretAsBytes()
-                                .withLane(7, (byte) 0)
                                 .rearrange(intShuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 2);
+                                .and(0xFFFFFF)
+                                .or(alphaBits)
+                                .intoArray(output, outputOffset + i * 2);
                         inputOffset += 2;
                     }
                     return inputOffset;
@@ -208,29 +321,32 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
             };
         } else if (byteVectorLength == 16) {
             // 4 pixels per operation, so 8 operations for all 32 pixels
-            return new SIMDColorConversion(ByteVector.SPECIES_PREFERRED, base, byte_rgb, int_rgb) {
+            return new SIMDColorConversion(species, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
-                    for (int i = 0; i < 8; i++) {
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+                    for (int i = 0; i < 7; i++) {
                         ByteVector.fromArray(byteSpecies, input, inputOffset)
-                                .withLane(15, (byte) 0)
                                 .rearrange(shuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 4);
-                        inputOffset += 4 * 3;
+                                .and(0xFFFFFF)
+                                .or(alphaBits)
+                                .intoArray(output, outputOffset + i * 4);
+                        inputOffset += 4 * byteStride;
                     }
-                    return inputOffset;
+                    convertLastVector(input, inputOffset, output, outputOffset + 28);
+                    return inputOffset + (4 * byteStride);
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 8; i++) {
                         IntVector.fromArray(intSpecies, input, inputOffset)
                                 .reinterpretAsBytes()
-                                .withLane(15, (byte) 0)
                                 .rearrange(intShuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 4);
+                                .and(0xFFFFFF)
+                                .or(alphaBits)
+                                .intoArray(output, outputOffset + i * 4);
                         inputOffset += 4;
                     }
                     return inputOffset;
@@ -238,29 +354,29 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
             };
         } else if (byteVectorLength == 64) {
             // 16 pixels per operation, so 2 operations for all 32 pixels
-            return new SIMDColorConversion(ByteVector.SPECIES_PREFERRED, base, byte_rgb, int_rgb) {
+            return new SIMDColorConversion(species, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
-                    for (int i = 0; i < 2; i++) {
-                        ByteVector.fromArray(byteSpecies, input, inputOffset)
-                                .withLane(63, (byte) 0)
-                                .rearrange(shuffle)
-                                .reinterpretAsInts()
-                                .intoArray(buffer, i * 16);
-                        inputOffset += 16 * 3;
-                    }
-                    return inputOffset;
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+                    ByteVector.fromArray(byteSpecies, input, inputOffset)
+                            .rearrange(shuffle)
+                            .reinterpretAsInts()
+                            .and(0xFFFFFF)
+                            .or(alphaBits)
+                            .intoArray(output, outputOffset);
+                    convertLastVector(input, inputOffset + 16 * byteStride, output, outputOffset + 16);
+                    return inputOffset + (32 * byteStride);
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 2; i++) {
                         IntVector.fromArray(intSpecies, input, inputOffset)
                                 .reinterpretAsBytes()
-                                .withLane(63, (byte) 0)
                                 .rearrange(intShuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 16);
+                                .and(0xFFFFFF)
+                                .or(alphaBits)
+                                .intoArray(output, outputOffset + i * 16);
                         inputOffset += 16;
                     }
                     return inputOffset;
@@ -268,25 +384,28 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
             };
         } else if (byteVectorLength == 128) {
             // 32 pixels per operation, so 1 operation for all 32 pixels
-            return new SIMDColorConversion(ByteVector.SPECIES_PREFERRED, base, byte_rgb, int_rgb) {
+            return new SIMDColorConversion(species, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
-                    ByteVector.fromArray(byteSpecies, input, inputOffset)
-                            .withLane(127, (byte) 0)
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+                    // The vector is larger than the block, so the bytes past the block are masked off
+                    ByteVector.fromArray(byteSpecies, input, inputOffset, blockLoadMask)
                             .rearrange(shuffle)
                             .reinterpretAsInts()
-                            .intoArray(buffer, 0);
-                    return inputOffset + (32 * 3);
+                            .and(0xFFFFFF)
+                            .or(alphaBits)
+                            .intoArray(output, outputOffset);
+                    return inputOffset + (32 * byteStride);
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     IntVector.fromArray(intSpecies, input, inputOffset)
                             .reinterpretAsBytes()
-                            .withLane(127, (byte) 0)
                             .rearrange(intShuffle)
                             .reinterpretAsInts()
-                            .intoArray(buffer, 0);
+                            .and(0xFFFFFF)
+                            .or(alphaBits)
+                            .intoArray(output, outputOffset);
                     return inputOffset + 32;
                 }
             };
@@ -294,27 +413,30 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
             // 8 pixels per operation, so 4 operations for all 32 pixels
             return new SIMDColorConversion(ByteVector.SPECIES_256, base, byte_rgb, int_rgb) {
                 @Override
-                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer) {
-                    for (int i = 0; i < 4; i++) {
+                public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+                    for (int i = 0; i < 3; i++) {
                         ByteVector.fromArray(byteSpecies, input, inputOffset)
-                                .withLane(31, (byte) 0)
                                 .rearrange(shuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 8);
-                        inputOffset += 8 * 3;
+                                .and(0xFFFFFF)
+                                .or(alphaBits)
+                                .intoArray(output, outputOffset + i * 8);
+                        inputOffset += 8 * byteStride;
                     }
-                    return inputOffset;
+                    convertLastVector(input, inputOffset, output, outputOffset + 24);
+                    return inputOffset + (8 * byteStride);
                 }
 
                 @Override
-                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer) {
+                public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
                     for (int i = 0; i < 4; i++) {
                         IntVector.fromArray(intSpecies, input, inputOffset)
                                 .reinterpretAsBytes()
-                                .withLane(31, (byte) 0)
                                 .rearrange(intShuffle)
                                 .reinterpretAsInts()
-                                .intoArray(buffer, i * 8);
+                                .and(0xFFFFFF)
+                                .or(alphaBits)
+                                .intoArray(output, outputOffset + i * 8);
                         inputOffset += 8;
                     }
                     return inputOffset;
@@ -324,12 +446,28 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
     }
 
     protected SIMDColorConversion(VectorSpecies<Byte> species, RGBColorToIntConversion base, int[] byte_rgb, int[] int_rgb) {
-        this.hasTransparency = (byte_rgb.length == 4);
+        this.hasTransparency = base.hasTransparency();
         this.byteSpecies = species;
         this.intSpecies = species.withLanes(int.class);
         this.base = base;
+        this.byteStride = base.singleBytesInputLength();
+        this.byteLayout = byte_rgb;
+        this.intLayout = int_rgb;
+
+        // Opaque formats fill in the alpha channel after clearing it, 0 unless an alpha fill is set
+        this.alphaBits = hasTransparency ? 0 : (base.getAlphaFill() << 24);
 
-        // Shuffles all bytes to turn it into RGBA where A is set to zero using the last vector lane
+        // Bits of the converted pixels that are kept, the alpha channel of opaque formats is cleared
+        this.convertMask = hasTransparency ? -1 : 0xFFFFFF;
+
+        // Blocks of at least 16 vectors keep the call overhead low, while the pixels still fit in cache
+        this.preferredBlockSize = Math.max(256, 16 * intSpecies.length());
+
+        // Bits of the input that store a channel, the unused byte of opaque formats is left out
+        this.intMask = hasTransparency ? -1 : ~(0xFF << (8 * int_rgb[3]));
+        this.byteEncodeMask = (hasTransparency || byteStride == 3) ? -1 : ~(0xFF << (8 * byte_rgb[3]));
+
+        // Shuffles all bytes to turn it into RGBA. For opaque formats A is cleared after.
         {
             int length = species.length();
             int[] shuffleInts = new int[length];
@@ -338,18 +476,27 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
                 shuffleInts[i++] = ctr + byte_rgb[0];
                 shuffleInts[i++] = ctr + byte_rgb[1];
                 shuffleInts[i++] = ctr + byte_rgb[2];
-                if (hasTransparency) {
-                    shuffleInts[i++] = ctr + byte_rgb[3];
-                    ctr += 4;
-                } else {
-                    shuffleInts[i++] = length - 1;
-                    ctr += 3;
-                }
+                shuffleInts[i++] = hasTransparency ? (ctr + byte_rgb[3]) : 0;
+                ctr += byteStride;
             }
             this.shuffle = VectorShuffle.fromArray(species, shuffleInts, 0);
         }
 
-        // Shuffles all int components to turn it into RGBA
+        // The bytes of 3-byte formats do not fill the vector, so the last vector of a block would read
+        // past the end of the block. Instead it is loaded ending at the end of the block, and shuffled
+        // from that many bytes further into the vector. Vectors larger than a block mask off the extra bytes.
+        {
+            int length = species.length();
+            this.lastLoadShift = Math.max(0, length - (length / 4) * byteStride);
+            int[] shuffleInts = new int[length];
+            for (int i = 0; i < length; i++) {
+                shuffleInts[i] = Math.min(length - 1, this.shuffle.laneSource(i) + lastLoadShift);
+            }
+            this.lastShuffle = VectorShuffle.fromArray(species, shuffleInts, 0);
+            this.blockLoadMask = species.indexInRange(0, 32 * byteStride);
+        }
+
+        // Shuffles all int components to turn it into RGBA. For opaque formats A is cleared after.
         {
             int length = species.length();
             int[] shuffleInts = new int[length];
@@ -358,15 +505,38 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
                 shuffleInts[i++] = ctr + int_rgb[0];
                 shuffleInts[i++] = ctr + int_rgb[1];
                 shuffleInts[i++] = ctr + int_rgb[2];
-                if (hasTransparency) {
-                    shuffleInts[i++] = ctr + int_rgb[3];
-                } else {
-                    shuffleInts[i++] = length - 1;
-                }
+                shuffleInts[i++] = hasTransparency ? (ctr + int_rgb[3]) : 0;
                 ctr += 4;
             }
             this.intShuffle = VectorShuffle.fromArray(species, shuffleInts, 0);
         }
+
+        // Inverse of the shuffle of bytes, moving the RGBA bytes of every pixel back to where they
+        // are stored in the encoded format. 3-byte formats are compacted into the start of the vector.
+        // The unused byte of opaque 4-byte formats is cleared after.
+        {
+            int length = species.length();
+            int channels = hasTransparency ? 4 : 3;
+            int[] shuffleInts = new int[length];
+            for (int p = 0; p < (length / 4); p++) {
+                for (int c = 0; c < channels; c++) {
+                    shuffleInts[p * byteStride + byte_rgb[c]] = p * 4 + c;
+                }
+            }
+            this.encodeShuffle = VectorShuffle.fromArray(species, shuffleInts, 0);
+        }
+
+        // Inverse of the shuffle of int components. The unused alpha channel is cleared after.
+        {
+            int length = species.length();
+            int[] shuffleInts = new int[length];
+            for (int p = 0; p < length; p += 4) {
+                for (int c = 0; c < 4; c++) {
+                    shuffleInts[p + int_rgb[c]] = p + c;
+                }
+            }
+            this.intEncodeShuffle = VectorShuffle.fromArray(species, shuffleInts, 0);
+        }
     }
 
     @Override
@@ -384,9 +554,31 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
         return hasTransparency;
     }
 
+    @Override
+    public RGBColorToIntConversion withAlphaFill(int alpha) {
+        // The alpha fill is done as part of the conversion, the base checks the alpha value
+        RGBColorToIntConversion alphaFillBase = base.withAlphaFill(alpha);
+        return (alphaFillBase == base) ? this : opaque(alphaFillBase, byteLayout, intLayout, byteSpecies);
+    }
+
+    @Override
+    public int getVectorBitSize() {
+        return byteSpecies.vectorBitSize();
+    }
+
+    @Override
+    public RGBColorToIntConversion withVectorBitSize(int bitSize) {
+        return (bitSize == byteSpecies.vectorBitSize()) ? this : layout(base, byteLayout, intLayout, species(bitSize));
+    }
+
+    @Override
+    public int getAlphaFill() {
+        return base.getAlphaFill();
+    }
+
     @Override
     public int singleBytesInputLength() {
-        return hasTransparency ? 4 : 3;
+        return byteStride;
     }
 
     @Override
@@ -399,14 +591,296 @@ abstract class SIMDColorConversion implements RGBColorToIntConversion {
         return base.singleIntToInt(input);
     }
 
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        base.singleEncodeToBytes(rgba, output, outputOffset);
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        return base.singleEncodeToInt(rgba);
+    }
+
+    @Override
+    public int byteBlockEncode32Pixels(int[] input, int inputOffset, byte[] output, int outputOffset) {
+        int pixelsPerVector = intSpecies.length();
+        int inputEnd = inputOffset + 32;
+        if (hasTransparency) {
+            for (; inputOffset < inputEnd; inputOffset += pixelsPerVector) {
+                IntVector.fromArray(intSpecies, input, inputOffset)
+                        .reinterpretAsBytes()
+                        .rearrange(encodeShuffle)
+                        .intoArray(output, outputOffset);
+                outputOffset += pixelsPerVector * 4;
+            }
+        } else if (byteStride == 4) {
+            for (; inputOffset < inputEnd; inputOffset += pixelsPerVector) {
+                IntVector.fromArray(intSpecies, input, inputOffset)
+                        .reinterpretAsBytes()
+                        .rearrange(encodeShuffle)
+                        .reinterpretAsInts()
+                        .and(byteEncodeMask)
+                        .reinterpretAsBytes()
+                        .intoArray(output, outputOffset);
+                outputOffset += pixelsPerVector * 4;
+            }
+        } else {
+            // Every vector stores a few unused bytes past its pixels, which the next vector overwrites
+            for (; inputOffset < inputEnd; inputOffset += pixelsPerVector) {
+                IntVector.fromArray(intSpecies, input, inputOffset)
+                        .reinterpretAsBytes()
+                        .rearrange(encodeShuffle)
+                        .intoArray(output, outputOffset);
+                outputOffset += pixelsPerVector * 3;
+            }
+        }
+        return outputOffset;
+    }
+
+    @Override
+    public int intBlockEncode32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+        int pixelsPerVector = intSpecies.length();
+        int outputEnd = outputOffset + 32;
+        for (; outputOffset < outputEnd; outputOffset += pixelsPerVector) {
+            IntVector encoded = IntVector.fromArray(intSpecies, input, inputOffset)
+                    .reinterpretAsBytes()
+                    .rearrange(intEncodeShuffle)
+                    .reinterpretAsInts();
+            if (!hasTransparency) {
+                encoded = encoded.and(intMask);
+            }
+            encoded.intoArray(output, outputOffset);
+            inputOffset += pixelsPerVector;
+        }
+        return outputOffset;
+    }
+
+    @Override
+    public void paletteBlockConvert32Pixels(int[] buffer, int bufferOffset, byte[] mapping, byte[] output, int outputOffset) {
+        // Compute the mapping table indices in bulk, transparent pixels index the last entry
+        int step = intSpecies.length();
+        if (hasTransparency) {
+            for (int i = 0; i < 32; i += step) {
+                IntVector rgba = IntVector.fromArray(intSpecies, buffer, bufferOffset + i);
+                rgba.and(0xFFFFFF)
+                        .blend(0x1000000, rgba.compare(VectorOperators.GE, 0))
+                        .intoArray(buffer, bufferOffset + i);
+            }
+        } else {
+            for (int i = 0; i < 32; i += step) {
+                IntVector.fromArray(intSpecies, buffer, bufferOffset + i)
+                        .and(0xFFFFFF)
+                        .intoArray(buffer, bufferOffset + i);
+            }
+        }
+
+        // Look up the 32 map colors from the mapping table
+        for (int i = 0; i < 32; i++) {
+            output[outputOffset + i] = mapping[buffer[bufferOffset + i]];
+        }
+    }
+
+    @Override
+    public int alphaMaskBlock32Pixels(int[] buffer, int bufferOffset, int alphaThreshold) {
+        return hasTransparency ? alphaMask32Pixels(buffer, bufferOffset, alphaThreshold) : -1;
+    }
+
+    /**
+     * Computes which of 32 RGBA pixels have an alpha channel of at least the alpha threshold.
+     * Used by all SIMD conversions with transparency.
+     *
+     * @param buffer Buffer of converted RGBA pixel values
+     * @param bufferOffset Offset into the buffer of the first of 32 pixels
+     * @param alphaThreshold Minimum alpha value of a pixel for its bit to be set, 0 - 255
+     * @return Mask with bit <i>i</i> set if pixel <i>i</i> is at or above the alpha threshold
+     */
+    static int alphaMask32Pixels(int[] buffer, int bufferOffset, int alphaThreshold) {
+        // Combining the selected lane bits is much faster than VectorMask.toLong()
+        IntVector zero = IntVector.zero(INT_MASK_SPECIES);
+        int threshold = alphaThreshold << 24;
+        int mask = 0;
+        for (int i = 0; i < 32; i += INT_MASK_SPECIES.length()) {
+            VectorMask<Integer> visible = IntVector.fromArray(INT_MASK_SPECIES, buffer, bufferOffset + i)
+                    .compare(VectorOperators.UNSIGNED_GE, threshold);
+            mask |= zero.blend(LANE_BITS, visible).reduceLanes(VectorOperators.OR) << i;
+        }
+        return mask;
+    }
+
+    @Override
+    public boolean byteBlockEquals32Pixels(byte[] a, int aOffset, byte[] b, int bOffset) {
+        // Accumulate all differing bits, so that only a single test is needed at the end
+        int length = 32 * singleBytesInputLength();
+        ByteVector diff = ByteVector.zero(BYTE_EQUALS_SPECIES);
+        for (int i = 0; i < length; i += BYTE_EQUALS_SPECIES.length()) {
+            diff = diff.or(ByteVector.fromArray(BYTE_EQUALS_SPECIES, a, aOffset + i)
+                    .lanewise(VectorOperators.XOR, ByteVector.fromArray(BYTE_EQUALS_SPECIES, b, bOffset + i)));
+        }
+        return !diff.compare(VectorOperators.NE, (byte) 0).anyTrue();
+    }
+
+    @Override
+    public boolean intBlockEquals32Pixels(int[] a, int aOffset, int[] b, int bOffset) {
+        IntVector diff = IntVector.zero(INT_EQUALS_SPECIES);
+        for (int i = 0; i < 32; i += INT_EQUALS_SPECIES.length()) {
+            diff = diff.or(IntVector.fromArray(INT_EQUALS_SPECIES, a, aOffset + i)
+                    .lanewise(VectorOperators.XOR, IntVector.fromArray(INT_EQUALS_SPECIES, b, bOffset + i)));
+        }
+        if (!hasTransparency) {
+            diff = diff.and(intMask);
+        }
+        return !diff.compare(VectorOperators.NE, 0).anyTrue();
+    }
+
+    @Override
+    public int byteBlockMismatch(byte[] a, int aOffset, byte[] b, int bOffset, int pixelCount) {
+        // Arrays.mismatch is an intrinsic that compares with the widest vectors available,
+        // without the overhead of a call for every block
+        int length = pixelCount * singleBytesInputLength();
+        int mismatch = Arrays.mismatch(a, aOffset, aOffset + length, b, bOffset, bOffset + length);
+        return (mismatch < 0) ? pixelCount : ((mismatch / byteBlockInputLength()) * 32);
+    }
+
+    @Override
+    public int intBlockMismatch(int[] a, int aOffset, int[] b, int bOffset, int pixelCount) {
+        int i = 0;
+        while (true) {
+            int mismatch = Arrays.mismatch(a, aOffset + i, aOffset + pixelCount, b, bOffset + i, bOffset + pixelCount);
+            if (mismatch < 0) {
+                return pixelCount;
+            }
+            i += mismatch;
+            if (((a[aOffset + i] ^ b[bOffset + i]) & intMask) != 0) {
+                return i & ~31;
+            }
+            // Only the unused byte differs, keep looking
+            i++;
+        }
+    }
+
     @Override
     public int byteBlockInputMinimumLength() {
+        return byteBlockInputLength();
+    }
+
+    /**
+     * Converts the last vector of pixels of a block. The vector is loaded so that it ends at the
+     * end of the block, so that no bytes past the block are read.
+     *
+     * @param input Input byte data
+     * @param inputOffset Offset into the input data of the first pixel of the last vector
+     * @param output Output int array
+     * @param outputOffset Offset into the output int array of the first pixel of the last vector
+     */
+    protected final void convertLastVector(byte[] input, int inputOffset, int[] output, int outputOffset) {
+        ByteVector.fromArray(byteSpecies, input, inputOffset - lastLoadShift)
+                .rearrange(lastShuffle)
+                .reinterpretAsInts()
+                .and(convertMask)
+                .or(alphaBits)
+                .intoArray(output, outputOffset);
+    }
+
+    @Override
+    public int preferredBlockSize() {
+        return preferredBlockSize;
+    }
+
+    @Override
+    public int byteBlockConvert(byte[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        final int pixelsPerVector = intSpecies.length();
+        final int last = pixelCount - pixelsPerVector;
+        if ((pixelCount * byteStride) < byteSpecies.length()) {
+            // The vector is larger than the pixels, only happens for a single block
+            return RGBColorToIntConversion.super.byteBlockConvert(input, inputOffset, output, outputOffset, pixelCount);
+        }
+
+        // All vectors but the last are loaded as-is, the last one ends at the last pixel
+        for (int i = 0; i < last; i += pixelsPerVector) {
+            ByteVector.fromArray(byteSpecies, input, inputOffset + i * byteStride)
+                    .rearrange(shuffle)
+                    .reinterpretAsInts()
+                    .and(convertMask)
+                    .or(alphaBits)
+                    .intoArray(output, outputOffset + i);
+        }
+        convertLastVector(input, inputOffset + last * byteStride, output, outputOffset + last);
+        return inputOffset + pixelCount * byteStride;
+    }
+
+    @Override
+    public int intBlockConvert(int[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        final int pixelsPerVector = intSpecies.length();
+        for (int i = 0; i < pixelCount; i += pixelsPerVector) {
+            IntVector.fromArray(intSpecies, input, inputOffset + i)
+                    .reinterpretAsBytes()
+                    .rearrange(intShuffle)
+                    .reinterpretAsInts()
+                    .and(convertMask)
+                    .or(alphaBits)
+                    .intoArray(output, outputOffset + i);
+        }
+        return inputOffset + pixelCount;
+    }
+
+    @Override
+    public int byteBlockConvertPartial(byte[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        final int inputEnd = inputOffset + pixelCount * byteStride;
+        if (inputEnd - inputOffset < byteSpecies.length()) {
+            // Too few pixels to fill even a single vector
+            return RGBColorToIntConversion.super.byteBlockConvertPartial(input, inputOffset, output, outputOffset, pixelCount);
+        }
+
+        // Whole vectors while they fit, then one last vector that ends at the last pixel. This
+        // converts some pixels twice, but is faster than masked loads and stores.
+        final int pixelsPerVector = intSpecies.length();
+        final int outputEnd = outputOffset + pixelCount;
+        while (inputOffset + byteSpecies.length() <= inputEnd) {
+            ByteVector.fromArray(byteSpecies, input, inputOffset)
+                    .rearrange(shuffle)
+                    .reinterpretAsInts()
+                    .and(convertMask)
+                    .or(alphaBits)
+                    .intoArray(output, outputOffset);
+            inputOffset += pixelsPerVector * byteStride;
+            outputOffset += pixelsPerVector;
+        }
+        if (outputEnd - outputOffset > pixelsPerVector) {
+            // 3-byte formats can have more pixels left than fit in the last vector
+            convertLastVector(input, inputOffset, output, outputOffset);
+        }
+        convertLastVector(input, inputEnd - pixelsPerVector * byteStride, output, outputEnd - pixelsPerVector);
+        return inputEnd;
+    }
+
+    @Override
+    public int intBlockConvertPartial(int[] input, int inputOffset, int[] output, int outputOffset, int pixelCount) {
+        // Whole vectors while they fit, the few pixels after are converted one by one. The input and
+        // output can be the same array, so pixels can not be converted twice like for bytes.
+        final int pixelsPerVector = intSpecies.length();
+        final int outputEnd = outputOffset + pixelCount;
+        while (outputOffset + pixelsPerVector <= outputEnd) {
+            IntVector.fromArray(intSpecies, input, inputOffset)
+                    .reinterpretAsBytes()
+                    .rearrange(intShuffle)
+                    .reinterpretAsInts()
+                    .and(convertMask)
+                    .or(alphaBits)
+                    .intoArray(output, outputOffset);
+            inputOffset += pixelsPerVector;
+            outputOffset += pixelsPerVector;
+        }
+        return RGBColorToIntConversion.super.intBlockConvertPartial(input, inputOffset, output, outputOffset, outputEnd - outputOffset);
+    }
+
+    @Override
+    public int byteBlockOutputMinimumLength() {
         return 32 * 4;
     }
 
     @Override
-    public abstract int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] buffer);
+    public abstract int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset);
 
     @Override
-    public abstract int intBlockConvert32Pixels(int[] input, int inputOffset, int[] buffer);
+    public abstract int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset);
 }
@@ -0,0 +1,122 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Uses the experimental JDK incubator vector API to convert grayscale pixels
+ * to RGBA, by broadcasting the gray byte of every pixel into the R, G and B
+ * bytes with a shuffle.
+ */
+final class SIMDGrayConversion implements RGBColorToIntConversion {
+    // Vector operations are only fast with a constant species, so these must be static final
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES = BYTE_SPECIES.withLanes(int.class);
+    private final BaseGrayToInt base;
+    private final int byteStride;
+    private final int pixelsPerLoad;
+    private final int alphaMask;
+    private final VectorShuffle<Byte>[] shuffles;
+    private final VectorShuffle<Byte> intShuffle;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SIMDGrayConversion(BaseGrayToInt base) {
+        boolean hasAlpha = base.hasTransparency();
+        this.base = base;
+        this.byteStride = base.singleBytesInputLength();
+        this.pixelsPerLoad = Math.min(32, BYTE_SPECIES.length() / byteStride);
+        this.alphaMask = hasAlpha ? -1 : 0xFFFFFF;
+
+        // Every loaded byte vector holds the input of multiple int vectors of output,
+        // each of which is shuffled out of it with its own shuffle.
+        // The alpha byte of opaque gray is cleared after.
+        this.shuffles = new VectorShuffle[pixelsPerLoad / INT_SPECIES.length()];
+        for (int part = 0; part < shuffles.length; part++) {
+            int[] shuffleInts = new int[BYTE_SPECIES.length()];
+            for (int i = 0; i < shuffleInts.length; i++) {
+                int pixel = part * INT_SPECIES.length() + (i >> 2);
+                shuffleInts[i] = pixel * byteStride + ((hasAlpha && (i & 3) == 3) ? 1 : 0);
+            }
+            this.shuffles[part] = VectorShuffle.fromArray(BYTE_SPECIES, shuffleInts, 0);
+        }
+
+        // Int input stores gray and alpha in the lower two bytes of every int
+        {
+            int[] shuffleInts = new int[BYTE_SPECIES.length()];
+            for (int i = 0; i < shuffleInts.length; i++) {
+                shuffleInts[i] = (i & ~3) + ((hasAlpha && (i & 3) == 3) ? 1 : 0);
+            }
+            this.intShuffle = VectorShuffle.fromArray(BYTE_SPECIES, shuffleInts, 0);
+        }
+    }
+
+    @Override
+    public boolean isUsingSIMD() {
+        return true;
+    }
+
+    @Override
+    public RGBColorToIntConversion noSIMD() {
+        return base;
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return base.hasTransparency();
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return byteStride;
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return base.singleBytesToInt(input, inputOffset);
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        return base.singleIntToInt(input);
+    }
+
+    @Override
+    public int byteBlockInputMinimumLength() {
+        // The last load reads a full byte vector, of which only part is used
+        return Math.max(32 * byteStride, (32 - pixelsPerLoad) * byteStride + BYTE_SPECIES.length());
+    }
+
+    @Override
+    public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i += pixelsPerLoad) {
+            ByteVector gray = ByteVector.fromArray(BYTE_SPECIES, input, inputOffset + i * byteStride);
+            for (int part = 0; part < shuffles.length; part++) {
+                gray.rearrange(shuffles[part])
+                        .reinterpretAsInts()
+                        .and(alphaMask)
+                        .intoArray(output, outputOffset + i + part * INT_SPECIES.length());
+            }
+        }
+        return inputOffset + 32 * byteStride;
+    }
+
+    @Override
+    public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i += INT_SPECIES.length()) {
+            IntVector.fromArray(INT_SPECIES, input, inputOffset + i)
+                    .reinterpretAsBytes()
+                    .rearrange(intShuffle)
+                    .reinterpretAsInts()
+                    .and(alphaMask)
+                    .intoArray(output, outputOffset + i);
+        }
+        return inputOffset + 32;
+    }
+
+    @Override
+    public int alphaMaskBlock32Pixels(int[] buffer, int bufferOffset, int alphaThreshold) {
+        return hasTransparency() ? SIMDColorConversion.alphaMask32Pixels(buffer, bufferOffset, alphaThreshold) : -1;
+    }
+}
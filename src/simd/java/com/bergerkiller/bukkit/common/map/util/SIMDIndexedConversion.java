@@ -0,0 +1,123 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Uses the experimental JDK incubator vector API to look up the palette colors
+ * of indexed-color pixels. Palettes that fit in a single vector are looked up
+ * with a lane selection, larger palettes with a gather operation.
+ */
+final class SIMDIndexedConversion implements RGBColorToIntConversion {
+    // Vector operations are only fast with a constant species, so these must be static final
+    // Byte indices are loaded with a quarter of the vector size, or the smallest shape if that is too small,
+    // and expanded into one or more int vectors of indices
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED.withShape(
+            VectorShape.forBitSize(Math.max(64, INT_SPECIES.vectorBitSize() / 4)));
+    private static final int PARTS = BYTE_SPECIES.length() / INT_SPECIES.length();
+    private static final SIMDIndexedConversion COST_REFERENCE = new SIMDIndexedConversion(
+            BaseIndexedToInt.create(new int[0], RGBColorToIntConversion.ARGB, -1));
+    private final BaseIndexedToInt base;
+    private final int[] palette;
+    private final IntVector smallPalette;
+
+    SIMDIndexedConversion(BaseIndexedToInt base) {
+        this.base = base;
+        this.palette = base.getPalette();
+        this.smallPalette = (base.getColorCount() <= INT_SPECIES.length())
+                ? IntVector.fromArray(INT_SPECIES, palette, 0) : null;
+    }
+
+    @Override
+    public DecodeCostModel costModel() {
+        return DecodeCostModel.of(COST_REFERENCE);
+    }
+
+    @Override
+    public boolean isUsingSIMD() {
+        return true;
+    }
+
+    @Override
+    public RGBColorToIntConversion noSIMD() {
+        return base;
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return base.hasTransparency();
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return 1;
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return palette[input[inputOffset] & 0xFF];
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        return palette[input & 0xFF];
+    }
+
+    @Override
+    public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+        // For large palettes the indices are widened into the output first, which are then
+        // used as index map of the gather
+        for (int i = 0; i < 32; i += BYTE_SPECIES.length()) {
+            ByteVector bytes = ByteVector.fromArray(BYTE_SPECIES, input, inputOffset + i);
+            for (int part = 0; part < PARTS; part++) {
+                IntVector indices = ((IntVector) bytes.convertShape(VectorOperators.B2I, INT_SPECIES, part)).and(0xFF);
+                if (smallPalette != null) {
+                    indices = select(indices);
+                }
+                indices.intoArray(output, outputOffset + i + part * INT_SPECIES.length());
+            }
+        }
+        if (smallPalette == null) {
+            gather(output, outputOffset);
+        }
+        return inputOffset + 32;
+    }
+
+    @Override
+    public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i += INT_SPECIES.length()) {
+            IntVector indices = IntVector.fromArray(INT_SPECIES, input, inputOffset + i).and(0xFF);
+            if (smallPalette != null) {
+                indices = select(indices);
+            }
+            indices.intoArray(output, outputOffset + i);
+        }
+        if (smallPalette == null) {
+            gather(output, outputOffset);
+        }
+        return inputOffset + 32;
+    }
+
+    @Override
+    public int alphaMaskBlock32Pixels(int[] buffer, int bufferOffset, int alphaThreshold) {
+        return hasTransparency() ? SIMDColorConversion.alphaMask32Pixels(buffer, bufferOffset, alphaThreshold) : -1;
+    }
+
+    private IntVector select(IntVector indices) {
+        // Indices past the palette vector are past the end of the palette, and convert to 0
+        return indices.and(INT_SPECIES.length() - 1)
+                .selectFrom(smallPalette)
+                .blend(0, indices.compare(VectorOperators.GE, INT_SPECIES.length()));
+    }
+
+    private void gather(int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i += INT_SPECIES.length()) {
+            IntVector.fromArray(INT_SPECIES, palette, 0, output, outputOffset + i)
+                    .intoArray(output, outputOffset + i);
+        }
+    }
+}
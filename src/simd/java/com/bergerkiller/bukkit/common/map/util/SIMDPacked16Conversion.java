@@ -0,0 +1,141 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Uses the experimental JDK incubator vector API to expand 16-bit packed
+ * pixels to RGBA using shifts and masks.
+ */
+final class SIMDPacked16Conversion implements RGBColorToIntConversion {
+    // Vector operations are only fast with a constant species, so these must be static final
+    // Short and byte input is loaded with half the vector size, so that it expands into a full int vector
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final VectorShape HALF_SHAPE = VectorShape.forBitSize(INT_SPECIES.vectorBitSize() / 2);
+    private static final VectorSpecies<Short> SHORT_SPECIES = ShortVector.SPECIES_PREFERRED.withShape(HALF_SHAPE);
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED.withShape(HALF_SHAPE);
+    private final BasePacked16ToInt base;
+    private final int shiftR, shiftG, shiftB, shiftA;
+    private final int bitsR, bitsG, bitsB, bitsA;
+
+    SIMDPacked16Conversion(BasePacked16ToInt base) {
+        int[] bits = base.getChannelBits();
+        int[] shifts = base.getChannelShifts();
+        this.base = base;
+        this.bitsR = bits[0];
+        this.bitsG = bits[1];
+        this.bitsB = bits[2];
+        this.bitsA = bits[3];
+        this.shiftR = shifts[0];
+        this.shiftG = shifts[1];
+        this.shiftB = shifts[2];
+        this.shiftA = shifts[3];
+    }
+
+    @Override
+    public boolean isUsingSIMD() {
+        return true;
+    }
+
+    @Override
+    public RGBColorToIntConversion noSIMD() {
+        return base;
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return base.hasTransparency();
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return 2;
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return base.singleBytesToInt(input, inputOffset);
+    }
+
+    @Override
+    public int singleShortToInt(short input) {
+        return base.singleShortToInt(input);
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        return base.singleIntToInt(input);
+    }
+
+    @Override
+    public void singleEncodeToBytes(int rgba, byte[] output, int outputOffset) {
+        base.singleEncodeToBytes(rgba, output, outputOffset);
+    }
+
+    @Override
+    public int singleEncodeToInt(int rgba) {
+        return base.singleEncodeToInt(rgba);
+    }
+
+    @Override
+    public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i += INT_SPECIES.length()) {
+            IntVector packed = (IntVector) ByteVector.fromArray(BYTE_SPECIES, input, inputOffset)
+                    .reinterpretAsShorts()
+                    .convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+            expand(packed).intoArray(output, outputOffset + i);
+            inputOffset += 2 * INT_SPECIES.length();
+        }
+        return inputOffset;
+    }
+
+    @Override
+    public int shortBlockConvert32Pixels(short[] input, int inputOffset, int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i += INT_SPECIES.length()) {
+            IntVector packed = (IntVector) ShortVector.fromArray(SHORT_SPECIES, input, inputOffset)
+                    .convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+            expand(packed).intoArray(output, outputOffset + i);
+            inputOffset += INT_SPECIES.length();
+        }
+        return inputOffset;
+    }
+
+    @Override
+    public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+        for (int i = 0; i < 32; i += INT_SPECIES.length()) {
+            expand(IntVector.fromArray(INT_SPECIES, input, inputOffset)).intoArray(output, outputOffset + i);
+            inputOffset += INT_SPECIES.length();
+        }
+        return inputOffset;
+    }
+
+    @Override
+    public int alphaMaskBlock32Pixels(int[] buffer, int bufferOffset, int alphaThreshold) {
+        return hasTransparency() ? SIMDColorConversion.alphaMask32Pixels(buffer, bufferOffset, alphaThreshold) : -1;
+    }
+
+    private IntVector expand(IntVector packed) {
+        IntVector rgba = channel(packed, shiftR, bitsR)
+                .or(channel(packed, shiftG, bitsG).lanewise(VectorOperators.LSHL, 8))
+                .or(channel(packed, shiftB, bitsB).lanewise(VectorOperators.LSHL, 16));
+        if (bitsA != 0) {
+            rgba = rgba.or(channel(packed, shiftA, bitsA).lanewise(VectorOperators.LSHL, 24));
+        }
+        return rgba;
+    }
+
+    // Same as BasePacked16ToInt.expand, for all lanes at once
+    private static IntVector channel(IntVector packed, int shift, int bits) {
+        IntVector value = packed.lanewise(VectorOperators.LSHR, shift).and((1 << bits) - 1);
+        if (bits == 1) {
+            return value.neg().and(0xFF);
+        } else {
+            return value.lanewise(VectorOperators.LSHL, 8 - bits)
+                    .or(value.lanewise(VectorOperators.LSHR, 2 * bits - 8));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Uses the experimental JDK incubator vector API to un-premultiply the pixels
+ * converted by a straight-alpha SIMD conversion. The reciprocal of alpha is computed with
+ * a float vector division, instead of looking it up in a table. Vectors of pixels that are
+ * all fully opaque or all fully transparent skip the division.
+ */
+final class SIMDPremultipliedConversion implements RGBColorToIntConversion {
+    // Vector operations are only fast with a constant species, so these must be static final
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOAT_SPECIES = INT_SPECIES.withLanes(float.class);
+    // Adding 2^23 to a float between 0 and 2^23 rounds it to the nearest integer, stored in the low bits.
+    // This is used instead of a float to int conversion, which is not always compiled to vector instructions.
+    private static final float ROUNDING = 8388608.0f;
+    private static final int ROUNDING_BITS = Float.floatToRawIntBits(ROUNDING);
+    private final BasePremultipliedToInt base;
+    private final RGBColorToIntConversion straight;
+
+    SIMDPremultipliedConversion(BasePremultipliedToInt base, RGBColorToIntConversion straight) {
+        this.base = base;
+        this.straight = straight;
+    }
+
+    @Override
+    public boolean isUsingSIMD() {
+        return true;
+    }
+
+    @Override
+    public RGBColorToIntConversion noSIMD() {
+        return base;
+    }
+
+    @Override
+    public boolean hasTransparency() {
+        return true;
+    }
+
+    @Override
+    public int singleBytesInputLength() {
+        return straight.singleBytesInputLength();
+    }
+
+    @Override
+    public int singleBytesToInt(byte[] input, int inputOffset) {
+        return base.singleBytesToInt(input, inputOffset);
+    }
+
+    @Override
+    public int singleIntToInt(int input) {
+        return base.singleIntToInt(input);
+    }
+
+    @Override
+    public int byteBlockInputLength() {
+        return straight.byteBlockInputLength();
+    }
+
+    @Override
+    public int byteBlockInputMinimumLength() {
+        return straight.byteBlockInputMinimumLength();
+    }
+
+    @Override
+    public int byteBlockConvert32Pixels(byte[] input, int inputOffset, int[] output, int outputOffset) {
+        inputOffset = straight.byteBlockConvert32Pixels(input, inputOffset, output, outputOffset);
+        unpremultiply(output, outputOffset);
+        return inputOffset;
+    }
+
+    @Override
+    public int intBlockConvert32Pixels(int[] input, int inputOffset, int[] output, int outputOffset) {
+        inputOffset = straight.intBlockConvert32Pixels(input, inputOffset, output, outputOffset);
+        unpremultiply(output, outputOffset);
+        return inputOffset;
+    }
+
+    @Override
+    public int alphaMaskBlock32Pixels(int[] buffer, int bufferOffset, int alphaThreshold) {
+        return SIMDColorConversion.alphaMask32Pixels(buffer, bufferOffset, alphaThreshold);
+    }
+
+    private static void unpremultiply(int[] pixels, int offset) {
+        for (int i = 0; i < 32; i += INT_SPECIES.length()) {
+            IntVector rgba = IntVector.fromArray(INT_SPECIES, pixels, offset + i);
+
+            // Fully opaque pixels are already straight, fully transparent pixels convert to 0
+            if (rgba.compare(VectorOperators.UNSIGNED_GE, 0xFF000000).allTrue()) {
+                continue;
+            } else if (rgba.compare(VectorOperators.UNSIGNED_LT, 0x01000000).allTrue()) {
+                IntVector.zero(INT_SPECIES).intoArray(pixels, offset + i);
+                continue;
+            }
+
+            IntVector alpha = rgba.lanewise(VectorOperators.LSHR, 24);
+            FloatVector reciprocal = FloatVector.broadcast(FLOAT_SPECIES, 255.0f)
+                    .div((FloatVector) alpha.max(1).convert(VectorOperators.I2F, 0));
+            unpremultiply(rgba, alpha, reciprocal, 0)
+                    .or(unpremultiply(rgba, alpha, reciprocal, 8).lanewise(VectorOperators.LSHL, 8))
+                    .or(unpremultiply(rgba, alpha, reciprocal, 16).lanewise(VectorOperators.LSHL, 16))
+                    .or(rgba.and(0xFF000000))
+                    .intoArray(pixels, offset + i);
+        }
+    }
+
+    private static IntVector unpremultiply(IntVector rgba, IntVector alpha, FloatVector reciprocal, int shift) {
+        // Limiting the channel to alpha keeps the result from going above 255
+        FloatVector channel = (FloatVector) rgba.lanewise(VectorOperators.LSHR, shift)
+                .and(0xFF)
+                .min(alpha)
+                .convert(VectorOperators.I2F, 0);
+        return channel.mul(reciprocal)
+                .add(ROUNDING)
+                .reinterpretAsInts()
+                .sub(ROUNDING_BITS);
+    }
+}
@@ -0,0 +1,130 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Uses the experimental JDK incubator vector API to convert rows of YUV pixels
+ * to RGBA. The Y, U and V values of a vector of pixels are widened to ints,
+ * with the shared U and V values duplicated for every two pixels using a shuffle.
+ */
+final class SIMDYUVRowConversion extends YUVRowConversion {
+    // Vector operations are only fast with a constant species, so these must be static final
+    // Bytes are loaded with a quarter of the int vector size, or the smallest shape if that is too small,
+    // and widened to ints. Half-width chroma planes are loaded the same way, and only the first half is used,
+    // because widening a smaller vector into a larger int vector is much slower.
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int PIXELS = INT_SPECIES.length();
+    private static final VectorSpecies<Byte> LUMA_SPECIES = ByteVector.SPECIES_PREFERRED.withShape(
+            VectorShape.forBitSize(Math.max(64, PIXELS * 8)));
+    private static final VectorSpecies<Byte> PACKED_SPECIES = ByteVector.SPECIES_PREFERRED.withShape(
+            VectorShape.forBitSize(Math.max(64, PIXELS * 16)));
+    private static final VectorShuffle<Integer> DUPLICATE = VectorShuffle.fromOp(INT_SPECIES, i -> i >> 1);
+    private static final VectorShuffle<Integer> EVEN = VectorShuffle.fromOp(INT_SPECIES, i -> i & ~1);
+    private static final VectorShuffle<Integer> ODD = VectorShuffle.fromOp(INT_SPECIES, i -> i | 1);
+    private final YUVRowConversion base;
+
+    SIMDYUVRowConversion(YUVRowConversion base) {
+        super(base);
+        this.base = base;
+    }
+
+    @Override
+    public boolean isUsingSIMD() {
+        return true;
+    }
+
+    @Override
+    public YUVRowConversion noSIMD() {
+        return base;
+    }
+
+    @Override
+    public void convertRow(byte[] data, int lumaOffset, int chromaUOffset, int chromaVOffset, int[] output, int outputOffset, int width) {
+        // Vectors of pixels are converted while all the bytes loaded are inside the data,
+        // the remaining pixels are converted one at a time
+        int i;
+        switch (format) {
+        case I420:
+            i = convertPlanar(data, lumaOffset, chromaUOffset, chromaVOffset, output, outputOffset, width);
+            break;
+        case NV12:
+            i = convertSemiPlanar(data, lumaOffset, chromaUOffset, output, outputOffset, width);
+            break;
+        default:
+            i = convertPacked(data, lumaOffset, output, outputOffset, width);
+            break;
+        }
+        if (i < width) {
+            int chroma = (i >> 1) * format.chromaStep;
+            base.convertRow(data, lumaOffset + i * format.lumaStep, chromaUOffset + chroma, chromaVOffset + chroma,
+                    output, outputOffset + i, width - i);
+        }
+    }
+
+    private int convertPlanar(byte[] data, int lumaOffset, int chromaUOffset, int chromaVOffset, int[] output, int outputOffset, int width) {
+        int lumaEnd = Math.min(width, data.length - lumaOffset - LUMA_SPECIES.length() + PIXELS);
+        int chromaEnd = 2 * (data.length - Math.max(chromaUOffset, chromaVOffset) - LUMA_SPECIES.length()) + PIXELS;
+        int end = Math.min(lumaEnd, chromaEnd);
+        int i = 0;
+        for (; i + PIXELS <= end; i += PIXELS) {
+            IntVector y = widen(LUMA_SPECIES, data, lumaOffset + i);
+            IntVector u = widen(LUMA_SPECIES, data, chromaUOffset + (i >> 1)).rearrange(DUPLICATE);
+            IntVector v = widen(LUMA_SPECIES, data, chromaVOffset + (i >> 1)).rearrange(DUPLICATE);
+            toRGBA(y, u, v).intoArray(output, outputOffset + i);
+        }
+        return i;
+    }
+
+    private int convertSemiPlanar(byte[] data, int lumaOffset, int chromaOffset, int[] output, int outputOffset, int width) {
+        int lumaEnd = Math.min(width, data.length - lumaOffset - LUMA_SPECIES.length() + PIXELS);
+        int chromaEnd = data.length - chromaOffset - LUMA_SPECIES.length() + PIXELS;
+        int end = Math.min(lumaEnd, chromaEnd);
+        int i = 0;
+        for (; i + PIXELS <= end; i += PIXELS) {
+            IntVector y = widen(LUMA_SPECIES, data, lumaOffset + i);
+            IntVector uv = widen(LUMA_SPECIES, data, chromaOffset + i);
+            toRGBA(y, uv.rearrange(EVEN), uv.rearrange(ODD)).intoArray(output, outputOffset + i);
+        }
+        return i;
+    }
+
+    private int convertPacked(byte[] data, int offset, int[] output, int outputOffset, int width) {
+        int end = Math.min(width, Math.floorDiv(data.length - offset - PACKED_SPECIES.length(), 2) + PIXELS);
+        int i = 0;
+        for (; i + PIXELS <= end; i += PIXELS) {
+            // Every pixel is a Y byte followed by alternately the U and V byte
+            IntVector packed = (IntVector) ByteVector.fromArray(PACKED_SPECIES, data, offset + 2 * i)
+                    .reinterpretAsShorts()
+                    .convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+            IntVector chroma = packed.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            toRGBA(packed.and(0xFF), chroma.rearrange(EVEN), chroma.rearrange(ODD)).intoArray(output, outputOffset + i);
+        }
+        return i;
+    }
+
+    private static IntVector widen(VectorSpecies<Byte> species, byte[] data, int offset) {
+        return ((IntVector) ByteVector.fromArray(species, data, offset)
+                .convertShape(VectorOperators.B2I, INT_SPECIES, 0))
+                .and(0xFF);
+    }
+
+    private IntVector toRGBA(IntVector y, IntVector u, IntVector v) {
+        IntVector luma = y.sub(lumaBias).mul(lumaScale).add(ROUNDING);
+        IntVector cb = u.sub(128);
+        IntVector cr = v.sub(128);
+        IntVector r = clamp(luma.add(cr.mul(redV)));
+        IntVector g = clamp(luma.sub(cb.mul(greenU)).sub(cr.mul(greenV)));
+        IntVector b = clamp(luma.add(cb.mul(blueU)));
+        return r.or(g.lanewise(VectorOperators.LSHL, 8))
+                .or(b.lanewise(VectorOperators.LSHL, 16));
+    }
+
+    private static IntVector clamp(IntVector value) {
+        return value.lanewise(VectorOperators.ASHR, FRACTION_BITS).max(0).min(255);
+    }
+}
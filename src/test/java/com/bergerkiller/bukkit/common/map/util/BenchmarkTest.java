@@ -5,7 +5,11 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 public class BenchmarkTest {
     public static final byte[] mapping = new byte[16777217];
@@ -54,6 +58,603 @@ public class BenchmarkTest {
                 "\t\tsimd=" + numberFormat.format(simd_cps) + " ops/s");
     }
 
+    @ParameterizedTest
+    @CsvSource({
+            "BYTE_RGB,   test_minecraft.jpg",
+            "BYTE_ARGB,  test_leafeon.png",
+            "INT_RGB,    test_minecraft.jpg",
+            "INT_ARGB,   test_leafeon.png",
+    })
+    public void benchmarkDecodeInto(TestImage.Type type, String imageName) {
+        double callback_cps = TestImage.load(imageName, type)
+                .convert(TestImage.ConvertMode.SIMD, TestImage.DecodeMode.CALLBACK) // Prime
+                .assertCorrect(TestImage.DebugMode.SHOW_IMAGE_ON_FAILURE)
+                .benchmarkPrime(TestImage.ConvertMode.SIMD, TestImage.DecodeMode.CALLBACK, 100)
+                .benchmark(TestImage.ConvertMode.SIMD, TestImage.DecodeMode.CALLBACK, 1000);
+
+        double into_cps = TestImage.load(imageName, type)
+                .convert(TestImage.ConvertMode.SIMD, TestImage.DecodeMode.INTO) // Prime
+                .assertCorrect(TestImage.DebugMode.SHOW_IMAGE_ON_FAILURE)
+                .benchmarkPrime(TestImage.ConvertMode.SIMD, TestImage.DecodeMode.INTO, 100)
+                .benchmark(TestImage.ConvertMode.SIMD, TestImage.DecodeMode.INTO, 1000);
+
+        System.err.println("[" + type + "] decodeInto " + numberFormat.format(into_cps / callback_cps) + "x" +
+                "\t\tcallback=" + numberFormat.format(callback_cps) + " ops/s" +
+                "\t\tinto=" + numberFormat.format(into_cps) + " ops/s");
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BYTE_RGB,   test_minecraft.jpg",
+            "BYTE_ARGB,  test_leafeon.png",
+            "INT_RGB,    test_minecraft.jpg",
+            "INT_ARGB,   test_leafeon.png",
+    })
+    public void benchmarkDecodeToPalette(TestImage.Type type, String imageName) {
+        double callback_cps = TestImage.load(imageName, type)
+                .convertToPalette(TestImage.ConvertMode.SIMD, TestImage.PaletteMode.CALLBACK, mapping) // Prime
+                .assertPaletteCorrect(mapping)
+                .benchmarkPalettePrime(TestImage.ConvertMode.SIMD, TestImage.PaletteMode.CALLBACK, mapping, 100)
+                .benchmarkPalette(TestImage.ConvertMode.SIMD, TestImage.PaletteMode.CALLBACK, mapping, 1000);
+
+        double fused_cps = TestImage.load(imageName, type)
+                .convertToPalette(TestImage.ConvertMode.SIMD, TestImage.PaletteMode.FUSED, mapping) // Prime
+                .assertPaletteCorrect(mapping)
+                .benchmarkPalettePrime(TestImage.ConvertMode.SIMD, TestImage.PaletteMode.FUSED, mapping, 100)
+                .benchmarkPalette(TestImage.ConvertMode.SIMD, TestImage.PaletteMode.FUSED, mapping, 1000);
+
+        System.err.println("[" + type + "] decodeToPalette " + numberFormat.format(fused_cps / callback_cps) + "x" +
+                "\t\tcallback=" + numberFormat.format(callback_cps) + " ops/s" +
+                "\t\tfused=" + numberFormat.format(fused_cps) + " ops/s");
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BYTE_ARGB,  test_leafeon.png",
+            "INT_ARGB,   test_leafeon.png",
+    })
+    public void benchmarkSkewedConsumerCost(TestImage.Type type, String imageName) {
+        // Opaque pixels are expensive to consume, transparent pixels are cheap
+        // With one slice per thread, the thread decoding the most opaque pixels slows down everything
+        TestImage<?> image = TestImage.load(imageName, type);
+        final int parallelism = 4;
+        final int sliceSize = ((image.truth.length / parallelism) + 31) & ~31;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            benchmarkSkewedDecode(image, pool, parallelism, sliceSize, 10); // Prime
+            benchmarkSkewedDecode(image, pool, parallelism, 32 * 16, 10); // Prime
+            long[] sliced = benchmarkSkewedDecode(image, pool, parallelism, sliceSize, 50);
+            long[] chunked = benchmarkSkewedDecode(image, pool, parallelism, 32 * 16, 50);
+            System.err.println("[" + type + "] skewed consumer" +
+                    "\t\tsliced avg=" + formatMillis(sliced[0]) + " max=" + formatMillis(sliced[1]) +
+                    "\t\tchunked avg=" + formatMillis(chunked[0]) + " max=" + formatMillis(chunked[1]));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long[] benchmarkSkewedDecode(TestImage<?> image, ForkJoinPool pool, int parallelism, int chunkSize, int cycleCount) {
+        RGBColorToIntConversion.Decoder decoder = new RGBColorToIntConversion.Decoder(image.type.conversion(TestImage.ConvertMode.SIMD)) {
+            @Override
+            public void onPixel(int index, int rgba) {
+                if ((rgba & 0x80000000) != 0) {
+                    // Simulate an expensive consumer
+                    int h = rgba;
+                    for (int i = 0; i < 64; i++) {
+                        h = h * 31 + (h >>> 7);
+                    }
+                    image.mapResult[index] = (byte) h;
+                } else {
+                    image.mapResult[index] = 0;
+                }
+            }
+        }.parallelism(parallelism).executor(pool).chunkSize(chunkSize);
+
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < cycleCount; i++) {
+            long start = System.nanoTime();
+            if (image instanceof TestImage.TestImageByte) {
+                decoder.decode(((TestImage.TestImageByte) image).data, image.mapResult.length);
+            } else {
+                decoder.decode(((TestImage.TestImageInt) image).data, image.mapResult.length);
+            }
+            long duration = System.nanoTime() - start;
+            total += duration;
+            max = Math.max(max, duration);
+        }
+        return new long[] { total / cycleCount, max };
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BYTE_RGB,   test_minecraft.jpg",
+            "BYTE_BGR,   test_minecraft.jpg",
+            "BYTE_ARGB,  test_leafeon.png",
+            "INT_RGB,    test_minecraft.jpg",
+            "INT_ARGB,   test_leafeon.png",
+    })
+    public void benchmarkEncodeInto(TestImage.Type type, String imageName) {
+        TestImage<?> image = TestImage.load(imageName, type);
+        benchmarkEncode(image, TestImage.ConvertMode.BASE, 100); // Prime
+        benchmarkEncode(image, TestImage.ConvertMode.SIMD, 100); // Prime
+        long base = benchmarkEncode(image, TestImage.ConvertMode.BASE, 1000);
+        long simd = benchmarkEncode(image, TestImage.ConvertMode.SIMD, 1000);
+
+        System.err.println("[" + type + "] encodeInto " + numberFormat.format((double) base / simd) + "x" +
+                "\t\tbase=" + formatMillis(base) +
+                "\t\tsimd=" + formatMillis(simd));
+    }
+
+    private static long benchmarkEncode(TestImage<?> image, TestImage.ConvertMode mode, int cycleCount) {
+        RGBColorToIntConversion conversion = image.type.conversion(mode);
+        byte[] bytes = new byte[image.truth.length * conversion.singleBytesInputLength()];
+        int[] ints = new int[image.truth.length];
+        long start = System.nanoTime();
+        for (int i = 0; i < cycleCount; i++) {
+            if (image instanceof TestImage.TestImageByte) {
+                conversion.encodeInto(image.truth, 0, bytes, 0, image.truth.length);
+            } else {
+                conversion.encodeInto(image.truth, 0, ints, 0, image.truth.length);
+            }
+        }
+        return (System.nanoTime() - start) / cycleCount;
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BYTE_RGB,   test_minecraft.jpg",
+            "BYTE_ARGB,  test_leafeon.png",
+            "INT_RGB,    test_minecraft.jpg",
+            "INT_ARGB,   test_leafeon.png",
+    })
+    public void benchmarkDeltaDecode(TestImage.Type type, String imageName) {
+        // Two frames that only differ in a 64x64 square, like a mostly static video
+        TestImage<?> frameA = TestImage.load(imageName, type);
+        TestImage<?> frameB = TestImage.load(imageName, type);
+        int step = (frameB instanceof TestImage.TestImageByte) ? type.conversion(TestImage.ConvertMode.SIMD).singleBytesInputLength() : 1;
+        for (int y = 0; y < Math.min(64, frameB.height); y++) {
+            for (int x = 0; x < Math.min(64, frameB.width); x++) {
+                int index = (y * frameB.width + x) * step;
+                if (frameB instanceof TestImage.TestImageByte) {
+                    ((TestImage.TestImageByte) frameB).data[index] ^= 0x55;
+                } else {
+                    ((TestImage.TestImageInt) frameB).data[index] ^= 0x55;
+                }
+            }
+        }
+
+        RGBColorToIntConversion conversion = type.conversion(TestImage.ConvertMode.SIMD);
+        DeltaDecoder delta = new DeltaDecoder(conversion, frameA.width, frameA.height);
+        int[] result = new int[frameA.truth.length];
+        benchmarkFrames(frameA, frameB, 100, frame -> decodeFrameInto(conversion, frame, result)); // Prime
+        benchmarkFrames(frameA, frameB, 100, frame -> decodeFrameDelta(delta, frame)); // Prime
+        long full = benchmarkFrames(frameA, frameB, 1000, frame -> decodeFrameInto(conversion, frame, result));
+        long changed = benchmarkFrames(frameA, frameB, 1000, frame -> decodeFrameDelta(delta, frame));
+
+        System.err.println("[" + type + "] delta decode " + numberFormat.format((double) full / changed) + "x" +
+                "\t\tfull=" + formatMillis(full) +
+                "\t\tdelta=" + formatMillis(changed));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "RGB565,    test_minecraft.jpg",
+            "RGB555,    test_minecraft.jpg",
+            "ARGB1555,  test_leafeon.png",
+            "ARGB4444,  test_leafeon.png",
+    })
+    public void benchmarkPacked16(String format, String imageName) throws Exception {
+        RGBColorToIntConversion conversion = (RGBColorToIntConversion) RGBColorToIntConversion.class.getField(format).get(null);
+        int[] truth = TestImage.load(imageName, TestImage.Type.INT_ARGB).truth;
+        int[] packed = new int[truth.length];
+        conversion.encodeInto(truth, 0, packed, 0, truth.length);
+        short[] data = new short[truth.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) packed[i];
+        }
+
+        int[] result = new int[truth.length];
+        benchmarkShorts(conversion.noSIMD(), data, result, 100); // Prime
+        benchmarkShorts(conversion, data, result, 100); // Prime
+        long base = benchmarkShorts(conversion.noSIMD(), data, result, 1000);
+        long simd = benchmarkShorts(conversion, data, result, 1000);
+
+        System.err.println("[" + format + "] decodeInto short[] " + numberFormat.format((double) base / simd) + "x" +
+                "\t\tbase=" + formatMillis(base) +
+                "\t\tsimd=" + formatMillis(simd));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "256", "16" })
+    public void benchmarkIndexed(int colorCount) {
+        Random random = new Random(colorCount);
+        byte[] palette = new byte[colorCount * 3];
+        random.nextBytes(palette);
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.indexed(palette, RGBColorToIntConversion.RGB);
+        int[] truth = TestImage.load("test_minecraft.jpg", TestImage.Type.INT_ARGB).truth;
+        byte[] data = new byte[truth.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) random.nextInt(colorCount);
+        }
+
+        int[] result = new int[truth.length];
+        benchmarkBytes(conversion.noSIMD(), data, result, 100); // Prime
+        benchmarkBytes(conversion, data, result, 100); // Prime
+        long base = benchmarkBytes(conversion.noSIMD(), data, result, 1000);
+        long simd = benchmarkBytes(conversion, data, result, 1000);
+
+        System.err.println("[INDEXED " + colorCount + " colors] decodeInto byte[] " + numberFormat.format((double) base / simd) + "x" +
+                "\t\tbase=" + formatMillis(base) +
+                "\t\tsimd=" + formatMillis(simd));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "GRAY8", "GRAY_ALPHA" })
+    public void benchmarkGray(String format) throws Exception {
+        RGBColorToIntConversion conversion = (RGBColorToIntConversion) RGBColorToIntConversion.class.getField(format).get(null);
+        int[] truth = TestImage.load("test_minecraft.jpg", TestImage.Type.INT_ARGB).truth;
+        byte[] data = new byte[truth.length * conversion.singleBytesInputLength()];
+        new Random(0).nextBytes(data);
+
+        int[] result = new int[truth.length];
+        benchmarkBytes(conversion.noSIMD(), data, result, 100); // Prime
+        benchmarkBytes(conversion, data, result, 100); // Prime
+        long base = benchmarkBytes(conversion.noSIMD(), data, result, 1000);
+        long simd = benchmarkBytes(conversion, data, result, 1000);
+
+        System.err.println("[" + format + "] decodeInto byte[] " + numberFormat.format((double) base / simd) + "x" +
+                "\t\tbase=" + formatMillis(base) +
+                "\t\tsimd=" + formatMillis(simd));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "I420", "NV12", "YUYV" })
+    public void benchmarkYUV(YUVDecoder.Format format) {
+        int width = 1280, height = 720;
+        YUVDecoder decoder = new YUVDecoder(format).parallelism(1);
+        byte[] data = new byte[decoder.getFrameLength(width, height)];
+        new Random(0).nextBytes(data);
+
+        int[] result = new int[width * height];
+        benchmarkYUV(decoder.useSIMD(false), data, width, height, result, 20); // Prime
+        benchmarkYUV(decoder.useSIMD(true), data, width, height, result, 20); // Prime
+        long base = benchmarkYUV(decoder.useSIMD(false), data, width, height, result, 200);
+        long simd = benchmarkYUV(decoder.useSIMD(true), data, width, height, result, 200);
+        long parallel = benchmarkYUV(decoder.parallelism(Runtime.getRuntime().availableProcessors()), data, width, height, result, 200);
+
+        System.err.println("[YUV " + format + "] decode " + width + "x" + height + " " + numberFormat.format((double) base / simd) + "x" +
+                "\t\tbase=" + formatMillis(base) +
+                "\t\tsimd=" + formatMillis(simd) +
+                "\t\tsimd+parallel=" + formatMillis(parallel));
+    }
+
+    private static long benchmarkYUV(YUVDecoder decoder, byte[] data, int width, int height, int[] result, int cycleCount) {
+        int stride = (decoder.getFormat() == YUVDecoder.Format.YUYV) ? (width * 2) : width;
+        long start = System.nanoTime();
+        for (int i = 0; i < cycleCount; i++) {
+            decoder.decodeInto(data, 0, stride, width, height, result, 0);
+        }
+        return (System.nanoTime() - start) / cycleCount;
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "test_leafeon.png", "test_minecraft.jpg" })
+    public void benchmarkPremultiplied(String imageName) {
+        int[] truth = TestImage.load(imageName, TestImage.Type.INT_ARGB).truth;
+        int[] premultiplied = new int[truth.length];
+        for (int i = 0; i < truth.length; i++) {
+            int alpha = truth[i] >>> 24;
+            int r = ((truth[i] & 0xFF) * alpha + 127) / 255;
+            int g = (((truth[i] >> 8) & 0xFF) * alpha + 127) / 255;
+            int b = (((truth[i] >> 16) & 0xFF) * alpha + 127) / 255;
+            premultiplied[i] = r | (g << 8) | (b << 16) | (alpha << 24);
+        }
+        byte[] data = new byte[truth.length * 4];
+        RGBColorToIntConversion.ARGB.encodeInto(premultiplied, 0, data, 0, truth.length);
+
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.ARGB_PRE;
+        int[] result = new int[truth.length];
+        benchmarkBytes(conversion.noSIMD(), data, result, 100); // Prime
+        benchmarkBytes(conversion, data, result, 100); // Prime
+        benchmarkBytes(RGBColorToIntConversion.ARGB, data, result, 100); // Prime
+        long base = benchmarkBytes(conversion.noSIMD(), data, result, 1000);
+        long simd = benchmarkBytes(conversion, data, result, 1000);
+        long straight = benchmarkBytes(RGBColorToIntConversion.ARGB, data, result, 1000);
+
+        System.err.println("[ARGB_PRE " + imageName + "] decodeInto byte[] " + numberFormat.format((double) base / simd) + "x" +
+                "\t\tbase=" + formatMillis(base) +
+                "\t\tsimd=" + formatMillis(simd) +
+                "\t\tstraight ARGB simd=" + formatMillis(straight));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "test_leafeon.png", "test_minecraft.jpg" })
+    public void benchmarkAlphaFill(String imageName) {
+        int[] truth = TestImage.load(imageName, TestImage.Type.INT_ARGB).truth;
+        byte[] data = new byte[truth.length * 3];
+        RGBColorToIntConversion.RGB.encodeInto(truth, 0, data, 0, truth.length);
+
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.RGB.withAlphaFill(255);
+        int[] result = new int[truth.length];
+        Runnable secondPass = () -> {
+            RGBColorToIntConversion.RGB.decodeInto(data, 0, result, 0, result.length);
+            for (int i = 0; i < result.length; i++) {
+                result[i] |= 0xFF000000;
+            }
+        };
+        benchmarkBytes(conversion.noSIMD(), data, result, 100); // Prime
+        benchmarkBytes(conversion, data, result, 100); // Prime
+        benchmarkRunnable(secondPass, 100); // Prime
+        long base = benchmarkBytes(conversion.noSIMD(), data, result, 1000);
+        long simd = benchmarkBytes(conversion, data, result, 1000);
+        long twoPass = benchmarkRunnable(secondPass, 1000);
+
+        System.err.println("[RGB alpha fill " + imageName + "] decodeInto byte[] " + numberFormat.format((double) base / simd) + "x" +
+                "\t\tbase=" + formatMillis(base) +
+                "\t\tsimd=" + formatMillis(simd) +
+                "\t\tsimd + second pass=" + formatMillis(twoPass));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "test_leafeon.png", "test_minecraft.jpg" })
+    public void benchmarkAlphaMask(String imageName) {
+        int[] truth = TestImage.load(imageName, TestImage.Type.INT_ARGB).truth;
+        byte[] data = new byte[truth.length * 4];
+        RGBColorToIntConversion.ARGB.encodeInto(truth, 0, data, 0, truth.length);
+
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.ARGB;
+        int[] result = new int[truth.length];
+        long[] mask = new long[(truth.length + 63) / 64];
+        Runnable baseMask = () -> conversion.noSIMD().decodeInto(data, 0, result, 0, result.length, mask, 128);
+        Runnable simdMask = () -> conversion.decodeInto(data, 0, result, 0, result.length, mask, 128);
+        Runnable secondPass = () -> {
+            conversion.decodeInto(data, 0, result, 0, result.length);
+            Arrays.fill(mask, 0L);
+            for (int i = 0; i < result.length; i++) {
+                if ((result[i] >>> 24) >= 128) {
+                    mask[i >> 6] |= 1L << i;
+                }
+            }
+        };
+        benchmarkRunnable(baseMask, 100); // Prime
+        benchmarkRunnable(simdMask, 100); // Prime
+        benchmarkRunnable(secondPass, 100); // Prime
+        benchmarkBytes(conversion, data, result, 100); // Prime
+        long base = benchmarkRunnable(baseMask, 1000);
+        long simd = benchmarkRunnable(simdMask, 1000);
+        long twoPass = benchmarkRunnable(secondPass, 1000);
+        long noMask = benchmarkBytes(conversion, data, result, 1000);
+
+        System.err.println("[ARGB alpha mask " + imageName + "] decodeInto byte[] " + numberFormat.format((double) base / simd) + "x" +
+                "\t\tbase=" + formatMillis(base) +
+                "\t\tsimd=" + formatMillis(simd) +
+                "\t\tsimd + second pass=" + formatMillis(twoPass) +
+                "\t\tsimd without mask=" + formatMillis(noMask));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "ORDERED", "ERROR_DIFFUSION" })
+    public void benchmarkDither(Ditherer.Mode mode) {
+        TestImage<?> image = TestImage.load("test_minecraft.jpg", TestImage.Type.INT_ARGB);
+        byte[] data = new byte[image.truth.length * 3];
+        RGBColorToIntConversion.RGB.encodeInto(image.truth, 0, data, 0, image.truth.length);
+
+        int[] colors = new int[256];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = i;
+        }
+        Ditherer.Palette palette = Ditherer.Palette.of(mapping, colors);
+        Ditherer single = new Ditherer(RGBColorToIntConversion.RGB, palette, mode).parallelism(1);
+        Ditherer parallel = new Ditherer(RGBColorToIntConversion.RGB, palette, mode);
+        byte[] result = new byte[image.truth.length];
+        Runnable singleTask = () -> single.decode(data, 0, 3 * image.width, image.width, image.height, result, 0);
+        Runnable parallelTask = () -> parallel.decode(data, 0, 3 * image.width, image.width, image.height, result, 0);
+        benchmarkRunnable(singleTask, 100); // Prime
+        benchmarkRunnable(parallelTask, 100); // Prime
+        long singleTime = benchmarkRunnable(singleTask, 500);
+        long parallelTime = benchmarkRunnable(parallelTask, 500);
+
+        System.err.println("[Dither " + mode + "] parallel " + numberFormat.format((double) singleTime / parallelTime) + "x" +
+                "\t\tsingle=" + formatMillis(singleTime) +
+                "\t\tparallel=" + formatMillis(parallelTime) +
+                "\t\tthreads=" + ForkJoinPool.commonPool().getParallelism());
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "RGB", "BGRA" })
+    public void benchmarkPartialRows(String layout) {
+        // Rows of 45 pixels, so that a third of every row is a tail shorter than a block
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.ofLayout(layout);
+        TestImage<?> image = TestImage.load("test_minecraft.jpg", TestImage.Type.INT_ARGB);
+        final int rowLength = 45;
+        final int rowCount = image.truth.length / rowLength;
+        byte[] data = new byte[image.truth.length * conversion.singleBytesInputLength()];
+        conversion.encodeInto(image.truth, 0, data, 0, image.truth.length);
+        int[] result = new int[image.truth.length];
+        Consumer<RGBColorToIntConversion> decodeRows = c -> {
+            int stride = c.singleBytesInputLength();
+            for (int row = 0; row < rowCount; row++) {
+                c.decodeInto(data, row * rowLength * stride, result, row * rowLength, rowLength);
+            }
+        };
+        Runnable baseTask = () -> decodeRows.accept(conversion.noSIMD());
+        Runnable simdTask = () -> decodeRows.accept(conversion);
+        benchmarkRunnable(baseTask, 100); // Prime
+        benchmarkRunnable(simdTask, 100); // Prime
+        long baseTime = benchmarkRunnable(baseTask, 1000);
+        long simdTime = benchmarkRunnable(simdTask, 1000);
+
+        System.err.println("[Partial rows " + layout + "] SIMD " + numberFormat.format((double) baseTime / simdTime) + "x" +
+                "\t\tbase=" + formatMillis(baseTime) +
+                "\t\tsimd=" + formatMillis(simdTime));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "RGB", "BGRA" })
+    public void benchmarkBlockSize(String layout) {
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.ofLayout(layout);
+        TestImage<?> image = TestImage.load("test_minecraft.jpg", TestImage.Type.INT_ARGB);
+        byte[] data = new byte[image.truth.length * conversion.singleBytesInputLength()];
+        conversion.encodeInto(image.truth, 0, data, 0, image.truth.length);
+        int[] result = new int[image.truth.length];
+
+        StringBuilder str = new StringBuilder();
+        str.append("[Block size ").append(layout).append("] preferred=").append(conversion.preferredBlockSize());
+        for (int blockSize : new int[] { 32, 64, 128, 256, 1024 }) {
+            RGBColorToIntConversion.Decoder decoder = new RGBColorToIntConversion.Decoder(conversion) {
+                @Override
+                public void onBlock(int startIndex, int[] rgba, int count) {
+                    System.arraycopy(rgba, 0, result, startIndex, count);
+                }
+
+                @Override
+                public void onPixel(int index, int rgba) {
+                    result[index] = rgba;
+                }
+            }.blockSize(blockSize).parallelism(1);
+            Runnable task = () -> decoder.decode(data, image.truth.length);
+            benchmarkRunnable(task, 200); // Prime
+            str.append("\t\t").append(blockSize).append('=').append(formatMillis(benchmarkRunnable(task, 1000)));
+        }
+        System.err.println(str);
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "RGB", "BGR", "ARGB", "ABGR" })
+    public void benchmarkVectorBitSize(String format) throws Exception {
+        // Mixing vector sizes in one JVM keeps the JIT from compiling any of them well, so only the
+        // vector size of the default conversions is measured. To measure other vector sizes, run again
+        // with the colorconversion.simd.species system property set to 64, 128, 256 or 512.
+        RGBColorToIntConversion conversion = (RGBColorToIntConversion) RGBColorToIntConversion.class.getField(format).get(null);
+        TestImage<?> image = TestImage.load("test_minecraft.jpg", TestImage.Type.INT_ARGB);
+        byte[] bytes = new byte[image.truth.length * conversion.singleBytesInputLength()];
+        int[] ints = new int[image.truth.length];
+        conversion.encodeInto(image.truth, 0, bytes, 0, image.truth.length);
+        conversion.encodeInto(image.truth, 0, ints, 0, image.truth.length);
+        int[] result = new int[image.truth.length];
+
+        Runnable byteTask = () -> conversion.decodeInto(bytes, 0, result, 0, result.length);
+        Runnable intTask = () -> conversion.decodeInto(ints, 0, result, 0, result.length);
+        benchmarkRunnable(byteTask, 200); // Prime
+        benchmarkRunnable(intTask, 200); // Prime
+        long byteTime = benchmarkRunnable(byteTask, 1000);
+        long intTime = benchmarkRunnable(intTask, 1000);
+
+        System.err.println("[Vector size " + format + "] bits=" + conversion.getVectorBitSize() +
+                "\t\tbyte=" + formatMillis(byteTime) + " (" + numberFormat.format((double) result.length / byteTime * 1000.0) + " Mpx/s)" +
+                "\t\tint=" + formatMillis(intTime) + " (" + numberFormat.format((double) result.length / intTime * 1000.0) + " Mpx/s)");
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "1", "0" })
+    public void benchmarkPaletteLookupTable(int parallelism) {
+        // Nearest of 64 random colors, which is about as expensive to compute as the map colors
+        Random random = new Random(64);
+        int[] colors = new int[64];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt(0x1000000);
+        }
+        PaletteLookupTable.NearestColorFunction nearest = rgb -> {
+            int best = 0, bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < colors.length; i++) {
+                int dr = (rgb & 0xFF) - (colors[i] & 0xFF);
+                int dg = ((rgb >> 8) & 0xFF) - ((colors[i] >> 8) & 0xFF);
+                int db = ((rgb >> 16) & 0xFF) - ((colors[i] >> 16) & 0xFF);
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            return (byte) best;
+        };
+
+        long start = System.nanoTime();
+        PaletteLookupTable table = PaletteLookupTable.create(nearest, (byte) 0)
+                .parallelism((parallelism == 0) ? Runtime.getRuntime().availableProcessors() : parallelism);
+        table.getNearestColor(0);
+        long buildTime = System.nanoTime() - start;
+
+        int[] truth = TestImage.load("test_minecraft.jpg", TestImage.Type.INT_ARGB).truth;
+        byte[] flatMapping = new byte[16777217];
+        for (int rgb = 0; rgb < 0x1000000; rgb++) {
+            flatMapping[rgb] = table.getNearestColor(rgb);
+        }
+        byte[] result = new byte[truth.length];
+        Runnable tableLookup = () -> {
+            for (int i = 0; i + 32 <= truth.length; i += 32) {
+                table.getColors32Pixels(truth, i, false, result, i);
+            }
+        };
+        Runnable flatLookup = () -> {
+            for (int i = 0; i < truth.length; i++) {
+                result[i] = flatMapping[truth[i] & 0xFFFFFF];
+            }
+        };
+        benchmarkRunnable(tableLookup, 100); // Prime
+        benchmarkRunnable(flatLookup, 100); // Prime
+        long tableTime = benchmarkRunnable(tableLookup, 1000);
+        long flatTime = benchmarkRunnable(flatLookup, 1000);
+
+        System.err.println("[Palette lookup table, parallelism=" + parallelism + "] build=" + formatMillis(buildTime) +
+                "\t\tsize=" + (table.getSize() / 1024) + " KB" +
+                "\t\tlookup=" + formatMillis(tableTime) +
+                "\t\tflat mapping lookup=" + formatMillis(flatTime));
+    }
+
+    private static long benchmarkRunnable(Runnable task, int cycleCount) {
+        long start = System.nanoTime();
+        for (int i = 0; i < cycleCount; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / cycleCount;
+    }
+
+    private static long benchmarkBytes(RGBColorToIntConversion conversion, byte[] data, int[] result, int cycleCount) {
+        long start = System.nanoTime();
+        for (int i = 0; i < cycleCount; i++) {
+            conversion.decodeInto(data, 0, result, 0, result.length);
+        }
+        return (System.nanoTime() - start) / cycleCount;
+    }
+
+    private static long benchmarkShorts(RGBColorToIntConversion conversion, short[] data, int[] result, int cycleCount) {
+        long start = System.nanoTime();
+        for (int i = 0; i < cycleCount; i++) {
+            conversion.decodeInto(data, 0, result, 0, result.length);
+        }
+        return (System.nanoTime() - start) / cycleCount;
+    }
+
+    private static long benchmarkFrames(TestImage<?> frameA, TestImage<?> frameB, int cycleCount, Consumer<TestImage<?>> decode) {
+        long start = System.nanoTime();
+        for (int i = 0; i < cycleCount; i++) {
+            decode.accept(((i & 1) == 0) ? frameA : frameB);
+        }
+        return (System.nanoTime() - start) / cycleCount;
+    }
+
+    private static void decodeFrameInto(RGBColorToIntConversion conversion, TestImage<?> frame, int[] result) {
+        if (frame instanceof TestImage.TestImageByte) {
+            conversion.decodeInto(((TestImage.TestImageByte) frame).data, 0, result, 0, result.length);
+        } else {
+            conversion.decodeInto(((TestImage.TestImageInt) frame).data, 0, result, 0, result.length);
+        }
+    }
+
+    private static void decodeFrameDelta(DeltaDecoder delta, TestImage<?> frame) {
+        if (frame instanceof TestImage.TestImageByte) {
+            delta.decode(((TestImage.TestImageByte) frame).data, null);
+        } else {
+            delta.decode(((TestImage.TestImageInt) frame).data, null);
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return numberFormat.format(nanos / 1000000.0) + "ms";
+    }
+
     private static final NumberFormat numberFormat = createNumberFormat(1, 3);
 
     // Internal use
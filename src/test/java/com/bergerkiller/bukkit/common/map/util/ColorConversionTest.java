@@ -5,6 +5,31 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
 public class ColorConversionTest {
 
     @Test
@@ -15,6 +40,25 @@ public class ColorConversionTest {
         }
     }
 
+    @Test
+    public void testDecodeCostModelSmallTile() {
+        RGBColorToIntConversion[] conversions = new RGBColorToIntConversion[] {
+                RGBColorToIntConversion.RGB, RGBColorToIntConversion.BGR,
+                RGBColorToIntConversion.ARGB, RGBColorToIntConversion.ABGR
+        };
+        for (RGBColorToIntConversion conversion : conversions) {
+            DecodeCostModel model = conversion.costModel();
+            assertSame(model, conversion.costModel(), "Cost model is not cached");
+            assertTrue(model.isCalibrated(), "Cost model did not calibrate");
+
+            // A 128x128 tile is decoded faster than threads are started
+            assertTrue(model.computeParallelism(8, 128 * 128, true, 0.0) <= 1,
+                    model + " decodes a 128x128 byte tile on multiple threads");
+            assertTrue(model.computeParallelism(8, 128 * 128, false, 0.0) <= 1,
+                    model + " decodes a 128x128 int tile on multiple threads");
+        }
+    }
+
     @ParameterizedTest
     @CsvSource({
             // Base operations
@@ -59,4 +103,1572 @@ public class ColorConversionTest {
                 .convert(convertMode)
                 .assertCorrect(TestImage.DebugMode.DEFAULT);
     }
+
+    @ParameterizedTest
+    @CsvSource({
+            // Base operations
+            "BASE,  BYTE_RGB,   test_minecraft.jpg",
+            "BASE,  BYTE_BGR,   test_minecraft.jpg",
+            "BASE,  BYTE_ARGB,  test_leafeon.png",
+            "BASE,  BYTE_ABGR,  test_leafeon.png",
+            "BASE,  INT_RGB,    test_minecraft.jpg",
+            "BASE,  INT_BGR,    test_minecraft.jpg",
+            "BASE,  INT_ARGB,   test_leafeon.png",
+            "BASE,  INT_ABGR,   test_leafeon.png",
+
+            // SIMD optimizations (if supported on testing machine)
+            "SIMD,  BYTE_RGB,   test_minecraft.jpg",
+            "SIMD,  BYTE_BGR,   test_minecraft.jpg",
+            "SIMD,  BYTE_ARGB,  test_leafeon.png",
+            "SIMD,  BYTE_ABGR,  test_leafeon.png",
+            "SIMD,  INT_RGB,    test_minecraft.jpg",
+            "SIMD,  INT_BGR,    test_minecraft.jpg",
+            "SIMD,  INT_ARGB,   test_leafeon.png",
+            "SIMD,  INT_ABGR,   test_leafeon.png",
+    })
+    public void testColorConversionInto(TestImage.ConvertMode convertMode, TestImage.Type type, String imageName) {
+        TestImage.load(imageName, type)
+                .convert(convertMode, TestImage.DecodeMode.INTO)
+                .assertCorrect(TestImage.DebugMode.DEFAULT);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BYTE_RGB,   test_minecraft.jpg",
+            "BASE,  BYTE_ARGB,  test_leafeon.png",
+            "BASE,  INT_RGB,    test_minecraft.jpg",
+            "BASE,  INT_ARGB,   test_leafeon.png",
+            "SIMD,  BYTE_RGB,   test_minecraft.jpg",
+            "SIMD,  BYTE_ARGB,  test_leafeon.png",
+            "SIMD,  INT_RGB,    test_minecraft.jpg",
+            "SIMD,  INT_ARGB,   test_leafeon.png",
+    })
+    public void testColorConversionBlocks(TestImage.ConvertMode convertMode, TestImage.Type type, String imageName) {
+        TestImage.load(imageName, type)
+                .convert(convertMode, TestImage.DecodeMode.BLOCK)
+                .assertCorrect(TestImage.DebugMode.DEFAULT);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BYTE_RGB,   test_minecraft.jpg, BUFFER_INTO",
+            "BASE,  INT_ARGB,   test_leafeon.png,   BUFFER_INTO",
+            "SIMD,  BYTE_RGB,   test_minecraft.jpg, BUFFER_INTO",
+            "SIMD,  BYTE_BGR,   test_minecraft.jpg, BUFFER_INTO",
+            "SIMD,  BYTE_ARGB,  test_leafeon.png,   BUFFER_INTO",
+            "SIMD,  INT_RGB,    test_minecraft.jpg, BUFFER_INTO",
+            "SIMD,  INT_ABGR,   test_leafeon.png,   BUFFER_INTO",
+            "BASE,  BYTE_RGB,   test_minecraft.jpg, BUFFER_CALLBACK",
+            "SIMD,  BYTE_RGB,   test_minecraft.jpg, BUFFER_CALLBACK",
+            "SIMD,  BYTE_ARGB,  test_leafeon.png,   BUFFER_CALLBACK",
+            "SIMD,  INT_RGB,    test_minecraft.jpg, BUFFER_CALLBACK",
+            "SIMD,  INT_ARGB,   test_leafeon.png,   BUFFER_CALLBACK",
+    })
+    public void testColorConversionDirectBuffer(TestImage.ConvertMode convertMode, TestImage.Type type, String imageName, TestImage.DecodeMode decodeMode) {
+        TestImage.load(imageName, type)
+                .convert(convertMode, decodeMode)
+                .assertCorrect(TestImage.DebugMode.DEFAULT);
+    }
+
+    @Test
+    public void testBufferTooSmall() {
+        // Heap and direct buffers that are one pixel too small must both be rejected up front
+        final int pixelCount = 100;
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.RGB;
+        ByteBuffer[] byteBuffers = new ByteBuffer[] {
+                ByteBuffer.allocate(pixelCount * 3), ByteBuffer.allocateDirect(pixelCount * 3) };
+        IntBuffer[] intBuffers = new IntBuffer[] {
+                IntBuffer.allocate(pixelCount), ByteBuffer.allocateDirect(pixelCount * 4).asIntBuffer() };
+        RGBColorToIntConversion.Decoder decoder = new RGBColorToIntConversion.Decoder(conversion) {
+            @Override
+            public void onPixel(int index, int rgba) {
+                fail("Pixel decoded from a buffer that is too small");
+            }
+        }.parallelism(1);
+
+        for (int i = 0; i < byteBuffers.length; i++) {
+            ByteBuffer src = byteBuffers[i];
+            IntBuffer dst = intBuffers[i];
+            ((Buffer) src).limit(src.capacity() - 3);
+            assertThrows(IndexOutOfBoundsException.class, () -> conversion.decodeInto(src, 0, dst, 0, pixelCount));
+            assertThrows(IndexOutOfBoundsException.class, () -> decoder.decode(src, pixelCount));
+            ((Buffer) src).limit(src.capacity());
+            assertThrows(IndexOutOfBoundsException.class, () -> conversion.decodeInto(src, 3, dst, 0, pixelCount));
+            assertThrows(IndexOutOfBoundsException.class, () -> conversion.decodeInto(src, 0, dst, 1, pixelCount));
+
+            IntBuffer intSrc = intBuffers[1 - i];
+            ((Buffer) intSrc).limit(pixelCount - 1);
+            assertThrows(IndexOutOfBoundsException.class, () -> conversion.decodeInto(intSrc, 0, dst, 0, pixelCount));
+            assertThrows(IndexOutOfBoundsException.class, () -> decoder.decode(intSrc, pixelCount));
+            ((Buffer) intSrc).limit(pixelCount);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BYTE_RGB,   test_minecraft.jpg",
+            "BASE,  BYTE_BGR,   test_minecraft.jpg",
+            "BASE,  BYTE_ARGB,  test_leafeon.png",
+            "BASE,  BYTE_ABGR,  test_leafeon.png",
+            "BASE,  INT_RGB,    test_minecraft.jpg",
+            "BASE,  INT_BGR,    test_minecraft.jpg",
+            "BASE,  INT_ARGB,   test_leafeon.png",
+            "BASE,  INT_ABGR,   test_leafeon.png",
+            "SIMD,  BYTE_RGB,   test_minecraft.jpg",
+            "SIMD,  BYTE_BGR,   test_minecraft.jpg",
+            "SIMD,  BYTE_ARGB,  test_leafeon.png",
+            "SIMD,  BYTE_ABGR,  test_leafeon.png",
+            "SIMD,  INT_RGB,    test_minecraft.jpg",
+            "SIMD,  INT_BGR,    test_minecraft.jpg",
+            "SIMD,  INT_ARGB,   test_leafeon.png",
+            "SIMD,  INT_ABGR,   test_leafeon.png",
+    })
+    public void testEncodeInto(TestImage.ConvertMode convertMode, TestImage.Type type, String imageName) {
+        TestImage<?> image = TestImage.load(imageName, type);
+        RGBColorToIntConversion conversion = type.conversion(convertMode);
+
+        // Encoding the decoded pixels must produce the original pixel data
+        // Output is sized exactly, so that the last block can not write past the end
+        if (image instanceof TestImage.TestImageByte) {
+            byte[] data = ((TestImage.TestImageByte) image).data;
+            byte[] encoded = new byte[data.length];
+            conversion.encodeInto(image.truth, 0, encoded, 0, image.truth.length);
+            assertArrayEquals(data, encoded);
+
+            // Encode at an offset with a pixel count that is not a multiple of 32
+            int step = conversion.singleBytesInputLength();
+            int pixelCount = image.truth.length - 37 - 5;
+            byte[] offsetEncoded = new byte[3 + pixelCount * step];
+            conversion.encodeInto(image.truth, 37, offsetEncoded, 3, pixelCount);
+            for (int i = 0; i < pixelCount * step; i++) {
+                assertEquals(data[37 * step + i], offsetEncoded[3 + i], "Byte mismatch at index " + i);
+            }
+        } else {
+            int[] data = ((TestImage.TestImageInt) image).data;
+            int mask = type.hasTransparency() ? 0xFFFFFFFF : 0xFFFFFF;
+            int[] encoded = new int[data.length + 7];
+            conversion.encodeInto(image.truth, 0, encoded, 7, image.truth.length);
+            for (int i = 0; i < data.length; i++) {
+                assertEquals(data[i] & mask, encoded[7 + i], "Pixel mismatch at index " + i);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BGRA",
+            "BASE,  XRGB",
+            "SIMD,  BGRA",
+            "SIMD,  RGBA",
+            "SIMD,  ARGB",
+            "SIMD,  RGBX",
+            "SIMD,  XRGB",
+            "SIMD,  BXGR",
+            "SIMD,  GBR",
+            "SIMD,  rgb",
+    })
+    public void testLayoutConversion(TestImage.ConvertMode convertMode, String layout) {
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.ofLayout(layout);
+        if (convertMode == TestImage.ConvertMode.BASE) {
+            conversion = conversion.noSIMD();
+        }
+        String channels = layout.toUpperCase();
+        boolean hasTransparency = channels.contains("A");
+        int[] truth = TestImage.load("test_leafeon.png", TestImage.Type.INT_ARGB).truth;
+        int[] expected = new int[truth.length];
+
+        // Store the pixels in the layout, using a different value for the unused byte of every pixel
+        byte[] bytes = new byte[truth.length * channels.length()];
+        int[] ints = new int[truth.length];
+        String intChannels = (channels.length() == 3) ? ("X" + channels) : channels;
+        for (int i = 0; i < truth.length; i++) {
+            expected[i] = hasTransparency ? truth[i] : (truth[i] & 0xFFFFFF);
+            for (int c = 0; c < intChannels.length(); c++) {
+                int value = channelValue(truth[i], intChannels.charAt(c), i);
+                ints[i] |= value << (8 * (3 - c));
+                if (c < channels.length()) {
+                    bytes[i * channels.length() + c] = (byte) channelValue(truth[i], channels.charAt(c), i);
+                }
+            }
+        }
+
+        int[] result = new int[truth.length];
+        conversion.decodeInto(bytes, 0, result, 0, truth.length);
+        assertArrayEquals(expected, result);
+        result = new int[truth.length];
+        conversion.decodeInto(ints, 0, result, 0, truth.length);
+        assertArrayEquals(expected, result);
+
+        // Encoding stores the unused byte as 0
+        int[] encodedInts = new int[truth.length];
+        conversion.encodeInto(truth, 0, encodedInts, 0, truth.length);
+        byte[] encodedBytes = new byte[bytes.length];
+        conversion.encodeInto(truth, 0, encodedBytes, 0, truth.length);
+        for (int i = 0; i < truth.length; i++) {
+            int unusedMask = 0;
+            for (int c = 0; c < intChannels.length(); c++) {
+                if (intChannels.charAt(c) == 'X') {
+                    unusedMask |= 0xFF << (8 * (3 - c));
+                }
+                if (c < channels.length() && channels.charAt(c) == 'X') {
+                    bytes[i * channels.length() + c] = 0;
+                }
+            }
+            assertEquals(ints[i] & ~unusedMask, encodedInts[i], "Pixel mismatch at index " + i);
+        }
+        assertArrayEquals(bytes, encodedBytes);
+    }
+
+    private static int channelValue(int rgba, char channel, int index) {
+        switch (channel) {
+            case 'R': return rgba & 0xFF;
+            case 'G': return (rgba >> 8) & 0xFF;
+            case 'B': return (rgba >> 16) & 0xFF;
+            case 'A': return (rgba >> 24) & 0xFF;
+            default: return (index * 31 + 7) & 0xFF;
+        }
+    }
+
+    @Test
+    public void testLayoutCache() {
+        assertSame(RGBColorToIntConversion.RGB, RGBColorToIntConversion.ofLayout("RGB"));
+        assertSame(RGBColorToIntConversion.ABGR, RGBColorToIntConversion.ofLayout("abgr"));
+        assertSame(RGBColorToIntConversion.ofLayout("BGRA"), RGBColorToIntConversion.ofLayout("bgra"));
+        assertEquals(RGBColorToIntConversion.ARGB.isUsingSIMD(), RGBColorToIntConversion.ofLayout("BGRA").isUsingSIMD());
+        assertEquals(false, RGBColorToIntConversion.ofLayout("RGBX").hasTransparency());
+        assertEquals(4, RGBColorToIntConversion.ofLayout("RGBX").singleBytesInputLength());
+
+        for (String invalid : new String[] { "RG", "RGBAX", "RRGB", "RGBY", "RGBB", "ARGBA" }) {
+            assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.ofLayout(invalid));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  RGB565,   0, 5, 6, 5",
+            "BASE,  ARGB1555, 1, 5, 5, 5",
+            "SIMD,  RGB565,   0, 5, 6, 5",
+            "SIMD,  RGB555,   0, 5, 5, 5",
+            "SIMD,  ARGB1555, 1, 5, 5, 5",
+            "SIMD,  ARGB4444, 4, 4, 4, 4",
+    })
+    public void testPacked16Conversion(TestImage.ConvertMode convertMode, String format, int bitsA, int bitsR, int bitsG, int bitsB) throws Exception {
+        RGBColorToIntConversion conversion = (RGBColorToIntConversion) RGBColorToIntConversion.class.getField(format).get(null);
+        if (convertMode == TestImage.ConvertMode.BASE) {
+            conversion = conversion.noSIMD();
+        }
+
+        // Decode every possible 16-bit value as short, byte and int input
+        short[] shorts = new short[65536];
+        byte[] bytes = new byte[65536 * 2];
+        int[] ints = new int[65536];
+        int[] expected = new int[65536];
+        for (int v = 0; v < 65536; v++) {
+            shorts[v] = (short) v;
+            bytes[2 * v] = (byte) v;
+            bytes[2 * v + 1] = (byte) (v >> 8);
+            ints[v] = v | (v * 0x10000); // Upper bits must be ignored
+            expected[v] = expand(v >> (bitsB + bitsG), bitsR) |
+                         (expand(v >> bitsB, bitsG) << 8) |
+                         (expand(v, bitsB) << 16) |
+                         ((bitsA == 0) ? 0 : (expand(v >> (bitsB + bitsG + bitsR), bitsA) << 24));
+        }
+        int[] result = new int[65536];
+        conversion.decodeInto(shorts, 0, result, 0, result.length);
+        assertArrayEquals(expected, result);
+        result = new int[65536];
+        conversion.decodeInto(bytes, 0, result, 0, result.length);
+        assertArrayEquals(expected, result);
+        result = new int[65536];
+        conversion.decodeInto(ints, 0, result, 0, result.length);
+        assertArrayEquals(expected, result);
+
+        // Decoding with a callback, with a pixel count that is not a multiple of 32
+        int[] blockResult = new int[65536 - 7];
+        conversion.decodeBlocks(shorts, blockResult.length, (startIndex, rgba, count) -> {
+            System.arraycopy(rgba, 0, blockResult, startIndex, count);
+        });
+        assertArrayEquals(Arrays.copyOf(expected, blockResult.length), blockResult);
+
+        // Encoding the expanded channels must produce the original value, except the unused bit
+        int usedMask = (1 << (bitsA + bitsR + bitsG + bitsB)) - 1;
+        int[] encoded = new int[65536];
+        conversion.encodeInto(expected, 0, encoded, 0, expected.length);
+        for (int v = 0; v < 65536; v++) {
+            assertEquals(v & usedMask, encoded[v], "Encoding mismatch of value " + v);
+        }
+    }
+
+    private static int expand(int value, int bits) {
+        value &= (1 << bits) - 1;
+        int result = 0;
+        for (int bit = 7; bit >= 0; bit--) {
+            // Repeat the bits of the value from the most significant bit downwards
+            int valueBit = bits - 1 - ((7 - bit) % bits);
+            result |= ((value >> valueBit) & 1) << bit;
+        }
+        return result;
+    }
+
+    @Test
+    public void testPacked16ShortInputUnsupported() {
+        assertThrows(UnsupportedOperationException.class, () -> RGBColorToIntConversion.RGB.decodeInto(new short[32], 0, new int[32], 0, 32));
+        assertEquals(0xFFFFFF, RGBColorToIntConversion.RGB565.singleShortToInt((short) 0xFFFF));
+        assertEquals(0x0000FF, RGBColorToIntConversion.RGB565.singleShortToInt((short) 0xF800));
+        assertEquals(0xFF000000, RGBColorToIntConversion.ARGB1555.singleShortToInt((short) 0x8000));
+        assertEquals(0x88FFFFFF, RGBColorToIntConversion.ARGB4444.singleShortToInt((short) 0x8FFF));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  256, -1",
+            "BASE,  16,   3",
+            "SIMD,  256, -1",
+            "SIMD,  256,  0",
+            "SIMD,  200, 17",
+            "SIMD,  16,  -1",
+            "SIMD,  5,    3",
+            "SIMD,  1,   -1",
+    })
+    public void testIndexedConversion(TestImage.ConvertMode convertMode, int colorCount, int transparentIndex) {
+        Random random = new Random(colorCount);
+        byte[] palette = new byte[colorCount * 3];
+        random.nextBytes(palette);
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.indexed(palette, RGBColorToIntConversion.RGB, transparentIndex);
+        if (convertMode == TestImage.ConvertMode.BASE) {
+            conversion = conversion.noSIMD();
+        }
+        assertEquals(transparentIndex >= 0, conversion.hasTransparency());
+
+        // Every possible index, repeated, including indices past the end of the palette
+        int pixelCount = 256 * 8 + 13;
+        byte[] bytes = new byte[pixelCount];
+        int[] ints = new int[pixelCount];
+        int[] expected = new int[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+            int index = (i * 97) & 0xFF;
+            bytes[i] = (byte) index;
+            ints[i] = index | (random.nextInt() << 8); // Upper bits must be ignored
+            if (index == transparentIndex || index >= colorCount) {
+                expected[i] = 0;
+            } else {
+                expected[i] = (palette[3 * index] & 0xFF) |
+                              ((palette[3 * index + 1] & 0xFF) << 8) |
+                              ((palette[3 * index + 2] & 0xFF) << 16) |
+                              ((transparentIndex >= 0) ? 0xFF000000 : 0);
+            }
+        }
+        int[] result = new int[pixelCount];
+        conversion.decodeInto(bytes, 0, result, 0, pixelCount);
+        assertArrayEquals(expected, result);
+        result = new int[pixelCount];
+        conversion.decodeInto(ints, 0, result, 0, pixelCount);
+        assertArrayEquals(expected, result);
+
+        // Decoding with a callback, and through a decoder
+        int[] blockResult = new int[pixelCount];
+        conversion.decodeBlocks(bytes, pixelCount, (startIndex, rgba, count) -> {
+            System.arraycopy(rgba, 0, blockResult, startIndex, count);
+        });
+        assertArrayEquals(expected, blockResult);
+        int[] decoderResult = new int[pixelCount];
+        new RGBColorToIntConversion.Decoder(conversion) {
+            @Override
+            public void onPixel(int index, int rgba) {
+                decoderResult[index] = rgba;
+            }
+        }.consumerCost(1000.0).chunkSize(64).decode(ints, pixelCount);
+        assertArrayEquals(expected, decoderResult);
+    }
+
+    @Test
+    public void testIndexedPalette() {
+        // Palette colors with transparency keep their alpha, also with a transparent index
+        int[] palette = new int[] { 0x80112233, 0xFF445566, 0x00778899 };
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.indexed(palette, RGBColorToIntConversion.ARGB, 1);
+        assertTrue(conversion.hasTransparency());
+        int[] result = new int[5];
+        conversion.decodeInto(new byte[] { 0, 1, 2, 3, (byte) 255 }, 0, result, 0, result.length);
+        assertArrayEquals(new int[] { 0x80332211, 0, 0x00998877, 0, 0 }, result);
+
+        // Opaque palette without transparent index stays opaque
+        conversion = RGBColorToIntConversion.indexed(new int[] { 0x112233 }, RGBColorToIntConversion.RGB);
+        assertFalse(conversion.hasTransparency());
+        assertEquals(0x332211, conversion.singleBytesToInt(new byte[1], 0));
+
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.indexed(new int[257], RGBColorToIntConversion.ARGB));
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.indexed(new byte[257 * 3], RGBColorToIntConversion.RGB));
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.indexed(new int[16], RGBColorToIntConversion.ARGB, 256));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  GRAY8",
+            "BASE,  GRAY_ALPHA",
+            "SIMD,  GRAY8",
+            "SIMD,  GRAY_ALPHA",
+    })
+    public void testGrayConversion(TestImage.ConvertMode convertMode, String format) throws Exception {
+        RGBColorToIntConversion conversion = (RGBColorToIntConversion) RGBColorToIntConversion.class.getField(format).get(null);
+        if (convertMode == TestImage.ConvertMode.BASE) {
+            conversion = conversion.noSIMD();
+        }
+        boolean hasAlpha = conversion.hasTransparency();
+        int stride = conversion.singleBytesInputLength();
+        assertEquals(hasAlpha ? 2 : 1, stride);
+
+        // Every possible gray and alpha combination, with a tail that is not a multiple of 32
+        int pixelCount = 65536 + 13;
+        byte[] bytes = new byte[pixelCount * stride];
+        int[] ints = new int[pixelCount];
+        int[] expected = new int[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+            int gray = i & 0xFF;
+            int alpha = (i >> 8) & 0xFF;
+            bytes[i * stride] = (byte) gray;
+            if (hasAlpha) {
+                bytes[i * stride + 1] = (byte) alpha;
+            }
+            ints[i] = gray | (alpha << 8) | (i << 16); // Upper bits must be ignored
+            expected[i] = gray | (gray << 8) | (gray << 16) | (hasAlpha ? (alpha << 24) : 0);
+        }
+        int[] result = new int[pixelCount];
+        conversion.decodeInto(bytes, 0, result, 0, pixelCount);
+        assertArrayEquals(expected, result);
+        result = new int[pixelCount];
+        conversion.decodeInto(ints, 0, result, 0, pixelCount);
+        assertArrayEquals(expected, result);
+
+        // Decoding with a callback, and through a decoder
+        int[] blockResult = new int[pixelCount];
+        conversion.decodeBlocks(bytes, pixelCount, (startIndex, rgba, count) -> {
+            System.arraycopy(rgba, 0, blockResult, startIndex, count);
+        });
+        assertArrayEquals(expected, blockResult);
+        int[] decoderResult = new int[pixelCount];
+        new RGBColorToIntConversion.Decoder(conversion) {
+            @Override
+            public void onPixel(int index, int rgba) {
+                decoderResult[index] = rgba;
+            }
+        }.consumerCost(1000.0).chunkSize(1024).decode(bytes, pixelCount);
+        assertArrayEquals(expected, decoderResult);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  ARGB",
+            "BASE,  ABGR",
+            "SIMD,  ARGB",
+            "SIMD,  ABGR",
+            "SIMD,  BGRA",
+    })
+    public void testPremultipliedConversion(TestImage.ConvertMode convertMode, String layout) {
+        RGBColorToIntConversion straight = RGBColorToIntConversion.ofLayout(layout);
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.premultiplied(straight);
+        assertSame(conversion, RGBColorToIntConversion.premultiplied(straight));
+        if (convertMode == TestImage.ConvertMode.BASE) {
+            conversion = conversion.noSIMD();
+        }
+        assertTrue(conversion.hasTransparency());
+
+        // Every alpha and channel value combination, including channels larger than alpha.
+        // Pixels with the same alpha are stored in runs, so that fully opaque and fully
+        // transparent vectors occur. A second copy is shuffled, mixing them.
+        int[] premultiplied = new int[2 * 256 * 256];
+        for (int i = 0; i < 256 * 256; i++) {
+            int alpha = i >> 8;
+            int c = i & 0xFF;
+            premultiplied[i] = c | ((c / 2) << 8) | ((255 - c) << 16) | (alpha << 24);
+        }
+        System.arraycopy(premultiplied, 0, premultiplied, 256 * 256, 256 * 256);
+        Random random = new Random(1);
+        for (int i = premultiplied.length - 1; i > 256 * 256; i--) {
+            int j = 256 * 256 + random.nextInt(i - 256 * 256 + 1);
+            int tmp = premultiplied[i];
+            premultiplied[i] = premultiplied[j];
+            premultiplied[j] = tmp;
+        }
+
+        // Input is encoded with the straight conversion, which is the same layout
+        byte[] bytes = new byte[premultiplied.length * 4];
+        int[] ints = new int[premultiplied.length];
+        straight.encodeInto(premultiplied, 0, bytes, 0, premultiplied.length);
+        straight.encodeInto(premultiplied, 0, ints, 0, premultiplied.length);
+        int[] fromBytes = new int[premultiplied.length];
+        int[] fromInts = new int[premultiplied.length];
+        conversion.decodeInto(bytes, 0, fromBytes, 0, premultiplied.length);
+        conversion.decodeInto(ints, 0, fromInts, 0, premultiplied.length);
+        assertArrayEquals(fromBytes, fromInts);
+
+        for (int i = 0; i < premultiplied.length; i++) {
+            int alpha = premultiplied[i] >>> 24;
+            int rgba = fromInts[i];
+            if (alpha == 0) {
+                assertEquals(0, rgba, "Fully transparent pixels must convert to 0");
+                continue;
+            }
+            assertEquals(alpha, rgba >>> 24);
+            for (int shift = 0; shift < 24; shift += 8) {
+                int c = (premultiplied[i] >> shift) & 0xFF;
+                int actual = (rgba >> shift) & 0xFF;
+                if (c >= alpha) {
+                    assertEquals(255, actual, "Channel " + c + " with alpha " + alpha);
+                } else if (alpha == 255) {
+                    assertEquals(c, actual, "Opaque channel " + c);
+                } else {
+                    int expected = (int) Math.round(c * 255.0 / alpha);
+                    if (Math.abs(expected - actual) > 1) {
+                        fail("Channel " + c + " with alpha " + alpha + ": expected " + expected + " but was " + actual);
+                    }
+                }
+            }
+        }
+
+        // Scalar and vector conversion must produce the exact same result
+        int[] baseResult = new int[premultiplied.length];
+        conversion.noSIMD().decodeInto(ints, 0, baseResult, 0, premultiplied.length);
+        assertArrayEquals(baseResult, fromInts);
+    }
+
+    @Test
+    public void testPremultipliedFormats() {
+        assertSame(RGBColorToIntConversion.ARGB_PRE, RGBColorToIntConversion.premultiplied(RGBColorToIntConversion.ARGB));
+        assertSame(RGBColorToIntConversion.ABGR_PRE, RGBColorToIntConversion.premultiplied(RGBColorToIntConversion.ABGR));
+        assertEquals(RGBColorToIntConversion.ARGB.isUsingSIMD(), RGBColorToIntConversion.ARGB_PRE.isUsingSIMD());
+        assertEquals(0x80FF8000, RGBColorToIntConversion.ARGB_PRE.singleIntToInt(0x80004080));
+        assertEquals(0x800080FF, RGBColorToIntConversion.ABGR_PRE.singleIntToInt(0x80004080));
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.premultiplied(RGBColorToIntConversion.RGB));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  RGB,    255",
+            "BASE,  BGR,    128",
+            "BASE,  RGB565, 255",
+            "SIMD,  RGB,    255",
+            "SIMD,  BGR,    128",
+            "SIMD,  RGB565, 255",
+            "SIMD,  RGB555, 1",
+            "SIMD,  XBGR,   255",
+    })
+    public void testAlphaFill(TestImage.ConvertMode convertMode, String format, int alpha) throws Exception {
+        RGBColorToIntConversion opaque = format.startsWith("X") ? RGBColorToIntConversion.ofLayout(format)
+                : (RGBColorToIntConversion) RGBColorToIntConversion.class.getField(format).get(null);
+        RGBColorToIntConversion conversion = opaque.withAlphaFill(alpha);
+        assertEquals(opaque.isUsingSIMD(), conversion.isUsingSIMD());
+        assertFalse(conversion.hasTransparency());
+        if (convertMode == TestImage.ConvertMode.BASE) {
+            opaque = opaque.noSIMD();
+            conversion = conversion.noSIMD();
+            assertFalse(conversion.isUsingSIMD());
+        }
+
+        // Random input, with a tail that is not a multiple of 32
+        int pixelCount = 10000 + 13;
+        Random random = new Random(1);
+        byte[] bytes = new byte[pixelCount * opaque.singleBytesInputLength()];
+        int[] ints = new int[pixelCount];
+        random.nextBytes(bytes);
+        for (int i = 0; i < pixelCount; i++) {
+            ints[i] = random.nextInt();
+        }
+        int[] expected = new int[pixelCount];
+        int[] result = new int[pixelCount];
+        opaque.decodeInto(bytes, 0, expected, 0, pixelCount);
+        conversion.decodeInto(bytes, 0, result, 0, pixelCount);
+        for (int i = 0; i < pixelCount; i++) {
+            assertEquals(expected[i] | (alpha << 24), result[i]);
+        }
+        opaque.decodeInto(ints, 0, expected, 0, pixelCount);
+        conversion.decodeInto(ints, 0, result, 0, pixelCount);
+        for (int i = 0; i < pixelCount; i++) {
+            assertEquals(expected[i] | (alpha << 24), result[i]);
+        }
+
+        // Encoding ignores the filled in alpha
+        byte[] encoded = new byte[bytes.length];
+        conversion.encodeInto(result, 0, encoded, 0, pixelCount);
+        opaque.encodeInto(expected, 0, bytes, 0, pixelCount);
+        assertArrayEquals(bytes, encoded);
+    }
+
+    @Test
+    public void testAlphaFillArguments() {
+        RGBColorToIntConversion opaque = RGBColorToIntConversion.RGB.withAlphaFill(255);
+        assertEquals(255, opaque.getAlphaFill());
+        assertEquals(255, opaque.noSIMD().getAlphaFill());
+        assertEquals(0xFF332211, opaque.singleIntToInt(0x112233));
+        assertEquals(128, opaque.withAlphaFill(128).getAlphaFill());
+        assertEquals(0x80332211, opaque.withAlphaFill(128).singleIntToInt(0x112233));
+        assertEquals(0, opaque.withAlphaFill(0).getAlphaFill());
+        assertEquals(0x332211, opaque.withAlphaFill(0).singleIntToInt(0x112233));
+        assertEquals(0, RGBColorToIntConversion.RGB.getAlphaFill());
+        assertSame(RGBColorToIntConversion.RGB, RGBColorToIntConversion.RGB.withAlphaFill(0));
+        assertEquals(0xFF000000, RGBColorToIntConversion.RGB565.withAlphaFill(255).singleShortToInt((short) 0));
+        assertThrows(UnsupportedOperationException.class, () -> RGBColorToIntConversion.ARGB.withAlphaFill(255));
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.RGB.withAlphaFill(256));
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.RGB.withAlphaFill(-1));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  ARGB,       128",
+            "BASE,  GRAY_ALPHA, 1",
+            "BASE,  RGB,        128",
+            "SIMD,  ARGB,       128",
+            "SIMD,  ARGB,       0",
+            "SIMD,  ARGB,       255",
+            "SIMD,  ABGR_PRE,   64",
+            "SIMD,  ARGB4444,   128",
+            "SIMD,  GRAY_ALPHA, 1",
+            "SIMD,  RGB,        128",
+    })
+    public void testAlphaMask(TestImage.ConvertMode convertMode, String format, int alphaThreshold) throws Exception {
+        RGBColorToIntConversion conversion = (RGBColorToIntConversion) RGBColorToIntConversion.class.getField(format).get(null);
+        if (convertMode == TestImage.ConvertMode.BASE) {
+            conversion = conversion.noSIMD();
+        }
+
+        // Large enough to be split over multiple threads, with a tail that is not a multiple of 64
+        int pixelCount = 100000 + 45;
+        Random random = new Random(1);
+        byte[] bytes = new byte[pixelCount * conversion.singleBytesInputLength()];
+        int[] ints = new int[pixelCount];
+        random.nextBytes(bytes);
+        for (int i = 0; i < pixelCount; i++) {
+            ints[i] = random.nextInt();
+        }
+        int[] expected = new int[pixelCount];
+        conversion.decodeInto(bytes, 0, expected, 0, pixelCount);
+        long[] expectedMask = new long[(pixelCount + 63) / 64];
+        for (int i = 0; i < pixelCount; i++) {
+            if (!conversion.hasTransparency() || (expected[i] >>> 24) >= alphaThreshold) {
+                expectedMask[i >> 6] |= 1L << i;
+            }
+        }
+
+        // Bits past the last pixel must be cleared
+        int[] result = new int[pixelCount + 1];
+        long[] mask = new long[expectedMask.length + 1];
+        Arrays.fill(mask, -1L);
+        conversion.decodeInto(bytes, 0, result, 1, pixelCount, mask, alphaThreshold);
+        assertArrayEquals(expected, Arrays.copyOfRange(result, 1, result.length));
+        assertArrayEquals(expectedMask, Arrays.copyOf(mask, expectedMask.length));
+        assertEquals(-1L, mask[expectedMask.length], "Alpha mask written past the last pixel");
+
+        Arrays.fill(expectedMask, 0L);
+        conversion.decodeInto(ints, 0, expected, 0, pixelCount);
+        for (int i = 0; i < pixelCount; i++) {
+            if (!conversion.hasTransparency() || (expected[i] >>> 24) >= alphaThreshold) {
+                expectedMask[i >> 6] |= 1L << i;
+            }
+        }
+        mask = new long[expectedMask.length];
+        conversion.decodeInto(ints, 0, result, 0, pixelCount, mask, alphaThreshold);
+        assertArrayEquals(expected, Arrays.copyOf(result, pixelCount));
+        assertArrayEquals(expectedMask, mask);
+    }
+
+    @Test
+    public void testAlphaMaskArguments() {
+        int[] result = new int[65];
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.ARGB.decodeInto(new int[65], 0, result, 0, 65, new long[1], 128));
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.ARGB.decodeInto(new int[65], 0, result, 0, 65, new long[2], 256));
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.ARGB.decodeInto(new byte[65 * 4], 0, result, 0, 65, new long[2], -1));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "64,   BYTE_RGB,   test_minecraft.jpg",
+            "64,   BYTE_BGR,   test_minecraft.jpg",
+            "64,   BYTE_ARGB,  test_leafeon.png",
+            "64,   BYTE_ABGR,  test_leafeon.png",
+            "128,  BYTE_RGB,   test_minecraft.jpg",
+            "128,  BYTE_BGR,   test_minecraft.jpg",
+            "128,  BYTE_ARGB,  test_leafeon.png",
+            "128,  BYTE_ABGR,  test_leafeon.png",
+            "256,  BYTE_RGB,   test_minecraft.jpg",
+            "256,  BYTE_BGR,   test_minecraft.jpg",
+            "256,  BYTE_ARGB,  test_leafeon.png",
+            "256,  BYTE_ABGR,  test_leafeon.png",
+            "512,  BYTE_RGB,   test_minecraft.jpg",
+            "512,  BYTE_BGR,   test_minecraft.jpg",
+            "512,  BYTE_ARGB,  test_leafeon.png",
+            "512,  BYTE_ABGR,  test_leafeon.png",
+    })
+    public void testVectorBitSize(int bitSize, TestImage.Type type, String imageName) {
+        RGBColorToIntConversion conversion = type.conversion(TestImage.ConvertMode.SIMD).withVectorBitSize(bitSize);
+        if (!conversion.isUsingSIMD()) {
+            return; // SIMD not available
+        }
+        assertEquals(bitSize, conversion.getVectorBitSize());
+        assertVectorConversionCorrect(conversion, TestImage.load(imageName, TestImage.Type.INT_ARGB).truth);
+    }
+
+    @Test
+    public void testVectorBitSizeLayout() {
+        if (!RGBColorToIntConversion.RGB.isUsingSIMD()) {
+            return; // SIMD not available
+        }
+
+        int[] truth = TestImage.load("test_leafeon.png", TestImage.Type.INT_ARGB).truth;
+        RGBColorToIntConversion[] conversions = new RGBColorToIntConversion[] {
+                RGBColorToIntConversion.ofLayout("RGBX"),
+                RGBColorToIntConversion.ofLayout("BGRA"),
+                RGBColorToIntConversion.ofLayout("GBR"),
+                RGBColorToIntConversion.RGB.withAlphaFill(0x80)
+        };
+        for (RGBColorToIntConversion conversion : conversions) {
+            for (int bitSize = 64; bitSize <= 512; bitSize *= 2) {
+                RGBColorToIntConversion forced = conversion.withVectorBitSize(bitSize);
+                assertEquals(bitSize, forced.getVectorBitSize());
+                assertEquals(conversion.getAlphaFill(), forced.getAlphaFill());
+                assertVectorConversionCorrect(forced, truth);
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> RGBColorToIntConversion.RGB.withVectorBitSize(100));
+        assertSame(RGBColorToIntConversion.RGB.noSIMD(), RGBColorToIntConversion.RGB.noSIMD().withVectorBitSize(128));
+    }
+
+    private static void assertVectorConversionCorrect(RGBColorToIntConversion conversion, int[] truth) {
+        RGBColorToIntConversion base = conversion.noSIMD();
+        byte[] bytes = new byte[truth.length * base.singleBytesInputLength()];
+        int[] ints = new int[truth.length];
+        base.encodeInto(truth, 0, bytes, 0, truth.length);
+        base.encodeInto(truth, 0, ints, 0, truth.length);
+
+        // Decoding
+        int[] expected = new int[truth.length];
+        int[] result = new int[truth.length];
+        base.decodeInto(bytes, 0, expected, 0, truth.length);
+        conversion.decodeInto(bytes, 0, result, 0, truth.length);
+        assertArrayEquals(expected, result, "Byte decoding mismatch");
+        base.decodeInto(ints, 0, expected, 0, truth.length);
+        conversion.decodeInto(ints, 0, result, 0, truth.length);
+        assertArrayEquals(expected, result, "Int decoding mismatch");
+
+        // Decoding a run that does not start or end at a block boundary
+        Arrays.fill(result, 0);
+        conversion.decodeInto(ints, 13, result, 13, truth.length - 40);
+        for (int i = 13; i < truth.length - 27; i++) {
+            assertEquals(expected[i], result[i], "Int decoding mismatch at index " + i);
+        }
+
+        // Encoding
+        byte[] encodedBytes = new byte[bytes.length];
+        int[] encodedInts = new int[ints.length];
+        conversion.encodeInto(truth, 0, encodedBytes, 0, truth.length);
+        conversion.encodeInto(truth, 0, encodedInts, 0, truth.length);
+        assertArrayEquals(bytes, encodedBytes, "Byte encoding mismatch");
+        assertArrayEquals(ints, encodedInts, "Int encoding mismatch");
+    }
+
+    @Test
+    public void testMixedConversion() {
+        int[] truth = TestImage.load("test_leafeon.png", TestImage.Type.INT_ARGB).truth;
+        RGBColorToIntConversion[] conversions = new RGBColorToIntConversion[] {
+                RGBColorToIntConversion.RGB, RGBColorToIntConversion.ARGB
+        };
+        for (RGBColorToIntConversion conversion : conversions) {
+            RGBColorToIntConversion base = conversion.noSIMD();
+            assertVectorConversionCorrect(new ConversionSelection.MixedConversion(conversion, base), truth);
+            assertVectorConversionCorrect(new ConversionSelection.MixedConversion(base, conversion), truth);
+            assertEquals(conversion.isUsingSIMD(), new ConversionSelection.MixedConversion(base, conversion).isUsingSIMD());
+            assertSame(base, new ConversionSelection.MixedConversion(conversion, base).noSIMD());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new ConversionSelection.MixedConversion(
+                RGBColorToIntConversion.RGB, RGBColorToIntConversion.BGR));
+    }
+
+    @Test
+    public void testConversionSelection() {
+        List<ConversionSelection> selections = ConversionSelection.getSelections();
+        if (!ConversionSelection.isEnabled()) {
+            assertTrue(selections.isEmpty());
+            return;
+        }
+        for (ConversionSelection selection : selections) {
+            System.out.println(selection);
+            assertEquals(2, selection.getCandidates().size());
+            assertSame(selection.getConversion(), RGBColorToIntConversion.ofLayout(selection.getFormat()));
+            assertTrue(selection.getCandidates().contains(selection.getByteSelection()));
+            assertTrue(selection.getCandidates().contains(selection.getIntSelection()));
+        }
+    }
+
+    @Test
+    public void testBlockDecoderTail() {
+        // 3 whole blocks and a tail of 5 pixels
+        int[] data = new int[32 * 3 + 5];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        int[] result = new int[data.length];
+        int[] blockCount = new int[1];
+        RGBColorToIntConversion.ARGB.noSIMD().decodeBlocks(data, data.length, (startIndex, rgba, count) -> {
+            assertEquals(0, startIndex % 32, "Block does not start at a block boundary");
+            assertEquals(Math.min(32, data.length - startIndex), count, "Unexpected block length");
+            System.arraycopy(rgba, 0, result, startIndex, count);
+            blockCount[0]++;
+        });
+        assertEquals(4, blockCount[0], "Tail pixels were not passed as a single block");
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(RGBColorToIntConversion.ARGB.singleIntToInt(data[i]), result[i]);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "RGBA",
+            "BGRA",
+            "ARGB",
+            "RGBX",
+            "BGR",
+            "RGB",
+            "GBR",
+    })
+    public void testPartialConversion(String layout) {
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.ofLayout(layout);
+        RGBColorToIntConversion[] conversions = conversion.hasTransparency()
+                ? new RGBColorToIntConversion[] { conversion }
+                : new RGBColorToIntConversion[] { conversion, conversion.withAlphaFill(0x80) };
+        for (RGBColorToIntConversion simd : conversions) {
+            RGBColorToIntConversion base = simd.noSIMD();
+            int stride = simd.singleBytesInputLength();
+            for (int pixelCount = 1; pixelCount <= 70; pixelCount++) {
+                // Input and output arrays end right after the last pixel, so reading or writing past
+                // the last pixel fails. The output has one sentinel pixel before the first pixel.
+                byte[] bytes = new byte[1 + pixelCount * stride];
+                int[] ints = new int[1 + pixelCount];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) (i * 37 + pixelCount);
+                }
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = i * 0x1F3B5D7 + pixelCount;
+                }
+
+                int[] expected = new int[1 + pixelCount];
+                int[] result = new int[1 + pixelCount];
+                result[0] = expected[0] = 0x12345678;
+                assertEquals(bytes.length, base.byteBlockConvertPartial(bytes, 1, expected, 1, pixelCount));
+                assertEquals(bytes.length, simd.byteBlockConvertPartial(bytes, 1, result, 1, pixelCount));
+                assertArrayEquals(expected, result, "Byte conversion mismatch for " + pixelCount + " pixels");
+
+                assertEquals(ints.length, base.intBlockConvertPartial(ints, 1, expected, 1, pixelCount));
+                assertEquals(ints.length, simd.intBlockConvertPartial(ints, 1, result, 1, pixelCount));
+                assertArrayEquals(expected, result, "Int conversion mismatch for " + pixelCount + " pixels");
+
+                // Whole blocks read no bytes past the end of the block
+                if (pixelCount == 32) {
+                    base.byteBlockConvert32Pixels(bytes, 1, expected, 1);
+                    assertEquals(bytes.length, simd.byteBlockConvert32Pixels(bytes, 1, result, 1));
+                    assertArrayEquals(expected, result, "Block conversion mismatch");
+                    assertEquals(bytes.length - 1, simd.byteBlockInputMinimumLength());
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  RGB",
+            "SIMD,  RGBA",
+            "SIMD,  ARGB",
+            "SIMD,  RGBX",
+            "SIMD,  BGR",
+            "SIMD,  GBR",
+    })
+    public void testBlockSizes(TestImage.ConvertMode convertMode, String layout) {
+        RGBColorToIntConversion conversion = RGBColorToIntConversion.ofLayout(layout);
+        if (convertMode == TestImage.ConvertMode.BASE) {
+            conversion = conversion.noSIMD();
+        }
+        RGBColorToIntConversion base = conversion.noSIMD();
+        int stride = conversion.singleBytesInputLength();
+        assertEquals(0, conversion.preferredBlockSize() % 32, "Preferred block size is not a multiple of 32");
+
+        // Several blocks converted at once read no bytes past the last pixel
+        for (int pixelCount = 32; pixelCount <= 256; pixelCount += 32) {
+            byte[] bytes = new byte[pixelCount * stride];
+            int[] ints = new int[pixelCount];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) (i * 37 + pixelCount);
+            }
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = i * 0x1F3B5D7 + pixelCount;
+            }
+            int[] expected = new int[pixelCount];
+            int[] result = new int[pixelCount];
+            base.byteBlockConvertPartial(bytes, 0, expected, 0, pixelCount);
+            assertEquals(bytes.length, conversion.byteBlockConvert(bytes, 0, result, 0, pixelCount));
+            assertArrayEquals(expected, result, "Byte conversion mismatch for " + pixelCount + " pixels");
+            base.intBlockConvertPartial(ints, 0, expected, 0, pixelCount);
+            assertEquals(ints.length, conversion.intBlockConvert(ints, 0, result, 0, pixelCount));
+            assertArrayEquals(expected, result, "Int conversion mismatch for " + pixelCount + " pixels");
+        }
+
+        // Decoding with different block sizes passes blocks of at most that size
+        int[] truth = TestImage.load("test_leafeon.png", TestImage.Type.INT_ARGB).truth;
+        int pixelCount = truth.length - 7;
+        byte[] data = new byte[pixelCount * stride];
+        conversion.encodeInto(truth, 0, data, 0, pixelCount);
+        int[] expected = new int[pixelCount];
+        base.decodeInto(data, 0, expected, 0, pixelCount);
+        for (int blockSize : new int[] { 1, 32, 100, 256, conversion.preferredBlockSize() }) {
+            int maxCount = Math.max(32, (blockSize + 31) & ~31);
+            int[] result = new int[pixelCount];
+            new RGBColorToIntConversion.Decoder(conversion) {
+                @Override
+                public void onBlock(int startIndex, int[] rgba, int count) {
+                    assertTrue(count <= maxCount, "Block of " + count + " pixels is too large");
+                    System.arraycopy(rgba, 0, result, startIndex, count);
+                }
+
+                @Override
+                public void onPixel(int index, int rgba) {
+                    throw new AssertionError("Pixel decoded outside a block");
+                }
+            }.blockSize(blockSize).parallelism(1).decode(data, pixelCount);
+            assertArrayEquals(expected, result, "Decode mismatch with block size " + blockSize);
+        }
+
+        // Without setting a block size, blocks of at most 32 pixels are passed
+        int[] result = new int[pixelCount];
+        new RGBColorToIntConversion.Decoder(conversion) {
+            @Override
+            public void onBlock(int startIndex, int[] rgba, int count) {
+                assertTrue(count <= 32, "Block of " + count + " pixels is too large");
+                System.arraycopy(rgba, 0, result, startIndex, count);
+            }
+
+            @Override
+            public void onPixel(int index, int rgba) {
+                throw new AssertionError("Pixel decoded outside a block");
+            }
+        }.parallelism(1).decode(data, pixelCount);
+        assertArrayEquals(expected, result, "Decode mismatch with the default block size");
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BYTE_RGB,   test_minecraft.jpg, 1",
+            "BASE,  BYTE_ARGB,  test_leafeon.png,   7",
+            "SIMD,  BYTE_RGB,   test_minecraft.jpg, 1",
+            "SIMD,  BYTE_RGB,   test_minecraft.jpg, 100",
+            "SIMD,  BYTE_BGR,   test_minecraft.jpg, 4099",
+            "SIMD,  BYTE_ARGB,  test_leafeon.png,   5",
+            "SIMD,  BYTE_ABGR,  test_leafeon.png,   65536",
+    })
+    public void testStreamDecoder(TestImage.ConvertMode convertMode, TestImage.Type type, String imageName, int chunkSize) throws IOException {
+        TestImage.TestImageByte image = TestImage.loadByte(imageName, type);
+        int[] result = new int[image.truth.length];
+        StreamDecoder decoder = new StreamDecoder(type.conversion(convertMode), (startIndex, rgba, count) -> {
+            assertEquals(0, startIndex % 32, "Block does not start at a block boundary");
+            System.arraycopy(rgba, 0, result, startIndex, count);
+        });
+
+        // Push chunks of varying size that do not end at pixel boundaries
+        Random random = new Random(chunkSize);
+        int offset = 0;
+        while (offset < image.data.length) {
+            int length = Math.min(image.data.length - offset, 1 + random.nextInt(chunkSize));
+            decoder.write(image.data, offset, length);
+            offset += length;
+        }
+        decoder.finish();
+        assertArrayEquals(image.truth, result);
+
+        // Read through a stream that returns few bytes at a time
+        Arrays.fill(result, 0);
+        InputStream in = new ByteArrayInputStream(image.data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunkSize));
+            }
+        };
+        assertEquals(image.data.length, decoder.transferFrom(in));
+        decoder.finish();
+        assertArrayEquals(image.truth, result);
+    }
+
+    @Test
+    public void testStreamDecoderIncompletePixel() {
+        StreamDecoder decoder = new StreamDecoder(RGBColorToIntConversion.RGB, (startIndex, rgba, count) -> {});
+        decoder.write(new byte[8], 0, 8);
+        assertEquals(2, decoder.getBufferedPixelCount());
+        assertEquals(2, decoder.getPartialPixelBytes());
+        assertThrows(IllegalStateException.class, decoder::finish);
+        assertEquals(0, decoder.getPixelIndex());
+        assertEquals(0, decoder.getPartialPixelBytes());
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BYTE_RGB",
+            "BASE,  INT_ARGB",
+            "SIMD,  BYTE_RGB",
+            "SIMD,  INT_ARGB",
+    })
+    public void testDecodeIntoOffsets(TestImage.ConvertMode convertMode, TestImage.Type type) {
+        TestImage<?> image = TestImage.load("test_minecraft.jpg", type);
+        RGBColorToIntConversion conversion = type.conversion(convertMode);
+        int srcPixelOffset = 37;
+        int dstOffset = 11;
+        int pixelCount = image.truth.length - srcPixelOffset - 5;
+        int[] dst = new int[dstOffset + pixelCount + 3];
+        if (image instanceof TestImage.TestImageByte) {
+            byte[] data = ((TestImage.TestImageByte) image).data;
+            conversion.decodeInto(data, srcPixelOffset * conversion.singleBytesInputLength(),
+                    dst, dstOffset, pixelCount);
+        } else {
+            int[] data = ((TestImage.TestImageInt) image).data;
+            conversion.decodeInto(data, srcPixelOffset, dst, dstOffset, pixelCount);
+        }
+        for (int i = 0; i < dst.length; i++) {
+            int expected = (i >= dstOffset && i < (dstOffset + pixelCount))
+                    ? image.truth[i - dstOffset + srcPixelOffset] : 0;
+            assertEquals(expected, dst[i], "Pixel mismatch at index " + i);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            // Base operations
+            "BASE,  BYTE_RGB,   test_minecraft.jpg",
+            "BASE,  BYTE_BGR,   test_minecraft.jpg",
+            "BASE,  BYTE_ARGB,  test_leafeon.png",
+            "BASE,  BYTE_ABGR,  test_leafeon.png",
+            "BASE,  INT_RGB,    test_minecraft.jpg",
+            "BASE,  INT_BGR,    test_minecraft.jpg",
+            "BASE,  INT_ARGB,   test_leafeon.png",
+            "BASE,  INT_ABGR,   test_leafeon.png",
+
+            // SIMD optimizations (if supported on testing machine)
+            "SIMD,  BYTE_RGB,   test_minecraft.jpg",
+            "SIMD,  BYTE_BGR,   test_minecraft.jpg",
+            "SIMD,  BYTE_ARGB,  test_leafeon.png",
+            "SIMD,  BYTE_ABGR,  test_leafeon.png",
+            "SIMD,  INT_RGB,    test_minecraft.jpg",
+            "SIMD,  INT_BGR,    test_minecraft.jpg",
+            "SIMD,  INT_ARGB,   test_leafeon.png",
+            "SIMD,  INT_ABGR,   test_leafeon.png",
+    })
+    public void testPaletteConversion(TestImage.ConvertMode convertMode, TestImage.Type type, String imageName) {
+        TestImage.load(imageName, type)
+                .convertToPalette(convertMode, TestImage.PaletteMode.FUSED, BenchmarkTest.mapping)
+                .assertPaletteCorrect(BenchmarkTest.mapping);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "FORK_JOIN_POOL,  32",
+            "FORK_JOIN_POOL,  1000",
+            "THREAD_POOL,     32",
+            "THREAD_POOL,     1000",
+    })
+    public void testDecoderExecutor(String executorType, int chunkSize) {
+        ExecutorService executor = executorType.equals("FORK_JOIN_POOL")
+                ? new ForkJoinPool(4) : Executors.newFixedThreadPool(3);
+        try {
+            TestImage.TestImageByte image = TestImage.loadByte("test_leafeon.png", TestImage.Type.BYTE_ARGB);
+            Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            new RGBColorToIntConversion.Decoder(RGBColorToIntConversion.ARGB) {
+                @Override
+                public void onPixel(int index, int rgba) {
+                    image.result[index] = rgba;
+                    threads.add(Thread.currentThread());
+                }
+            }.parallelism(4).consumerCost(1000.0).executor(executor).chunkSize(chunkSize)
+             .decode(image.data, image.result.length);
+            image.assertCorrect(TestImage.DebugMode.DEFAULT);
+
+            Thread callingThread = Thread.currentThread();
+            for (Thread thread : threads) {
+                if (thread != callingThread && executor instanceof ForkJoinPool) {
+                    assertSame(executor, ((ForkJoinWorkerThread) thread).getPool(),
+                            "Pixels were decoded on a thread outside the executor");
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BYTE_RGB,   0",
+            "BASE,  BYTE_ARGB,  7",
+            "BASE,  INT_RGB,    0",
+            "BASE,  INT_ARGB,   7",
+            "SIMD,  BYTE_RGB,   0",
+            "SIMD,  BYTE_RGB,   5",
+            "SIMD,  BYTE_ARGB,  7",
+            "SIMD,  INT_RGB,    0",
+            "SIMD,  INT_ARGB,   7",
+    })
+    public void testDecodeRegion(TestImage.ConvertMode convertMode, TestImage.Type type, int rowPadding) {
+        TestImage<?> image = TestImage.load("test_leafeon.png", type);
+        RGBColorToIntConversion conversion = type.conversion(convertMode);
+        final int x = 13, y = 7, width = 101, height = 57, offset = 3;
+
+        // Decode using the decoder, and using decodeRegionInto
+        int[] decoded = new int[width * height];
+        int[] decodedInto = new int[width * height];
+        RGBColorToIntConversion.Decoder decoder = new RGBColorToIntConversion.Decoder(conversion) {
+            @Override
+            public void onPixel(int index, int rgba) {
+                decoded[index] = rgba;
+            }
+        }.consumerCost(1000.0).chunkSize(32);
+        if (image instanceof TestImage.TestImageByte) {
+            byte[] data = ((TestImage.TestImageByte) image).data;
+            int rowLength = image.width * conversion.singleBytesInputLength();
+            int stride = rowLength + rowPadding;
+            byte[] padded = new byte[offset + stride * image.height];
+            for (int row = 0; row < image.height; row++) {
+                System.arraycopy(data, row * rowLength, padded, offset + row * stride, rowLength);
+            }
+            decoder.decodeRegion(padded, offset, stride, x, y, width, height);
+            conversion.decodeRegionInto(padded, offset, stride, x, y, width, height, decodedInto, 0);
+        } else {
+            int[] data = ((TestImage.TestImageInt) image).data;
+            int stride = image.width + rowPadding;
+            int[] padded = new int[offset + stride * image.height];
+            for (int row = 0; row < image.height; row++) {
+                System.arraycopy(data, row * image.width, padded, offset + row * stride, image.width);
+            }
+            decoder.decodeRegion(padded, offset, stride, x, y, width, height);
+            conversion.decodeRegionInto(padded, offset, stride, x, y, width, height, decodedInto, 0);
+        }
+
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                int expected = image.truth[(y + row) * image.width + x + col];
+                assertEquals(expected, decoded[row * width + col], "Decoder pixel mismatch at x=" + col + " y=" + row);
+                assertEquals(expected, decodedInto[row * width + col], "decodeRegionInto pixel mismatch at x=" + col + " y=" + row);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BYTE_RGB",
+            "BASE,  INT_ARGB",
+            "SIMD,  BYTE_RGB",
+            "SIMD,  BYTE_BGR",
+            "SIMD,  BYTE_ARGB",
+            "SIMD,  INT_RGB",
+            "SIMD,  INT_ABGR",
+    })
+    public void testDeltaDecoder(TestImage.ConvertMode convertMode, TestImage.Type type) {
+        TestImage<?> image = TestImage.load("test_leafeon.png", type);
+        RGBColorToIntConversion conversion = type.conversion(convertMode);
+        DeltaDecoder decoder = new DeltaDecoder(conversion, image.width, image.height);
+        int[] result = new int[image.truth.length];
+        RGBColorToIntConversion.RGBBlockConsumer consumer = (startIndex, rgba, count) -> {
+            assertEquals(startIndex / image.width, (startIndex + count - 1) / image.width, "Block spans multiple rows");
+            System.arraycopy(rgba, 0, result, startIndex, count);
+        };
+
+        // First frame is decoded entirely
+        DeltaDecoder.DirtyRegion region = decode(decoder, image, consumer);
+        assertEquals(region.getTotalBlocks(), region.getChangedBlocks());
+        assertEquals(0, region.getX());
+        assertEquals(0, region.getY());
+        assertEquals(image.width, region.getWidth());
+        assertEquals(image.height, region.getHeight());
+        assertArrayEquals(image.truth, result);
+        assertArrayEquals(image.truth, decoder.getPixels());
+
+        // Same frame again changes nothing
+        region = decode(decoder, image, consumer);
+        assertEquals(true, region.isEmpty(), "Unchanged frame reported changes: " + region);
+
+        // Changing only the unused byte of int-encoded pixels without transparency changes nothing
+        if (image instanceof TestImage.TestImageInt && !conversion.hasTransparency()) {
+            TestImage.TestImageInt unused = (TestImage.TestImageInt) TestImage.load("test_leafeon.png", type);
+            for (int i = 0; i < unused.data.length; i += 7) {
+                unused.data[i] ^= 0xFF000000;
+            }
+            region = decode(decoder, unused, consumer);
+            assertEquals(true, region.isEmpty(), "Unused byte change reported changes: " + region);
+        }
+
+        // Change the pixels in a small rectangle, and the last pixel of the frame
+        int[] changed = new int[] { 10 * image.width + 40, 19 * image.width + 49, image.truth.length - 1 };
+        TestImage<?> modified = TestImage.load("test_leafeon.png", type);
+        int step = conversion.singleBytesInputLength();
+        for (int index : changed) {
+            if (modified instanceof TestImage.TestImageByte) {
+                ((TestImage.TestImageByte) modified).data[index * step] ^= 0x55;
+            } else {
+                ((TestImage.TestImageInt) modified).data[index] ^= 0x550000;
+            }
+        }
+        int[] expected = new int[image.truth.length];
+        if (modified instanceof TestImage.TestImageByte) {
+            conversion.decodeInto(((TestImage.TestImageByte) modified).data, 0, expected, 0, expected.length);
+        } else {
+            conversion.decodeInto(((TestImage.TestImageInt) modified).data, 0, expected, 0, expected.length);
+        }
+        region = decode(decoder, modified, consumer);
+        assertEquals(32, region.getX());
+        assertEquals(10, region.getY());
+        assertEquals(image.width - 32, region.getWidth());
+        assertEquals(image.height - 10, region.getHeight());
+        assertEquals(3, region.getChangedBlocks());
+        assertArrayEquals(expected, result);
+        assertArrayEquals(expected, decoder.getPixels());
+
+        // After a reset the frame is decoded entirely again
+        decoder.reset();
+        region = decode(decoder, modified, consumer);
+        assertEquals(region.getTotalBlocks(), region.getChangedBlocks());
+    }
+
+    private static DeltaDecoder.DirtyRegion decode(DeltaDecoder decoder, TestImage<?> image, RGBColorToIntConversion.RGBBlockConsumer consumer) {
+        if (image instanceof TestImage.TestImageByte) {
+            return decoder.decode(((TestImage.TestImageByte) image).data, consumer);
+        } else {
+            return decoder.decode(((TestImage.TestImageInt) image).data, consumer);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  BYTE_RGB,   128,  PAD",
+            "BASE,  INT_ARGB,   100,  CLIP",
+            "SIMD,  BYTE_RGB,   128,  PAD",
+            "SIMD,  BYTE_ARGB,  100,  PAD",
+            "SIMD,  BYTE_ARGB,  100,  CLIP",
+            "SIMD,  INT_RGB,    100,  PAD",
+            "SIMD,  INT_ARGB,   100,  CLIP",
+    })
+    public void testTileDecoder(TestImage.ConvertMode convertMode, TestImage.Type type, int tileSize, TileDecoder.EdgeMode edgeMode) {
+        TestImage<?> image = TestImage.load("test_leafeon.png", type);
+        TileDecoder decoder = new TileDecoder(type.conversion(convertMode), tileSize).edgeMode(edgeMode);
+        int[][] tiles;
+        byte[][] paletteTiles;
+        if (image instanceof TestImage.TestImageByte) {
+            byte[] data = ((TestImage.TestImageByte) image).data;
+            int stride = image.width * type.conversion(convertMode).singleBytesInputLength();
+            tiles = decoder.decode(data, 0, stride, image.width, image.height);
+            paletteTiles = decoder.decodeToPalette(data, 0, stride, image.width, image.height, BenchmarkTest.mapping);
+        } else {
+            int[] data = ((TestImage.TestImageInt) image).data;
+            tiles = decoder.decode(data, 0, image.width, image.width, image.height);
+            paletteTiles = decoder.decodeToPalette(data, 0, image.width, image.width, image.height, BenchmarkTest.mapping);
+        }
+
+        int tileCountX = decoder.getTileCountX(image.width);
+        assertEquals(tileCountX * decoder.getTileCountY(image.height), tiles.length);
+        for (int tileIndex = 0; tileIndex < tiles.length; tileIndex++) {
+            int tileX = (tileIndex % tileCountX) * tileSize;
+            int tileY = (tileIndex / tileCountX) * tileSize;
+            int tileWidth = Math.min(tileSize, image.width - tileX);
+            int tileHeight = Math.min(tileSize, image.height - tileY);
+            int stride = (edgeMode == TileDecoder.EdgeMode.PAD) ? tileSize : tileWidth;
+            int rows = (edgeMode == TileDecoder.EdgeMode.PAD) ? tileSize : tileHeight;
+            assertEquals(stride * rows, tiles[tileIndex].length, "Tile " + tileIndex + " has the wrong size");
+            assertEquals(stride * rows, paletteTiles[tileIndex].length, "Palette tile " + tileIndex + " has the wrong size");
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < stride; x++) {
+                    int expected = 0;
+                    byte expectedColor = BenchmarkTest.mapping[0x1000000];
+                    if (x < tileWidth && y < tileHeight) {
+                        expected = image.truth[(tileY + y) * image.width + tileX + x];
+                        if (!type.hasTransparency() || (expected & 0x80000000) != 0) {
+                            expectedColor = BenchmarkTest.mapping[expected & 0xFFFFFF];
+                        }
+                    }
+                    assertEquals(expected, tiles[tileIndex][y * stride + x],
+                            "Tile " + tileIndex + " pixel mismatch at x=" + x + " y=" + y);
+                    assertEquals(expectedColor, paletteTiles[tileIndex][y * stride + x],
+                            "Palette tile " + tileIndex + " pixel mismatch at x=" + x + " y=" + y);
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "BASE,  I420,  BT601,  false,  67,  9,  0",
+            "BASE,  NV12,  BT709,  true,   67,  9,  5",
+            "BASE,  YUYV,  BT601,  false,  67,  9,  0",
+            "SIMD,  I420,  BT601,  false,  67,  9,  0",
+            "SIMD,  I420,  BT709,  true,   200, 31, 13",
+            "SIMD,  NV12,  BT601,  false,  67,  9,  0",
+            "SIMD,  NV12,  BT709,  false,  200, 31, 13",
+            "SIMD,  YUYV,  BT601,  true,   67,  9,  0",
+            "SIMD,  YUYV,  BT709,  false,  200, 31, 12",
+            "SIMD,  I420,  BT601,  false,  1,   1,  0",
+    })
+    public void testYUVDecoder(TestImage.ConvertMode convertMode, YUVDecoder.Format format, YUVDecoder.Matrix matrix,
+                               boolean fullRange, int width, int height, int rowPadding
+    ) {
+        YUVDecoder decoder = new YUVDecoder(format).matrix(matrix).fullRange(fullRange)
+                .useSIMD(convertMode == TestImage.ConvertMode.SIMD).parallelism(4);
+        assertEquals(convertMode == TestImage.ConvertMode.SIMD && RGBColorToIntConversion.RGB.isUsingSIMD(), decoder.isUsingSIMD());
+
+        // Random frame with padding after every row, followed by an unused byte
+        int lumaRowLength = (format == YUVDecoder.Format.YUYV) ? (((width + 1) / 2) * 4) : width;
+        int stride = lumaRowLength + rowPadding;
+        int chromaStride = (format == YUVDecoder.Format.I420) ? ((stride + 1) / 2) : (((stride + 1) / 2) * 2);
+        int chromaPlane = stride * height;
+        int chromaPlaneV = chromaPlane + chromaStride * ((height + 1) / 2);
+        int frameLength;
+        if (format == YUVDecoder.Format.YUYV) {
+            frameLength = chromaPlane;
+        } else if (format == YUVDecoder.Format.NV12) {
+            frameLength = chromaPlaneV;
+        } else {
+            frameLength = chromaPlaneV + chromaStride * ((height + 1) / 2);
+        }
+        byte[] data = new byte[frameLength + 1];
+        new Random(width * height).nextBytes(data);
+        if (rowPadding == 0) {
+            assertEquals(data.length - 1, decoder.getFrameLength(width, height));
+        }
+
+        int[] result = new int[width * height + 2];
+        decoder.decodeInto(data, 0, stride, width, height, result, 1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int lumaY, chromaU, chromaV;
+                if (format == YUVDecoder.Format.YUYV) {
+                    int pair = y * stride + (x / 2) * 4;
+                    lumaY = data[pair + (x & 1) * 2] & 0xFF;
+                    chromaU = data[pair + 1] & 0xFF;
+                    chromaV = data[pair + 3] & 0xFF;
+                } else if (format == YUVDecoder.Format.NV12) {
+                    lumaY = data[y * stride + x] & 0xFF;
+                    chromaU = data[chromaPlane + (y / 2) * chromaStride + (x / 2) * 2] & 0xFF;
+                    chromaV = data[chromaPlane + (y / 2) * chromaStride + (x / 2) * 2 + 1] & 0xFF;
+                } else {
+                    lumaY = data[y * stride + x] & 0xFF;
+                    chromaU = data[chromaPlane + (y / 2) * chromaStride + (x / 2)] & 0xFF;
+                    chromaV = data[chromaPlaneV + (y / 2) * chromaStride + (x / 2)] & 0xFF;
+                }
+                int rgba = result[1 + y * width + x];
+                int[] expected = yuvToRGB(matrix, fullRange, lumaY, chromaU, chromaV);
+                for (int c = 0; c < 3; c++) {
+                    int actual = (rgba >> (8 * c)) & 0xFF;
+                    if (Math.abs(actual - expected[c]) > 1) {
+                        fail("Pixel mismatch at x=" + x + " y=" + y + " channel " + c +
+                                ": expected " + expected[c] + " but was " + actual);
+                    }
+                }
+                assertEquals(0, rgba >>> 24, "Alpha must be kept 0");
+            }
+        }
+        assertEquals(0, result[0]);
+        assertEquals(0, result[result.length - 1]);
+
+        // Scalar and vector conversion must produce the exact same result
+        int[] baseResult = new int[width * height + 2];
+        decoder.useSIMD(false).decodeInto(data, 0, stride, width, height, baseResult, 1);
+        assertArrayEquals(baseResult, result);
+    }
+
+    private static int[] yuvToRGB(YUVDecoder.Matrix matrix, boolean fullRange, int y, int u, int v) {
+        double kr = (matrix == YUVDecoder.Matrix.BT601) ? 0.299 : 0.2126;
+        double kb = (matrix == YUVDecoder.Matrix.BT601) ? 0.114 : 0.0722;
+        double luma = fullRange ? (y / 255.0) : ((y - 16) / 219.0);
+        double cb = fullRange ? ((u - 128) / 255.0) : ((u - 128) / 224.0);
+        double cr = fullRange ? ((v - 128) / 255.0) : ((v - 128) / 224.0);
+        double r = luma + 2.0 * (1.0 - kr) * cr;
+        double b = luma + 2.0 * (1.0 - kb) * cb;
+        double g = (luma - kr * r - kb * b) / (1.0 - kr - kb);
+        return new int[] { toByte(r), toByte(g), toByte(b) };
+    }
+
+    private static int toByte(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value * 255.0)));
+    }
+
+    @Test
+    public void testYUVDecoderFrameValidation() {
+        YUVDecoder decoder = new YUVDecoder(YUVDecoder.Format.I420);
+        assertEquals(16 * 8 + 2 * 8 * 4, decoder.getFrameLength(16, 8));
+        assertThrows(IllegalArgumentException.class, () -> decoder.decode(new byte[16 * 8 + 2 * 8 * 4 - 1], 16, 8));
+        assertThrows(IllegalArgumentException.class, () -> decoder.decodeInto(new byte[1000], 0, 15, 16, 8, new int[16 * 8], 0));
+
+        // Limited range black and white, and full range white
+        assertArrayEquals(new int[] { 0x000000, 0xFFFFFF }, new YUVDecoder(YUVDecoder.Format.YUYV)
+                .decode(new byte[] { 16, (byte) 128, (byte) 235, (byte) 128 }, 2, 1));
+        assertArrayEquals(new int[] { 0xFFFFFF, 0xFFFFFF }, new YUVDecoder(YUVDecoder.Format.YUYV).fullRange(true)
+                .decode(new byte[] { (byte) 255, (byte) 128, (byte) 255, (byte) 128 }, 2, 1));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "ORDERED,          1,  SINGLE",
+            "ORDERED,          4,  FORK_JOIN_POOL",
+            "ORDERED,          4,  THREAD_POOL",
+            "ERROR_DIFFUSION,  1,  SINGLE",
+            "ERROR_DIFFUSION,  4,  FORK_JOIN_POOL",
+            "ERROR_DIFFUSION,  4,  THREAD_POOL",
+    })
+    public void testDitherer(Ditherer.Mode mode, int parallelism, String executorType) {
+        ExecutorService executor = executorType.equals("FORK_JOIN_POOL") ? new ForkJoinPool(4)
+                : executorType.equals("THREAD_POOL") ? Executors.newFixedThreadPool(3) : null;
+        try {
+            // Half-transparent gradient with some noise, wide enough to have a partial block at the end of every row
+            final int width = 517, height = 301;
+            Random random = new Random(0x5EED);
+            int[] rgba = new int[width * height + 2];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int r = (x * 255) / width;
+                    int g = (y * 255) / height;
+                    int b = random.nextInt(256);
+                    int a = (x + y) % 97 < 5 ? random.nextInt(128) : 128 + random.nextInt(128);
+                    rgba[1 + y * width + x] = r | (g << 8) | (b << 16) | (a << 24);
+                }
+            }
+            byte[] expected = (mode == Ditherer.Mode.ORDERED)
+                    ? ditherOrdered(rgba, 1, width, height, 40)
+                    : ditherErrorDiffusion(rgba, 1, width, height);
+
+            Ditherer ditherer = new Ditherer(RGBColorToIntConversion.ABGR, DITHER_PALETTE, mode)
+                    .spread(40).parallelism(parallelism).executor(executor);
+            byte[] result = new byte[width * height + 2];
+            ditherer.dither(rgba, 1, width, height, result, 1);
+            assertEquals(0, result[0]);
+            assertEquals(0, result[result.length - 1]);
+            assertArrayEquals(expected, Arrays.copyOfRange(result, 1, result.length - 1));
+
+            // Decoding the pixels right before dithering them must produce the same result
+            byte[] data = new byte[4 * width * height];
+            RGBColorToIntConversion.ABGR.encodeInto(rgba, 1, data, 0, width * height);
+            result = new byte[width * height];
+            ditherer.decode(data, 0, 4 * width, width, height, result, 0);
+            assertArrayEquals(expected, result);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testDithererFlatColor() {
+        // A flat color halfway between two palette colors must be dithered to about half of both
+        int[] rgba = new int[64 * 64];
+        Arrays.fill(rgba, 0x404040);
+        for (Ditherer.Mode mode : Ditherer.Mode.values()) {
+            byte[] result = new byte[rgba.length];
+            new Ditherer(RGBColorToIntConversion.RGB, DITHER_PALETTE, mode).spread(128)
+                    .dither(rgba, 0, 64, 64, result, 0);
+            int brightCount = 0;
+            for (byte color : result) {
+                if (color == DITHER_PALETTE.getNearestColor(0x808080)) {
+                    brightCount++;
+                } else {
+                    assertEquals(DITHER_PALETTE.getNearestColor(0), color, "Unexpected color with mode " + mode);
+                }
+            }
+            assertTrue(Math.abs(brightCount - rgba.length / 2) < rgba.length / 32,
+                    "Colors are not evenly mixed with mode " + mode + ": " + brightCount);
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> Ditherer.Palette.of(new byte[256], new int[256]));
+        Ditherer.Palette palette = Ditherer.Palette.of(BenchmarkTest.mapping, new int[256]);
+        assertEquals((byte) 0x56, palette.getNearestColor(0x123456));
+        assertEquals(0, palette.getTransparentColor());
+    }
+
+    /**
+     * Palette with 27 colors, with every channel set to 0, 128 or 255. Color index 0 is transparent.
+     */
+    private static final Ditherer.Palette DITHER_PALETTE = new Ditherer.Palette() {
+        @Override
+        public byte getNearestColor(int rgb) {
+            int r = level(rgb & 0xFF), g = level((rgb >> 8) & 0xFF), b = level((rgb >> 16) & 0xFF);
+            return (byte) (1 + r + 3 * g + 9 * b);
+        }
+
+        @Override
+        public int getColorRGB(byte color) {
+            int index = (color & 0xFF) - 1;
+            return value(index % 3) | (value((index / 3) % 3) << 8) | (value(index / 9) << 16);
+        }
+
+        @Override
+        public byte getTransparentColor() {
+            return 0;
+        }
+
+        private int level(int value) {
+            return (value < 64) ? 0 : ((value < 192) ? 1 : 2);
+        }
+
+        private int value(int level) {
+            return (level == 0) ? 0 : ((level == 1) ? 128 : 255);
+        }
+    };
+
+    private static byte[] ditherOrdered(int[] rgba, int offset, int width, int height, int spread) {
+        final int[] bayer = {
+                 0, 32,  8, 40,  2, 34, 10, 42,
+                48, 16, 56, 24, 50, 18, 58, 26,
+                12, 44,  4, 36, 14, 46,  6, 38,
+                60, 28, 52, 20, 62, 30, 54, 22,
+                 3, 35, 11, 43,  1, 33,  9, 41,
+                51, 19, 59, 27, 49, 17, 57, 25,
+                15, 47,  7, 39, 13, 45,  5, 37,
+                63, 31, 55, 23, 61, 29, 53, 21
+        };
+        byte[] result = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = rgba[offset + y * width + x];
+                if ((pixel >>> 24) < 128) {
+                    result[y * width + x] = DITHER_PALETTE.getTransparentColor();
+                    continue;
+                }
+                int d = ((2 * bayer[(y % 8) * 8 + (x % 8)] + 1) * spread) / 128 - spread / 2;
+                int rgb = 0;
+                for (int c = 0; c < 3; c++) {
+                    rgb |= Math.max(0, Math.min(255, ((pixel >> (8 * c)) & 0xFF) + d)) << (8 * c);
+                }
+                result[y * width + x] = DITHER_PALETTE.getNearestColor(rgb);
+            }
+        }
+        return result;
+    }
+
+    private static byte[] ditherErrorDiffusion(int[] rgba, int offset, int width, int height) {
+        // Errors multiplied by 16, with a padding pixel on either side of every row
+        int[][][] errors = new int[height + 1][width + 2][3];
+        byte[] result = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = rgba[offset + y * width + x];
+                if ((pixel >>> 24) < 128) {
+                    result[y * width + x] = DITHER_PALETTE.getTransparentColor();
+                    continue;
+                }
+                int[] channels = new int[3];
+                int rgb = 0;
+                for (int c = 0; c < 3; c++) {
+                    channels[c] = Math.max(0, Math.min(255, ((pixel >> (8 * c)) & 0xFF)
+                            + ((errors[y][x + 1][c] + 8) >> 4)));
+                    rgb |= channels[c] << (8 * c);
+                }
+                byte color = DITHER_PALETTE.getNearestColor(rgb);
+                result[y * width + x] = color;
+                int colorRGB = DITHER_PALETTE.getColorRGB(color);
+                for (int c = 0; c < 3; c++) {
+                    int error = channels[c] - ((colorRGB >> (8 * c)) & 0xFF);
+                    errors[y][x + 2][c] += 7 * error;
+                    errors[y + 1][x][c] += 3 * error;
+                    errors[y + 1][x + 1][c] += 5 * error;
+                    errors[y + 1][x + 2][c] += error;
+                }
+            }
+        }
+        return result;
+    }
 }
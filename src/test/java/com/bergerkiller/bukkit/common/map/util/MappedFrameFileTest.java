@@ -0,0 +1,87 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import com.bergerkiller.bukkit.common.map.util.util.TestImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MappedFrameFileTest {
+
+    @ParameterizedTest
+    @CsvSource({
+            // Single mapped region
+            "BYTE_RGB,   test_minecraft.jpg,  0,   2147483647",
+            "BYTE_ARGB,  test_leafeon.png,    16,  2147483647",
+
+            // Every frame mapped as its own region
+            "BYTE_RGB,   test_minecraft.jpg,  16,  1",
+            "BYTE_ARGB,  test_leafeon.png,    0,   1",
+    })
+    public void testDecodeFrames(TestImage.Type type, String imageName, int headerSize, long maxRegionSize) throws IOException {
+        TestImage.TestImageByte image = TestImage.loadByte(imageName, type);
+        RGBColorToIntConversion conversion = type.conversion(TestImage.ConvertMode.SIMD);
+
+        // Write 4 frames, where every frame has the pixel data rotated by a number of pixels
+        final int frameCount = 4;
+        final int step = conversion.singleBytesInputLength();
+        File file = File.createTempFile("frames", ".raw");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[headerSize]);
+            for (int frame = 0; frame < frameCount; frame++) {
+                int split = frame * 1000 * step;
+                out.write(image.data, split, image.data.length - split);
+                out.write(image.data, 0, split);
+            }
+            // Incomplete frame at the end is ignored
+            out.write(image.data, 0, 100);
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try (MappedFrameFile frames = new MappedFrameFile(channel, conversion, image.width, image.height, headerSize, maxRegionSize)) {
+            frames.readAhead(2);
+            assertEquals(frameCount, frames.getFrameCount());
+
+            // Decode in a random order to test seeking
+            int[] order = new int[] { 2, 0, 3, 1, 1 };
+            for (int frame : order) {
+                int[] result = new int[frames.getPixelCount()];
+                if ((frame & 1) == 0) {
+                    frames.decodeFrame(frame, result, 0);
+                } else {
+                    frames.decodeFrame(frame, new RGBColorToIntConversion.Decoder(conversion) {
+                        @Override
+                        public void onPixel(int index, int rgba) {
+                            result[index] = rgba;
+                        }
+                    });
+                }
+
+                int pixelCount = result.length;
+                for (int i = 0; i < pixelCount; i++) {
+                    int expected = image.truth[(i + frame * 1000) % pixelCount];
+                    assertEquals(expected, result[i], "Frame " + frame + " pixel mismatch at index " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFrameTooLarge() throws IOException {
+        File file = File.createTempFile("frames", ".raw");
+        file.deleteOnExit();
+
+        // 50000 x 50000 x 3 bytes overflows an int, and must not silently wrap around
+        assertThrows(IllegalArgumentException.class, () -> MappedFrameFile.open(file, RGBColorToIntConversion.RGB, 50000, 50000));
+        assertThrows(IllegalArgumentException.class, () -> MappedFrameFile.open(file, RGBColorToIntConversion.RGB, 0, 100));
+    }
+}
@@ -0,0 +1,135 @@
+package com.bergerkiller.bukkit.common.map.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class PaletteLookupTableTest {
+
+    /**
+     * Nearest color of a palette of 64 colors, with every channel set to 0, 85, 170 or 255.
+     * Color index 0 is transparent. The boundaries between colors do not line up with the
+     * cells of the lookup table, so that both single-color and multi-color cells exist.
+     */
+    private static byte nearestColor(int rgb) {
+        int r = ((rgb & 0xFF) + 42) / 85;
+        int g = (((rgb >> 8) & 0xFF) + 42) / 85;
+        int b = (((rgb >> 16) & 0xFF) + 42) / 85;
+        return (byte) (1 + r + 4 * g + 16 * b);
+    }
+
+    @Test
+    public void testLookupAllColors() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            PaletteLookupTable table = PaletteLookupTable.create(PaletteLookupTableTest::nearestColor, (byte) 0)
+                    .parallelism(4).executor(executor);
+            assertFalse(table.isBuilt());
+            assertEquals(nearestColor(0x123456), table.getNearestColor(0x123456));
+            assertTrue(table.isBuilt());
+            assertFalse(table.isMapped());
+            assertTrue(table.getSize() < 16777216 / 4, "Table is not compact: " + table);
+
+            for (int rgb = 0; rgb < 0x1000000; rgb++) {
+                if (table.getNearestColor(rgb) != nearestColor(rgb)) {
+                    fail("Color mismatch for RGB " + Integer.toHexString(rgb));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTransparency() {
+        PaletteLookupTable table = PaletteLookupTable.create(PaletteLookupTableTest::nearestColor, (byte) 0);
+        assertEquals(0, table.getColor(0x7F123456));
+        assertEquals(nearestColor(0x123456), table.getColor(0x80123456));
+        assertEquals(nearestColor(0x123456), table.getNearestColor(0x00123456));
+
+        int[] buffer = new int[34];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (i * 0x0B1D07) | ((i & 1) << 31);
+        }
+        byte[] output = new byte[34];
+        table.getColors32Pixels(buffer, 1, true, output, 1);
+        for (int i = 1; i <= 32; i++) {
+            assertEquals(table.getColor(buffer[i]), output[i]);
+        }
+        assertEquals(0, output[0]);
+        assertEquals(0, output[33]);
+
+        table.getColors32Pixels(buffer, 1, false, output, 1);
+        for (int i = 1; i <= 32; i++) {
+            assertEquals(nearestColor(buffer[i] & 0xFFFFFF), output[i]);
+        }
+    }
+
+    @Test
+    public void testFromMapping() {
+        PaletteLookupTable table = PaletteLookupTable.fromMapping(BenchmarkTest.mapping);
+        assertEquals(BenchmarkTest.mapping[0x1000000], table.getTransparentColor());
+        for (int rgb = 0; rgb < 0x1000000; rgb += 997) {
+            assertEquals(BenchmarkTest.mapping[rgb], table.getNearestColor(rgb));
+        }
+        assertThrows(IllegalArgumentException.class, () -> PaletteLookupTable.fromMapping(new byte[256]));
+    }
+
+    @Test
+    public void testShared() {
+        Object key = new Object();
+        PaletteLookupTable table = PaletteLookupTable.shared(key,
+                () -> PaletteLookupTable.create(PaletteLookupTableTest::nearestColor, (byte) 0));
+        assertSame(table, PaletteLookupTable.shared(key, () -> {
+            throw new AssertionError("Table was created twice");
+        }));
+    }
+
+    @Test
+    public void testCacheFile() throws IOException {
+        File file = File.createTempFile("palette", ".bin");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+        try {
+            // Built and written to the cache file
+            PaletteLookupTable built = PaletteLookupTable.create(PaletteLookupTableTest::nearestColor, (byte) 0)
+                    .cacheFile(file, 1234L);
+            assertTrue(built.isMapped());
+            assertEquals(built.getSize() + 24, file.length());
+
+            // Mapped from the cache file without computing any color
+            PaletteLookupTable.NearestColorFunction notCalled = rgb -> {
+                throw new AssertionError("Table was built again");
+            };
+            PaletteLookupTable mapped = PaletteLookupTable.create(notCalled, (byte) 0).cacheFile(file, 1234L);
+            assertTrue(mapped.isMapped());
+            for (int rgb = 0; rgb < 0x1000000; rgb += 31) {
+                assertEquals(nearestColor(rgb), mapped.getNearestColor(rgb));
+            }
+
+            // A different key or a truncated file builds the table again
+            PaletteLookupTable otherKey = PaletteLookupTable.create(rgb -> (byte) 5, (byte) 0)
+                    .cacheFile(file, 5678L);
+            assertEquals(5, otherKey.getNearestColor(0x123456));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(raf.length() - 1);
+            }
+            PaletteLookupTable truncated = PaletteLookupTable.create(rgb -> (byte) 7, (byte) 0)
+                    .cacheFile(file, 5678L);
+            assertEquals(7, truncated.getNearestColor(0x123456));
+        } finally {
+            file.delete();
+        }
+    }
+}
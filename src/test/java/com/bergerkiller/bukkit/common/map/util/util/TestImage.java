@@ -6,6 +6,9 @@ import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -25,6 +28,7 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
     public final byte[] mapResult;
     protected final D imageBuffer;
     protected ConvertMode lastUsedConversionMode;
+    protected DecodeMode lastUsedDecodeMode;
 
     public static TestImage<?> load(String imageName, Type type) {
         switch (type) {
@@ -101,11 +105,79 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
 
     /**
      * Performs a conversion from the input image data, to the int[] {@link #result} buffer.
+     * Uses the per-pixel callback of the decoder.
      *
      * @param mode Conversion mode
      * @return this image
      */
-    public abstract TestImage<D> convert(ConvertMode mode);
+    public TestImage<D> convert(ConvertMode mode) {
+        return convert(mode, DecodeMode.CALLBACK);
+    }
+
+    /**
+     * Performs a conversion from the input image data, to the int[] {@link #result} buffer.
+     *
+     * @param mode Conversion mode
+     * @param decodeMode Decode API to use to perform the conversion
+     * @return this image
+     */
+    public abstract TestImage<D> convert(ConvertMode mode, DecodeMode decodeMode);
+
+    /**
+     * Performs a conversion from the input image data to map colors, into the byte[]
+     * {@link #mapResult} buffer.
+     *
+     * @param mode Conversion mode
+     * @param paletteMode Whether to use the callback or the fused palette decoding
+     * @param mapping Mapping table of 16777217 bytes
+     * @return this image
+     */
+    public abstract TestImage<D> convertToPalette(ConvertMode mode, PaletteMode paletteMode, byte[] mapping);
+
+    /**
+     * Checks that the previous {@link #convertToPalette(ConvertMode, PaletteMode, byte[]) palette conversion}
+     * was correct
+     *
+     * @param mapping Mapping table of 16777217 bytes used during conversion
+     * @return this image
+     */
+    public TestImage<D> assertPaletteCorrect(byte[] mapping) {
+        for (int i = 0; i < truth.length; i++) {
+            byte expected = mapping[paletteIndex(truth[i])];
+            if (expected != mapResult[i]) {
+                System.err.println("Type: " + type);
+                System.err.println("Conversion Mode: " + lastUsedConversionMode);
+                System.err.println("Map color mismatch at index " + i + " (x=" + (i % width) + " y=" + (i / width) + ")");
+                System.err.println("Truth:    " + (expected & 0xFF));
+                System.err.println("But was:  " + (mapResult[i] & 0xFF));
+                fail("Map color at index " + i + " does not match");
+            }
+        }
+        return this;
+    }
+
+    protected int paletteIndex(int rgba) {
+        if (!type.hasTransparency() || (rgba & 0x80000000) != 0) {
+            return rgba & 0xFFFFFF;
+        } else {
+            return 0x1000000;
+        }
+    }
+
+    public TestImage<D> benchmarkPalettePrime(ConvertMode mode, PaletteMode paletteMode, byte[] mapping, int cycleCount) {
+        benchmarkPalette(mode, paletteMode, mapping, cycleCount);
+        return this;
+    }
+
+    public double benchmarkPalette(ConvertMode mode, PaletteMode paletteMode, byte[] mapping, int cycleCount) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < cycleCount; i++) {
+            convertToPalette(mode, paletteMode, mapping);
+        }
+        long end = System.currentTimeMillis();
+
+        return 1.0 / ((double) (end - start) / cycleCount / 1000.0);
+    }
 
     /**
      * Checks that the previous {@link #convert(ConvertMode) conversion} was correct
@@ -118,6 +190,7 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
             if (truth[i] != result[i]) {
                 System.err.println("Type: " + type);
                 System.err.println("Conversion Mode: " + lastUsedConversionMode);
+                System.err.println("Decode Mode: " + lastUsedDecodeMode);
                 System.err.println("Pixel mismatch at index " + i + " (x=" + (i % width) + " y=" + (i / width) + ")");
                 System.err.println("Truth:    0x" + String.format("%08X", truth[i]));
                 System.err.println("But was:  0x" + String.format("%08X", result[i]));
@@ -131,14 +204,22 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
     }
 
     public TestImage<D> benchmarkPrime(ConvertMode mode, int cycleCount) {
-        benchmark(mode, cycleCount);
+        return benchmarkPrime(mode, DecodeMode.CALLBACK, cycleCount);
+    }
+
+    public TestImage<D> benchmarkPrime(ConvertMode mode, DecodeMode decodeMode, int cycleCount) {
+        benchmark(mode, decodeMode, cycleCount);
         return this;
     }
 
     public double benchmark(ConvertMode mode, int cycleCount) {
+        return benchmark(mode, DecodeMode.CALLBACK, cycleCount);
+    }
+
+    public double benchmark(ConvertMode mode, DecodeMode decodeMode, int cycleCount) {
         long start = System.currentTimeMillis();
         for (int i = 0; i < cycleCount; i++) {
-            convert(mode);
+            convert(mode, decodeMode);
         }
         long end = System.currentTimeMillis();
 
@@ -158,11 +239,7 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
         int[] imagePixels = ((java.awt.image.DataBufferInt) image.getRaster().getDataBuffer()).getData();
 
         // Load the resulting pixels into the imagePixels
-        for (int i = 0; i < result.length; i++) {
-            int input = result[i];
-            int output = ((input >> 16) & 0xFF) | (input & 0xFF00FF00) | ((input & 0xFF) << 16);
-            imagePixels[i] = output;
-        }
+        RGBColorToIntConversion.ARGB.encodeInto(result, 0, imagePixels, 0, result.length);
 
         // Set alpha channel to 255 if data stores no transparency so the window shows stuff
         if (!type.hasTransparency()) {
@@ -179,21 +256,88 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
     public static final class TestImageByte extends TestImage<java.awt.image.DataBufferByte> {
         public final byte[] data;
 
+        private ByteBuffer directData;
+
         public TestImageByte(Image inputImage, Type type) {
             super(inputImage, type, java.awt.image.DataBufferByte.class);
             this.data = imageBuffer.getData();
             type.byteCorrection.accept(this.data);
         }
 
+        /**
+         * Gets a copy of the {@link #data} stored in a direct (off-heap) byte buffer
+         *
+         * @return Direct byte buffer with the pixel data
+         */
+        public ByteBuffer directData() {
+            if (directData == null) {
+                directData = ByteBuffer.allocateDirect(data.length);
+                directData.put(data);
+            }
+            return directData;
+        }
+
         @Override
         public TestImageByte convert(ConvertMode mode) {
+            return (TestImageByte) super.convert(mode);
+        }
+
+        @Override
+        public TestImageByte convert(ConvertMode mode, DecodeMode decodeMode) {
             lastUsedConversionMode = mode;
-            new RGBColorToIntConversion.Decoder(type.conversion(mode)) {
-                @Override
-                public void onPixel(int index, int rgba) {
-                    result[index] = rgba;
-                }
-            }.decode(data, result.length);
+            lastUsedDecodeMode = decodeMode;
+            switch (decodeMode) {
+                case CALLBACK:
+                    new RGBColorToIntConversion.Decoder(type.conversion(mode)) {
+                        @Override
+                        public void onPixel(int index, int rgba) {
+                            result[index] = rgba;
+                        }
+                    }.decode(data, result.length);
+                    break;
+                case INTO:
+                    type.conversion(mode).decodeInto(data, 0, result, 0, result.length);
+                    break;
+                case BLOCK:
+                    type.conversion(mode).decodeBlocks(data, result.length, (startIndex, rgba, count) -> {
+                        System.arraycopy(rgba, 0, result, startIndex, count);
+                    });
+                    break;
+                case BUFFER_INTO:
+                    type.conversion(mode).decodeInto(directData(), 0, IntBuffer.wrap(result), 0, result.length);
+                    break;
+                case BUFFER_CALLBACK:
+                    new RGBColorToIntConversion.Decoder(type.conversion(mode)) {
+                        @Override
+                        public void onPixel(int index, int rgba) {
+                            result[index] = rgba;
+                        }
+                    }.decode(directData(), result.length);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unknown decode mode: " + decodeMode);
+            }
+            return this;
+        }
+
+        @Override
+        public TestImageByte convertToPalette(ConvertMode mode, PaletteMode paletteMode, byte[] mapping) {
+            lastUsedConversionMode = mode;
+            switch (paletteMode) {
+                case CALLBACK:
+                    new RGBColorToIntConversion.Decoder(type.conversion(mode)) {
+                        @Override
+                        public void onPixel(int index, int rgba) {
+                            mapResult[index] = mapping[paletteIndex(rgba)];
+                        }
+                    }.decode(data, mapResult.length);
+                    break;
+                case FUSED:
+                    type.conversion(mode).decodeToPalette(data, 0, mapping, mapResult, 0, mapResult.length);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unknown palette mode: " + paletteMode);
+            }
             return this;
         }
 
@@ -211,12 +355,27 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
     public static final class TestImageInt extends TestImage<java.awt.image.DataBufferInt> {
         public final int[] data;
 
+        private IntBuffer directData;
+
         public TestImageInt(Image inputImage, Type type) {
             super(inputImage, type, java.awt.image.DataBufferInt.class);
             this.data = imageBuffer.getData();
             type.intCorrection.accept(this.data);
         }
 
+        /**
+         * Gets a copy of the {@link #data} stored in a direct (off-heap) int buffer
+         *
+         * @return Direct int buffer with the pixel data
+         */
+        public IntBuffer directData() {
+            if (directData == null) {
+                directData = ByteBuffer.allocateDirect(data.length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                directData.put(data);
+            }
+            return directData;
+        }
+
         /**
          * Inserts garbage alpha channel values to the RGB int {@link #data}.
          * This simulates garbage info in the unused channel.
@@ -233,13 +392,65 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
 
         @Override
         public TestImageInt convert(ConvertMode mode) {
+            return (TestImageInt) super.convert(mode);
+        }
+
+        @Override
+        public TestImageInt convert(ConvertMode mode, DecodeMode decodeMode) {
             lastUsedConversionMode = mode;
-            new RGBColorToIntConversion.Decoder(type.conversion(mode)) {
-                @Override
-                public void onPixel(int index, int rgba) {
-                    result[index] = rgba;
-                }
-            }.decode(data, result.length);
+            lastUsedDecodeMode = decodeMode;
+            switch (decodeMode) {
+                case CALLBACK:
+                    new RGBColorToIntConversion.Decoder(type.conversion(mode)) {
+                        @Override
+                        public void onPixel(int index, int rgba) {
+                            result[index] = rgba;
+                        }
+                    }.decode(data, result.length);
+                    break;
+                case INTO:
+                    type.conversion(mode).decodeInto(data, 0, result, 0, result.length);
+                    break;
+                case BLOCK:
+                    type.conversion(mode).decodeBlocks(data, result.length, (startIndex, rgba, count) -> {
+                        System.arraycopy(rgba, 0, result, startIndex, count);
+                    });
+                    break;
+                case BUFFER_INTO:
+                    type.conversion(mode).decodeInto(directData(), 0, IntBuffer.wrap(result), 0, result.length);
+                    break;
+                case BUFFER_CALLBACK:
+                    new RGBColorToIntConversion.Decoder(type.conversion(mode)) {
+                        @Override
+                        public void onPixel(int index, int rgba) {
+                            result[index] = rgba;
+                        }
+                    }.decode(directData(), result.length);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unknown decode mode: " + decodeMode);
+            }
+            return this;
+        }
+
+        @Override
+        public TestImageInt convertToPalette(ConvertMode mode, PaletteMode paletteMode, byte[] mapping) {
+            lastUsedConversionMode = mode;
+            switch (paletteMode) {
+                case CALLBACK:
+                    new RGBColorToIntConversion.Decoder(type.conversion(mode)) {
+                        @Override
+                        public void onPixel(int index, int rgba) {
+                            mapResult[index] = mapping[paletteIndex(rgba)];
+                        }
+                    }.decode(data, mapResult.length);
+                    break;
+                case FUSED:
+                    type.conversion(mode).decodeToPalette(data, 0, mapping, mapResult, 0, mapResult.length);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unknown palette mode: " + paletteMode);
+            }
             return this;
         }
 
@@ -261,6 +472,26 @@ public abstract class TestImage<D extends java.awt.image.DataBuffer> {
         SHOW_IMAGE_ON_FAILURE
     }
 
+    public enum DecodeMode {
+        /** Decoder calling onPixel for every pixel */
+        CALLBACK,
+        /** Bulk decodeInto writing to the result array directly */
+        INTO,
+        /** Decoder calling onBlock for every block of 32 pixels */
+        BLOCK,
+        /** Bulk decodeInto reading from a direct buffer */
+        BUFFER_INTO,
+        /** Decoder calling onPixel for every pixel, reading from a direct buffer */
+        BUFFER_CALLBACK
+    }
+
+    public enum PaletteMode {
+        /** Decoder calling onPixel for every pixel, which looks up the map color */
+        CALLBACK,
+        /** Fused decodeToPalette performing the conversion and lookup in one pass */
+        FUSED
+    }
+
     public enum ConvertMode {
         /** Base conversion method that doesn't rely on any special cpu capabilities */
         BASE,